@@ -1,26 +1,230 @@
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.geom.*;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.time.YearMonth;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+import javax.management.JMException;
 import javax.swing.*;
 import javax.swing.border.*;
 import javax.swing.table.*;
+import ledger.BatchImport;
+import ledger.ChannelEventSink;
+import ledger.EventStream;
+import ledger.HistoryQuery;
+import ledger.Ledger;
+import ledger.LedgerClient;
+import ledger.LedgerResult;
+import ledger.LedgerServer;
+import ledger.LedgerService;
+import ledger.LogOptions;
+import ledger.MetricsEndpoint;
+import ledger.Money;
+import ledger.Session;
+import ledger.ShardOptions;
+import ledger.ShardedLedger;
+import ledger.StatementExport;
+import ledger.TransactionType;
+import ledger.WithdrawalLimits;
+import ui.GradientPainter;
 
 public class ATMSystem {
-    private static final Map<Integer, User> users = new HashMap<>();
-    private static final Map<Integer, java.util.List<Transaction>> transactionHistory = new HashMap<>();
+    private static LedgerService ledger;
+    // Feed of ledger changes, or null unless a sink is configured
+    private static EventStream events;
     private JFrame frame;
     private static final Color PRIMARY_COLOR = new Color(52, 152, 219);
     private static final Color SECONDARY_COLOR = new Color(241, 245, 249);
     private static final Color ACCENT_COLOR = new Color(41, 128, 185);
     private static final Font LABEL_FONT = new Font("Segoe UI", Font.BOLD, 14);
+    private static final Font FIELD_FONT = new Font("Segoe UI", Font.PLAIN, 14);
+    private static final Font BUTTON_FONT = new Font("Segoe UI", Font.BOLD, 16);
+    private static final Font BALANCE_FONT = new Font("Segoe UI", Font.BOLD, 20);
+    private static final Font SUBHEADING_FONT = new Font("Segoe UI", Font.BOLD, 24);
+    private static final Font HEADING_FONT = new Font("Segoe UI", Font.BOLD, 28);
+    private static final Font TITLE_FONT = new Font("Segoe UI", Font.BOLD, 36);
+    // Renders each button and header size once, then blits it
+    private static final GradientPainter GRADIENT = new GradientPainter(PRIMARY_COLOR, ACCENT_COLOR, 15);
+    private static final Cursor HAND_CURSOR = Cursor.getPredefinedCursor(Cursor.HAND_CURSOR);
+    private static final Border FIELD_BORDER = BorderFactory.createCompoundBorder(
+        new LineBorder(PRIMARY_COLOR, 2, true),
+        new EmptyBorder(8, 12, 8, 12)
+    );
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private static final Color ALTERNATE_ROW_COLOR = new Color(245, 245, 245);
+    private static final Color DEBIT_COLOR = new Color(231, 76, 60);
+    private static final Color CREDIT_COLOR = new Color(46, 204, 113);
+    private static final String LOADING_TEXT = "Loading\u2026";
+    // History filter choices; a null type and zero days mean no restriction
+    private static final String[] HISTORY_TYPE_NAMES = {"All types", "Deposits", "Withdrawals", "Transfers sent",
+        "Transfers received", "Refunds"};
+    private static final TransactionType[] HISTORY_TYPES = {null, TransactionType.DEPOSIT, TransactionType.WITHDRAWAL,
+        TransactionType.TRANSFER_OUT, TransactionType.TRANSFER_IN, TransactionType.REFUND};
+    private static final String[] HISTORY_PERIOD_NAMES = {"All time", "Last 7 days", "Last 30 days", "Last 365 days"};
+    private static final int[] HISTORY_PERIOD_DAYS = {0, 7, 30, 365};
+    // Identifies this kiosk to the ledger's login rate limiter
+    private static final int TERMINAL_ID = Integer.getInteger("atm.terminal", 1);
+    // Port of the Prometheus endpoint; unset leaves the metrics on JMX only
+    private static final Integer METRICS_PORT = Integer.getInteger("atm.metrics.port");
+    // Host the metrics endpoint binds to; unset keeps it on loopback, since it shows wrong-PIN rates and more
+    private static final String METRICS_BIND = System.getProperty("atm.metrics.bind");
+    // Destinations of the change feed: a file to append to and/or a host:port to stream to
+    private static final String EVENTS_FILE = System.getProperty("atm.events.file");
+    private static final String EVENTS_SOCKET = System.getProperty("atm.events.socket");
+    private static final int EVENT_BUFFER = 1 << 16;
+    // Set when this server is one shard of a ShardedLedger: its id and the ids of every shard, comma-separated
+    private static final String SHARD_ID = System.getProperty("atm.shard.id");
+    private static final String SHARD_RING = System.getProperty("atm.shard.ring");
+    // File holding the key that routers present on each shard's coordinator port, shared by shards and routers
+    private static final String SHARD_SECRET = System.getProperty("atm.shard.secret");
+    // Where a router logs the steps of transfers between shards, so a restart can finish them
+    private static final String COORDINATOR_DATA = System.getProperty("atm.coordinator.data", "atm-coordinator");
+    // Cash and transfers leaving an account, per calendar day and per ten minutes
+    private static final WithdrawalLimits WITHDRAWAL_LIMITS = new WithdrawalLimits()
+        .daily(Money.ofDollars(2_000), 20)
+        .window(TimeUnit.MINUTES.toMillis(10), Money.ofDollars(1_000), 5);
+    private static final int LEDGER_THREADS = 4;
+    private static final int LEDGER_QUEUE = 256;
+    private static final int IDLE_CHECK_MILLIS = 5_000;
+    // Every ledger call runs here so the EDT never waits on locks or the log
+    private static final ExecutorService LEDGER_EXECUTOR = newLedgerExecutor();
+
+    private static final String WELCOME_SCREEN = "welcome";
+    private static final String LOGIN_SCREEN = "login";
+    private static final String REGISTER_SCREEN = "register";
+    private static final String MENU_SCREEN = "menu";
+    private static final String HISTORY_SCREEN = "history";
+
+    // Hover effect, shared by every styled button
+    private static final MouseListener BUTTON_HOVER = new MouseAdapter() {
+        @Override
+        public void mouseEntered(MouseEvent e) {
+            e.getComponent().setBackground(ACCENT_COLOR);
+        }
 
+        @Override
+        public void mouseExited(MouseEvent e) {
+            e.getComponent().setBackground(PRIMARY_COLOR);
+        }
+    };
+
+    // Reused on the EDT for every amount we render
+    private final StringBuilder moneyText = new StringBuilder(64);
+    private final BusyOverlay busyOverlay = new BusyOverlay();
+
+    // Each screen is built the first time it is shown and kept; navigation only rebinds its data
+    private final CardLayout cards = new CardLayout();
+    private final JPanel screens = new JPanel(cards);
+    private final Set<String> builtScreens = new HashSet<>();
+    // The logged-in customer, or null on the welcome, login and registration screens
+    private Session session;
+    // The last money operation sent and its id, until its outcome is seen; resubmitting it reuses the id
+    private String unsettledOperation;
+    private long unsettledOperationId;
+    private final javax.swing.Timer idleTimer = new javax.swing.Timer(IDLE_CHECK_MILLIS, e -> logOutIfIdle());
+
+    private JTextField loginUserIdField;
+    private JPasswordField loginPinField;
+    private JTextField registerUserIdField;
+    private JPasswordField registerPinField;
+    private JTextField initialDepositField;
+    private JLabel welcomeLabel;
+    private JLabel balanceLabel;
+    private JTable historyTable;
+    private TableModel emptyHistory;
+    private JComboBox<String> historyTypeFilter;
+    private JComboBox<String> historyPeriodFilter;
+    private JLabel historySummaryLabel;
+    private final Date shownDate = new Date();
+
+    /**
+     * Starts the ATM on its own ledger. {@code --connect <host:port>} makes it
+     * a terminal of a shared ledger instead, or of a ledger partitioned
+     * across several servers given as {@code host:port,host:port,...} (see
+     * {@link ShardedLedger}). {@code --serve <port>} serves this
+     * machine's ledger to such terminals (see {@link LedgerServer}), as the
+     * shard {@code -Datm.shard.id} of the shards {@code -Datm.shard.ring}
+     * when those are set, and
+     * {@code --batch <input.csv> <report.csv>} applies a back-office file
+     * headlessly (see {@link BatchImport}) and exits, as does
+     * {@code --statements <yyyy-MM> <dir>}, which writes that month's
+     * statements (see {@link StatementExport}). A local ledger publishes
+     * its metrics over JMX, and over HTTP on loopback when
+     * {@code -Datm.metrics.port} is set ({@code -Datm.metrics.bind} names
+     * another address to listen on); {@code -Datm.events.file} and
+     * {@code -Datm.events.socket} feed its changes to a file or a downstream
+     * service.
+     */
     public static void main(String[] args) {
-       
-        users.put(1001, new User(1001, 1234, 1000.00));
-        transactionHistory.put(1001, new ArrayList<>());
+        String mode = args.length > 0 ? args[0] : "";
+        boolean batch = mode.equals("--batch") && args.length == 3;
+        boolean statements = mode.equals("--statements") && args.length == 3;
+        boolean serve = mode.equals("--serve") && args.length == 2;
+        boolean connect = mode.equals("--connect") && args.length == 2;
+        if (args.length > 0 && !batch && !statements && !serve && !connect) {
+            System.err.println("Usage: java ATMSystem [--connect <host:port>[,<host:port>...] | --serve <port>"
+                + " | --batch <input.csv> <report.csv> | --statements <yyyy-MM> <dir>]");
+            System.exit(2);
+        }
+        Ledger local = null;
+        try {
+            if (connect && args[1].indexOf(',') >= 0) {
+                ledger = ShardedLedger.connect(addresses(args[1]), shardSecret(), Paths.get(COORDINATOR_DATA));
+            } else if (connect) {
+                ledger = LedgerClient.connect(address(args[1]));
+            } else {
+                // A batch syncs once per window instead of once per operation
+                local = Ledger.open(Paths.get(System.getProperty("atm.data", "atm-data")),
+                    new LogOptions().snapshotIntervalSeconds(300).syncCommit(!batch));
+                ledger = local;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        if (local != null) {
+            exposeMetrics(local);
+            publishEvents(local);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                ledger.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // After the ledger, so the sinks receive every last change
+            if (events != null) {
+                events.close();
+            }
+        }));
+        if (batch) {
+            runBatch(local, Paths.get(args[1]), Paths.get(args[2]));
+            return;
+        }
+        if (statements) {
+            runStatements(local, args[1], Paths.get(args[2]));
+            return;
+        }
+
+        if (local != null) {
+            // Seeds the demo account on first start; a no-op once it is in the log
+            local.register(1001, 1234, Money.ofDollars(1000));
+            local.setWithdrawalLimits(WITHDRAWAL_LIMITS);
+        }
+        if (serve) {
+            runServer(local, Integer.parseInt(args[1]));
+            return;
+        }
 
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -31,40 +235,153 @@ public class ATMSystem {
         SwingUtilities.invokeLater(() -> new ATMSystem().createAndShowGUI());
     }
 
+    private static InetSocketAddress address(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Expected host:port, got " + hostAndPort);
+        }
+        return new InetSocketAddress(hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+    }
+
+    // java.awt.List shadows the collection
+    private static java.util.List<InetSocketAddress> addresses(String list) {
+        java.util.List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String hostAndPort : list.split(",")) {
+            addresses.add(address(hostAndPort.trim()));
+        }
+        return addresses;
+    }
+
+    private static void exposeMetrics(Ledger local) {
+        try {
+            local.metrics().registerMBean();
+            if (METRICS_PORT != null) {
+                InetSocketAddress address = METRICS_BIND == null
+                    ? new InetSocketAddress(InetAddress.getLoopbackAddress(), METRICS_PORT)
+                    : new InetSocketAddress(METRICS_BIND, METRICS_PORT);
+                MetricsEndpoint endpoint = MetricsEndpoint.start(local.metrics(), address);
+                System.out.println("Serving metrics on port " + endpoint.getPort());
+            }
+        } catch (IOException | JMException e) {
+            // The ATM works without its metrics
+            e.printStackTrace();
+        }
+    }
+
+    private static void publishEvents(Ledger local) {
+        if (EVENTS_FILE == null && EVENTS_SOCKET == null) {
+            return;
+        }
+        try {
+            EventStream stream = new EventStream(EVENT_BUFFER);
+            if (EVENTS_FILE != null) {
+                stream.subscribe("file", ChannelEventSink.toFile(Paths.get(EVENTS_FILE)));
+            }
+            if (EVENTS_SOCKET != null) {
+                stream.subscribe("socket", ChannelEventSink.toSocket(address(EVENTS_SOCKET)));
+            }
+            events = stream;
+            local.setEventStream(stream);
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // The server's acceptor thread keeps the JVM up; the shutdown hook closes the ledger
+    private static void runServer(Ledger local, int port) {
+        try {
+            ShardOptions shard = SHARD_ID == null ? null : new ShardOptions(SHARD_ID,
+                ShardOptions.parseRing(SHARD_RING == null ? SHARD_ID : SHARD_RING), shardSecret());
+            LedgerServer server = LedgerServer.start(local, new InetSocketAddress(port), shard);
+            System.out.println("Serving the ledger on port " + server.getPort());
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static byte[] shardSecret() throws IOException {
+        if (SHARD_SECRET == null) {
+            throw new IllegalArgumentException("Shards need -Datm.shard.secret=<file>");
+        }
+        return Files.readAllBytes(Paths.get(SHARD_SECRET));
+    }
+
+    private static void runBatch(Ledger local, Path input, Path report) {
+        try {
+            BatchImport.Summary summary = new BatchImport(local, Runtime.getRuntime().availableProcessors())
+                .process(input, report);
+            System.out.println(summary);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        // The shutdown hook closes the ledger
+        System.exit(0);
+    }
+
+    private static void runStatements(Ledger local, String month, Path dir) {
+        try {
+            StatementExport.Summary summary = new StatementExport(local, Runtime.getRuntime().availableProcessors())
+                .export(YearMonth.parse(month), ZoneId.systemDefault(), dir);
+            System.out.println(summary);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        // The shutdown hook closes the ledger
+        System.exit(0);
+    }
+
     public void createAndShowGUI() {
         frame = new JFrame("Modern ATM Interface");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setSize(900, 700);
         frame.setLocationRelativeTo(null);
+        frame.setGlassPane(busyOverlay);
+
+        screens.setBackground(SECONDARY_COLOR);
+        frame.add(screens);
+        showWelcomePage();
+        frame.setVisible(true);
+    }
 
+    private void showWelcomePage() {
+        if (session != null) {
+            ledger.logout(session);
+            session = null;
+        }
+        idleTimer.stop();
+        showScreen(WELCOME_SCREEN);
+    }
+
+    // Returns an unattended kiosk to the welcome screen once the ledger has expired its session
+    private void logOutIfIdle() {
+        if (session != null && session.isExpired()) {
+            showWelcomePage();
+        }
+    }
+
+    private JPanel buildWelcomeScreen() {
         JPanel mainPanel = new JPanel(new BorderLayout(0, 20));
         mainPanel.setBackground(SECONDARY_COLOR);
         mainPanel.setBorder(new EmptyBorder(20, 20, 20, 20));
 
         // Custom header panel with gradient
-        JPanel headerPanel = new JPanel() {
-            @Override
-            protected void paintComponent(Graphics g) {
-                Graphics2D g2d = (Graphics2D) g.create();
-                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                GradientPaint gradient = new GradientPaint(0, 0, PRIMARY_COLOR, getWidth(), getHeight(), ACCENT_COLOR);
-                g2d.setPaint(gradient);
-                g2d.fill(new RoundRectangle2D.Double(0, 0, getWidth(), getHeight(), 15, 15));
-                g2d.dispose();
-            }
-        };
+        JPanel headerPanel = new GradientPanel();
         headerPanel.setPreferredSize(new Dimension(900, 120));
         headerPanel.setLayout(new BorderLayout());
-        
+
         JLabel titleLabel = new JLabel("Modern ATM System", SwingConstants.CENTER);
-        titleLabel.setFont(new Font("Segoe UI", Font.BOLD, 36));
+        titleLabel.setFont(TITLE_FONT);
         titleLabel.setForeground(Color.WHITE);
         headerPanel.add(titleLabel, BorderLayout.CENTER);
 
         // Main content panel with buttons
         JPanel contentPanel = new JPanel(new GridBagLayout());
         contentPanel.setBackground(SECONDARY_COLOR);
-        
+
         JButton registerButton = createStyledButton("Register Account");
         JButton loginButton = createStyledButton("Login to Account");
 
@@ -73,7 +390,7 @@ public class ATMSystem {
         gbc.gridx = 0;
         gbc.gridy = 0;
         contentPanel.add(registerButton, gbc);
-        
+
         gbc.gridx = 1;
         contentPanel.add(loginButton, gbc);
 
@@ -86,79 +403,59 @@ public class ATMSystem {
             BorderFactory.createLineBorder(new Color(0, 0, 0, 20), 1, true)
         ));
 
-        frame.add(mainPanel);
-        frame.setVisible(true);
-
         registerButton.addActionListener(e -> showRegistrationPage());
         loginButton.addActionListener(e -> showLoginPage());
+        return mainPanel;
     }
 
     private JButton createStyledButton(String text) {
-        JButton button = new JButton(text) {
-            @Override
-            protected void paintComponent(Graphics g) {
-                Graphics2D g2d = (Graphics2D) g.create();
-                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                GradientPaint gradient = new GradientPaint(0, 0, PRIMARY_COLOR, getWidth(), getHeight(), ACCENT_COLOR);
-                g2d.setPaint(gradient);
-                g2d.fill(new RoundRectangle2D.Double(0, 0, getWidth(), getHeight(), 15, 15));
-                g2d.dispose();
-                super.paintComponent(g);
-            }
-        };
+        JButton button = new GradientButton(text);
         button.setPreferredSize(new Dimension(250, 60));
-        button.setFont(new Font("Segoe UI", Font.BOLD, 16));
+        button.setFont(BUTTON_FONT);
         button.setForeground(Color.WHITE);
         button.setContentAreaFilled(false);
         button.setBorderPainted(false);
         button.setFocusPainted(false);
-        button.setCursor(new Cursor(Cursor.HAND_CURSOR));
+        button.setCursor(HAND_CURSOR);
         button.setOpaque(false);
-
-        // Hover effect
-        button.addMouseListener(new MouseAdapter() {
-            @Override
-            public void mouseEntered(MouseEvent e) {
-                button.setBackground(ACCENT_COLOR);
-            }
-
-            @Override
-            public void mouseExited(MouseEvent e) {
-                button.setBackground(PRIMARY_COLOR);
-            }
-        });
-
+        button.addMouseListener(BUTTON_HOVER);
         return button;
     }
 
     private JTextField createStyledTextField() {
         JTextField textField = new JTextField(15);
-        textField.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-        textField.setBorder(BorderFactory.createCompoundBorder(
-            new LineBorder(PRIMARY_COLOR, 2, true),
-            new EmptyBorder(8, 12, 8, 12)
-        ));
+        textField.setFont(FIELD_FONT);
+        textField.setBorder(FIELD_BORDER);
         textField.setPreferredSize(new Dimension(200, 40));
         return textField;
     }
 
+    private JPasswordField createStyledPinField() {
+        JPasswordField pinField = new JPasswordField(15);
+        pinField.setBorder(FIELD_BORDER);
+        pinField.setPreferredSize(new Dimension(200, 40));
+        return pinField;
+    }
+
     private void showLoginPage() {
+        showScreen(LOGIN_SCREEN);
+        loginUserIdField.setText("");
+        loginPinField.setText("");
+        loginUserIdField.requestFocusInWindow();
+    }
+
+    private JPanel buildLoginScreen() {
         JPanel loginPanel = new JPanel(new GridBagLayout());
         loginPanel.setBackground(SECONDARY_COLOR);
         GridBagConstraints gbc = new GridBagConstraints();
         gbc.insets = new Insets(12, 12, 12, 12);
 
         JLabel titleLabel = new JLabel("Login to Your Account");
-        titleLabel.setFont(new Font("Segoe UI", Font.BOLD, 28));
+        titleLabel.setFont(HEADING_FONT);
         titleLabel.setForeground(PRIMARY_COLOR);
 
-        JTextField userIdField = createStyledTextField();
-        JPasswordField pinField = new JPasswordField(15);
-        pinField.setBorder(BorderFactory.createCompoundBorder(
-            new LineBorder(PRIMARY_COLOR, 2, true),
-            new EmptyBorder(8, 12, 8, 12)
-        ));
-        pinField.setPreferredSize(new Dimension(200, 40));
+        loginUserIdField = createStyledTextField();
+        loginPinField = createStyledPinField();
 
         JButton loginButton = createStyledButton("Login");
         JButton backButton = createStyledButton("Back to Main Menu");
@@ -179,7 +476,7 @@ public class ATMSystem {
 
         gbc.gridx = 1;
         gbc.anchor = GridBagConstraints.WEST;
-        loginPanel.add(userIdField, gbc);
+        loginPanel.add(loginUserIdField, gbc);
 
         JLabel pinLabel = new JLabel("PIN:");
         pinLabel.setFont(LABEL_FONT);
@@ -190,7 +487,7 @@ public class ATMSystem {
 
         gbc.gridx = 1;
         gbc.anchor = GridBagConstraints.WEST;
-        loginPanel.add(pinField, gbc);
+        loginPanel.add(loginPinField, gbc);
 
         gbc.gridx = 0;
         gbc.gridy = 3;
@@ -201,45 +498,48 @@ public class ATMSystem {
         gbc.gridy = 4;
         loginPanel.add(backButton, gbc);
 
-        updateFrameContent(loginPanel);
-
         loginButton.addActionListener(e -> {
             try {
-                int userId = Integer.parseInt(userIdField.getText());
-                int pin = Integer.parseInt(new String(pinField.getPassword()));
-
-                if (authenticateUser(userId, pin)) {
-                    showMainMenu(userId);
-                } else {
-                    showError("Invalid User ID or PIN.");
-                }
+                int userId = Integer.parseInt(loginUserIdField.getText());
+                int pin = Integer.parseInt(new String(loginPinField.getPassword()));
+
+                runLedgerTask("Verifying\u2026", () -> loginUser(userId, pin), login -> {
+                    if (login.getResult().isOk()) {
+                        showMainMenu(login);
+                    } else {
+                        showError(login.getResult().getMessage());
+                    }
+                });
             } catch (NumberFormatException ex) {
                 showError("Please enter valid numeric values.");
             }
         });
 
-        backButton.addActionListener(e -> createAndShowGUI());
+        backButton.addActionListener(e -> showWelcomePage());
+        return loginPanel;
     }
 
     private void showRegistrationPage() {
+        showScreen(REGISTER_SCREEN);
+        registerUserIdField.setText("");
+        registerPinField.setText("");
+        initialDepositField.setText("");
+        registerUserIdField.requestFocusInWindow();
+    }
+
+    private JPanel buildRegistrationScreen() {
         JPanel registerPanel = new JPanel(new GridBagLayout());
         registerPanel.setBackground(SECONDARY_COLOR);
         GridBagConstraints gbc = new GridBagConstraints();
         gbc.insets = new Insets(12, 12, 12, 12);
 
         JLabel titleLabel = new JLabel("Create New Account");
-        titleLabel.setFont(new Font("Segoe UI", Font.BOLD, 28));
+        titleLabel.setFont(HEADING_FONT);
         titleLabel.setForeground(PRIMARY_COLOR);
 
-        JTextField userIdField = createStyledTextField();
-        JPasswordField pinField = new JPasswordField(15);
-        pinField.setBorder(BorderFactory.createCompoundBorder(
-            new LineBorder(PRIMARY_COLOR, 2, true),
-            new EmptyBorder(8, 12, 8, 12)
-        ));
-        pinField.setPreferredSize(new Dimension(200, 40));
-
-        JTextField initialDepositField = createStyledTextField();
+        registerUserIdField = createStyledTextField();
+        registerPinField = createStyledPinField();
+        initialDepositField = createStyledTextField();
 
         JButton registerButton = createStyledButton("Register");
         JButton backButton = createStyledButton("Back to Main Menu");
@@ -260,7 +560,7 @@ public class ATMSystem {
 
         gbc.gridx = 1;
         gbc.anchor = GridBagConstraints.WEST;
-        registerPanel.add(userIdField, gbc);
+        registerPanel.add(registerUserIdField, gbc);
 
         JLabel pinLabel = new JLabel("Choose PIN:");
         pinLabel.setFont(LABEL_FONT);
@@ -271,7 +571,7 @@ public class ATMSystem {
 
         gbc.gridx = 1;
         gbc.anchor = GridBagConstraints.WEST;
-        registerPanel.add(pinField, gbc);
+        registerPanel.add(registerPinField, gbc);
 
         JLabel depositLabel = new JLabel("Initial Deposit ($):");
         depositLabel.setFont(LABEL_FONT);
@@ -293,51 +593,72 @@ public class ATMSystem {
         gbc.gridy = 5;
         registerPanel.add(backButton, gbc);
 
-        updateFrameContent(registerPanel);
-
         registerButton.addActionListener(e -> {
             try {
-                int userId = Integer.parseInt(userIdField.getText());
-                int pin = Integer.parseInt(new String(pinField.getPassword()));
-                double initialDeposit = Double.parseDouble(initialDepositField.getText());
+                int userId = Integer.parseInt(registerUserIdField.getText());
+                int pin = Integer.parseInt(new String(registerPinField.getPassword()));
+                long initialDeposit = Money.parse(initialDepositField.getText());
 
                 if (initialDeposit < 0) {
                     showError("Initial deposit cannot be negative.");
                     return;
                 }
 
-                if (registerUser(userId, pin, initialDeposit)) {
-                    JOptionPane.showMessageDialog(frame, 
-                        "Registration Successful!\nYour User ID: " + userId, 
-                        "Success", 
-                        JOptionPane.INFORMATION_MESSAGE);
-                    createAndShowGUI();
-                } else {
-                    showError("User ID already exists. Please choose a different one.");
-                }
+                runLedgerTask("Creating account\u2026", () -> registerUser(userId, pin, initialDeposit), result -> {
+                    if (result.isOk()) {
+                        JOptionPane.showMessageDialog(frame,
+                            "Registration Successful!\nYour User ID: " + userId,
+                            "Success",
+                            JOptionPane.INFORMATION_MESSAGE);
+                        showWelcomePage();
+                    } else {
+                        showError(result.getMessage());
+                    }
+                });
             } catch (NumberFormatException ex) {
                 showError("Please enter valid numeric values.");
             }
         });
 
-        backButton.addActionListener(e -> createAndShowGUI());
+        backButton.addActionListener(e -> showWelcomePage());
+        return registerPanel;
     }
 
-    private void showMainMenu(int userId) {
+    private void showMainMenu(Session current) {
+        session = current;
+        idleTimer.start();
+        showScreen(MENU_SCREEN);
+        welcomeLabel.setText("Welcome, User " + current.getAccountId());
+        balanceLabel.setText("Current Balance: ");
+
+        // The balance fills in once the read completes; no overlay for a passive refresh
+        submitLedgerTask(() -> ledger.balance(current)).thenAccept(balance -> SwingUtilities.invokeLater(() -> {
+            if (session != current) {
+                return;
+            }
+            if (balance == Ledger.NO_BALANCE) {
+                showResult(LedgerResult.SESSION_EXPIRED, current);
+                return;
+            }
+            moneyText.setLength(0);
+            balanceLabel.setText(Money.format(balance, moneyText.append("Current Balance: ")).toString());
+        }));
+    }
+
+    private JPanel buildMainMenuScreen() {
         JPanel menuPanel = new JPanel(new GridBagLayout());
         menuPanel.setBackground(SECONDARY_COLOR);
         GridBagConstraints gbc = new GridBagConstraints();
         gbc.insets = new Insets(12, 12, 12, 12);
         gbc.fill = GridBagConstraints.HORIZONTAL;
 
-        User user = users.get(userId);
-        JLabel welcomeLabel = new JLabel("Welcome, User " + userId);
-        welcomeLabel.setFont(new Font("Segoe UI", Font.BOLD, 24));
+        welcomeLabel = new JLabel();
+        welcomeLabel.setFont(SUBHEADING_FONT);
         welcomeLabel.setForeground(PRIMARY_COLOR);
 
-        JLabel balanceLabel = new JLabel(String.format("Current Balance: $%.2f", user.getBalance()));
-        balanceLabel.setFont(new Font("Segoe UI", Font.BOLD, 20));
-        balanceLabel.setForeground(new Color(46, 204, 113));
+        balanceLabel = new JLabel();
+        balanceLabel.setFont(BALANCE_FONT);
+        balanceLabel.setForeground(CREDIT_COLOR);
 
         JButton[] buttons = {
             createStyledButton("View Transaction History"),
@@ -360,29 +681,27 @@ public class ATMSystem {
             menuPanel.add(buttons[i], gbc);
         }
 
-        updateFrameContent(menuPanel);
-
         // Transaction History
-        buttons[0].addActionListener(e -> showTransactionHistory(userId));
+        buttons[0].addActionListener(e -> {
+            resetHistoryFilters();
+            showTransactionHistory(session);
+        });
 
         // Withdraw
         buttons[1].addActionListener(e -> {
-            String amount = JOptionPane.showInputDialog(frame, 
-                "Enter amount to withdraw ($):", 
-                "Withdraw Funds", 
+            Session current = session;
+            String amount = JOptionPane.showInputDialog(frame,
+                "Enter amount to withdraw ($):",
+                "Withdraw Funds",
                 JOptionPane.PLAIN_MESSAGE);
             try {
-                double withdrawAmount = Double.parseDouble(amount);
+                long withdrawAmount = Money.parse(amount);
                 if (withdrawAmount <= 0) {
                     showError("Please enter a positive amount.");
                     return;
                 }
-                if (withdrawAmount > user.getBalance()) {
-                    showError("Insufficient funds.");
-                    return;
-                }
-                performTransaction(userId, "Withdrawal", -withdrawAmount);
-                showMainMenu(userId);
+                runMoneyTask("Withdrawing\u2026", "withdraw " + current.getAccountId() + " " + withdrawAmount,
+                    operationId -> ledger.withdraw(current, withdrawAmount, operationId), current);
             } catch (NumberFormatException ex) {
                 showError("Please enter a valid amount.");
             }
@@ -390,18 +709,19 @@ public class ATMSystem {
 
         // Deposit
         buttons[2].addActionListener(e -> {
-            String amount = JOptionPane.showInputDialog(frame, 
-                "Enter amount to deposit ($):", 
-                "Deposit Funds", 
+            Session current = session;
+            String amount = JOptionPane.showInputDialog(frame,
+                "Enter amount to deposit ($):",
+                "Deposit Funds",
                 JOptionPane.PLAIN_MESSAGE);
             try {
-                double depositAmount = Double.parseDouble(amount);
+                long depositAmount = Money.parse(amount);
                 if (depositAmount <= 0) {
                     showError("Please enter a positive amount.");
                     return;
                 }
-                performTransaction(userId, "Deposit", depositAmount);
-                showMainMenu(userId);
+                runMoneyTask("Depositing\u2026", "deposit " + current.getAccountId() + " " + depositAmount,
+                    operationId -> ledger.deposit(current, depositAmount, operationId), current);
             } catch (NumberFormatException ex) {
                 showError("Please enter a valid amount.");
             }
@@ -409,182 +729,365 @@ public class ATMSystem {
 
         // Transfer
         buttons[3].addActionListener(e -> {
-            String recipientId = JOptionPane.showInputDialog(frame, 
-                "Enter recipient's User ID:", 
-                "Transfer Money", 
+            Session current = session;
+            String recipientId = JOptionPane.showInputDialog(frame,
+                "Enter recipient's User ID:",
+                "Transfer Money",
                 JOptionPane.PLAIN_MESSAGE);
             try {
                 int recipient = Integer.parseInt(recipientId);
-                if (!users.containsKey(recipient)) {
-                    showError("Recipient not found.");
-                    return;
-                }
-                if (recipient == userId) {
-                    showError("Cannot transfer to yourself.");
-                    return;
-                }
-                String amount = JOptionPane.showInputDialog(frame, 
-                    "Enter amount to transfer ($):", 
-                    "Transfer Money", 
-                    JOptionPane.PLAIN_MESSAGE);
-                double transferAmount = Double.parseDouble(amount);
-                if (transferAmount <= 0) {
-                    showError("Please enter a positive amount.");
-                    return;
-                }
-                if (transferAmount > user.getBalance()) {
-                    showError("Insufficient funds.");
-                    return;
-                }
-                performTransaction(userId, "Transfer to " + recipient, -transferAmount);
-                performTransaction(recipient, "Transfer from " + userId, transferAmount);
-                showMainMenu(userId);
+                runLedgerTask("Looking up recipient\u2026", () -> ledger.exists(recipient), exists -> {
+                    if (!exists) {
+                        showError("Recipient not found.");
+                        return;
+                    }
+                    if (recipient == current.getAccountId()) {
+                        showError("Cannot transfer to yourself.");
+                        return;
+                    }
+                    String amount = JOptionPane.showInputDialog(frame,
+                        "Enter amount to transfer ($):",
+                        "Transfer Money",
+                        JOptionPane.PLAIN_MESSAGE);
+                    try {
+                        long transferAmount = Money.parse(amount);
+                        if (transferAmount <= 0) {
+                            showError("Please enter a positive amount.");
+                            return;
+                        }
+                        runMoneyTask("Transferring\u2026",
+                            "transfer " + current.getAccountId() + " " + recipient + " " + transferAmount,
+                            operationId -> ledger.transfer(current, recipient, transferAmount, operationId), current);
+                    } catch (NumberFormatException ex) {
+                        showError("Please enter valid values.");
+                    }
+                });
             } catch (NumberFormatException ex) {
                 showError("Please enter valid values.");
             }
         });
 
         // Logout
-        buttons[4].addActionListener(e -> {
-            int choice = JOptionPane.showConfirmDialog(frame, 
-                "Are you sure you want to logout?", 
-                "Confirm Logout", 
-                JOptionPane.YES_NO_OPTION);
-            if (choice == JOptionPane.YES_OPTION) {
-                createAndShowGUI();
-            }
-        });
+        buttons[4].addActionListener(e -> showWelcomePage());
+        return menuPanel;
+    }
+
+    private void showTransactionHistory(Session current) {
+        HistoryQuery query = historyQuery();
+        // Only the match count and total are read up front; rows are paged in as they scroll into view
+        runLedgerTask("Loading history\u2026",
+            () -> new HistorySummary(ledger.countHistory(current, query), ledger.totalHistory(current, query)),
+            summary -> {
+                if (session != current) {
+                    return;
+                }
+                showScreen(HISTORY_SCREEN);
+                historyTable.setModel(new HistoryTableModel(ledger, current, query, summary.rows, LEDGER_EXECUTOR));
+                moneyText.setLength(0);
+                historySummaryLabel.setText(summary.rows + (summary.rows == 1 ? " transaction, net " : " transactions, net ")
+                    + Money.format(summary.total, moneyText));
+            });
+    }
+
+    // The filters chosen on the history screen, or the whole history before it is first built
+    private HistoryQuery historyQuery() {
+        HistoryQuery query = new HistoryQuery();
+        if (historyTypeFilter == null) {
+            return query;
+        }
+        TransactionType type = HISTORY_TYPES[historyTypeFilter.getSelectedIndex()];
+        if (type != null) {
+            query.types(type);
+        }
+        int days = HISTORY_PERIOD_DAYS[historyPeriodFilter.getSelectedIndex()];
+        if (days > 0) {
+            query.since(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days));
+        }
+        return query;
+    }
+
+    // Each visit from the menu starts unfiltered; with the empty model showing, the filter listeners ignore this
+    private void resetHistoryFilters() {
+        if (historyTable != null) {
+            historyTable.setModel(emptyHistory);
+            historyTypeFilter.setSelectedIndex(0);
+            historyPeriodFilter.setSelectedIndex(0);
+        }
     }
 
-    private void showTransactionHistory(int userId) {
-        java.util.List<Transaction> transactions = transactionHistory.get(userId);
-        
+    private JPanel buildHistoryScreen() {
         JPanel historyPanel = new JPanel(new BorderLayout(0, 20));
         historyPanel.setBackground(SECONDARY_COLOR);
         historyPanel.setBorder(new EmptyBorder(20, 20, 20, 20));
 
         JLabel titleLabel = new JLabel("Transaction History", SwingConstants.CENTER);
-        titleLabel.setFont(new Font("Segoe UI", Font.BOLD, 24));
+        titleLabel.setFont(SUBHEADING_FONT);
         titleLabel.setForeground(PRIMARY_COLOR);
 
-        // Create table model with custom renderer
-        String[] columnNames = {"Date", "Type", "Amount"};
-        Object[][] data = new Object[transactions.size()][3];
-        
-        for (int i = 0; i < transactions.size(); i++) {
-            Transaction t = transactions.get(i);
-            data[i][0] = DATE_FORMAT.format(t.getDate());
-            data[i][1] = t.getType();
-            data[i][2] = String.format("$%.2f", t.getAmount());
+        // Changing a filter re-counts and reloads the history that is showing
+        historyTypeFilter = new JComboBox<>(HISTORY_TYPE_NAMES);
+        historyPeriodFilter = new JComboBox<>(HISTORY_PERIOD_NAMES);
+        historySummaryLabel = new JLabel();
+        historySummaryLabel.setFont(LABEL_FONT);
+        historySummaryLabel.setForeground(PRIMARY_COLOR);
+        JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 15, 0));
+        filterPanel.setBackground(SECONDARY_COLOR);
+        for (JComboBox<String> filter : Arrays.asList(historyTypeFilter, historyPeriodFilter)) {
+            filter.setFont(FIELD_FONT);
+            filter.addActionListener(e -> {
+                if (historyTable.getModel() != emptyHistory) {
+                    showTransactionHistory(session);
+                }
+            });
+            filterPanel.add(filter);
         }
+        filterPanel.add(historySummaryLabel);
+
+        JPanel headerPanel = new JPanel(new BorderLayout(0, 15));
+        headerPanel.setBackground(SECONDARY_COLOR);
+        headerPanel.add(titleLabel, BorderLayout.NORTH);
+        headerPanel.add(filterPanel, BorderLayout.SOUTH);
 
-        JTable table = new JTable(data, columnNames) {
+        // Columns and renderers are created once; each visit only swaps the model
+        emptyHistory = new DefaultTableModel(new Object[] {"Date", "Type", "Amount"}, 0);
+        historyTable = new JTable(emptyHistory) {
             @Override
             public Component prepareRenderer(TableCellRenderer renderer, int row, int column) {
                 Component c = super.prepareRenderer(renderer, row, column);
                 if (!isRowSelected(row)) {
-                    c.setBackground(row % 2 == 0 ? Color.WHITE : new Color(245, 245, 245));
+                    c.setBackground(row % 2 == 0 ? Color.WHITE : ALTERNATE_ROW_COLOR);
                 }
                 return c;
             }
         };
-        table.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-        table.setRowHeight(30);
-        table.getTableHeader().setFont(new Font("Segoe UI", Font.BOLD, 14));
-        table.getTableHeader().setBackground(PRIMARY_COLOR);
-        table.getTableHeader().setForeground(Color.WHITE);
-        table.setShowGrid(false);
-        table.setIntercellSpacing(new Dimension(0, 0));
-        
-        // Custom renderer for amount column
-        table.getColumnModel().getColumn(2).setCellRenderer(new DefaultTableCellRenderer() {
+        historyTable.setAutoCreateColumnsFromModel(false);
+        historyTable.setFont(FIELD_FONT);
+        historyTable.setRowHeight(30);
+        historyTable.getTableHeader().setFont(LABEL_FONT);
+        historyTable.getTableHeader().setBackground(PRIMARY_COLOR);
+        historyTable.getTableHeader().setForeground(Color.WHITE);
+        historyTable.setShowGrid(false);
+        historyTable.setIntercellSpacing(new Dimension(0, 0));
+
+        // Dates and amounts are formatted only for the cells being painted
+        historyTable.getColumnModel().getColumn(HistoryTableModel.DATE_COLUMN).setCellRenderer(new DefaultTableCellRenderer() {
+            @Override
+            protected void setValue(Object value) {
+                if (value == null) {
+                    setText(LOADING_TEXT);
+                } else {
+                    shownDate.setTime((Long) value);
+                    setText(DATE_FORMAT.format(shownDate));
+                }
+            }
+        });
+        historyTable.getColumnModel().getColumn(HistoryTableModel.TYPE_COLUMN).setCellRenderer(new DefaultTableCellRenderer() {
+            @Override
+            protected void setValue(Object value) {
+                setText(value == null ? LOADING_TEXT : (String) value);
+            }
+        });
+        historyTable.getColumnModel().getColumn(HistoryTableModel.AMOUNT_COLUMN).setCellRenderer(new DefaultTableCellRenderer() {
             @Override
             public Component getTableCellRendererComponent(JTable table, Object value,
                     boolean isSelected, boolean hasFocus, int row, int column) {
                 Component c = super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
-                String amount = (String) value;
-                if (amount.startsWith("$-")) {
-                    setForeground(new Color(231, 76, 60));
+                if (value == null) {
+                    setForeground(Color.GRAY);
+                } else if ((Long) value < 0) {
+                    setForeground(DEBIT_COLOR);
                 } else {
-                    setForeground(new Color(46, 204, 113));
+                    setForeground(CREDIT_COLOR);
                 }
                 return c;
             }
+
+            @Override
+            protected void setValue(Object value) {
+                if (value == null) {
+                    setText(LOADING_TEXT);
+                } else {
+                    moneyText.setLength(0);
+                    setText(Money.format((Long) value, moneyText).toString());
+                }
+            }
         });
 
-        JScrollPane scrollPane = new JScrollPane(table);
+        JScrollPane scrollPane = new JScrollPane(historyTable);
         scrollPane.setBorder(BorderFactory.createEmptyBorder());
-        
+
         JButton backButton = createStyledButton("Back to Main Menu");
-        backButton.addActionListener(e -> showMainMenu(userId));
+        backButton.addActionListener(e -> {
+            // Drops the cached pages of the account we just viewed
+            historyTable.setModel(emptyHistory);
+            showMainMenu(session);
+        });
 
-        historyPanel.add(titleLabel, BorderLayout.NORTH);
+        historyPanel.add(headerPanel, BorderLayout.NORTH);
         historyPanel.add(scrollPane, BorderLayout.CENTER);
         historyPanel.add(backButton, BorderLayout.SOUTH);
-
-        updateFrameContent(historyPanel);
+        return historyPanel;
     }
 
-    private void performTransaction(int userId, String type, double amount) {
-        User user = users.get(userId);
-        users.put(userId, new User(userId, user.getPin(), user.getBalance() + amount));
-        transactionHistory.get(userId).add(new Transaction(type, amount));
+    private void showScreen(String name) {
+        if (builtScreens.add(name)) {
+            screens.add(buildScreen(name), name);
+        }
+        cards.show(screens, name);
     }
 
-    private void updateFrameContent(JPanel panel) {
-        frame.getContentPane().removeAll();
-        frame.add(panel);
-        frame.revalidate();
-        frame.repaint();
+    private JPanel buildScreen(String name) {
+        switch (name) {
+            case WELCOME_SCREEN:
+                return buildWelcomeScreen();
+            case LOGIN_SCREEN:
+                return buildLoginScreen();
+            case REGISTER_SCREEN:
+                return buildRegistrationScreen();
+            case MENU_SCREEN:
+                return buildMainMenuScreen();
+            case HISTORY_SCREEN:
+                return buildHistoryScreen();
+            default:
+                throw new IllegalArgumentException("Unknown screen " + name);
+        }
     }
 
     private void showError(String message) {
         JOptionPane.showMessageDialog(frame, message, "Error", JOptionPane.ERROR_MESSAGE);
     }
 
-    private static boolean authenticateUser(int userId, int pin) {
-        User user = users.get(userId);
-        return user != null && user.getPin() == pin;
+    private void showResult(LedgerResult result, Session current) {
+        if (result.isOk()) {
+            showMainMenu(current);
+        } else {
+            showError(result.getMessage());
+            if (result == LedgerResult.SESSION_EXPIRED) {
+                showWelcomePage();
+            }
+        }
     }
 
-    private static boolean registerUser(int userId, int pin, double initialDeposit) {
-        if (users.containsKey(userId)) {
-            return false;
+    /**
+     * Runs {@code work} on the ledger executor behind the busy overlay and
+     * hands its result to {@code onDone} on the EDT. Cancelling only stops
+     * waiting: an operation the ledger has already started still completes,
+     * and the main menu re-reads the balance so the screen stays truthful.
+     */
+    private <T> void runLedgerTask(String busyMessage, Supplier<T> work, Consumer<T> onDone) {
+        CompletableFuture<T> task = submitLedgerTask(work);
+        busyOverlay.start(busyMessage, () -> task.cancel(false));
+        task.whenComplete((result, failure) -> SwingUtilities.invokeLater(() -> {
+            if (task.isCancelled()) {
+                return;
+            }
+            busyOverlay.stop();
+            if (failure == null) {
+                onDone.accept(result);
+            } else if (failure instanceof CompletionException && failure.getCause() instanceof RejectedExecutionException) {
+                showError("The ATM is busy. Please try again.");
+            } else {
+                failure.printStackTrace();
+                showError("The operation could not be completed.");
+            }
+        }));
+    }
+
+    /**
+     * Runs a deposit, withdrawal or transfer like {@link #runLedgerTask}
+     * under an operation id. If the customer stopped waiting for the same
+     * {@code operation} before its outcome was seen, it may still be applied,
+     * so resubmitting it reuses that id and the ledger applies it only once.
+     */
+    private void runMoneyTask(String busyMessage, String operation, LongFunction<LedgerResult> work, Session current) {
+        if (!operation.equals(unsettledOperation)) {
+            long operationId;
+            do {
+                operationId = ThreadLocalRandom.current().nextLong();
+            } while (operationId == 0);
+            unsettledOperation = operation;
+            unsettledOperationId = operationId;
+        }
+        long operationId = unsettledOperationId;
+        runLedgerTask(busyMessage, () -> work.apply(operationId), result -> {
+            if (operation.equals(unsettledOperation)) {
+                unsettledOperation = null;
+            }
+            showResult(result, current);
+        });
+    }
+
+    private static <T> CompletableFuture<T> submitLedgerTask(Supplier<T> work) {
+        try {
+            return CompletableFuture.supplyAsync(work, LEDGER_EXECUTOR);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new CompletionException(e));
+            return rejected;
+        }
+    }
+
+    /**
+     * Uses a virtual thread per task when the runtime has them (Java 21+),
+     * otherwise a small pool of daemon threads with a bounded queue, so a
+     * stalled ledger turns further clicks into a "busy" error rather than an
+     * unbounded backlog.
+     */
+    private static ExecutorService newLedgerExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ThreadFactory daemons = r -> {
+                Thread thread = new Thread(r, "ledger-ui");
+                thread.setDaemon(true);
+                return thread;
+            };
+            return new ThreadPoolExecutor(LEDGER_THREADS, LEDGER_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(LEDGER_QUEUE), daemons);
         }
-        users.put(userId, new User(userId, pin, initialDeposit));
-        transactionHistory.put(userId, new ArrayList<>());
-        return true;
     }
 
-    static class User {
-        private final int userId;
-        private final int pin;
-        private final double balance;
+    private static Session loginUser(int userId, int pin) {
+        return ledger.login(TERMINAL_ID, userId, pin);
+    }
+
+    private static LedgerResult registerUser(int userId, int pin, long initialDeposit) {
+        return ledger.register(userId, pin, initialDeposit);
+    }
 
-        public User(int userId, int pin, double balance) {
-            this.userId = userId;
-            this.pin = pin;
-            this.balance = balance;
+    /** Match count and net amount of a history query, read before its rows. */
+    private static final class HistorySummary {
+        final int rows;
+        final long total;
+
+        HistorySummary(int rows, long total) {
+            this.rows = rows;
+            this.total = total;
         }
+    }
+
+    /** Header background drawn by the shared gradient painter. */
+    private static class GradientPanel extends JPanel {
+        private static final long serialVersionUID = 1L;
 
-        public int getUserId() { return userId; }
-        public int getPin() { return pin; }
-        public double getBalance() { return balance; }
+        @Override
+        protected void paintComponent(Graphics g) {
+            GRADIENT.paint(g, getWidth(), getHeight());
+        }
     }
 
-    static class Transaction {
-        private final String type;
-        private final double amount;
-        private final Date date;
+    /** Styled button; one class for every button instead of an anonymous subclass per call. */
+    private static class GradientButton extends JButton {
+        private static final long serialVersionUID = 1L;
 
-        public Transaction(String type, double amount) {
-            this.type = type;
-            this.amount = amount;
-            this.date = new Date();
+        GradientButton(String text) {
+            super(text);
         }
 
-        public String getType() { return type; }
-        public double getAmount() { return amount; }
-        public Date getDate() { return date; }
+        @Override
+        protected void paintComponent(Graphics g) {
+            GRADIENT.paint(g, getWidth(), getHeight());
+            super.paintComponent(g);
+        }
     }
-}
\ No newline at end of file
+}
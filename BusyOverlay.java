@@ -0,0 +1,90 @@
+import java.awt.*;
+import java.awt.event.*;
+import javax.swing.*;
+import javax.swing.border.*;
+
+/**
+ * Glass pane shown while a ledger operation runs in the background.
+ *
+ * <p>It swallows mouse input as soon as an operation starts, so a second
+ * click cannot queue a duplicate request, but only dims the window and shows
+ * its message and Cancel button once the operation has taken longer than
+ * {@value #SHOW_DELAY_MILLIS} ms; fast operations never flicker.
+ */
+class BusyOverlay extends JPanel {
+    private static final long serialVersionUID = 1L;
+    private static final int SHOW_DELAY_MILLIS = 150;
+    private static final Color SHADE = new Color(0, 0, 0, 80);
+
+    private final JLabel messageLabel = new JLabel("", SwingConstants.CENTER);
+    private final JButton cancelButton = new JButton("Cancel");
+    private final Timer showTimer = new Timer(SHOW_DELAY_MILLIS, e -> reveal());
+    private Runnable onCancel;
+
+    BusyOverlay() {
+        super(new GridBagLayout());
+        setOpaque(false);
+
+        JPanel box = new JPanel(new BorderLayout(0, 12));
+        box.setBackground(Color.WHITE);
+        box.setBorder(new EmptyBorder(20, 30, 20, 30));
+        messageLabel.setFont(new Font("Segoe UI", Font.BOLD, 16));
+        JProgressBar progress = new JProgressBar();
+        progress.setIndeterminate(true);
+        box.add(messageLabel, BorderLayout.NORTH);
+        box.add(progress, BorderLayout.CENTER);
+        box.add(cancelButton, BorderLayout.SOUTH);
+        add(box);
+
+        cancelButton.addActionListener(e -> {
+            Runnable cancel = onCancel;
+            stop();
+            if (cancel != null) {
+                cancel.run();
+            }
+        });
+        showTimer.setRepeats(false);
+
+        // Keep clicks from reaching the screen underneath
+        addMouseListener(new MouseAdapter() {
+        });
+        addMouseMotionListener(new MouseMotionAdapter() {
+        });
+    }
+
+    /** Blocks input and shows {@code message} if the operation is still running after a short delay. */
+    void start(String message, Runnable onCancel) {
+        this.onCancel = onCancel;
+        messageLabel.setText(message);
+        setComponentsVisible(false);
+        setVisible(true);
+        showTimer.restart();
+    }
+
+    void stop() {
+        showTimer.stop();
+        onCancel = null;
+        setVisible(false);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        if (cancelButton.isVisible()) {
+            g.setColor(SHADE);
+            g.fillRect(0, 0, getWidth(), getHeight());
+        }
+    }
+
+    private void reveal() {
+        setComponentsVisible(true);
+        cancelButton.requestFocusInWindow();
+        repaint();
+    }
+
+    private void setComponentsVisible(boolean visible) {
+        for (Component child : getComponents()) {
+            child.setVisible(visible);
+        }
+        cancelButton.setVisible(visible);
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+import ledger.HistoryPage;
+import ledger.HistoryQuery;
+import ledger.LedgerService;
+import ledger.Session;
+
+/**
+ * Lazy, newest-first view of the entries of one account's transaction
+ * history that match a {@link HistoryQuery}.
+ *
+ * <p>The match count is read (off the EDT) before the model is created and
+ * stays fixed, so opening a history costs the same for every account. Rows are fetched in pages on
+ * {@code loader} the first time the table asks for them, and only the most
+ * recently used pages are kept. Cells are returned raw (epoch millis, label,
+ * cents) so renderers format only what is on screen. All methods other than
+ * the background fetch run on the EDT.
+ */
+class HistoryTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+
+    static final int DATE_COLUMN = 0;
+    static final int TYPE_COLUMN = 1;
+    static final int AMOUNT_COLUMN = 2;
+    private static final String[] COLUMN_NAMES = {"Date", "Type", "Amount"};
+    private static final int PAGE_ROWS = 256;
+    private static final int CACHED_PAGES = 32;
+
+    private final LedgerService ledger;
+    private final Session session;
+    private final HistoryQuery query;
+    private final int rows;
+    private final Executor loader;
+    private final Set<Integer> pending = new HashSet<>();
+    private final Map<Integer, HistoryPage> pages = new LinkedHashMap<Integer, HistoryPage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, HistoryPage> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    HistoryTableModel(LedgerService ledger, Session session, HistoryQuery query, int rows, Executor loader) {
+        this.ledger = ledger;
+        this.session = session;
+        this.query = query;
+        this.rows = rows;
+        this.loader = loader;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    /** Returns the cell value, or {@code null} while its page is still loading. */
+    @Override
+    public Object getValueAt(int row, int column) {
+        int pageIndex = row / PAGE_ROWS;
+        HistoryPage page = pages.get(pageIndex);
+        if (page == null) {
+            load(pageIndex);
+            return null;
+        }
+        // Row 0 is the newest entry
+        int i = rows - 1 - row - page.first();
+        switch (column) {
+            case DATE_COLUMN:
+                return page.timeMillis(i);
+            case TYPE_COLUMN:
+                return page.label(i);
+            default:
+                return page.amount(i);
+        }
+    }
+
+    private void load(int pageIndex) {
+        if (!pending.add(pageIndex)) {
+            return;
+        }
+        int firstRow = pageIndex * PAGE_ROWS;
+        int lastRow = Math.min(firstRow + PAGE_ROWS, rows) - 1;
+        try {
+            loader.execute(() -> {
+                HistoryPage page = new HistoryPage(lastRow - firstRow + 1);
+                ledger.readHistory(session, query, rows - 1 - lastRow, page);
+                SwingUtilities.invokeLater(() -> {
+                    pending.remove(pageIndex);
+                    pages.put(pageIndex, page);
+                    fireTableRowsUpdated(firstRow, lastRow);
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            // Loader is saturated; the next repaint asks again
+            pending.remove(pageIndex);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+import ledger.BatchImport;
+import ledger.Ledger;
+import ledger.LogOptions;
+import ledger.Money;
+import ledger.PinHash;
+
+/**
+ * Writes a back-office file of random deposits, withdrawals and transfers and
+ * times {@link BatchImport} applying it to a persistent ledger, the way
+ * {@code ATMSystem --batch} runs it (log synced per window, not per
+ * operation).
+ *
+ * <pre>
+ * java -cp out bench.BatchImportBench [accounts] [operations] [workers]
+ * </pre>
+ */
+public final class BatchImportBench {
+    // Hashed once and shared; the benchmark measures the import, not PBKDF2
+    private static final PinHash PIN = PinHash.create(0);
+
+    public static void main(String[] args) throws Exception {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        Path dir = Files.createTempDirectory("ledger-batch-bench");
+        try {
+            Path input = dir.resolve("input.csv");
+            write(input, accounts, operations);
+            System.out.printf("input:  %,d operations, %,d bytes%n", operations, Files.size(input));
+            try (Ledger ledger = Ledger.open(dir.resolve("data"), new LogOptions().syncCommit(false))) {
+                for (int id = 0; id < accounts; id++) {
+                    ledger.register(id, PIN, Money.ofDollars(1_000));
+                }
+                BatchImport.Summary summary = new BatchImport(ledger, workers).process(input, dir.resolve("report.csv"));
+                System.out.printf("import: %s, workers=%d%n", summary, workers);
+                System.out.printf("        %,.0f ops/min%n", summary.getOperations() * 60e9 / summary.getElapsedNanos());
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void write(Path input, int accounts, int operations) throws IOException {
+        SplittableRandom random = new SplittableRandom(42);
+        StringBuilder line = new StringBuilder(64);
+        try (BufferedWriter out = Files.newBufferedWriter(input)) {
+            for (int i = 0; i < operations; i++) {
+                int kind = random.nextInt(3);
+                line.setLength(0);
+                line.append(kind == 0 ? "DEPOSIT," : kind == 1 ? "WITHDRAW," : "TRANSFER,")
+                    .append(random.nextInt(accounts)).append(',')
+                    .append(random.nextInt(500)).append('.').append(random.nextInt(10)).append(random.nextInt(10));
+                if (kind == 2) {
+                    line.append(',').append(random.nextInt(accounts));
+                }
+                out.append(line).append('\n');
+            }
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
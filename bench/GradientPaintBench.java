@@ -0,0 +1,72 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import ui.GradientPainter;
+
+/**
+ * Compares repainting the main menu's gradients (a 900x120 header and five
+ * 250x60 buttons) with the shape and paint rebuilt and antialiased on every
+ * frame against blitting the painter's cached images. Renders into an
+ * offscreen image, so it runs headless.
+ *
+ * <pre>
+ * java -Djava.awt.headless=true -cp out bench.GradientPaintBench [seconds] [scale]
+ * </pre>
+ */
+public final class GradientPaintBench {
+    private static final int BUTTONS = 5;
+
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        double scale = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+        GradientPainter painter = new GradientPainter(new Color(52, 152, 219), new Color(41, 128, 185), 15);
+        BufferedImage screen = new BufferedImage((int) (900 * scale), (int) (700 * scale), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = screen.createGraphics();
+        g.scale(scale, scale);
+
+        // Warm up both paths so the JIT and the image cache are settled
+        run(painter, g, false, 1);
+        run(painter, g, true, 1);
+        double uncached = run(painter, g, false, seconds);
+        double cached = run(painter, g, true, seconds);
+        g.dispose();
+
+        System.out.printf("scale=%.2f%n", scale);
+        System.out.printf("%10s %14s %14s%n", "", "frames/s", "us/frame");
+        System.out.printf("%10s %14.0f %14.1f%n", "uncached", uncached, 1e6 / uncached);
+        System.out.printf("%10s %14.0f %14.1f%n", "cached", cached, 1e6 / cached);
+        System.out.printf("speedup: %.1fx%n", cached / uncached);
+    }
+
+    /** Returns menu frames painted per second. */
+    private static double run(GradientPainter painter, Graphics2D g, boolean cached, int seconds) {
+        long frames = 0;
+        long started = System.nanoTime();
+        long deadline = started + seconds * 1_000_000_000L;
+        long now;
+        do {
+            paintMenu(painter, g, cached);
+            frames++;
+        } while ((now = System.nanoTime()) < deadline);
+        return frames / ((now - started) / 1e9);
+    }
+
+    private static void paintMenu(GradientPainter painter, Graphics2D g, boolean cached) {
+        paint(painter, g, 0, 0, 900, 120, cached);
+        for (int i = 0; i < BUTTONS; i++) {
+            paint(painter, g, 325, 200 + i * 80, 250, 60, cached);
+        }
+    }
+
+    private static void paint(GradientPainter painter, Graphics2D g, int x, int y, int width, int height, boolean cached) {
+        g.translate(x, y);
+        if (cached) {
+            painter.paint(g, width, height);
+        } else {
+            painter.paintUncached(g, width, height);
+        }
+        g.translate(-x, -y);
+    }
+}
@@ -0,0 +1,196 @@
+package bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+import ledger.Ledger;
+import ledger.LedgerClient;
+import ledger.LedgerResult;
+import ledger.LedgerServer;
+import ledger.LogOptions;
+import ledger.LoginLimits;
+import ledger.Money;
+import ledger.PinHash;
+import ledger.Session;
+
+/**
+ * Drives a {@link LedgerServer} on localhost with thousands of simulated
+ * terminals multiplexed over a few pipelined {@link LedgerClient}
+ * connections. Each terminal logs in once, then checks its balance,
+ * deposits, withdraws and transfers back to back until time is up; the
+ * latency of each request is measured from send to answer.
+ *
+ * <p>The server runs in-process over a fresh persistent ledger whose
+ * accounts are registered with cheap PIN hashes, so neither setup nor the
+ * logins measure PBKDF2. Every simulated terminal reaches the server from
+ * loopback, which the server counts as one terminal, so its terminal login
+ * limit is raised to let them all in at once.
+ *
+ * <pre>
+ * java -cp out bench.LoadGenerator [terminals] [connections] [seconds] [syncCommit]
+ * </pre>
+ */
+public final class LoadGenerator {
+    private static final int PIN = 1234;
+    // Logins in flight at once; more would only be refused as BUSY by the verification pool
+    private static final int CONCURRENT_LOGINS = 16;
+
+    public static void main(String[] args) throws Exception {
+        int terminals = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        boolean syncCommit = args.length <= 3 || Boolean.parseBoolean(args[3]);
+
+        Path dir = Files.createTempDirectory("ledger-load");
+        try (Ledger ledger = Ledger.open(dir, new LogOptions().syncCommit(syncCommit));
+                LedgerServer server = LedgerServer.start(ledger, new InetSocketAddress("localhost", 0))) {
+            ledger.setLoginLimits(new LoginLimits().terminal(terminals, 1));
+            PinHash pin = PinHash.create(PIN, 1_000);
+            for (int id = 0; id < terminals; id++) {
+                ledger.register(id, pin, Money.ofDollars(1_000));
+            }
+            LedgerClient[] clients = new LedgerClient[connections];
+            for (int i = 0; i < connections; i++) {
+                clients[i] = LedgerClient.connect(new InetSocketAddress("localhost", server.getPort()));
+            }
+
+            Terminal[] simulated = new Terminal[terminals];
+            Semaphore logins = new Semaphore(CONCURRENT_LOGINS);
+            CountDownLatch loggedIn = new CountDownLatch(terminals);
+            long started = System.nanoTime();
+            for (int id = 0; id < terminals; id++) {
+                simulated[id] = new Terminal(clients[id % connections], id, terminals);
+                logins.acquire();
+                simulated[id].login(logins, loggedIn);
+            }
+            loggedIn.await();
+            System.out.printf("logins: %,d terminals over %d connections in %.2f s%n",
+                terminals, connections, (System.nanoTime() - started) / 1e9);
+
+            CountDownLatch finished = new CountDownLatch(terminals);
+            started = System.nanoTime();
+            long deadline = started + seconds * 1_000_000_000L;
+            for (Terminal terminal : simulated) {
+                terminal.run(deadline, finished);
+            }
+            finished.await();
+            double elapsed = (System.nanoTime() - started) / 1e9;
+
+            long[] all = Arrays.stream(simulated).flatMapToLong(t -> Arrays.stream(t.latencies, 0, t.count))
+                .sorted().toArray();
+            long failed = Arrays.stream(simulated).mapToLong(t -> t.failed).sum();
+            System.out.printf("load:   %,d requests in %.2f s = %,.0f req/s (sync=%b, %,d unavailable or expired)%n",
+                all.length, elapsed, all.length / elapsed, syncCommit, failed);
+            System.out.printf("        latency ms p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+                percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99),
+                percentile(all, 0.999), percentile(all, 1.0));
+            for (LedgerClient client : clients) {
+                client.close();
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /** One simulated terminal; its requests form a chain, so its fields are never touched concurrently. */
+    private static final class Terminal {
+        private final LedgerClient client;
+        private final int accountId;
+        private final int accounts;
+        private final SplittableRandom random;
+        private Session session;
+        private long deadline;
+        private CountDownLatch finished;
+        long[] latencies = new long[1024];
+        int count;
+        long failed;
+
+        Terminal(LedgerClient client, int accountId, int accounts) {
+            this.client = client;
+            this.accountId = accountId;
+            this.accounts = accounts;
+            this.random = new SplittableRandom(accountId);
+        }
+
+        void login(Semaphore permits, CountDownLatch loggedIn) {
+            client.loginAsync(accountId, accountId, PIN).thenAccept(s -> {
+                if (s.getResult() == LedgerResult.BUSY) {
+                    login(permits, loggedIn);
+                    return;
+                }
+                if (!s.getResult().isOk()) {
+                    System.err.println("Login of " + accountId + " failed: " + s.getResult());
+                    System.exit(1);
+                }
+                session = s;
+                permits.release();
+                loggedIn.countDown();
+            });
+        }
+
+        void run(long deadline, CountDownLatch finished) {
+            this.deadline = deadline;
+            this.finished = finished;
+            next();
+        }
+
+        private void next() {
+            long sent = System.nanoTime();
+            if (sent - deadline >= 0) {
+                finished.countDown();
+                return;
+            }
+            int kind = random.nextInt(10);
+            long amount = Money.ofDollars(1 + random.nextInt(100));
+            CompletableFuture<?> request;
+            if (kind < 4) {
+                request = client.balanceAsync(session).thenAccept(balance -> check(balance != Ledger.NO_BALANCE));
+            } else if (kind < 6) {
+                request = client.depositAsync(session, amount).thenAccept(this::check);
+            } else if (kind < 8) {
+                request = client.withdrawAsync(session, amount).thenAccept(this::check);
+            } else {
+                request = client.transferAsync(session, random.nextInt(accounts), amount).thenAccept(this::check);
+            }
+            request.thenRun(() -> {
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = System.nanoTime() - sent;
+                next();
+            });
+        }
+
+        private void check(LedgerResult result) {
+            check(result != LedgerResult.UNAVAILABLE && result != LedgerResult.SESSION_EXPIRED);
+        }
+
+        private void check(boolean answered) {
+            if (!answered) {
+                failed++;
+            }
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
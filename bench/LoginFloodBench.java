@@ -0,0 +1,146 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import ledger.Ledger;
+import ledger.LedgerResult;
+import ledger.PinHash;
+
+/**
+ * Measures customer login latency with and without a brute-force flood
+ * running alongside. Customers log in at a steady rate from many terminals
+ * with the right PIN; attackers spray wrong PINs at random accounts from a
+ * handful of terminals at a much higher rate. Both sides are paced, and
+ * latency is taken from each attempt's scheduled start, so queueing behind
+ * the flood shows up instead of being hidden by a slower loop. The flood
+ * should be shed by the rate limiter and the bounded verification pool.
+ *
+ * <pre>
+ * java -cp out bench.LoginFloodBench [accounts] [customerRate] [attackRate] [attackerTerminals] [seconds] [iterations]
+ * </pre>
+ */
+public final class LoginFloodBench {
+    private static final int PIN = 4321;
+    private static final int THREADS_PER_SIDE = 4;
+    private static final int CUSTOMER_TERMINALS = 100_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        double customerRate = args.length > 1 ? Double.parseDouble(args[1]) : 4;
+        double attackRate = args.length > 2 ? Double.parseDouble(args[2]) : 5_000;
+        int attackerTerminals = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        int iterations = args.length > 5 ? Integer.parseInt(args[5]) : PinHash.DEFAULT_ITERATIONS;
+
+        System.out.printf("accounts=%d customers/s=%.0f attacks/s=%.0f attackerTerminals=%d iterations=%d cores=%d%n",
+            accounts, customerRate, attackRate, attackerTerminals, iterations,
+            Runtime.getRuntime().availableProcessors());
+        run(accounts, customerRate, 0, attackerTerminals, seconds, iterations);
+        run(accounts, customerRate, attackRate, attackerTerminals, seconds, iterations);
+    }
+
+    private static void run(int accounts, double customerRate, double attackRate, int attackerTerminals,
+            int seconds, int iterations) throws InterruptedException {
+        Ledger ledger = new Ledger();
+        PinHash credential = PinHash.create(PIN, iterations);
+        for (int id = 0; id < accounts; id++) {
+            ledger.register(id, credential, 0);
+        }
+        Map<LedgerResult, LongAdder> customerOutcomes = outcomes();
+        Map<LedgerResult, LongAdder> attackOutcomes = outcomes();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        Thread[] threads = new Thread[THREADS_PER_SIDE * 2];
+        long[][] latencies = new long[THREADS_PER_SIDE][];
+        long customerPeriod = (long) (1e9 * THREADS_PER_SIDE / customerRate);
+        for (int t = 0; t < THREADS_PER_SIDE; t++) {
+            int index = t;
+            threads[t] = new Thread(() -> latencies[index] = paced(customerPeriod, deadline, random ->
+                record(customerOutcomes, ledger.authenticate(random.nextInt(CUSTOMER_TERMINALS),
+                    random.nextInt(accounts), PIN))));
+        }
+        long attackPeriod = attackRate > 0 ? (long) (1e9 * THREADS_PER_SIDE / attackRate) : 0;
+        for (int t = 0; t < THREADS_PER_SIDE; t++) {
+            threads[THREADS_PER_SIDE + t] = attackPeriod == 0 ? new Thread(() -> { }) : new Thread(() ->
+                paced(attackPeriod, deadline, random -> {
+                    int guess = random.nextInt(10_000);
+                    if (guess != PIN) {
+                        record(attackOutcomes, ledger.authenticate(CUSTOMER_TERMINALS + random.nextInt(attackerTerminals),
+                            random.nextInt(accounts), guess));
+                    }
+                }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        try {
+            ledger.close();
+        } catch (java.io.IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%nattacks/s=%.0f%n", attackRate);
+        System.out.printf("  customer logins: %,d  p50=%.1f ms  p99=%.1f ms  max=%.1f ms%n", all.length,
+            percentile(all, 0.50), percentile(all, 0.99), percentile(all, 1.0));
+        print("  customer", customerOutcomes, seconds);
+        print("  attacker", attackOutcomes, seconds);
+    }
+
+    /** Calls {@code attempt} every {@code period} until the deadline; returns latencies from scheduled start. */
+    private static long[] paced(long period, long deadline, java.util.function.Consumer<ThreadLocalRandom> attempt) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] latencies = new long[256];
+        int count = 0;
+        for (long next = System.nanoTime() + random.nextLong(period); next < deadline; next += period) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            attempt.accept(random);
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = System.nanoTime() - next;
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+
+    private static Map<LedgerResult, LongAdder> outcomes() {
+        Map<LedgerResult, LongAdder> outcomes = new EnumMap<>(LedgerResult.class);
+        for (LedgerResult result : LedgerResult.values()) {
+            outcomes.put(result, new LongAdder());
+        }
+        return outcomes;
+    }
+
+    private static void record(Map<LedgerResult, LongAdder> outcomes, LedgerResult result) {
+        outcomes.get(result).increment();
+    }
+
+    private static void print(String who, Map<LedgerResult, LongAdder> outcomes, int seconds) {
+        StringBuilder line = new StringBuilder(who).append(" outcomes/s:");
+        for (Map.Entry<LedgerResult, LongAdder> entry : outcomes.entrySet()) {
+            long count = entry.getValue().sum();
+            if (count > 0) {
+                line.append(' ').append(entry.getKey()).append('=').append(String.format("%.1f", (double) count / seconds));
+            }
+        }
+        System.out.println(line);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
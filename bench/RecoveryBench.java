@@ -0,0 +1,122 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+import ledger.Ledger;
+import ledger.LogOptions;
+import ledger.Money;
+import ledger.PinHash;
+
+/**
+ * Drives a persistent ledger from many threads to measure group-commit
+ * throughput, then reopens it and times recovery. With {@code snapshot} set,
+ * a snapshot is taken after the main run and a further tenth of the
+ * operations is written as log tail, so recovery is snapshot load plus tail
+ * replay.
+ *
+ * <pre>
+ * java -cp out bench.RecoveryBench [accounts] [operations] [threads] [groupCommitMicros] [syncCommit] [snapshot]
+ * </pre>
+ */
+public final class RecoveryBench {
+    // Hashed once and shared; the benchmark measures the log, not PBKDF2
+    private static final PinHash PIN = PinHash.create(0);
+
+    public static void main(String[] args) throws Exception {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        long groupCommitMicros = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        boolean syncCommit = args.length <= 4 || Boolean.parseBoolean(args[4]);
+        boolean snapshot = args.length > 5 && Boolean.parseBoolean(args[5]);
+        LogOptions options = new LogOptions().groupCommitMicros(groupCommitMicros).syncCommit(syncCommit);
+
+        Path dir = Files.createTempDirectory("ledger-recovery-bench");
+        try {
+            long balance;
+            try (Ledger ledger = Ledger.open(dir, options)) {
+                for (int id = 0; id < accounts; id++) {
+                    ledger.register(id, PIN, Money.ofDollars(1_000));
+                }
+                long started = System.nanoTime();
+                run(ledger, accounts, operations, threads);
+                double seconds = (System.nanoTime() - started) / 1e9;
+                System.out.printf("write:    %,d ops in %.2f s = %,.0f ops/s (threads=%d, groupCommit=%dus, sync=%b)%n",
+                    operations, seconds, operations / seconds, threads, groupCommitMicros, syncCommit);
+                if (snapshot) {
+                    started = System.nanoTime();
+                    ledger.snapshot();
+                    System.out.printf("snapshot: %.3f s%n", (System.nanoTime() - started) / 1e9);
+                    run(ledger, accounts, operations / 10, threads);
+                }
+                balance = total(ledger, accounts);
+            }
+
+            long started = System.nanoTime();
+            try (Ledger recovered = Ledger.open(dir, options)) {
+                double seconds = (System.nanoTime() - started) / 1e9;
+                System.out.printf("recover:  %,d bytes on disk in %.3f s%n", diskBytes(dir), seconds);
+                if (total(recovered, accounts) != balance) {
+                    throw new IllegalStateException("recovered balances differ from the ones written");
+                }
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void run(Ledger ledger, int accounts, int operations, int threads) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int share = operations / threads + (t < operations % threads ? 1 : 0);
+            workers[t] = new Thread(() -> drive(ledger, accounts, share));
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private static void drive(Ledger ledger, int accounts, int operations) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < operations; i++) {
+            int account = random.nextInt(accounts);
+            long amount = 1 + random.nextInt(100);
+            switch (i % 3) {
+                case 0:
+                    ledger.deposit(account, amount);
+                    break;
+                case 1:
+                    ledger.withdraw(account, amount);
+                    break;
+                default:
+                    ledger.transfer(account, random.nextInt(accounts), amount);
+                    break;
+            }
+        }
+    }
+
+    private static long total(Ledger ledger, int accounts) {
+        long sum = 0;
+        for (int id = 0; id < accounts; id++) {
+            sum += ledger.balance(id);
+        }
+        return sum;
+    }
+
+    private static long diskBytes(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import ledger.Ledger;
+import ledger.LedgerResult;
+import ledger.LedgerServer;
+import ledger.LoginLimits;
+import ledger.Money;
+import ledger.PinHash;
+import ledger.Session;
+import ledger.ShardOptions;
+import ledger.ShardedLedger;
+
+/**
+ * Measures a {@link ShardedLedger} as shards are added: each shard is its own
+ * JVM serving a memory-only ledger on loopback, and one router drives
+ * deposits (always a single shard) and then transfers between random
+ * accounts (crossing shards for all but one in {@code n}).
+ *
+ * <p>Every shard registers every account with a cheap PIN hash; the router
+ * only ever reaches the copy on the account's own shard. All workers reach a
+ * shard from loopback, which it counts as one terminal, so shards raise their
+ * terminal login limit; neither PBKDF2 nor the login rate limits are
+ * measured.
+ *
+ * <pre>
+ * java -cp out bench.ShardScalingBench [maxShards] [threads] [accounts] [seconds]
+ * </pre>
+ */
+public final class ShardScalingBench {
+    private static final int PIN = 1234;
+    private static final String SHARD = "--shard";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 5 && args[0].equals(SHARD)) {
+            serveShard(Integer.parseInt(args[1]),
+                new ShardOptions(args[2], ShardOptions.parseRing(args[3]), HexFormat.of().parseHex(args[4])));
+            return;
+        }
+        int maxShards = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int accounts = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+
+        System.out.printf("threads=%d accounts=%d cores=%d%n",
+            threads, accounts, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %16s %16s %12s%n", "shards", "deposits/s", "transfers/s", "cross-shard");
+        for (int shards = 1; shards <= maxShards; shards *= 2) {
+            List<Process> processes = new ArrayList<>();
+            Path sagaDir = Files.createTempDirectory("ledger-sagas");
+            try {
+                List<InetSocketAddress> addresses = new ArrayList<>();
+                List<String> ids = new ArrayList<>();
+                for (int i = 0; i < shards; i++) {
+                    ids.add("shard-" + i);
+                }
+                for (String id : ids) {
+                    Process process = startShard(accounts, id, String.join(",", ids), secret);
+                    processes.add(process);
+                    addresses.add(new InetSocketAddress("localhost", readPort(process)));
+                }
+                try (ShardedLedger ledger = ShardedLedger.connect(addresses, secret, sagaDir)) {
+                    Session[] sessions = new Session[threads];
+                    for (int t = 0; t < threads; t++) {
+                        sessions[t] = ledger.login(t, t, PIN);
+                        if (!sessions[t].getResult().isOk()) {
+                            throw new IllegalStateException("Login of " + t + " failed: " + sessions[t].getResult());
+                        }
+                    }
+                    LongAdder crossed = new LongAdder();
+                    long deposits = run(sessions, seconds, (session, random) -> ledger.deposit(session, 1));
+                    long transfers = run(sessions, seconds, (session, random) -> {
+                        int to = random.nextInt(accounts - 1);
+                        to = to < session.getAccountId() ? to : to + 1;
+                        if (ledger.shardOf(to) != ledger.shardOf(session.getAccountId())) {
+                            crossed.increment();
+                        }
+                        return ledger.transfer(session, to, 1);
+                    });
+                    System.out.printf("%8d %16.0f %16.0f %11.0f%%%n", shards, deposits / (double) seconds,
+                        transfers / (double) seconds, 100.0 * crossed.sum() / Math.max(1, transfers));
+                }
+            } finally {
+                for (Process process : processes) {
+                    process.getOutputStream().close();
+                    process.waitFor();
+                }
+                delete(sagaDir);
+            }
+        }
+    }
+
+    /** One worker step against its own session. */
+    private interface Step {
+        LedgerResult apply(Session session, SplittableRandom random);
+    }
+
+    // Returns how many steps the workers completed before the deadline
+    private static long run(Session[] sessions, int seconds, Step step) throws InterruptedException {
+        int threads = sessions.length;
+        LongAdder ops = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int t = 0; t < threads; t++) {
+            Session session = sessions[t];
+            Thread worker = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(session.getAccountId());
+                try {
+                    long local = 0;
+                    while (System.nanoTime() < deadline) {
+                        LedgerResult result = step.apply(session, random);
+                        if (!result.isOk()) {
+                            throw new IllegalStateException("Operation failed: " + result);
+                        }
+                        local++;
+                    }
+                    ops.add(local);
+                } finally {
+                    done.countDown();
+                }
+            });
+            worker.start();
+        }
+        done.await();
+        return ops.sum();
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static Process startShard(int accounts, String id, String ring, byte[] secret) throws IOException {
+        return new ProcessBuilder(System.getProperty("java.home") + "/bin/java",
+                "-cp", System.getProperty("java.class.path"),
+                ShardScalingBench.class.getName(), SHARD, Integer.toString(accounts), id, ring,
+                HexFormat.of().formatHex(secret))
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+    }
+
+    private static int readPort(Process process) throws IOException {
+        BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+        String line = out.readLine();
+        if (line == null) {
+            throw new IOException("Shard exited before serving");
+        }
+        return Integer.parseInt(line.trim());
+    }
+
+    // Serves until the driver closes our standard input
+    private static void serveShard(int accounts, ShardOptions shard) throws IOException {
+        try (Ledger ledger = new Ledger();
+                LedgerServer server = LedgerServer.start(ledger, new InetSocketAddress("localhost", 0), shard)) {
+            ledger.setLoginLimits(new LoginLimits().terminal(accounts, 1));
+            PinHash pin = PinHash.create(PIN, 1_000);
+            for (int id = 0; id < accounts; id++) {
+                ledger.register(id, pin, Money.ofDollars(1_000));
+            }
+            System.out.println(server.getPort());
+            System.out.flush();
+            while (System.in.read() >= 0) {
+                // Nothing to read; waiting for end of input
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import ledger.Ledger;
+import ledger.Money;
+import ledger.PinHash;
+
+/**
+ * Measures transfer throughput under contention as the thread count grows,
+ * against the same workload serialized on one global lock.
+ *
+ * <pre>
+ * java -cp out bench.TransferContentionBench [accounts] [hotAccounts] [hotPercent] [seconds]
+ * </pre>
+ */
+public final class TransferContentionBench {
+    private static final Object GLOBAL_LOCK = new Object();
+    // Hashed once and shared; the benchmark measures transfers, not PBKDF2
+    private static final PinHash PIN = PinHash.create(0);
+
+    public static void main(String[] args) throws InterruptedException {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int hotAccounts = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int hotPercent = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        int maxThreads = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+        System.out.printf("accounts=%d hot=%d hot%%=%d cores=%d%n",
+            accounts, hotAccounts, hotPercent, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %16s %16s%n", "threads", "striped ops/s", "global ops/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double striped = run(accounts, hotAccounts, hotPercent, seconds, threads, false);
+            double global = run(accounts, hotAccounts, hotPercent, seconds, threads, true);
+            System.out.printf("%8d %16.0f %16.0f%n", threads, striped, global);
+        }
+    }
+
+    private static double run(int accounts, int hotAccounts, int hotPercent, int seconds,
+            int threads, boolean globalLock) throws InterruptedException {
+        Ledger ledger = new Ledger();
+        for (int id = 0; id < accounts; id++) {
+            ledger.register(id, PIN, Money.ofDollars(1_000));
+        }
+        long before = total(ledger, accounts);
+
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    long local = 0;
+                    while ((local & 1023) != 0 || System.nanoTime() < deadline) {
+                        int from = pick(random, accounts, hotAccounts, hotPercent);
+                        int to = pick(random, accounts, hotAccounts, hotPercent);
+                        if (from == to) {
+                            continue;
+                        }
+                        int amount = 1 + random.nextInt(10);
+                        if (globalLock) {
+                            synchronized (GLOBAL_LOCK) {
+                                ledger.transfer(from, to, amount);
+                            }
+                        } else {
+                            ledger.transfer(from, to, amount);
+                        }
+                        local++;
+                    }
+                    ops.add(local);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            worker.start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        done.await();
+        double elapsed = (System.nanoTime() - began) / 1e9;
+
+        long after = total(ledger, accounts);
+        if (before != after) {
+            throw new IllegalStateException("money not conserved: " + before + " -> " + after);
+        }
+        return ops.sum() / elapsed;
+    }
+
+    private static int pick(ThreadLocalRandom random, int accounts, int hotAccounts, int hotPercent) {
+        return random.nextInt(100) < hotPercent ? random.nextInt(hotAccounts) : random.nextInt(accounts);
+    }
+
+    private static long total(Ledger ledger, int accounts) {
+        long sum = 0;
+        for (int id = 0; id < accounts; id++) {
+            sum += ledger.balance(id);
+        }
+        return sum;
+    }
+}
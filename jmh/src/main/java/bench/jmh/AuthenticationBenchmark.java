@@ -0,0 +1,28 @@
+package bench.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Logins against the old {@code authenticateUser}. A returning customer's
+ * login is answered from the ledger's verified-login cache, so the steady
+ * state measured here is the cache path; the full PBKDF2 verification a
+ * cache miss pays is {@link PinHashBenchmark}.
+ */
+public class AuthenticationBenchmark extends EngineBenchmark {
+    // Few enough that warming the ledger's login cache stays quick
+    private static final int LOGIN_ACCOUNTS = 16;
+
+    @Override
+    void populate() {
+        for (int id = 0; id < LOGIN_ACCOUNTS; id++) {
+            if (!target.authenticate(id, PIN)) {
+                throw new IllegalStateException("Login of " + id + " failed");
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean authenticate(Cursor cursor) {
+        return target.authenticate(cursor.random.nextInt(LOGIN_ACCOUNTS), PIN);
+    }
+}
@@ -0,0 +1,38 @@
+package bench.jmh;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the selected benchmarks once single-threaded and once with
+ * {@code CONTENDED_THREADS} threads, with the GC profiler reporting
+ * allocation per operation, and writes each run's results as JSON
+ * ({@code jmh-1t.json}, {@code jmh-4t.json}) for comparison against a
+ * previous build.
+ *
+ * <pre>
+ * java -cp jmh/target/benchmarks.jar bench.jmh.Benchmarks [regexp]
+ * </pre>
+ */
+public final class Benchmarks {
+    private static final int CONTENDED_THREADS = 4;
+
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : Benchmarks.class.getPackageName() + ".*";
+        for (int threads : new int[] {1, CONTENDED_THREADS}) {
+            new Runner(new OptionsBuilder()
+                .include(include)
+                .threads(threads)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-" + threads + "t.json")
+                .build()).run();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package bench.jmh;
+
+import java.io.IOException;
+
+/**
+ * The account operations the benchmarks drive, so the current ledger, the
+ * original {@code HashMap} design and any future storage engine run the same
+ * workload. Amounts are in cents.
+ */
+interface Engine extends AutoCloseable {
+    boolean register(int accountId, int pin, long initialDeposit);
+
+    boolean authenticate(int accountId, int pin);
+
+    boolean deposit(int accountId, long amount);
+
+    boolean withdraw(int accountId, long amount);
+
+    boolean transfer(int fromId, int toId, long amount);
+
+    /** Prepares what the history screen needs before it can show the account's newest entries. */
+    Object prepareHistory(int accountId);
+
+    @Override
+    void close() throws IOException;
+
+    /** Engine names accepted by the benchmarks' {@code engine} parameter. */
+    static Engine create(String name) throws IOException {
+        switch (name) {
+            case "hashmap":
+                return new HashMapEngine();
+            case "ledger":
+                return LedgerEngine.inMemory();
+            case "ledger-log":
+                return LedgerEngine.logged();
+            case "ledger-events":
+                return LedgerEngine.streamed();
+            default:
+                throw new IllegalArgumentException("Unknown engine " + name);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package bench.jmh;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Common state: a fresh engine with {@link #accounts} funded accounts per
+ * iteration, so histories and maps do not grow across the whole run and
+ * every iteration starts from the same shape. Subclasses add their own
+ * fixtures in {@link #populate()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public abstract class EngineBenchmark {
+    static final int PIN = 1234;
+    // Large enough that withdrawals and transfers never run dry within an iteration
+    static final long OPENING_BALANCE = 1_000_000_000L * 100;
+
+    @Param({"hashmap", "ledger", "ledger-log", "ledger-events"})
+    public String engine;
+
+    @Param({"10000"})
+    public int accounts;
+
+    Engine target;
+
+    /** Per-thread random source, so threads do not share one generator. */
+    @State(Scope.Thread)
+    public static class Cursor {
+        final SplittableRandom random = new SplittableRandom(ThreadLocalRandom.current().nextLong());
+        boolean forward;
+    }
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        target = Engine.create(engine);
+        for (int id = 0; id < accounts; id++) {
+            target.register(id, PIN, OPENING_BALANCE);
+        }
+        populate();
+    }
+
+    void populate() {
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        target.close();
+    }
+}
@@ -0,0 +1,116 @@
+package bench.jmh;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Baseline: the ATM's original storage, i.e. {@code HashMap}s of immutable
+ * users and of {@code ArrayList} histories, {@code double} dollar balances,
+ * a {@code String} label per entry and the whole history turned into an
+ * {@code Object[][]} of formatted cells before the screen shows it. The
+ * original ran only on the EDT; one monitor stands in for that so it can be
+ * measured under contention too.
+ */
+final class HashMapEngine implements Engine {
+    private final Map<Integer, User> users = new HashMap<>();
+    private final Map<Integer, List<Transaction>> transactionHistory = new HashMap<>();
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    @Override
+    public synchronized boolean register(int accountId, int pin, long initialDeposit) {
+        if (users.containsKey(accountId)) {
+            return false;
+        }
+        users.put(accountId, new User(accountId, pin, initialDeposit / 100.0));
+        transactionHistory.put(accountId, new ArrayList<>());
+        return true;
+    }
+
+    @Override
+    public synchronized boolean authenticate(int accountId, int pin) {
+        User user = users.get(accountId);
+        return user != null && user.pin == pin;
+    }
+
+    @Override
+    public synchronized boolean deposit(int accountId, long amount) {
+        if (!users.containsKey(accountId)) {
+            return false;
+        }
+        performTransaction(accountId, "Deposit", amount / 100.0);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean withdraw(int accountId, long amount) {
+        User user = users.get(accountId);
+        double dollars = amount / 100.0;
+        if (user == null || dollars > user.balance) {
+            return false;
+        }
+        performTransaction(accountId, "Withdrawal", -dollars);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean transfer(int fromId, int toId, long amount) {
+        User user = users.get(fromId);
+        double dollars = amount / 100.0;
+        if (user == null || !users.containsKey(toId) || toId == fromId || dollars > user.balance) {
+            return false;
+        }
+        performTransaction(fromId, "Transfer to " + toId, -dollars);
+        performTransaction(toId, "Transfer from " + fromId, dollars);
+        return true;
+    }
+
+    @Override
+    public synchronized Object prepareHistory(int accountId) {
+        List<Transaction> transactions = transactionHistory.get(accountId);
+        Object[][] data = new Object[transactions.size()][3];
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction t = transactions.get(i);
+            data[i][0] = dateFormat.format(t.date);
+            data[i][1] = t.type;
+            data[i][2] = String.format("$%.2f", t.amount);
+        }
+        return data;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void performTransaction(int userId, String type, double amount) {
+        User user = users.get(userId);
+        users.put(userId, new User(userId, user.pin, user.balance + amount));
+        transactionHistory.get(userId).add(new Transaction(type, amount));
+    }
+
+    private static final class User {
+        final int userId;
+        final int pin;
+        final double balance;
+
+        User(int userId, int pin, double balance) {
+            this.userId = userId;
+            this.pin = pin;
+            this.balance = balance;
+        }
+    }
+
+    private static final class Transaction {
+        final String type;
+        final double amount;
+        final Date date = new Date();
+
+        Transaction(String type, double amount) {
+            this.type = type;
+            this.amount = amount;
+        }
+    }
+}
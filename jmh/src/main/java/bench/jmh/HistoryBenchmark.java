@@ -0,0 +1,27 @@
+package bench.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Work done before the history screen can paint an account with
+ * {@link #entries} transactions: the old design formats the whole history
+ * into an {@code Object[][]}, the ledger fetches the newest page and leaves
+ * dates and amounts to the cell renderers.
+ */
+public class HistoryBenchmark extends EngineBenchmark {
+    @Param({"100", "10000"})
+    public int entries;
+
+    @Override
+    void populate() {
+        for (int i = 0; i < entries; i++) {
+            target.deposit(0, 100);
+        }
+    }
+
+    @Benchmark
+    public Object prepareHistory() {
+        return target.prepareHistory(0);
+    }
+}
@@ -0,0 +1,113 @@
+package bench.jmh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import ledger.ChannelEventSink;
+import ledger.EventStream;
+import ledger.HistoryPage;
+import ledger.Ledger;
+import ledger.LogOptions;
+import ledger.PinHash;
+
+/**
+ * The current {@link Ledger}, either memory-only, writing its transaction
+ * log (without waiting for {@code fsync}, so the numbers show the engine and
+ * not the disk), or memory-only feeding an {@link EventStream} drained to a
+ * file, which prices publishing every change.
+ *
+ * <p>Registration takes an already hashed PIN: hashing is deliberately slow
+ * and is measured on its own by {@link PinHashBenchmark}. Each
+ * account logs in from its own terminal so the per-terminal rate limit does
+ * not throttle the benchmark.
+ */
+final class LedgerEngine implements Engine {
+    // Rows the history screen fetches at a time
+    private static final int PAGE_ROWS = 256;
+
+    // Ring size ATMSystem uses
+    private static final int EVENT_BUFFER = 1 << 16;
+
+    private final Ledger ledger;
+    private final Path dir;
+    private final EventStream events;
+    private final Map<Integer, PinHash> hashes = new ConcurrentHashMap<>();
+
+    private LedgerEngine(Ledger ledger, Path dir, EventStream events) {
+        this.ledger = ledger;
+        this.dir = dir;
+        this.events = events;
+    }
+
+    static LedgerEngine inMemory() {
+        return new LedgerEngine(new Ledger(), null, null);
+    }
+
+    static LedgerEngine logged() throws IOException {
+        Path dir = Files.createTempDirectory("ledger-jmh");
+        return new LedgerEngine(Ledger.open(dir, new LogOptions().syncCommit(false)), dir, null);
+    }
+
+    static LedgerEngine streamed() throws IOException {
+        Path dir = Files.createTempDirectory("ledger-jmh");
+        EventStream events = new EventStream(EVENT_BUFFER);
+        events.subscribe("file", ChannelEventSink.toFile(dir.resolve("events.csv")));
+        Ledger ledger = new Ledger();
+        ledger.setEventStream(events);
+        return new LedgerEngine(ledger, dir, events);
+    }
+
+    @Override
+    public boolean register(int accountId, int pin, long initialDeposit) {
+        return ledger.register(accountId, hashes.computeIfAbsent(pin, PinHash::create), initialDeposit).isOk();
+    }
+
+    @Override
+    public boolean authenticate(int accountId, int pin) {
+        return ledger.authenticate(accountId, accountId, pin).isOk();
+    }
+
+    @Override
+    public boolean deposit(int accountId, long amount) {
+        return ledger.deposit(accountId, amount).isOk();
+    }
+
+    @Override
+    public boolean withdraw(int accountId, long amount) {
+        return ledger.withdraw(accountId, amount).isOk();
+    }
+
+    @Override
+    public boolean transfer(int fromId, int toId, long amount) {
+        return ledger.transfer(fromId, toId, amount).isOk();
+    }
+
+    /** Fetches the newest page and its labels, as the history table does before painting. */
+    @Override
+    public Object prepareHistory(int accountId) {
+        HistoryPage page = new HistoryPage(PAGE_ROWS);
+        ledger.readHistory(accountId, Math.max(0, ledger.historySize(accountId) - PAGE_ROWS), page);
+        String[] labels = new String[page.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = page.label(i);
+        }
+        return labels;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ledger.close();
+        if (events != null) {
+            events.close();
+        }
+        if (dir != null) {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+}
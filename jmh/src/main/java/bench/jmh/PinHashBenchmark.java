@@ -0,0 +1,27 @@
+package bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+import ledger.PinHash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The PBKDF2 cost every registration and every uncached login pays. It is
+ * meant to be slow; a drop here means the work factor was weakened.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class PinHashBenchmark {
+    @Benchmark
+    public PinHash hashPin() {
+        return PinHash.create(EngineBenchmark.PIN);
+    }
+}
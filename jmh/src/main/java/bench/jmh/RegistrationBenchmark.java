@@ -0,0 +1,35 @@
+package bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to register a batch of new accounts (the old {@code registerUser}),
+ * including the map, index and page growth they cause. Each iteration starts
+ * from a fresh engine, so every batch meets the same table sizes.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = RegistrationBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = RegistrationBenchmark.BATCH)
+public class RegistrationBenchmark extends EngineBenchmark {
+    static final int BATCH = 50_000;
+
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    @Override
+    void populate() {
+        nextId.set(accounts);
+    }
+
+    @Benchmark
+    public boolean register() {
+        return target.register(nextId.getAndIncrement(), PIN, OPENING_BALANCE);
+    }
+}
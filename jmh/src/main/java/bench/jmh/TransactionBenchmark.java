@@ -0,0 +1,36 @@
+package bench.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Deposits and withdrawals on random accounts (the old
+ * {@code performTransaction}), and transfers between random ("cold")
+ * accounts and between two "hot" accounts every thread fights over.
+ */
+public class TransactionBenchmark extends EngineBenchmark {
+    private static final long AMOUNT = 100;
+
+    @Benchmark
+    public boolean deposit(Cursor cursor) {
+        return target.deposit(cursor.random.nextInt(accounts), AMOUNT);
+    }
+
+    @Benchmark
+    public boolean withdraw(Cursor cursor) {
+        return target.withdraw(cursor.random.nextInt(accounts), AMOUNT);
+    }
+
+    @Benchmark
+    public boolean transferCold(Cursor cursor) {
+        int from = cursor.random.nextInt(accounts);
+        int to = cursor.random.nextInt(accounts - 1);
+        return target.transfer(from, to < from ? to : to + 1, AMOUNT);
+    }
+
+    // Alternating direction keeps both balances level
+    @Benchmark
+    public boolean transferHot(Cursor cursor) {
+        cursor.forward = !cursor.forward;
+        return cursor.forward ? target.transfer(0, 1, AMOUNT) : target.transfer(1, 0, AMOUNT);
+    }
+}
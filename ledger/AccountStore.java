@@ -0,0 +1,191 @@
+package ledger;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Primitive account table.
+ *
+ * <p>Account ids map to dense ordinals through an open-addressing index of
+ * packed {@code long}s ({@code id << 32 | ordinal + 1}, zero meaning empty),
+ * so lookups neither box nor allocate and never take a lock. Per-account
+ * columns are paged parallel arrays indexed by ordinal; pages are allocated
+ * once and never move, which keeps an ordinal a stable handle to its slot.
+ *
+ * <p>Inserts are serialized on an internal lock. Column values are guarded by
+ * the caller (the ledger's stripe locks); the store only guarantees that a
+ * slot is fully initialized before its ordinal becomes visible.
+ *
+ * <p>Every balance change also bumps the account's version stamp, seqlock
+ * style: odd while the write is in progress, even once it is published. A
+ * reader holding no lock can read the stamp, then the balance, then
+ * {@link #validate} the stamp, and knows the balance is consistent if it did
+ * not move; an unchanged stamp also means a previously read balance is still
+ * current.
+ */
+final class AccountStore {
+    static final int PAGE_SHIFT = 16;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final VarHandle VERSION = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final Object writeLock = new Object();
+    private volatile AtomicLongArray index = new AtomicLongArray(INITIAL_CAPACITY);
+    private volatile int size;
+
+    private int[][] idPages = new int[0][];
+    // PinHash.BYTES per account, back to back
+    private byte[][] credentialPages = new byte[0][];
+    private long[][] balancePages = new long[0][];
+    private long[][] versionPages = new long[0][];
+    // Epoch millis of each account's registration; never changes
+    private long[][] registeredPages = new long[0][];
+
+    /** Returns the ordinal of the account, or -1 if it does not exist. */
+    int find(int accountId) {
+        AtomicLongArray table = index;
+        int mask = table.length() - 1;
+        for (int i = mix(accountId) & mask; ; i = (i + 1) & mask) {
+            long entry = table.get(i);
+            if (entry == 0) {
+                return -1;
+            }
+            if ((int) (entry >>> 32) == accountId) {
+                return (int) entry - 1;
+            }
+        }
+    }
+
+    /** Adds an account registered at {@code registeredMillis} and returns its ordinal, or -1 if the id is taken. */
+    int insert(int accountId, PinHash credential, long balance, long registeredMillis) {
+        synchronized (writeLock) {
+            if (find(accountId) >= 0) {
+                return -1;
+            }
+            int ordinal = size;
+            int page = ordinal >>> PAGE_SHIFT;
+            if (page == idPages.length) {
+                addPage();
+            }
+            int slot = ordinal & PAGE_MASK;
+            idPages[page][slot] = accountId;
+            System.arraycopy(credential.encoded(), 0, credentialPages[page], slot * PinHash.BYTES, PinHash.BYTES);
+            balancePages[page][slot] = balance;
+            registeredPages[page][slot] = registeredMillis;
+
+            AtomicLongArray table = index;
+            if ((ordinal + 1) * 2L > table.length()) {
+                table = resize(table);
+            }
+            put(table, accountId, ordinal);
+            size = ordinal + 1;
+            return ordinal;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int accountId(int ordinal) {
+        return idPages[ordinal >>> PAGE_SHIFT][ordinal & PAGE_MASK];
+    }
+
+    PinHash credential(int ordinal) {
+        int offset = (ordinal & PAGE_MASK) * PinHash.BYTES;
+        return PinHash.decode(Arrays.copyOfRange(credentialPages[ordinal >>> PAGE_SHIFT], offset, offset + PinHash.BYTES));
+    }
+
+    /** Writes the encoded credential of {@code ordinal} into {@code out}. */
+    void copyCredential(int ordinal, ByteBuffer out) {
+        out.put(credentialPages[ordinal >>> PAGE_SHIFT], (ordinal & PAGE_MASK) * PinHash.BYTES, PinHash.BYTES);
+    }
+
+    long registered(int ordinal) {
+        return registeredPages[ordinal >>> PAGE_SHIFT][ordinal & PAGE_MASK];
+    }
+
+    long balance(int ordinal) {
+        return balancePages[ordinal >>> PAGE_SHIFT][ordinal & PAGE_MASK];
+    }
+
+    void addBalance(int ordinal, long amount) {
+        long[] versions = versionPages[ordinal >>> PAGE_SHIFT];
+        int slot = ordinal & PAGE_MASK;
+        long version = versions[slot];
+        VERSION.setOpaque(versions, slot, version + 1);
+        VarHandle.storeStoreFence();
+        balancePages[ordinal >>> PAGE_SHIFT][slot] += amount;
+        VERSION.setRelease(versions, slot, version + 2);
+    }
+
+    /** Returns the account's version stamp; odd while a balance write is in progress. */
+    long version(int ordinal) {
+        return (long) VERSION.getAcquire(versionPages[ordinal >>> PAGE_SHIFT], ordinal & PAGE_MASK);
+    }
+
+    /** Returns true if nothing was written since {@code stamp} was read and reads made in between are consistent. */
+    boolean validate(int ordinal, long stamp) {
+        VarHandle.loadLoadFence();
+        return (stamp & 1) == 0
+            && (long) VERSION.getOpaque(versionPages[ordinal >>> PAGE_SHIFT], ordinal & PAGE_MASK) == stamp;
+    }
+
+    /** Copies the balances of ordinals {@code [0, count)} into {@code into}. */
+    void copyBalances(long[] into, int count) {
+        for (int page = 0, done = 0; done < count; page++, done += PAGE_SIZE) {
+            System.arraycopy(balancePages[page], 0, into, done, Math.min(PAGE_SIZE, count - done));
+        }
+    }
+
+    private void addPage() {
+        int pages = idPages.length + 1;
+        int[][] ids = Arrays.copyOf(idPages, pages);
+        byte[][] credentials = Arrays.copyOf(credentialPages, pages);
+        long[][] balances = Arrays.copyOf(balancePages, pages);
+        long[][] versions = Arrays.copyOf(versionPages, pages);
+        long[][] registered = Arrays.copyOf(registeredPages, pages);
+        ids[pages - 1] = new int[PAGE_SIZE];
+        credentials[pages - 1] = new byte[PAGE_SIZE * PinHash.BYTES];
+        balances[pages - 1] = new long[PAGE_SIZE];
+        versions[pages - 1] = new long[PAGE_SIZE];
+        registered[pages - 1] = new long[PAGE_SIZE];
+        idPages = ids;
+        credentialPages = credentials;
+        balancePages = balances;
+        versionPages = versions;
+        registeredPages = registered;
+    }
+
+    // Readers still probing the old table see every account that existed
+    // before the resize; only the insert in progress is invisible to them.
+    private AtomicLongArray resize(AtomicLongArray old) {
+        AtomicLongArray table = new AtomicLongArray(old.length() * 2);
+        for (int i = 0; i < old.length(); i++) {
+            long entry = old.get(i);
+            if (entry != 0) {
+                put(table, (int) (entry >>> 32), (int) entry - 1);
+            }
+        }
+        index = table;
+        return table;
+    }
+
+    private static void put(AtomicLongArray table, int accountId, int ordinal) {
+        int mask = table.length() - 1;
+        int i = mix(accountId) & mask;
+        while (table.get(i) != 0) {
+            i = (i + 1) & mask;
+        }
+        table.set(i, ((long) accountId << 32) | ((ordinal + 1) & 0xFFFFFFFFL));
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
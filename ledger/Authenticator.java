@@ -0,0 +1,160 @@
+package ledger;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keeps PIN hashing from overwhelming the ledger.
+ *
+ * <p>Every PBKDF2 derivation runs on a small pool with one thread per core
+ * and a bounded queue; when the queue is full the request fails fast with
+ * {@link LedgerResult#BUSY} instead of piling up. Before anything reaches the
+ * pool, attempts are charged to a per-terminal and then a per-account
+ * {@link TokenBucketLimiter}, sized by {@link LoginLimits}, so a brute-force
+ * flood is shed with one CAS. Every registered account has a bucket of its
+ * own, so guessing at one account never locks out another; attempts at
+ * unknown ids share hashed buckets, which only ever refuse ids no one can
+ * log in to.
+ *
+ * <p>Successful verifications are remembered for {@link #CACHE_TTL_NANOS} in
+ * a direct-mapped table keyed by account. An entry holds an HMAC tag of the
+ * account, PIN and salt under a per-process random key, never the PIN, so a
+ * repeat login within a session costs one HMAC rather than a key derivation.
+ */
+final class Authenticator {
+    private static final long CACHE_TTL_NANOS = TimeUnit.MINUTES.toNanos(2);
+    private static final int CACHE_SLOTS = 1 << 12;
+    private static final int QUEUE_PER_THREAD = 32;
+
+    /** A remembered successful verification. */
+    private static final class Verified {
+        final int accountId;
+        final long tag;
+        final long expiresAt;
+
+        Verified(int accountId, long tag, long expiresAt) {
+            this.accountId = accountId;
+            this.tag = tag;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ThreadPoolExecutor pool;
+    private volatile TokenBucketLimiter terminals;
+    // Exact buckets by ordinal for registered accounts, hashed ones by id for the rest
+    private volatile TokenBucketLimiter accounts;
+    private final AtomicReferenceArray<Verified> cache = new AtomicReferenceArray<>(CACHE_SLOTS);
+    private final SecretKeySpec tagKey;
+    private final ThreadLocal<Mac> tagger;
+
+    Authenticator() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD), r -> {
+                Thread thread = new Thread(r, "ledger-pin-verifier");
+                thread.setDaemon(true);
+                return thread;
+            });
+        setLimits(new LoginLimits());
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        tagKey = new SecretKeySpec(key, "HmacSHA256");
+        tagger = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(tagKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 is not available", e);
+            }
+        });
+    }
+
+    /**
+     * Charges one attempt to {@code terminalId}'s bucket, as a login would be;
+     * returns false if the terminal is over its rate.
+     */
+    boolean admit(int terminalId) {
+        return terminals.tryAcquire(terminalId);
+    }
+
+    /** Hashes a new PIN on the pool; completes with {@code null} if the pool is saturated. */
+    CompletableFuture<PinHash> hash(int pin) {
+        return submit(() -> PinHash.create(pin));
+    }
+
+    /**
+     * Checks {@code pin} against {@code stored}, the credential of the
+     * account at {@code ordinal}; both are absent ({@code -1} and
+     * {@code null}) for an unknown account. Rate limits apply to unknown
+     * accounts too, so probing for valid ids is throttled like guessing PINs.
+     */
+    CompletableFuture<LedgerResult> verify(int terminalId, int accountId, int ordinal, PinHash stored, int pin) {
+        long tag = stored == null ? 0 : tag(accountId, pin, stored);
+        int slot = slot(accountId);
+        Verified cached = cache.get(slot);
+        if (stored != null && cached != null && cached.accountId == accountId && cached.tag == tag
+                && cached.expiresAt - System.nanoTime() > 0) {
+            return CompletableFuture.completedFuture(LedgerResult.OK);
+        }
+        if (!terminals.tryAcquire(terminalId)
+                || !(ordinal >= 0 ? accounts.tryAcquireExact(ordinal) : accounts.tryAcquire(accountId))) {
+            return CompletableFuture.completedFuture(LedgerResult.TOO_MANY_ATTEMPTS);
+        }
+        if (stored == null) {
+            return CompletableFuture.completedFuture(LedgerResult.INVALID_CREDENTIALS);
+        }
+        return submit(() -> stored.matches(pin)).thenApply(matched -> {
+            if (matched == null) {
+                return LedgerResult.BUSY;
+            }
+            if (!matched) {
+                return LedgerResult.INVALID_CREDENTIALS;
+            }
+            cache.set(slot, new Verified(accountId, tag, System.nanoTime() + CACHE_TTL_NANOS));
+            return LedgerResult.OK;
+        });
+    }
+
+    /** Replaces both limiters, so every bucket starts out full under the new limits. */
+    void setLimits(LoginLimits limits) {
+        terminals = new TokenBucketLimiter(1 << 10, limits.getTerminalBurst(),
+            TimeUnit.MILLISECONDS.toNanos(limits.getTerminalIntervalMillis()));
+        accounts = new TokenBucketLimiter(1 << 16, limits.getAccountBurst(),
+            TimeUnit.MILLISECONDS.toNanos(limits.getAccountIntervalMillis()));
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> work) {
+        try {
+            return CompletableFuture.supplyAsync(work, pool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private long tag(int accountId, int pin, PinHash stored) {
+        Mac mac = tagger.get();
+        mac.update(ByteBuffer.allocate(8).putInt(accountId).putInt(pin).array());
+        mac.update(stored.encoded(), PinHash.SALT_OFFSET, PinHash.SALT_BYTES);
+        return ByteBuffer.wrap(mac.doFinal()).getLong();
+    }
+
+    private static int slot(int accountId) {
+        int h = accountId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (CACHE_SLOTS - 1);
+    }
+}
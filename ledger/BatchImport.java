@@ -0,0 +1,553 @@
+package ledger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless back-office import: applies a file of deposits, withdrawals and
+ * transfers to a ledger and reports every line it refused.
+ *
+ * <p>The input is CSV with one operation per line:
+ * <pre>
+ * DEPOSIT,1001,250.00
+ * WITHDRAW,1001,20
+ * TRANSFER,1001,300.50,1002
+ * </pre>
+ * Operation names are case-insensitive; blank lines and lines starting with
+ * {@code #} are skipped. Amounts go through {@link Money#parse} and each
+ * operation through the same ledger call a terminal makes, so a line is
+ * accepted or refused exactly as it would be at the ATM.
+ *
+ * <p>The file is memory-mapped a window at a time. Each window is cut into
+ * line-aligned chunks that are parsed in parallel into primitive columns;
+ * operations are then applied by one worker per thread, each owning the
+ * accounts whose lock stripes hash to it, so workers rarely meet on a lock
+ * and every account sees its operations in file order. A transfer between
+ * accounts of two workers is a rendezvous: whichever worker reaches it second
+ * applies it, so it lands after every earlier line of both accounts. A worker
+ * only ever waits for a line both workers reach before any later one, so the
+ * earliest unfinished line can always proceed.
+ *
+ * <p>The report lists the refused lines as {@code line,result,message},
+ * followed by a summary comment. A window's refusals are written only after
+ * the ledger has synced the operations before them, so a ledger opened with
+ * {@code syncCommit} off loses nothing the report has already accounted for.
+ */
+public final class BatchImport {
+    private static final long WINDOW_BYTES = 64L << 20;
+    private static final int REPORT_BUFFER = 1 << 20;
+    private static final int INITIAL_OPS = 1 << 12;
+    private static final VarHandle RESULT = MethodHandles.arrayElementVarHandle(byte[].class);
+
+    private static final byte DEPOSIT = 0;
+    private static final byte WITHDRAW = 1;
+    private static final byte TRANSFER = 2;
+    private static final byte[][] OPERATIONS = {
+        ascii("DEPOSIT"), ascii("WITHDRAW"), ascii("TRANSFER")
+    };
+
+    // Result codes: 0 while pending, LedgerResult ordinal + 1 once applied,
+    // negative when the line could not be parsed
+    private static final byte PENDING = 0;
+    // A cross-worker transfer one of its two workers is waiting at
+    private static final byte ARRIVED = Byte.MAX_VALUE;
+    private static final byte UNKNOWN_OPERATION = -1;
+    private static final byte WRONG_FIELD_COUNT = -2;
+    private static final byte INVALID_ACCOUNT = -3;
+    private static final byte INVALID_AMOUNT = -4;
+    private static final byte INVALID_RECIPIENT = -5;
+    private static final String[] PARSE_ERRORS = {
+        "Unknown operation.",
+        "Wrong number of fields.",
+        "Please enter a valid User ID.",
+        "Please enter a valid amount.",
+        "Please enter a valid recipient."
+    };
+    private static final byte[][] RESULT_LINES = resultLines();
+
+    private final Ledger ledger;
+    private final int workers;
+    private volatile boolean failed;
+
+    public BatchImport(Ledger ledger, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers < 1");
+        }
+        this.ledger = ledger;
+        this.workers = workers;
+    }
+
+    /** Totals of one import. */
+    public static final class Summary {
+        private final long operations;
+        private final long rejected;
+        private final long elapsedNanos;
+
+        Summary(long operations, long rejected, long elapsedNanos) {
+            this.operations = operations;
+            this.rejected = rejected;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getOperations() { return operations; }
+        public long getApplied() { return operations - rejected; }
+        public long getRejected() { return rejected; }
+        public long getElapsedNanos() { return elapsedNanos; }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            return String.format("%,d operations, %,d applied, %,d rejected in %.2f s (%,.0f ops/s)",
+                operations, getApplied(), rejected, seconds, operations / Math.max(seconds, 1e-9));
+        }
+    }
+
+    /** Applies every operation in {@code input} and writes the refused lines to {@code report}. */
+    public Summary process(Path input, Path report) throws IOException {
+        long started = System.nanoTime();
+        // A failed import leaves this set; the next one starts clean
+        failed = false;
+        long operations = 0;
+        long rejected = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "ledger-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(report, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(REPORT_BUFFER);
+            put(buffer, out, ascii("# line,result,message\n"));
+            long size = in.size();
+            long firstLine = 1;
+            for (long start = 0; start < size; ) {
+                long end = start + WINDOW_BYTES >= size ? size : lineStart(in, start + WINDOW_BYTES);
+                Chunk[] chunks = split(in.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+                List<Callable<Void>> tasks = new ArrayList<>(chunks.length);
+                for (Chunk chunk : chunks) {
+                    tasks.add(() -> {
+                        chunk.parse();
+                        return null;
+                    });
+                }
+                runAll(pool, tasks);
+                tasks.clear();
+                for (int w = 0; w < workers; w++) {
+                    int worker = w;
+                    tasks.add(() -> {
+                        apply(chunks, worker);
+                        return null;
+                    });
+                }
+                runAll(pool, tasks);
+                ledger.sync();
+
+                for (Chunk chunk : chunks) {
+                    operations += chunk.count;
+                    rejected += chunk.report(firstLine, buffer, out);
+                    firstLine += chunk.lines;
+                }
+                start = end;
+            }
+            put(buffer, out, ascii(String.format("# %d operations, %d applied, %d rejected\n",
+                operations, operations - rejected, rejected)));
+            drain(buffer, out);
+            out.force(false);
+        } finally {
+            pool.shutdownNow();
+        }
+        return new Summary(operations, rejected, System.nanoTime() - started);
+    }
+
+    /** Cuts a window into about four chunks per worker, each ending on a line break. */
+    private Chunk[] split(MappedByteBuffer window) {
+        int size = window.limit();
+        int target = Math.max(1, Math.min(workers * 4, size >>> 16));
+        List<Chunk> chunks = new ArrayList<>(target);
+        int from = 0;
+        for (int i = 1; i <= target && from < size; i++) {
+            int to = i == target ? size : (int) ((long) size * i / target);
+            while (to < size && window.get(to - 1) != '\n') {
+                to++;
+            }
+            if (to > from) {
+                chunks.add(new Chunk(window, from, to));
+                from = to;
+            }
+        }
+        return chunks.toArray(new Chunk[0]);
+    }
+
+    private void apply(Chunk[] chunks, int worker) {
+        try {
+            for (Chunk chunk : chunks) {
+                int[] queue = chunk.queues[worker];
+                for (int i = 0, n = chunk.queueSizes[worker]; i < n; i++) {
+                    int op = queue[i];
+                    if (op >= 0) {
+                        chunk.results[op] = (byte) (apply(chunk, op).ordinal() + 1);
+                    } else if (RESULT.compareAndSet(chunk.results, ~op, PENDING, ARRIVED)) {
+                        awaitResult(chunk.results, ~op);
+                    } else {
+                        RESULT.setRelease(chunk.results, ~op, (byte) (apply(chunk, ~op).ordinal() + 1));
+                    }
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    private LedgerResult apply(Chunk chunk, int op) {
+        int accountId = chunk.accounts[op];
+        long amount = chunk.amounts[op];
+        switch (chunk.types[op]) {
+            case DEPOSIT:
+                return ledger.deposit(accountId, amount);
+            case WITHDRAW:
+                return ledger.withdraw(accountId, amount);
+            default:
+                return ledger.transfer(accountId, chunk.counterparties[op], amount);
+        }
+    }
+
+    private void awaitResult(byte[] results, int op) {
+        for (int spins = 0; (byte) RESULT.getAcquire(results, op) == ARRIVED; spins++) {
+            if (failed) {
+                throw new IllegalStateException("Batch import aborted");
+            }
+            if (spins < 64) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    private int partition(int accountId) {
+        return Ledger.stripe(accountId) % workers;
+    }
+
+    /** One line-aligned slice of a window and the operations parsed from it. */
+    private final class Chunk {
+        private final ByteBuffer data;
+        private final int from;
+        private final int to;
+        private final Field field;
+        // Offsets of the commas, then of the line end
+        private final int[] commas = new int[4];
+
+        int count;
+        int lines;
+        byte[] types = new byte[INITIAL_OPS];
+        int[] accounts = new int[INITIAL_OPS];
+        int[] counterparties = new int[INITIAL_OPS];
+        long[] amounts = new long[INITIAL_OPS];
+        // Line within the chunk, counting from 0
+        int[] lineNumbers = new int[INITIAL_OPS];
+        byte[] results = new byte[INITIAL_OPS];
+
+        // Per worker, in file order: an op index to apply, or ~index of a
+        // transfer it shares with another worker
+        final int[][] queues;
+        final int[] queueSizes;
+
+        Chunk(ByteBuffer data, int from, int to) {
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.field = new Field(data);
+            this.queues = new int[workers][INITIAL_OPS / workers + 1];
+            this.queueSizes = new int[workers];
+        }
+
+        void parse() {
+            int start = from;
+            while (start < to) {
+                int end = start;
+                while (end < to && data.get(end) != '\n') {
+                    end++;
+                }
+                parseLine(start, end);
+                lines++;
+                start = end + 1;
+            }
+        }
+
+        private void parseLine(int start, int end) {
+            while (start < end && data.get(start) <= ' ') {
+                start++;
+            }
+            while (end > start && data.get(end - 1) <= ' ') {
+                end--;
+            }
+            if (start == end || data.get(start) == '#') {
+                return;
+            }
+            int op = add();
+            int fields = 1;
+            for (int i = start; i < end; i++) {
+                if (data.get(i) == ',') {
+                    if (fields == commas.length) {
+                        results[op] = WRONG_FIELD_COUNT;
+                        return;
+                    }
+                    commas[fields++ - 1] = i;
+                }
+            }
+            commas[fields - 1] = end;
+
+            byte type = operation(start, commas[0]);
+            if (type < 0) {
+                results[op] = UNKNOWN_OPERATION;
+                return;
+            }
+            if (fields != (type == TRANSFER ? 4 : 3)) {
+                results[op] = WRONG_FIELD_COUNT;
+                return;
+            }
+            types[op] = type;
+            try {
+                accounts[op] = field.set(commas[0] + 1, commas[1]).parseInt();
+            } catch (NumberFormatException e) {
+                results[op] = INVALID_ACCOUNT;
+                return;
+            }
+            try {
+                amounts[op] = Money.parse(field.set(commas[1] + 1, commas[2]));
+            } catch (NumberFormatException e) {
+                results[op] = INVALID_AMOUNT;
+                return;
+            }
+            int owner = partition(accounts[op]);
+            if (type == TRANSFER) {
+                try {
+                    counterparties[op] = field.set(commas[2] + 1, commas[3]).parseInt();
+                } catch (NumberFormatException e) {
+                    results[op] = INVALID_RECIPIENT;
+                    return;
+                }
+                int recipient = partition(counterparties[op]);
+                if (recipient != owner) {
+                    enqueue(owner, ~op);
+                    enqueue(recipient, ~op);
+                    return;
+                }
+            }
+            enqueue(owner, op);
+        }
+
+        private byte operation(int start, int end) {
+            while (end > start && data.get(end - 1) <= ' ') {
+                end--;
+            }
+            for (byte type = 0; type < OPERATIONS.length; type++) {
+                byte[] name = OPERATIONS[type];
+                if (end - start != name.length) {
+                    continue;
+                }
+                int i = 0;
+                while (i < name.length && (data.get(start + i) & 0xDF) == name[i]) {
+                    i++;
+                }
+                if (i == name.length) {
+                    return type;
+                }
+            }
+            return -1;
+        }
+
+        private int add() {
+            if (count == types.length) {
+                int capacity = count * 2;
+                types = Arrays.copyOf(types, capacity);
+                accounts = Arrays.copyOf(accounts, capacity);
+                counterparties = Arrays.copyOf(counterparties, capacity);
+                amounts = Arrays.copyOf(amounts, capacity);
+                lineNumbers = Arrays.copyOf(lineNumbers, capacity);
+                results = Arrays.copyOf(results, capacity);
+            }
+            lineNumbers[count] = lines;
+            return count++;
+        }
+
+        private void enqueue(int worker, int entry) {
+            int size = queueSizes[worker];
+            if (size == queues[worker].length) {
+                queues[worker] = Arrays.copyOf(queues[worker], size * 2);
+            }
+            queues[worker][size] = entry;
+            queueSizes[worker] = size + 1;
+        }
+
+        /** Writes the refused lines and returns how many there were. */
+        long report(long firstLine, ByteBuffer buffer, FileChannel out) throws IOException {
+            long rejected = 0;
+            for (int op = 0; op < count; op++) {
+                byte result = results[op];
+                if (result == LedgerResult.OK.ordinal() + 1) {
+                    continue;
+                }
+                rejected++;
+                if (buffer.remaining() < 24) {
+                    drain(buffer, out);
+                }
+                putLong(buffer, firstLine + lineNumbers[op]);
+                buffer.put((byte) ',');
+                put(buffer, out, RESULT_LINES[result + PARSE_ERRORS.length]);
+            }
+            return rejected;
+        }
+    }
+
+    /** Zero-copy view of one field of the mapped input. */
+    private static final class Field implements CharSequence {
+        private final ByteBuffer data;
+        private int start;
+        private int end;
+
+        Field(ByteBuffer data) {
+            this.data = data;
+        }
+
+        Field set(int start, int end) {
+            while (start < end && data.get(start) <= ' ') {
+                start++;
+            }
+            while (end > start && data.get(end - 1) <= ' ') {
+                end--;
+            }
+            this.start = start;
+            this.end = end;
+            return this;
+        }
+
+        int parseInt() {
+            return Integer.parseInt(this, 0, length(), 10);
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (data.get(start + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return toString().subSequence(from, to);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length()];
+            data.get(start, bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    // Report text per result code, indexed by code + PARSE_ERRORS.length
+    private static byte[][] resultLines() {
+        LedgerResult[] values = LedgerResult.values();
+        byte[][] lines = new byte[PARSE_ERRORS.length + 1 + values.length][];
+        for (int i = 0; i < PARSE_ERRORS.length; i++) {
+            lines[PARSE_ERRORS.length - 1 - i] = ascii("MALFORMED," + PARSE_ERRORS[i] + "\n");
+        }
+        for (LedgerResult result : values) {
+            lines[PARSE_ERRORS.length + 1 + result.ordinal()] = ascii(result.name() + "," + result.getMessage() + "\n");
+        }
+        return lines;
+    }
+
+    /** Returns the offset just past the first line break at or after {@code position}. */
+    private static long lineStart(FileChannel in, long position) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(4096);
+        long size = in.size();
+        for (long base = position - 1; base < size; base += block.limit()) {
+            block.clear();
+            if (in.read(block, base) < 0) {
+                break;
+            }
+            block.flip();
+            for (int i = 0; i < block.limit(); i++) {
+                if (block.get(i) == '\n') {
+                    return base + i + 1;
+                }
+            }
+        }
+        return size;
+    }
+
+    private static void runAll(ExecutorService pool, List<Callable<Void>> tasks) throws IOException {
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch import interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void put(ByteBuffer buffer, FileChannel out, byte[] bytes) throws IOException {
+        if (buffer.remaining() < bytes.length) {
+            drain(buffer, out);
+        }
+        buffer.put(bytes);
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void putLong(ByteBuffer buffer, long value) {
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int end = buffer.position() + digits;
+        for (int i = end - 1; i >= buffer.position(); i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
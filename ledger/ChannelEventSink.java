@@ -0,0 +1,117 @@
+package ledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link LedgerEventHandler} that writes each event as one ASCII line to a
+ * file or a socket:
+ *
+ * <pre>
+ * sequence,lsn,type,timeMillis,account,counterparty,amount,balance,counterpartyBalance
+ * </pre>
+ *
+ * Lines are encoded straight into a direct buffer that is written once per
+ * batch (or when full), so a busy stream costs one write call per batch and
+ * no allocation per event.
+ */
+public final class ChannelEventSink implements LedgerEventHandler, Closeable {
+    private static final int BUFFER = 64 << 10;
+    // Nine fields of at most 20 characters plus separators
+    private static final int MAX_LINE = 9 * 21;
+    private static final byte[][] TYPE_NAMES = typeNames();
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+    private final byte[] digits = new byte[20];
+
+    private ChannelEventSink(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /** Appends to {@code path}, creating it if needed. */
+    public static ChannelEventSink toFile(Path path) throws IOException {
+        return new ChannelEventSink(FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    }
+
+    /** Streams to a downstream service listening on {@code address}. */
+    public static ChannelEventSink toSocket(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return new ChannelEventSink(channel);
+    }
+
+    @Override
+    public void onEvent(LedgerEvent event, boolean endOfBatch) throws IOException {
+        if (buffer.remaining() < MAX_LINE) {
+            flush();
+        }
+        putLong(event.sequence).put((byte) ',');
+        putLong(event.lsn).put((byte) ',');
+        buffer.put(TYPE_NAMES[event.type.ordinal()]).put((byte) ',');
+        putLong(event.timeMillis).put((byte) ',');
+        putLong(event.accountId).put((byte) ',');
+        putLong(event.counterparty).put((byte) ',');
+        putLong(event.amount).put((byte) ',');
+        putLong(event.balance).put((byte) ',');
+        putLong(event.counterpartyBalance).put((byte) '\n');
+        if (endOfBatch) {
+            flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private ByteBuffer putLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            for (char c : Long.toString(value).toCharArray()) {
+                buffer.put((byte) c);
+            }
+            return buffer;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        return buffer.put(digits, i, digits.length - i);
+    }
+
+    private static byte[][] typeNames() {
+        LedgerEvent.Type[] types = LedgerEvent.Type.values();
+        byte[][] names = new byte[types.length][];
+        for (LedgerEvent.Type type : types) {
+            names[type.ordinal()] = type.name().getBytes(StandardCharsets.US_ASCII);
+        }
+        return names;
+    }
+}
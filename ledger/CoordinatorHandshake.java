@@ -0,0 +1,93 @@
+package ledger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Mutual challenge-response run before any frame on a shard's coordinator
+ * port (see {@link LedgerServer}). The shard sends a random nonce; the
+ * coordinator answers with a nonce of its own and an HMAC-SHA256 of both
+ * under the shared secret; the shard checks it and proves itself the same
+ * way. Each proof names its side, so neither can be reflected back, and
+ * fresh nonces keep a recorded exchange from being replayed.
+ */
+final class CoordinatorHandshake {
+    static final int MIN_SECRET_BYTES = 16;
+    private static final int NONCE = 32;
+    private static final int TAG = 32;
+    private static final byte SHARD = 1;
+    private static final byte COORDINATOR = 2;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private CoordinatorHandshake() {
+    }
+
+    /** Shard side: returns once the peer has proved it holds {@code secret}. */
+    static void accept(SocketChannel channel, byte[] secret) throws IOException {
+        byte[] shardNonce = nonce();
+        write(channel, ByteBuffer.wrap(shardNonce));
+        ByteBuffer reply = read(channel, NONCE + TAG);
+        byte[] coordinatorNonce = new byte[NONCE];
+        byte[] proof = new byte[TAG];
+        reply.get(coordinatorNonce).get(proof);
+        if (!MessageDigest.isEqual(proof, tag(secret, COORDINATOR, shardNonce, coordinatorNonce))) {
+            throw new IOException("Coordinator failed to authenticate");
+        }
+        write(channel, ByteBuffer.wrap(tag(secret, SHARD, shardNonce, coordinatorNonce)));
+    }
+
+    /** Coordinator side: returns once the shard has proved it holds {@code secret}. */
+    static void connect(SocketChannel channel, byte[] secret) throws IOException {
+        byte[] shardNonce = new byte[NONCE];
+        read(channel, NONCE).get(shardNonce);
+        byte[] coordinatorNonce = nonce();
+        write(channel, ByteBuffer.allocate(NONCE + TAG).put(coordinatorNonce)
+            .put(tag(secret, COORDINATOR, shardNonce, coordinatorNonce)).flip());
+        byte[] proof = new byte[TAG];
+        read(channel, TAG).get(proof);
+        if (!MessageDigest.isEqual(proof, tag(secret, SHARD, shardNonce, coordinatorNonce))) {
+            throw new IOException("Shard failed to authenticate");
+        }
+    }
+
+    private static byte[] nonce() {
+        byte[] nonce = new byte[NONCE];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    private static byte[] tag(byte[] secret, byte side, byte[] shardNonce, byte[] coordinatorNonce) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(side);
+            mac.update(shardNonce);
+            return mac.doFinal(coordinatorNonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private static ByteBuffer read(SocketChannel channel, int bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed during handshake");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package ledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process feed of every ledger change, for statements, fraud checks and
+ * reporting (see {@link Ledger#setEventStream(EventStream)}).
+ *
+ * <p>Events travel through a ring of preallocated {@link LedgerEvent} slots
+ * in the manner of the LMAX Disruptor. A publisher claims the next sequence
+ * with one atomic increment, fills that slot in place and marks it
+ * published; nothing is allocated and no lock is taken. Each subscribed
+ * {@link LedgerEventHandler} runs on its own thread with its own sequence
+ * and takes every event published since its last pass as one batch. A
+ * publisher that would overwrite a slot some handler has not reached yet
+ * waits for it, so a slow handler slows the ledger down rather than missing
+ * events; a handler that throws is dropped so it cannot stall the ledger
+ * for good.
+ *
+ * <p>An idle handler spins briefly, then yields so publishers sharing its
+ * core can fill a batch, then parks until the next publish wakes it. Waking
+ * costs the publisher one volatile read per handler.
+ */
+public final class EventStream implements Closeable {
+    private static final int SPINS = 100;
+    private static final int YIELDS = SPINS + 100;
+    private static final long PARK_NANOS = 1_000_000;
+    private static final long BACKOFF_NANOS = 1_000;
+
+    private final LedgerEvent[] slots;
+    private final int mask;
+    // The sequence last published into each slot
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final Object subscriptionLock = new Object();
+    private volatile Consumer[] consumers = new Consumer[0];
+    private volatile boolean closed;
+    // Lowest consumer sequence a publisher has seen; racy but only ever too low
+    private long gate = -1;
+
+    /** Creates a stream buffering up to {@code capacity} events, rounded up to a power of two. */
+    public EventStream(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity < 2");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        slots = new LedgerEvent[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new LedgerEvent();
+        }
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Starts delivering events published from now on to {@code handler} on a
+     * daemon thread named after {@code name}. If the handler is
+     * {@link Closeable} it is closed when it stops.
+     */
+    public void subscribe(String name, LedgerEventHandler handler) {
+        synchronized (subscriptionLock) {
+            if (closed) {
+                throw new IllegalStateException("Event stream is closed");
+            }
+            Consumer consumer = new Consumer(handler, claimed.get());
+            Consumer[] grown = Arrays.copyOf(consumers, consumers.length + 1);
+            grown[consumers.length] = consumer;
+            consumers = grown;
+            consumer.thread = new Thread(consumer::run, "ledger-events-" + name);
+            consumer.thread.setDaemon(true);
+            consumer.thread.start();
+        }
+    }
+
+    /**
+     * Stops accepting events, lets every handler finish what was published,
+     * then closes the handlers. Waits up to a minute for them.
+     */
+    @Override
+    public void close() {
+        Consumer[] current;
+        synchronized (subscriptionLock) {
+            closed = true;
+            current = consumers;
+        }
+        for (Consumer consumer : current) {
+            LockSupport.unpark(consumer.thread);
+        }
+        try {
+            for (Consumer consumer : current) {
+                consumer.thread.join(60_000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Publishes one event; the caller holds the ledger locks of the accounts involved. */
+    void publish(LedgerEvent.Type type, long lsn, long timeMillis, int accountId, int counterparty,
+            long amount, long balance, long counterpartyBalance) {
+        if (closed) {
+            return;
+        }
+        long sequence = claim();
+        LedgerEvent event = slots[(int) sequence & mask];
+        event.sequence = sequence;
+        event.lsn = lsn;
+        event.type = type;
+        event.timeMillis = timeMillis;
+        event.accountId = accountId;
+        event.counterparty = counterparty;
+        event.amount = amount;
+        event.balance = balance;
+        event.counterpartyBalance = counterpartyBalance;
+        published.set((int) sequence & mask, sequence);
+        for (Consumer consumer : consumers) {
+            if (consumer.sleeping) {
+                LockSupport.unpark(consumer.thread);
+            }
+        }
+    }
+
+    // Takes the next sequence, waiting while its slot still holds an event some consumer has not read
+    private long claim() {
+        long sequence = claimed.incrementAndGet();
+        long wrap = sequence - slots.length;
+        if (wrap > gate) {
+            long lowest;
+            // Consumers keep draining after close, so this always ends
+            while (wrap > (lowest = lowestConsumed(sequence))) {
+                LockSupport.parkNanos(BACKOFF_NANOS);
+            }
+            gate = lowest;
+        }
+        return sequence;
+    }
+
+    private long lowestConsumed(long sequence) {
+        long lowest = sequence;
+        for (Consumer consumer : consumers) {
+            lowest = Math.min(lowest, consumer.sequence);
+        }
+        return lowest;
+    }
+
+    private void unsubscribe(Consumer consumer) {
+        synchronized (subscriptionLock) {
+            Consumer[] remaining = new Consumer[consumers.length - 1];
+            int i = 0;
+            for (Consumer c : consumers) {
+                if (c != consumer) {
+                    remaining[i++] = c;
+                }
+            }
+            consumers = remaining;
+        }
+    }
+
+    private final class Consumer {
+        final LedgerEventHandler handler;
+        Thread thread;
+        // Last sequence handled; publishers may reuse every slot up to it
+        volatile long sequence;
+        volatile boolean sleeping;
+
+        Consumer(LedgerEventHandler handler, long start) {
+            this.handler = handler;
+            this.sequence = start;
+        }
+
+        void run() {
+            long next = sequence + 1;
+            int idle = 0;
+            try {
+                while (true) {
+                    long available = next - 1;
+                    while (published.get((int) (available + 1) & mask) == available + 1) {
+                        available++;
+                    }
+                    if (available >= next) {
+                        for (long s = next; s <= available; s++) {
+                            handler.onEvent(slots[(int) s & mask], s == available);
+                        }
+                        sequence = available;
+                        next = available + 1;
+                        idle = 0;
+                    } else if (closed && next > claimed.get()) {
+                        return;
+                    } else if (++idle < SPINS) {
+                        Thread.onSpinWait();
+                    } else if (idle < YIELDS) {
+                        Thread.yield();
+                    } else {
+                        // Publishers check sleeping after publishing, so one of us sees the other
+                        sleeping = true;
+                        if (published.get((int) next & mask) != next && !closed) {
+                            LockSupport.parkNanos(PARK_NANOS);
+                        }
+                        sleeping = false;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                unsubscribe(this);
+                closeHandler();
+            }
+        }
+
+        private void closeHandler() {
+            if (handler instanceof Closeable) {
+                try {
+                    ((Closeable) handler).close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ledger;
+
+/**
+ * Reusable buffer for a run of history entries, filled by
+ * {@link Ledger#readHistory(int, int, HistoryPage)} (or, for only the
+ * entries matching a {@link HistoryQuery}, its query form) without
+ * materializing a {@link Transaction} per entry.
+ */
+public final class HistoryPage {
+    final long[] times;
+    final long[] amounts;
+    final int[] counterparties;
+    final TransactionType[] types;
+    int first;
+    int size;
+
+    public HistoryPage(int capacity) {
+        times = new long[capacity];
+        amounts = new long[capacity];
+        counterparties = new int[capacity];
+        types = new TransactionType[capacity];
+    }
+
+    public int capacity() {
+        return times.length;
+    }
+
+    /** Index in the account's history (or among a query's matches) of the first entry in this page. */
+    public int first() {
+        return first;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long timeMillis(int i) {
+        return times[i];
+    }
+
+    public long amount(int i) {
+        return amounts[i];
+    }
+
+    public int counterparty(int i) {
+        return counterparties[i];
+    }
+
+    public TransactionType type(int i) {
+        return types[i];
+    }
+
+    /** Returns the customer-facing label of entry {@code i}, e.g. {@code "Transfer to 1002"}. */
+    public String label(int i) {
+        TransactionType type = types[i];
+        return type.isTransfer() ? type.getLabel() + counterparties[i] : type.getLabel();
+    }
+}
@@ -0,0 +1,77 @@
+package ledger;
+
+/**
+ * Filter over one account's history: a time range, a set of
+ * {@link TransactionType}s and optionally a counterparty. The default query
+ * matches everything; for example
+ * {@code new HistoryQuery().since(now - 30 days).types(TransactionType.WITHDRAWAL)}
+ * selects the last month's withdrawals.
+ *
+ * <p>Time and type filters are answered from indexes (timestamps never
+ * decrease, and every account keeps per-chunk running counts and totals by
+ * type), so counting, summing and paging cost O(log n) however long the
+ * history is. A counterparty filter is answered from a list of that
+ * counterparty's entries, so it costs O(log n) plus one read per entry with
+ * that counterparty in range.
+ */
+public final class HistoryQuery {
+    static final int ALL_TYPES = (1 << TransactionType.values().length) - 1;
+
+    private long sinceMillis = Long.MIN_VALUE;
+    private long untilMillis = Long.MAX_VALUE;
+    private int typeMask = ALL_TYPES;
+    private boolean anyCounterparty = true;
+    private int counterparty;
+
+    /** Keeps entries at or after {@code millis}. */
+    public HistoryQuery since(long millis) {
+        this.sinceMillis = millis;
+        return this;
+    }
+
+    /** Keeps entries before {@code millis}. */
+    public HistoryQuery until(long millis) {
+        this.untilMillis = millis;
+        return this;
+    }
+
+    /** Keeps only entries of the given types. */
+    public HistoryQuery types(TransactionType... types) {
+        if (types.length == 0) {
+            throw new IllegalArgumentException("No transaction types");
+        }
+        int mask = 0;
+        for (TransactionType type : types) {
+            mask |= 1 << type.ordinal();
+        }
+        this.typeMask = mask;
+        return this;
+    }
+
+    /** Keeps only transfers to or from {@code accountId}. */
+    public HistoryQuery counterparty(int accountId) {
+        this.anyCounterparty = false;
+        this.counterparty = accountId;
+        return this;
+    }
+
+    public long getSinceMillis() { return sinceMillis; }
+    public long getUntilMillis() { return untilMillis; }
+    public boolean includes(TransactionType type) { return (typeMask & 1 << type.ordinal()) != 0; }
+    public boolean hasCounterparty() { return !anyCounterparty; }
+    public int getCounterparty() { return counterparty; }
+
+    int typeMask() {
+        return typeMask;
+    }
+
+    HistoryQuery typeMask(int mask) {
+        this.typeMask = mask & ALL_TYPES;
+        return this;
+    }
+
+    /** True if only the time range narrows the query, so index arithmetic alone answers it. */
+    boolean isTimeRangeOnly() {
+        return typeMask == ALL_TYPES && anyCounterparty;
+    }
+}
@@ -0,0 +1,516 @@
+package ledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Append-only, columnar transaction history.
+ *
+ * <p>Entries are packed into fixed chunks of {@value #CHUNK} per account. A
+ * chunk holds four columns back to back: epoch-millis {@code long}s, amount
+ * {@code long}s, counterparty {@code int}s and type-code bytes, i.e. 21 bytes
+ * per entry with no per-entry objects. Each account keeps a directory of its
+ * chunk ids, so entry {@code i} is found without walking anything, and its
+ * timestamps never decrease, so time ranges are located by binary search.
+ *
+ * <p>Once an account is first queried it also keeps a summary per chunk
+ * boundary: for each {@link TransactionType}, how many entries precede the
+ * boundary and what their amounts add up to. Counts and totals of any type
+ * set over any index range then need two lookups plus a partial chunk, the
+ * n-th entry of a type set is found by binary search over the boundaries,
+ * and chunks holding none of a wanted type are skipped without reading them.
+ * An account first queried by counterparty likewise keeps, per counterparty,
+ * the ascending indexes of its entries, so such a query reads only that
+ * counterparty's entries. Summaries and postings are derived data and are
+ * rebuilt on demand after a restart.
+ *
+ * <p>Chunks live in pages that are either heap buffers (memory-only ledger)
+ * or memory-mapped windows of a history file, which lets the OS page cold
+ * history out to disk. Entries below an account's size never change, so a
+ * snapshot only needs the directory and size after {@link #force()}.
+ *
+ * <p>Appends and reads of one account must be serialized by the caller (the
+ * ledger's stripe locks); chunk and page allocation is synchronized here.
+ */
+final class HistoryStore implements Closeable {
+    static final int CHUNK_SHIFT = 5;
+    static final int CHUNK = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK - 1;
+    private static final int AMOUNTS = CHUNK * 8;
+    private static final int COUNTERPARTIES = AMOUNTS + CHUNK * 8;
+    private static final int TYPES = COUNTERPARTIES + CHUNK * 4;
+    static final int CHUNK_BYTES = TYPES + CHUNK;
+    private static final int PAGE_CHUNK_SHIFT = 12;
+    private static final int PAGE_CHUNK_MASK = (1 << PAGE_CHUNK_SHIFT) - 1;
+    private static final long PAGE_BYTES = (long) CHUNK_BYTES << PAGE_CHUNK_SHIFT;
+    private static final int[] NO_CHUNKS = new int[0];
+    private static final int TYPE_COUNT = TransactionType.values().length;
+    // Longs per boundary in a summary: per type the preceding count, then the preceding amount total
+    private static final int SUMMARY = 2 * TYPE_COUNT;
+
+    /** Ascending indexes of one account's entries with one counterparty. */
+    private static final class Postings {
+        int[] indexes = new int[4];
+        int size;
+
+        void add(int index) {
+            if (size == indexes.length) {
+                indexes = Arrays.copyOf(indexes, size * 2);
+            }
+            indexes[size++] = index;
+        }
+
+        // Position of the first index at or after index
+        int find(int index) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (indexes[mid] < index) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final FileChannel file;
+    private final Object allocationLock = new Object();
+
+    // Grown copy-on-write under allocationLock
+    private ByteBuffer[] pages = new ByteBuffer[0];
+    private int[][][] directoryPages = new int[0][][];
+    private int[][] sizePages = new int[0][];
+    private long[][][] summaryPages = new long[0][][];
+    private Object[][] postingPages = new Object[0][];
+    private int chunkCount;
+
+    private HistoryStore(FileChannel file) {
+        this.file = file;
+    }
+
+    static HistoryStore inMemory() {
+        return new HistoryStore(null);
+    }
+
+    /** Opens a history store whose pages are mapped from {@code path}. */
+    static HistoryStore open(Path path) throws IOException {
+        return new HistoryStore(FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    /** Makes room for a newly registered account; must precede its first append. */
+    void addAccount(int ordinal) {
+        int page = ordinal >>> AccountStore.PAGE_SHIFT;
+        synchronized (allocationLock) {
+            while (sizePages.length <= page) {
+                int count = sizePages.length + 1;
+                int[][][] directories = Arrays.copyOf(directoryPages, count);
+                int[][] sizes = Arrays.copyOf(sizePages, count);
+                long[][][] summaries = Arrays.copyOf(summaryPages, count);
+                Object[][] postings = Arrays.copyOf(postingPages, count);
+                directories[count - 1] = new int[AccountStore.PAGE_SIZE][];
+                sizes[count - 1] = new int[AccountStore.PAGE_SIZE];
+                summaries[count - 1] = new long[AccountStore.PAGE_SIZE][];
+                postings[count - 1] = new Object[AccountStore.PAGE_SIZE];
+                directoryPages = directories;
+                sizePages = sizes;
+                summaryPages = summaries;
+                postingPages = postings;
+            }
+        }
+    }
+
+    void append(int ordinal, TransactionType type, long amount, long timeMillis, int counterparty) {
+        int[] sizes = sizePages[ordinal >>> AccountStore.PAGE_SHIFT];
+        int slot = ordinal & AccountStore.PAGE_MASK;
+        int index = sizes[slot];
+        if (index > 0) {
+            timeMillis = Math.max(timeMillis, time(ordinal, index - 1));
+        }
+        int[][] directories = directoryPages[ordinal >>> AccountStore.PAGE_SHIFT];
+        int[] directory = directories[slot];
+        int offset = index & CHUNK_MASK;
+        if (offset == 0) {
+            int chunks = index >>> CHUNK_SHIFT;
+            if (directory == null || chunks == directory.length) {
+                directory = Arrays.copyOf(directory == null ? NO_CHUNKS : directory, Math.max(2, chunks * 2));
+                directories[slot] = directory;
+            }
+            directory[chunks] = allocateChunk();
+        }
+        int chunk = directory[index >>> CHUNK_SHIFT];
+        ByteBuffer page = pages[chunk >>> PAGE_CHUNK_SHIFT];
+        int base = (chunk & PAGE_CHUNK_MASK) * CHUNK_BYTES;
+        page.putLong(base + offset * 8, timeMillis);
+        page.putLong(base + AMOUNTS + offset * 8, amount);
+        page.putInt(base + COUNTERPARTIES + offset * 4, counterparty);
+        page.put(base + TYPES + offset, type.code());
+        sizes[slot] = index + 1;
+        HashMap<Integer, Postings> postings = postingsIfBuilt(ordinal);
+        if (postings != null) {
+            postings.computeIfAbsent(counterparty, c -> new Postings()).add(index);
+        }
+        if (offset == CHUNK_MASK) {
+            long[][] summaries = summaryPages[ordinal >>> AccountStore.PAGE_SHIFT];
+            if (summaries[slot] != null) {
+                summaries[slot] = summarize(ordinal, summaries[slot], (index >>> CHUNK_SHIFT) + 1);
+            }
+        }
+    }
+
+    int size(int ordinal) {
+        int page = ordinal >>> AccountStore.PAGE_SHIFT;
+        int[][] sizes = sizePages;
+        return page < sizes.length ? sizes[page][ordinal & AccountStore.PAGE_MASK] : 0;
+    }
+
+    long time(int ordinal, int index) {
+        return page(ordinal, index).getLong(base(ordinal, index) + (index & CHUNK_MASK) * 8);
+    }
+
+    long amount(int ordinal, int index) {
+        return page(ordinal, index).getLong(base(ordinal, index) + AMOUNTS + (index & CHUNK_MASK) * 8);
+    }
+
+    int counterparty(int ordinal, int index) {
+        return page(ordinal, index).getInt(base(ordinal, index) + COUNTERPARTIES + (index & CHUNK_MASK) * 4);
+    }
+
+    TransactionType type(int ordinal, int index) {
+        return TransactionType.of(typeCode(ordinal, index));
+    }
+
+    Transaction get(int ordinal, int index) {
+        return new Transaction(type(ordinal, index), amount(ordinal, index), time(ordinal, index),
+            counterparty(ordinal, index));
+    }
+
+    /** Returns the index of the first entry at or after {@code timeMillis}, or the size if there is none. */
+    int firstIndexAtOrAfter(int ordinal, long timeMillis) {
+        int low = 0;
+        int high = size(ordinal);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (time(ordinal, mid) < timeMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns how many entries in {@code [from, to)} match {@code query}'s
+     * types and counterparty, or the sum of their amounts if {@code amounts}.
+     */
+    long aggregate(int ordinal, HistoryQuery query, int from, int to, boolean amounts) {
+        if (from >= to) {
+            return 0;
+        }
+        if (!amounts && query.isTimeRangeOnly()) {
+            return to - from;
+        }
+        if (!query.hasCounterparty()) {
+            int mask = query.typeMask();
+            return prefix(ordinal, mask, to, amounts) - prefix(ordinal, mask, from, amounts);
+        }
+        Postings postings = postings(ordinal).get(query.getCounterparty());
+        if (postings == null) {
+            return 0;
+        }
+        int mask = query.typeMask();
+        long total = 0;
+        for (int at = postings.find(from); at < postings.size && postings.indexes[at] < to; at++) {
+            int index = postings.indexes[at];
+            if ((mask & 1 << typeCode(ordinal, index)) != 0) {
+                total += amounts ? amount(ordinal, index) : 1;
+            }
+        }
+        return total;
+    }
+
+    /** Returns the index of the first entry in {@code [index, to)} matching {@code query}, or {@code to}. */
+    int nextMatch(int ordinal, HistoryQuery query, int index, int to) {
+        if (query.isTimeRangeOnly()) {
+            return Math.min(index, to);
+        }
+        if (query.hasCounterparty()) {
+            return nextPosting(ordinal, query, index, to);
+        }
+        long[] summary = summary(ordinal);
+        int mask = query.typeMask();
+        while (index < to) {
+            if ((index & CHUNK_MASK) == 0 && index + CHUNK <= to
+                    && count(summary, (index >>> CHUNK_SHIFT) + 1, mask) == count(summary, index >>> CHUNK_SHIFT, mask)) {
+                index += CHUNK;
+                continue;
+            }
+            if ((mask & 1 << typeCode(ordinal, index)) != 0) {
+                return index;
+            }
+            index++;
+        }
+        return to;
+    }
+
+    /**
+     * Returns the index of the {@code rank}-th (from 0) entry in
+     * {@code [from, to)} matching {@code query}, or {@code to} if there are
+     * fewer matches.
+     */
+    int indexOfMatch(int ordinal, HistoryQuery query, int from, int to, long rank) {
+        if (query.isTimeRangeOnly()) {
+            return (int) Math.min(to, from + rank);
+        }
+        if (query.hasCounterparty()) {
+            Postings postings = postings(ordinal).get(query.getCounterparty());
+            if (postings == null) {
+                return to;
+            }
+            int mask = query.typeMask();
+            long seen = 0;
+            for (int at = postings.find(from); at < postings.size && postings.indexes[at] < to; at++) {
+                int index = postings.indexes[at];
+                if ((mask & 1 << typeCode(ordinal, index)) != 0 && seen++ == rank) {
+                    return index;
+                }
+            }
+            return to;
+        }
+        int mask = query.typeMask();
+        long[] summary = summary(ordinal);
+        long target = prefix(ordinal, mask, from, false) + rank;
+        // The last boundary with at most target matches before it starts the chunk holding the match
+        int low = 0;
+        int high = size(ordinal) >>> CHUNK_SHIFT;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (count(summary, mid, mask) <= target) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int index = low << CHUNK_SHIFT;
+        long seen = count(summary, low, mask);
+        if (index < from) {
+            index = from;
+            seen = target - rank;
+        }
+        for (; index < to; index++) {
+            if ((mask & 1 << typeCode(ordinal, index)) != 0) {
+                if (seen == target) {
+                    return index;
+                }
+                seen++;
+            }
+        }
+        return to;
+    }
+
+    // Snapshot support
+
+    int chunkCount() {
+        synchronized (allocationLock) {
+            return chunkCount;
+        }
+    }
+
+    int chunkId(int ordinal, int chunkIndex) {
+        return directoryPages[ordinal >>> AccountStore.PAGE_SHIFT][ordinal & AccountStore.PAGE_MASK][chunkIndex];
+    }
+
+    /** Flushes mapped pages so every entry written so far survives a crash. */
+    void force() {
+        if (file == null) {
+            return;
+        }
+        ByteBuffer[] current;
+        synchronized (allocationLock) {
+            current = pages;
+        }
+        for (ByteBuffer page : current) {
+            ((MappedByteBuffer) page).force();
+        }
+    }
+
+    /** Reinstates an account's directory from a snapshot; later appends overwrite anything past {@code size}. */
+    void restore(int ordinal, int size, int[] chunkIds, int chunks) {
+        addAccount(ordinal);
+        int slot = ordinal & AccountStore.PAGE_MASK;
+        sizePages[ordinal >>> AccountStore.PAGE_SHIFT][slot] = size;
+        summaryPages[ordinal >>> AccountStore.PAGE_SHIFT][slot] = null;
+        postingPages[ordinal >>> AccountStore.PAGE_SHIFT][slot] = null;
+        if (chunks > 0) {
+            directoryPages[ordinal >>> AccountStore.PAGE_SHIFT][slot] = Arrays.copyOf(chunkIds, Math.max(2, chunks));
+        }
+    }
+
+    /** Restores the chunk allocator so chunks written after the snapshot are reused by replay. */
+    void restoreChunkCount(int chunks) {
+        synchronized (allocationLock) {
+            while (pages.length << PAGE_CHUNK_SHIFT < chunks) {
+                addPage();
+            }
+            chunkCount = chunks;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            force();
+            file.close();
+        }
+    }
+
+    private byte typeCode(int ordinal, int index) {
+        return page(ordinal, index).get(base(ordinal, index) + TYPES + (index & CHUNK_MASK));
+    }
+
+    // Matches of the type set before index: the boundary's counts plus the start of its chunk
+    private long prefix(int ordinal, int mask, int index, boolean amounts) {
+        long[] summary = summary(ordinal);
+        int boundary = index >>> CHUNK_SHIFT;
+        int at = boundary * SUMMARY + (amounts ? TYPE_COUNT : 0);
+        long total = 0;
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            if ((mask & 1 << type) != 0) {
+                total += summary[at + type];
+            }
+        }
+        for (int i = boundary << CHUNK_SHIFT; i < index; i++) {
+            if ((mask & 1 << typeCode(ordinal, i)) != 0) {
+                total += amounts ? amount(ordinal, i) : 1;
+            }
+        }
+        return total;
+    }
+
+    private static long count(long[] summary, int boundary, int mask) {
+        long count = 0;
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            if ((mask & 1 << type) != 0) {
+                count += summary[boundary * SUMMARY + type];
+            }
+        }
+        return count;
+    }
+
+    // Built on the account's first query; append keeps it current from then on
+    private long[] summary(int ordinal) {
+        long[][] summaries = summaryPages[ordinal >>> AccountStore.PAGE_SHIFT];
+        int slot = ordinal & AccountStore.PAGE_MASK;
+        long[] summary = summaries[slot];
+        if (summary == null) {
+            int boundaries = size(ordinal) >>> CHUNK_SHIFT;
+            summary = new long[(boundaries + 1) * SUMMARY];
+            for (int boundary = 1; boundary <= boundaries; boundary++) {
+                summary = summarize(ordinal, summary, boundary);
+            }
+            summaries[slot] = summary;
+        }
+        return summary;
+    }
+
+    private int nextPosting(int ordinal, HistoryQuery query, int index, int to) {
+        Postings postings = postings(ordinal).get(query.getCounterparty());
+        if (postings == null) {
+            return to;
+        }
+        int mask = query.typeMask();
+        for (int at = postings.find(index); at < postings.size && postings.indexes[at] < to; at++) {
+            if ((mask & 1 << typeCode(ordinal, postings.indexes[at])) != 0) {
+                return postings.indexes[at];
+            }
+        }
+        return to;
+    }
+
+    @SuppressWarnings("unchecked")
+    private HashMap<Integer, Postings> postingsIfBuilt(int ordinal) {
+        Object[] postings = postingPages[ordinal >>> AccountStore.PAGE_SHIFT];
+        return (HashMap<Integer, Postings>) postings[ordinal & AccountStore.PAGE_MASK];
+    }
+
+    // Built on the account's first counterparty query; append keeps it current from then on
+    private HashMap<Integer, Postings> postings(int ordinal) {
+        HashMap<Integer, Postings> postings = postingsIfBuilt(ordinal);
+        if (postings == null) {
+            postings = new HashMap<>();
+            int size = size(ordinal);
+            for (int index = 0; index < size; index++) {
+                postings.computeIfAbsent(counterparty(ordinal, index), c -> new Postings()).add(index);
+            }
+            postingPages[ordinal >>> AccountStore.PAGE_SHIFT][ordinal & AccountStore.PAGE_MASK] = postings;
+        }
+        return postings;
+    }
+
+    // Fills boundary from the one before it plus the chunk between them
+    private long[] summarize(int ordinal, long[] summary, int boundary) {
+        int at = boundary * SUMMARY;
+        if (summary.length < at + SUMMARY) {
+            summary = Arrays.copyOf(summary, Math.max(summary.length * 2, at + SUMMARY));
+        }
+        System.arraycopy(summary, at - SUMMARY, summary, at, SUMMARY);
+        int chunk = chunkId(ordinal, boundary - 1);
+        ByteBuffer page = pages[chunk >>> PAGE_CHUNK_SHIFT];
+        int base = (chunk & PAGE_CHUNK_MASK) * CHUNK_BYTES;
+        for (int i = 0; i < CHUNK; i++) {
+            int type = page.get(base + TYPES + i);
+            summary[at + type]++;
+            summary[at + TYPE_COUNT + type] += page.getLong(base + AMOUNTS + i * 8);
+        }
+        return summary;
+    }
+
+    private ByteBuffer page(int ordinal, int index) {
+        return pages[chunkId(ordinal, index >>> CHUNK_SHIFT) >>> PAGE_CHUNK_SHIFT];
+    }
+
+    private int base(int ordinal, int index) {
+        return (chunkId(ordinal, index >>> CHUNK_SHIFT) & PAGE_CHUNK_MASK) * CHUNK_BYTES;
+    }
+
+    private int allocateChunk() {
+        synchronized (allocationLock) {
+            int chunk = chunkCount;
+            if (chunk >>> PAGE_CHUNK_SHIFT == pages.length) {
+                addPage();
+            }
+            chunkCount = chunk + 1;
+            return chunk;
+        }
+    }
+
+    private void addPage() {
+        ByteBuffer page;
+        if (file == null) {
+            page = ByteBuffer.allocate((int) PAGE_BYTES);
+        } else {
+            try {
+                page = file.map(FileChannel.MapMode.READ_WRITE, pages.length * PAGE_BYTES, PAGE_BYTES);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot map history page " + pages.length, e);
+            }
+        }
+        page.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer[] grown = Arrays.copyOf(pages, pages.length + 1);
+        grown[pages.length] = page;
+        pages = grown;
+    }
+}
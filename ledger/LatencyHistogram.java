@@ -0,0 +1,88 @@
+package ledger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the manner of an
+ * HDR histogram: every power of two is split into {@code SUB_BUCKETS} equal
+ * buckets, so any recorded value is reported within 1/{@code SUB_BUCKETS}
+ * of itself from nanoseconds up to {@code MAX_NANOS}. Recording is a bucket
+ * lookup made of shifts plus two atomic adds, with no locks and no
+ * allocation, so it can stay on in production; readers see a slightly moving
+ * but never torn picture.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // About 18 minutes; slower calls are counted in the top bucket
+    static final long MAX_NANOS = (1L << 40) - 1;
+    private static final int BUCKETS = index(MAX_NANOS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /** Records one call that took {@code nanos}; negative values count as zero. */
+    void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_NANOS);
+        counts.getAndIncrement(index(value));
+        count.increment();
+        totalNanos.add(value);
+        long max = maxNanos.get();
+        while (value > max && !maxNanos.compareAndSet(max, value)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount() { return count.sum(); }
+    public long getTotalNanos() { return totalNanos.sum(); }
+    public long getMaxNanos() { return maxNanos.get(); }
+
+    /**
+     * Returns the latency that {@code quantile} (0 to 1) of the recorded calls
+     * did not exceed, as the upper bound of its bucket, or 0 if nothing has
+     * been recorded.
+     */
+    public long valueAtQuantile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(Math.max(quantile, 0), 1) * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    // Values below SUB_BUCKETS map to themselves; above that, each power of
+    // two starts a new row of SUB_BUCKETS linear buckets.
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> SUB_BITS) - 1;
+        long sub = SUB_BUCKETS + (index & (SUB_BUCKETS - 1));
+        return ((sub + 1) << shift) - 1;
+    }
+}
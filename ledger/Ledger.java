@@ -0,0 +1,1150 @@
+package ledger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless, thread-safe account ledger.
+ *
+ * <p>Accounts live in a primitive {@link AccountStore} and their histories in
+ * a columnar {@link HistoryStore}; balance and history mutations are guarded
+ * by a fixed array of striped monitors selected from the account id, so
+ * unrelated accounts never contend on a shared lock. All amounts are in
+ * cents (see {@link Money}).
+ *
+ * <p>A ledger created with {@link #open(Path, LogOptions)} writes every
+ * mutation to a {@link WriteAheadLog} while still holding the account locks,
+ * so the log order matches the order changes were applied, and rebuilds its
+ * state by replaying that log. Callers wait for durability only after the
+ * locks are released, letting concurrent operations share one sync.
+ * {@link #snapshot()} writes a {@link Snapshot} at a consistent LSN and
+ * truncates the log it covers; startup loads the newest snapshot and replays
+ * only the log written after it.
+ *
+ * <p>PINs are stored only as salted {@link PinHash}es. Hashing and
+ * verification are deliberately slow, so they run on the bounded pool of an
+ * {@link Authenticator} that also rate-limits attempts and remembers recent
+ * successful logins.
+ *
+ * <p>Every registration, login and money movement is counted by outcome and
+ * timed in {@link #metrics()}. Withdrawals and outgoing transfers can be
+ * capped per day and per rolling window with
+ * {@link #setWithdrawalLimits(WithdrawalLimits)}, and every change can be
+ * fed to downstream consumers through an {@link EventStream}.
+ *
+ * <p>A deposit, withdrawal or transfer made with an operation id is applied
+ * at most once per id and account: a retry after a lost reply answers
+ * {@link LedgerResult#OK} without moving money again, and one whose kind,
+ * counterparty or amount differ is refused as
+ * {@link LedgerResult#OPERATION_MISMATCH}. Recent ids are kept in a bounded
+ * {@link OperationIds} table, written to the log with each record and to
+ * snapshots, so a retry is recognised across a restart too. A ledger serving
+ * as one shard of a {@link ShardedLedger} keeps the steps of transfers
+ * between shards in a {@link TransferSteps} table instead, which never
+ * forgets one.
+ */
+public final class Ledger implements LedgerService {
+    /** Returned by {@link #balance(int)} for an unknown account. */
+    public static final long NO_BALANCE = Long.MIN_VALUE;
+
+    private static final int STRIPES = 1024;
+    private static final int OPTIMISTIC_READS = 3;
+    private static final String LOCK_FILE = "ledger.lock";
+    private static final HistoryQuery CREDITS = new HistoryQuery().types(TransactionType.DEPOSIT,
+        TransactionType.TRANSFER_IN, TransactionType.REFUND);
+    private static final HistoryQuery DEBITS = new HistoryQuery().types(TransactionType.WITHDRAWAL,
+        TransactionType.TRANSFER_OUT);
+    private static final HistoryQuery ALL = new HistoryQuery();
+
+    private final AccountStore store;
+    private final HistoryStore history;
+    private final Path dir;
+    private final WriteAheadLog log;
+    // Held open for the ledger's lifetime; closing it releases the directory lock
+    private final FileChannel dirLock;
+    private final Object[] locks = new Object[STRIPES];
+    private final Object snapshotLock = new Object();
+    private final ScheduledExecutorService snapshotter;
+    private final Authenticator authenticator = new Authenticator();
+    private final LedgerMetrics metrics;
+    private final OperationIds operations;
+    private final TransferSteps steps;
+    // Null while no withdrawal limits are set
+    private volatile VelocityTracker velocity;
+    // Null while no one is listening
+    private volatile EventStream events;
+
+    /** Creates an empty, memory-only ledger. */
+    public Ledger() {
+        this(new AccountStore(), HistoryStore.inMemory(), new OperationIds(), new TransferSteps(), null, null, null, 0);
+    }
+
+    private Ledger(AccountStore store, HistoryStore history, OperationIds operations, TransferSteps steps, Path dir,
+            WriteAheadLog log, FileChannel dirLock, long snapshotIntervalSeconds) {
+        this.store = store;
+        this.history = history;
+        this.operations = operations;
+        this.steps = steps;
+        this.dir = dir;
+        this.log = log;
+        this.dirLock = dirLock;
+        this.metrics = new LedgerMetrics(store::size, this::historyEntries);
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        if (snapshotIntervalSeconds > 0) {
+            snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ledger-snapshotter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotter.scheduleWithFixedDelay(this::backgroundSnapshot,
+                snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        } else {
+            snapshotter = null;
+        }
+    }
+
+    /**
+     * Opens (or creates) a persistent ledger in {@code dir}: loads the newest
+     * snapshot, then replays the transaction log written after it.
+     *
+     * <p>The directory is locked until {@link #close()}, so a second process
+     * (a batch or statement job next to a running server, say) fails here
+     * instead of replaying a log that is still being written.
+     *
+     * @throws IOException if another ledger has {@code dir} open, or it
+     *         cannot be read
+     */
+    public static Ledger open(Path dir, LogOptions options) throws IOException {
+        Files.createDirectories(dir);
+        FileChannel dirLock = lock(dir.resolve(LOCK_FILE));
+        try {
+            AccountStore store = new AccountStore();
+            HistoryStore history = HistoryStore.open(dir.resolve("history.dat"));
+            OperationIds operations = new OperationIds();
+            TransferSteps steps = new TransferSteps();
+            long snapshotLsn = Snapshot.load(dir, store, history, operations, steps);
+            WriteAheadLog log = WriteAheadLog.open(dir, options, snapshotLsn,
+                (type, time, accountId, counterparty, amount, operationId, credential) -> replay(store, history,
+                    operations, steps, type, time, accountId, counterparty, amount, operationId, credential));
+            return new Ledger(store, history, operations, steps, dir, log, dirLock,
+                options.getSnapshotIntervalSeconds());
+        } catch (IOException | RuntimeException e) {
+            dirLock.close();
+            throw e;
+        }
+    }
+
+    // Takes an exclusive lock on the file, which the operating system drops if this process dies
+    static FileChannel lock(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Directory " + file.getParent() + " is already in use");
+        }
+        return channel;
+    }
+
+    /**
+     * Registers an account, hashing {@code pin} on the verification pool
+     * first; completes with {@link LedgerResult#BUSY} if that pool is
+     * saturated.
+     */
+    public CompletableFuture<LedgerResult> registerAsync(int accountId, int pin, long initialDeposit) {
+        return registerAsync(false, 0, accountId, pin, initialDeposit);
+    }
+
+    /**
+     * Like {@link #registerAsync(int, int, long)} for a registration made at
+     * {@code terminalId}, which is charged to the terminal's login limit
+     * before the PIN is hashed; completes with
+     * {@link LedgerResult#TOO_MANY_ATTEMPTS} once the terminal is over its
+     * rate.
+     */
+    public CompletableFuture<LedgerResult> registerAsync(int terminalId, int accountId, int pin, long initialDeposit) {
+        return registerAsync(true, terminalId, accountId, pin, initialDeposit);
+    }
+
+    private CompletableFuture<LedgerResult> registerAsync(boolean limited, int terminalId, int accountId, int pin,
+            long initialDeposit) {
+        long start = System.nanoTime();
+        if (initialDeposit < 0) {
+            return CompletableFuture.completedFuture(metrics.count(Operation.REGISTER, LedgerResult.INVALID_AMOUNT));
+        }
+        // Charged before the existence check too, so registering cannot probe for ids faster than logging in
+        if (limited && !authenticator.admit(terminalId)) {
+            return CompletableFuture.completedFuture(metrics.count(Operation.REGISTER, LedgerResult.TOO_MANY_ATTEMPTS));
+        }
+        // Cheap early rejection; insert re-checks under the lock
+        if (store.find(accountId) >= 0) {
+            return CompletableFuture.completedFuture(metrics.count(Operation.REGISTER, LedgerResult.ACCOUNT_EXISTS));
+        }
+        return authenticator.hash(pin).thenApply(credential -> metrics.record(Operation.REGISTER,
+            credential == null ? LedgerResult.BUSY : insert(accountId, credential, initialDeposit), start));
+    }
+
+    /** Blocking form of {@link #registerAsync(int, int, long)}. */
+    @Override
+    public LedgerResult register(int accountId, int pin, long initialDeposit) {
+        return registerAsync(accountId, pin, initialDeposit).join();
+    }
+
+    /** Registers an account whose PIN has already been hashed. */
+    public LedgerResult register(int accountId, PinHash credential, long initialDeposit) {
+        long start = System.nanoTime();
+        return metrics.record(Operation.REGISTER, insert(accountId, credential, initialDeposit), start);
+    }
+
+    private LedgerResult insert(int accountId, PinHash credential, long initialDeposit) {
+        if (initialDeposit < 0) {
+            return LedgerResult.INVALID_AMOUNT;
+        }
+        long lsn;
+        synchronized (lockFor(accountId)) {
+            if (store.find(accountId) >= 0) {
+                return LedgerResult.ACCOUNT_EXISTS;
+            }
+            long now = System.currentTimeMillis();
+            lsn = log(WriteAheadLog.REGISTER, now, accountId, 0, initialDeposit, OperationIds.NONE, credential);
+            history.addAccount(store.insert(accountId, credential, initialDeposit, now));
+            publish(LedgerEvent.Type.REGISTER, lsn, now, accountId, 0, initialDeposit, initialDeposit, 0);
+        }
+        awaitDurable(lsn);
+        return LedgerResult.OK;
+    }
+
+    /**
+     * Verifies a PIN entered at {@code terminalId}. Completes with
+     * {@link LedgerResult#OK}, {@link LedgerResult#INVALID_CREDENTIALS},
+     * {@link LedgerResult#TOO_MANY_ATTEMPTS} once the terminal or account is
+     * over its attempt rate, or {@link LedgerResult#BUSY} if the verification
+     * pool is saturated.
+     */
+    public CompletableFuture<LedgerResult> authenticateAsync(int terminalId, int accountId, int pin) {
+        long start = System.nanoTime();
+        int ordinal = store.find(accountId);
+        PinHash stored = ordinal < 0 ? null : store.credential(ordinal);
+        return authenticator.verify(terminalId, accountId, ordinal, stored, pin)
+            .thenApply(result -> metrics.record(Operation.LOGIN, result, start));
+    }
+
+    /** Blocking form of {@link #authenticateAsync(int, int, int)}. */
+    public LedgerResult authenticate(int terminalId, int accountId, int pin) {
+        return authenticateAsync(terminalId, accountId, pin).join();
+    }
+
+    /**
+     * Verifies the PIN like {@link #authenticateAsync(int, int, int)} and
+     * opens a {@link Session} on success; a refused login completes with a
+     * closed session whose {@link Session#getResult()} says why.
+     */
+    public CompletableFuture<Session> loginAsync(int terminalId, int accountId, int pin) {
+        return authenticateAsync(terminalId, accountId, pin).thenApply(result -> result.isOk()
+            ? new Session(terminalId, accountId, store.find(accountId))
+            : Session.refused(terminalId, accountId, result));
+    }
+
+    /** Blocking form of {@link #loginAsync(int, int, int)}. */
+    @Override
+    public Session login(int terminalId, int accountId, int pin) {
+        return loginAsync(terminalId, accountId, pin).join();
+    }
+
+    @Override
+    public void logout(Session session) {
+        session.close();
+    }
+
+    @Override
+    public boolean exists(int accountId) {
+        return store.find(accountId) >= 0;
+    }
+
+    public int accountCount() {
+        return store.size();
+    }
+
+    /**
+     * Enforces {@code limits} on every later withdrawal and outgoing
+     * transfer, or lifts all limits if {@code null}. Each account's usage so
+     * far today and within the window is taken from its history.
+     */
+    public void setWithdrawalLimits(WithdrawalLimits limits) {
+        velocity = limits == null ? null : new VelocityTracker(history, limits);
+    }
+
+    /**
+     * Limits later login attempts per terminal and per account to
+     * {@code limits}; {@code new LoginLimits()} restores the defaults.
+     * Attempts made so far are forgotten.
+     */
+    public void setLoginLimits(LoginLimits limits) {
+        authenticator.setLimits(limits);
+    }
+
+    /**
+     * Publishes every later registration, deposit, withdrawal and transfer to
+     * {@code stream}, or stops publishing if {@code null}. Events are
+     * published while the accounts involved are still locked, so each
+     * account's events arrive in the order its changes were applied. Changes
+     * replayed from the log at startup are not published.
+     */
+    public void setEventStream(EventStream stream) {
+        events = stream;
+    }
+
+    /** Returns this ledger's counters, latency histograms and gauges. */
+    public LedgerMetrics metrics() {
+        return metrics;
+    }
+
+    /** Returns the current balance, or {@link #NO_BALANCE} if the account does not exist. */
+    public long balance(int accountId) {
+        int ordinal = store.find(accountId);
+        if (ordinal < 0) {
+            return NO_BALANCE;
+        }
+        synchronized (lockFor(accountId)) {
+            return store.balance(ordinal);
+        }
+    }
+
+    /**
+     * Returns the session's balance, or {@link #NO_BALANCE} if the session has
+     * expired. Reads without locking: if the account's version stamp still
+     * matches the session's last read, the remembered balance is returned;
+     * otherwise the balance is read optimistically and validated against the
+     * stamp, falling back to the stripe lock only if writers keep racing it.
+     */
+    @Override
+    public long balance(Session session) {
+        if (!session.touch()) {
+            return NO_BALANCE;
+        }
+        int ordinal = session.ordinal;
+        for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+            long stamp = store.version(ordinal);
+            if (stamp == session.seenVersion) {
+                return session.seenBalance;
+            }
+            long balance = store.balance(ordinal);
+            if (store.validate(ordinal, stamp)) {
+                session.seenVersion = stamp;
+                session.seenBalance = balance;
+                return balance;
+            }
+            Thread.onSpinWait();
+        }
+        synchronized (lockFor(session.accountId)) {
+            session.seenVersion = store.version(ordinal);
+            session.seenBalance = store.balance(ordinal);
+            return session.seenBalance;
+        }
+    }
+
+    public LedgerResult deposit(int accountId, long amount) {
+        return deposit(accountId, store.find(accountId), amount, OperationIds.NONE);
+    }
+
+    @Override
+    public LedgerResult deposit(Session session, long amount) {
+        return deposit(session, amount, OperationIds.NONE);
+    }
+
+    /**
+     * Deposits at most once per {@code operationId}: a repeat answers
+     * {@link LedgerResult#OK} once the first is durable. An id of 0 is no id.
+     */
+    @Override
+    public LedgerResult deposit(Session session, long amount, long operationId) {
+        return session.touch()
+            ? deposit(session.accountId, session.ordinal, amount, operationId)
+            : metrics.count(Operation.DEPOSIT, LedgerResult.SESSION_EXPIRED);
+    }
+
+    private LedgerResult deposit(int accountId, int ordinal, long amount, long operationId) {
+        long start = System.nanoTime();
+        return metrics.record(Operation.DEPOSIT, applyDeposit(accountId, ordinal, amount, operationId), start);
+    }
+
+    private LedgerResult applyDeposit(int accountId, int ordinal, long amount, long operationId) {
+        if (!isValidAmount(amount)) {
+            return LedgerResult.INVALID_AMOUNT;
+        }
+        if (ordinal < 0) {
+            return LedgerResult.ACCOUNT_NOT_FOUND;
+        }
+        long lsn;
+        synchronized (lockFor(accountId)) {
+            long now = System.currentTimeMillis();
+            LedgerResult repeat = repeatOf(accountId, operationId, now, WriteAheadLog.DEPOSIT, 0, amount);
+            if (repeat == LedgerResult.OK) {
+                lsn = appendedLsn();
+            } else if (repeat != null) {
+                return repeat;
+            } else if (!canCredit(store, ordinal, amount)) {
+                return LedgerResult.INVALID_AMOUNT;
+            } else {
+                lsn = log(WriteAheadLog.DEPOSIT, now, accountId, 0, amount, operationId, null);
+                history.append(ordinal, TransactionType.DEPOSIT, amount, now, 0);
+                store.addBalance(ordinal, amount);
+                remember(accountId, operationId, now, WriteAheadLog.DEPOSIT, 0, amount);
+                publish(LedgerEvent.Type.DEPOSIT, lsn, now, accountId, 0, amount, store.balance(ordinal), 0);
+            }
+        }
+        awaitDurable(lsn);
+        return LedgerResult.OK;
+    }
+
+    public LedgerResult withdraw(int accountId, long amount) {
+        return withdraw(accountId, store.find(accountId), amount, OperationIds.NONE);
+    }
+
+    @Override
+    public LedgerResult withdraw(Session session, long amount) {
+        return withdraw(session, amount, OperationIds.NONE);
+    }
+
+    /** Withdraws at most once per {@code operationId}, like {@link #deposit(Session, long, long)}. */
+    @Override
+    public LedgerResult withdraw(Session session, long amount, long operationId) {
+        return session.touch()
+            ? withdraw(session.accountId, session.ordinal, amount, operationId)
+            : metrics.count(Operation.WITHDRAW, LedgerResult.SESSION_EXPIRED);
+    }
+
+    private LedgerResult withdraw(int accountId, int ordinal, long amount, long operationId) {
+        long start = System.nanoTime();
+        return metrics.record(Operation.WITHDRAW, applyWithdrawal(accountId, ordinal, amount, operationId), start);
+    }
+
+    private LedgerResult applyWithdrawal(int accountId, int ordinal, long amount, long operationId) {
+        if (!isValidAmount(amount)) {
+            return LedgerResult.INVALID_AMOUNT;
+        }
+        if (ordinal < 0) {
+            return LedgerResult.ACCOUNT_NOT_FOUND;
+        }
+        long lsn;
+        synchronized (lockFor(accountId)) {
+            long now = System.currentTimeMillis();
+            LedgerResult repeat = repeatOf(accountId, operationId, now, WriteAheadLog.WITHDRAW, 0, amount);
+            if (repeat == LedgerResult.OK) {
+                lsn = appendedLsn();
+            } else if (repeat != null) {
+                return repeat;
+            } else {
+                if (amount > store.balance(ordinal)) {
+                    return LedgerResult.INSUFFICIENT_FUNDS;
+                }
+                LedgerResult limit = admitDebit(ordinal, amount, now);
+                if (!limit.isOk()) {
+                    return limit;
+                }
+                lsn = log(WriteAheadLog.WITHDRAW, now, accountId, 0, amount, operationId, null);
+                history.append(ordinal, TransactionType.WITHDRAWAL, -amount, now, 0);
+                store.addBalance(ordinal, -amount);
+                remember(accountId, operationId, now, WriteAheadLog.WITHDRAW, 0, amount);
+                publish(LedgerEvent.Type.WITHDRAWAL, lsn, now, accountId, 0, amount, store.balance(ordinal), 0);
+            }
+        }
+        awaitDurable(lsn);
+        return LedgerResult.OK;
+    }
+
+    public LedgerResult transfer(int fromId, int toId, long amount) {
+        return transfer(fromId, store.find(fromId), toId, amount, OperationIds.NONE);
+    }
+
+    @Override
+    public LedgerResult transfer(Session session, int toId, long amount) {
+        return transfer(session, toId, amount, OperationIds.NONE);
+    }
+
+    /**
+     * Transfers at most once per {@code operationId}, like
+     * {@link #deposit(Session, long, long)}; the id belongs to the sender's account.
+     */
+    @Override
+    public LedgerResult transfer(Session session, int toId, long amount, long operationId) {
+        return session.touch()
+            ? transfer(session.accountId, session.ordinal, toId, amount, operationId)
+            : metrics.count(Operation.TRANSFER, LedgerResult.SESSION_EXPIRED);
+    }
+
+    private LedgerResult transfer(int fromId, int from, int toId, long amount, long operationId) {
+        long start = System.nanoTime();
+        return metrics.record(Operation.TRANSFER, applyTransfer(fromId, from, toId, amount, operationId), start);
+    }
+
+    private LedgerResult applyTransfer(int fromId, int from, int toId, long amount, long operationId) {
+        if (fromId == toId) {
+            return LedgerResult.SAME_ACCOUNT;
+        }
+        if (!isValidAmount(amount)) {
+            return LedgerResult.INVALID_AMOUNT;
+        }
+        if (from < 0) {
+            return LedgerResult.ACCOUNT_NOT_FOUND;
+        }
+        int to = store.find(toId);
+        if (to < 0) {
+            return LedgerResult.RECIPIENT_NOT_FOUND;
+        }
+        // Both stripes are held for the whole move so the debit and credit
+        // commit together; taking them in index order rules out deadlock
+        // between opposing transfers.
+        int first = stripe(fromId);
+        int second = stripe(toId);
+        if (first > second) {
+            int t = first;
+            first = second;
+            second = t;
+        }
+        long lsn;
+        synchronized (locks[first]) {
+            synchronized (locks[second]) {
+                long now = System.currentTimeMillis();
+                LedgerResult repeat = repeatOf(fromId, operationId, now, WriteAheadLog.TRANSFER, toId, amount);
+                if (repeat == LedgerResult.OK) {
+                    lsn = appendedLsn();
+                } else if (repeat != null) {
+                    return repeat;
+                } else {
+                    if (amount > store.balance(from)) {
+                        return LedgerResult.INSUFFICIENT_FUNDS;
+                    }
+                    if (!canCredit(store, to, amount)) {
+                        return LedgerResult.INVALID_AMOUNT;
+                    }
+                    LedgerResult limit = admitDebit(from, amount, now);
+                    if (!limit.isOk()) {
+                        return limit;
+                    }
+                    lsn = log(WriteAheadLog.TRANSFER, now, fromId, toId, amount, operationId, null);
+                    transfer(store, history, from, to, fromId, toId, amount, now);
+                    remember(fromId, operationId, now, WriteAheadLog.TRANSFER, toId, amount);
+                    publish(LedgerEvent.Type.TRANSFER, lsn, now, fromId, toId, amount,
+                        store.balance(from), store.balance(to));
+                }
+            }
+        }
+        awaitDurable(lsn);
+        return LedgerResult.OK;
+    }
+
+    /**
+     * First step of a transfer to {@code toId} on another shard (see
+     * {@link ShardedLedger}): takes {@code amount} out of the session's
+     * account, checked like a withdrawal and recorded as a transfer out.
+     * Applied at most once per {@code transferId} and sender; a repeat answers
+     * {@link LedgerResult#OK} without moving money again, a transfer that has
+     * already been cancelled is refused as {@link LedgerResult#UNAVAILABLE},
+     * and a different step under the same id as
+     * {@link LedgerResult#OPERATION_MISMATCH}.
+     */
+    LedgerResult debitTransfer(Session session, long transferId, int toId, long amount) {
+        if (!session.touch()) {
+            return metrics.count(Operation.TRANSFER, LedgerResult.SESSION_EXPIRED);
+        }
+        long start = System.nanoTime();
+        return metrics.record(Operation.TRANSFER,
+            applyDebit(session.accountId, session.ordinal, transferId, toId, amount), start);
+    }
+
+    private LedgerResult applyDebit(int fromId, int from, long transferId, int toId, long amount) {
+        if (fromId == toId) {
+            return LedgerResult.SAME_ACCOUNT;
+        }
+        if (!isValidAmount(amount)) {
+            return LedgerResult.INVALID_AMOUNT;
+        }
+        long lsn;
+        synchronized (lockFor(fromId)) {
+            long now = System.currentTimeMillis();
+            TransferSteps.Step step = steps.find(fromId, transferId);
+            if (step != null) {
+                if (step.kind == WriteAheadLog.REFUND) {
+                    return LedgerResult.UNAVAILABLE;
+                }
+                if (!step.matches(WriteAheadLog.TRANSFER_OUT, toId, amount)) {
+                    return LedgerResult.OPERATION_MISMATCH;
+                }
+                lsn = appendedLsn();
+            } else {
+                if (amount > store.balance(from)) {
+                    return LedgerResult.INSUFFICIENT_FUNDS;
+                }
+                LedgerResult limit = admitDebit(from, amount, now);
+                if (!limit.isOk()) {
+                    return limit;
+                }
+                lsn = log(WriteAheadLog.TRANSFER_OUT, now, fromId, toId, amount, transferId, null);
+                history.append(from, TransactionType.TRANSFER_OUT, -amount, now, toId);
+                store.addBalance(from, -amount);
+                steps.record(fromId, transferId, WriteAheadLog.TRANSFER_OUT, toId, amount, now);
+                publish(LedgerEvent.Type.TRANSFER_OUT, lsn, now, fromId, toId, amount, store.balance(from), 0);
+            }
+        }
+        awaitDurable(lsn);
+        return LedgerResult.OK;
+    }
+
+    /**
+     * Second step of a transfer from {@code fromId} on another shard: adds
+     * {@code amount} to {@code toId}, recorded as a transfer in. Applied at
+     * most once per {@code transferId} and recipient, like
+     * {@link #debitTransfer}.
+     */
+    LedgerResult creditTransfer(long transferId, int toId, int fromId, long amount) {
+        if (!isValidAmount(amount)) {
+            return LedgerResult.INVALID_AMOUNT;
+        }
+        int to = store.find(toId);
+        if (to < 0) {
+            return LedgerResult.RECIPIENT_NOT_FOUND;
+        }
+        long lsn;
+        synchronized (lockFor(toId)) {
+            long now = System.currentTimeMillis();
+            TransferSteps.Step step = steps.find(toId, transferId);
+            if (step != null) {
+                if (!step.matches(WriteAheadLog.TRANSFER_IN, fromId, amount)) {
+                    return LedgerResult.OPERATION_MISMATCH;
+                }
+                lsn = appendedLsn();
+            } else if (!canCredit(store, to, amount)) {
+                return LedgerResult.INVALID_AMOUNT;
+            } else {
+                lsn = log(WriteAheadLog.TRANSFER_IN, now, toId, fromId, amount, transferId, null);
+                history.append(to, TransactionType.TRANSFER_IN, amount, now, fromId);
+                store.addBalance(to, amount);
+                steps.record(toId, transferId, WriteAheadLog.TRANSFER_IN, fromId, amount, now);
+                publish(LedgerEvent.Type.TRANSFER_IN, lsn, now, toId, fromId, amount, store.balance(to), 0);
+            }
+        }
+        awaitDurable(lsn);
+        return LedgerResult.OK;
+    }
+
+    /**
+     * Compensates a transfer whose credit could not be made: refunds the
+     * debit taken from {@code fromId} if there was one, recorded as a
+     * {@link TransactionType#REFUND} and no longer counted against the
+     * withdrawal limits, and makes sure a debit arriving later is refused,
+     * even after a restart. Safe to repeat.
+     */
+    LedgerResult cancelTransfer(long transferId, int fromId) {
+        int from = store.find(fromId);
+        if (from < 0) {
+            return LedgerResult.ACCOUNT_NOT_FOUND;
+        }
+        long lsn;
+        synchronized (lockFor(fromId)) {
+            long now = System.currentTimeMillis();
+            TransferSteps.Step step = steps.find(fromId, transferId);
+            if (step == null) {
+                // Nothing to refund; the record only fences off a late debit
+                lsn = log(WriteAheadLog.REFUND, now, fromId, 0, 0, transferId, null);
+                steps.record(fromId, transferId, WriteAheadLog.REFUND, 0, 0, now);
+            } else if (step.kind == WriteAheadLog.TRANSFER_OUT) {
+                lsn = log(WriteAheadLog.REFUND, now, fromId, step.counterparty, step.amount, transferId, null);
+                history.append(from, TransactionType.REFUND, step.amount, now, step.counterparty);
+                store.addBalance(from, step.amount);
+                releaseDebit(from, step.amount, now);
+                steps.record(fromId, transferId, WriteAheadLog.REFUND, step.counterparty, step.amount, now);
+                publish(LedgerEvent.Type.REFUND, lsn, now, fromId, step.counterparty, step.amount,
+                    store.balance(from), 0);
+            } else if (step.kind == WriteAheadLog.REFUND) {
+                lsn = appendedLsn();
+            } else {
+                // The account received money under this id; there is no debit of it to cancel
+                return LedgerResult.OPERATION_MISMATCH;
+            }
+        }
+        awaitDurable(lsn);
+        return LedgerResult.OK;
+    }
+
+    /**
+     * Tells this shard that the router has durably finished the transfer, so
+     * the step {@code accountId} took in it need only be kept for late
+     * repeats (see {@link TransferSteps}). Not waited for: if the record is
+     * lost the step is kept until the router says so again. Safe to repeat,
+     * and a no-op for a transfer that never reached the account.
+     */
+    LedgerResult forgetTransfer(long transferId, int accountId) {
+        if (store.find(accountId) < 0) {
+            return LedgerResult.ACCOUNT_NOT_FOUND;
+        }
+        synchronized (lockFor(accountId)) {
+            long now = System.currentTimeMillis();
+            if (steps.forget(accountId, transferId, now)) {
+                log(WriteAheadLog.FORGET, now, accountId, 0, 0, transferId, null);
+            }
+        }
+        return LedgerResult.OK;
+    }
+
+    /** Returns the step {@code accountId} took in the transfer, or null if it took none or it was evicted. */
+    TransferSteps.Step transferStep(int accountId, long transferId) {
+        synchronized (lockFor(accountId)) {
+            return steps.find(accountId, transferId);
+        }
+    }
+
+    /** Returns the number of history entries of the account, or 0 if it does not exist. */
+    public int historySize(int accountId) {
+        return historySize(accountId, store.find(accountId));
+    }
+
+    /** Returns the number of history entries of the session's account, or 0 if the session has expired. */
+    @Override
+    public int historySize(Session session) {
+        return session.touch() ? historySize(session.accountId, session.ordinal) : 0;
+    }
+
+    // Unlocked sum for the metrics gauge; each size is read whole, the total may be slightly stale
+    private long historyEntries() {
+        long entries = 0;
+        for (int ordinal = store.size() - 1; ordinal >= 0; ordinal--) {
+            entries += history.size(ordinal);
+        }
+        return entries;
+    }
+
+    private int historySize(int accountId, int ordinal) {
+        if (ordinal < 0) {
+            return 0;
+        }
+        synchronized (lockFor(accountId)) {
+            return history.size(ordinal);
+        }
+    }
+
+    /**
+     * Copies up to {@code into.capacity()} history entries starting at index
+     * {@code from} (oldest first) and returns how many were copied. Only the
+     * requested entries are touched, so the cost does not depend on how long
+     * the history is.
+     */
+    public int readHistory(int accountId, int from, HistoryPage into) {
+        return readHistory(accountId, store.find(accountId), from, into);
+    }
+
+    /** Like {@link #readHistory(int, int, HistoryPage)}; copies nothing once the session has expired. */
+    @Override
+    public int readHistory(Session session, int from, HistoryPage into) {
+        return readHistory(session.accountId, session.touch() ? session.ordinal : -1, from, into);
+    }
+
+    int readHistory(int accountId, int ordinal, int from, HistoryPage into) {
+        into.first = from;
+        into.size = 0;
+        if (ordinal < 0 || from < 0) {
+            return 0;
+        }
+        synchronized (lockFor(accountId)) {
+            int count = Math.max(0, Math.min(into.capacity(), history.size(ordinal) - from));
+            for (int i = 0; i < count; i++) {
+                into.times[i] = history.time(ordinal, from + i);
+                into.amounts[i] = history.amount(ordinal, from + i);
+                into.counterparties[i] = history.counterparty(ordinal, from + i);
+                into.types[i] = history.type(ordinal, from + i);
+            }
+            into.size = count;
+            return count;
+        }
+    }
+
+    /** Returns how many of the account's entries match {@code query}, or 0 if it does not exist. */
+    public int countHistory(int accountId, HistoryQuery query) {
+        return (int) aggregate(accountId, store.find(accountId), query, false);
+    }
+
+    @Override
+    public int countHistory(Session session, HistoryQuery query) {
+        return (int) aggregate(session.accountId, session.touch() ? session.ordinal : -1, query, false);
+    }
+
+    /**
+     * Returns the sum of the signed amounts of the account's entries matching
+     * {@code query}, e.g. minus the total transferred to a counterparty, or 0
+     * if it does not exist.
+     */
+    public long totalHistory(int accountId, HistoryQuery query) {
+        return aggregate(accountId, store.find(accountId), query, true);
+    }
+
+    @Override
+    public long totalHistory(Session session, HistoryQuery query) {
+        return aggregate(session.accountId, session.touch() ? session.ordinal : -1, query, true);
+    }
+
+    /**
+     * Like {@link #readHistory(int, int, HistoryPage)} over only the entries
+     * matching {@code query}: copies the {@code from}-th match (oldest first)
+     * and those after it. The page's {@link HistoryPage#first()} is then a
+     * match number rather than a history index.
+     */
+    public int readHistory(int accountId, HistoryQuery query, int from, HistoryPage into) {
+        return readHistory(accountId, store.find(accountId), query, from, into);
+    }
+
+    @Override
+    public int readHistory(Session session, HistoryQuery query, int from, HistoryPage into) {
+        return readHistory(session.accountId, session.touch() ? session.ordinal : -1, query, from, into);
+    }
+
+    private long aggregate(int accountId, int ordinal, HistoryQuery query, boolean amounts) {
+        if (ordinal < 0) {
+            return 0;
+        }
+        synchronized (lockFor(accountId)) {
+            return history.aggregate(ordinal, query, history.firstIndexAtOrAfter(ordinal, query.getSinceMillis()),
+                history.firstIndexAtOrAfter(ordinal, query.getUntilMillis()), amounts);
+        }
+    }
+
+    /**
+     * Reads the account at {@code ordinal}'s figures for the period
+     * {@code [sinceMillis, untilMillis)} into {@code into}, all under one
+     * lock so they agree: the history indexes the period spans, the balances
+     * at its start and end and its credit and debit totals. The closing
+     * balance is the current one less every later entry, since an opening
+     * deposit has no entry of its own. An account registered during the
+     * period opens it with nothing, and its opening deposit counts as a
+     * credit. Returns false if there is no such account or it was registered
+     * after the period.
+     */
+    boolean statement(int ordinal, long sinceMillis, long untilMillis, StatementExport.Period into) {
+        if (ordinal < 0 || ordinal >= store.size()) {
+            return false;
+        }
+        int accountId = store.accountId(ordinal);
+        long registered = store.registered(ordinal);
+        if (registered >= untilMillis) {
+            return false;
+        }
+        synchronized (lockFor(accountId)) {
+            int first = history.firstIndexAtOrAfter(ordinal, sinceMillis);
+            int end = history.firstIndexAtOrAfter(ordinal, untilMillis);
+            into.ordinal = ordinal;
+            into.accountId = accountId;
+            into.first = first;
+            into.end = end;
+            into.credits = history.aggregate(ordinal, CREDITS, first, end, true);
+            into.debits = history.aggregate(ordinal, DEBITS, first, end, true);
+            into.closing = store.balance(ordinal) - history.aggregate(ordinal, ALL, end, history.size(ordinal), true);
+            into.opening = into.closing - into.credits - into.debits;
+            into.registeredMillis = registered;
+            into.initialDeposit = 0;
+            if (registered >= sinceMillis) {
+                // Every entry follows the registration, so what is left is the opening deposit
+                into.initialDeposit = into.opening;
+                into.credits += into.opening;
+                into.opening = 0;
+            }
+            return true;
+        }
+    }
+
+    private int readHistory(int accountId, int ordinal, HistoryQuery query, int from, HistoryPage into) {
+        into.first = from;
+        into.size = 0;
+        if (ordinal < 0 || from < 0) {
+            return 0;
+        }
+        synchronized (lockFor(accountId)) {
+            int end = history.firstIndexAtOrAfter(ordinal, query.getUntilMillis());
+            int index = history.indexOfMatch(ordinal, query,
+                history.firstIndexAtOrAfter(ordinal, query.getSinceMillis()), end, from);
+            int count = 0;
+            while (count < into.capacity() && index < end) {
+                into.times[count] = history.time(ordinal, index);
+                into.amounts[count] = history.amount(ordinal, index);
+                into.counterparties[count] = history.counterparty(ordinal, index);
+                into.types[count] = history.type(ordinal, index);
+                count++;
+                index = history.nextMatch(ordinal, query, index + 1, end);
+            }
+            into.size = count;
+            return count;
+        }
+    }
+
+    /** Returns a point-in-time copy of the account's history, oldest first. */
+    public List<Transaction> history(int accountId) {
+        int ordinal = store.find(accountId);
+        if (ordinal < 0) {
+            return new ArrayList<>();
+        }
+        synchronized (lockFor(accountId)) {
+            int size = history.size(ordinal);
+            List<Transaction> entries = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                entries.add(history.get(ordinal, i));
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Writes a snapshot of every account and its history, then deletes the log
+     * segments it makes redundant. Mutations are paused only while balances
+     * and history lengths are copied; the file is written concurrently.
+     */
+    public void snapshot() throws IOException {
+        if (log == null) {
+            throw new IllegalStateException("A memory-only ledger has nothing to snapshot");
+        }
+        synchronized (snapshotLock) {
+            Snapshot.Image image = new Snapshot.Image();
+            holdingAllLocks(0, () -> capture(image));
+            log.sync(image.lsn);
+            history.force();
+            Snapshot.write(dir, image, store, this::copyChunkIds);
+            log.deleteSegmentsBefore(image.lsn);
+        }
+    }
+
+    /** Blocks until every mutation made so far is on disk; returns at once for a memory-only ledger. */
+    public void sync() {
+        if (log != null) {
+            log.sync(log.appendedLsn());
+        }
+    }
+
+    /** Stops the verification pool, then flushes and closes the transaction log and history file. */
+    @Override
+    public void close() throws IOException {
+        authenticator.shutdown();
+        if (log == null) {
+            return;
+        }
+        try {
+            if (snapshotter != null) {
+                snapshotter.shutdownNow();
+                try {
+                    snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                snapshot();
+            }
+            log.close();
+            history.close();
+        } finally {
+            dirLock.close();
+        }
+    }
+
+    private void backgroundSnapshot() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            // Keep the schedule alive; the log still holds everything.
+            e.printStackTrace();
+        }
+    }
+
+    // Monitors cannot be taken in a loop, so nest one frame per stripe,
+    // always in index order like transfers do.
+    private void holdingAllLocks(int stripe, Runnable action) {
+        if (stripe == STRIPES) {
+            action.run();
+            return;
+        }
+        synchronized (locks[stripe]) {
+            holdingAllLocks(stripe + 1, action);
+        }
+    }
+
+    private void capture(Snapshot.Image image) {
+        int accounts = store.size();
+        image.lsn = log.appendedLsn();
+        image.accounts = accounts;
+        image.balances = new long[accounts];
+        store.copyBalances(image.balances, accounts);
+        image.historyCounts = new int[accounts];
+        image.historyChunks = history.chunkCount();
+        for (int ordinal = 0; ordinal < accounts; ordinal++) {
+            int count = history.size(ordinal);
+            image.historyCounts[ordinal] = count;
+            image.historyEntries += count;
+        }
+        image.operations = operations.copy(System.currentTimeMillis());
+        image.steps = steps.copy();
+    }
+
+    private void copyChunkIds(int ordinal, int chunks, int[] into) {
+        synchronized (lockFor(store.accountId(ordinal))) {
+            for (int i = 0; i < chunks; i++) {
+                into[i] = history.chunkId(ordinal, i);
+            }
+        }
+    }
+
+    // Caller holds the stripe locks of the accounts involved
+    private void publish(LedgerEvent.Type type, long lsn, long now, int accountId, int counterparty,
+            long amount, long balance, long counterpartyBalance) {
+        EventStream stream = events;
+        if (stream != null) {
+            stream.publish(type, lsn, now, accountId, counterparty, amount, balance, counterpartyBalance);
+        }
+    }
+
+    // Caller holds the account's stripe lock
+    private LedgerResult admitDebit(int ordinal, long amount, long now) {
+        VelocityTracker tracker = velocity;
+        return tracker == null ? LedgerResult.OK : tracker.admit(ordinal, amount, now);
+    }
+
+    private void releaseDebit(int ordinal, long amount, long now) {
+        VelocityTracker tracker = velocity;
+        if (tracker != null) {
+            tracker.release(ordinal, amount, now);
+        }
+    }
+
+    // Caller holds the account's stripe lock. Returns null unless the id was used before: OK if for this very
+    // operation, OPERATION_MISMATCH if for another
+    private LedgerResult repeatOf(int accountId, long operationId, long now, byte kind, int counterparty,
+            long amount) {
+        int found = operationId == OperationIds.NONE ? OperationIds.ABSENT
+            : operations.compare(accountId, operationId, now, kind, counterparty, amount);
+        if (found == OperationIds.ABSENT) {
+            return null;
+        }
+        return found == OperationIds.SAME ? LedgerResult.OK : LedgerResult.OPERATION_MISMATCH;
+    }
+
+    // Caller holds the account's stripe lock
+    private void remember(int accountId, long operationId, long now, byte kind, int counterparty, long amount) {
+        if (operationId != OperationIds.NONE) {
+            operations.record(accountId, operationId, now, kind, counterparty, amount);
+        }
+    }
+
+    private long log(byte type, long time, int accountId, int counterparty, long amount, long operationId,
+            PinHash credential) {
+        return log == null ? 0 : log.append(type, time, accountId, counterparty, amount, operationId, credential);
+    }
+
+    // A repeated operation answers once its first application is durable, which this covers
+    private long appendedLsn() {
+        return log == null ? 0 : log.appendedLsn();
+    }
+
+    private void awaitDurable(long lsn) {
+        if (log != null) {
+            log.awaitDurable(lsn);
+        }
+    }
+
+    private static void replay(AccountStore store, HistoryStore history, OperationIds operations,
+            TransferSteps steps, byte type, long time, int accountId, int counterparty, long amount, long operationId,
+            PinHash credential) {
+        switch (type) {
+            case WriteAheadLog.REGISTER:
+                history.addAccount(store.insert(accountId, credential, amount, time));
+                break;
+            case WriteAheadLog.DEPOSIT: {
+                int ordinal = store.find(accountId);
+                history.append(ordinal, TransactionType.DEPOSIT, amount, time, 0);
+                store.addBalance(ordinal, amount);
+                break;
+            }
+            case WriteAheadLog.WITHDRAW: {
+                int ordinal = store.find(accountId);
+                history.append(ordinal, TransactionType.WITHDRAWAL, -amount, time, 0);
+                store.addBalance(ordinal, -amount);
+                break;
+            }
+            case WriteAheadLog.TRANSFER:
+                transfer(store, history, store.find(accountId), store.find(counterparty),
+                    accountId, counterparty, amount, time);
+                break;
+            case WriteAheadLog.TRANSFER_OUT: {
+                int ordinal = store.find(accountId);
+                history.append(ordinal, TransactionType.TRANSFER_OUT, -amount, time, counterparty);
+                store.addBalance(ordinal, -amount);
+                break;
+            }
+            case WriteAheadLog.TRANSFER_IN: {
+                int ordinal = store.find(accountId);
+                history.append(ordinal, TransactionType.TRANSFER_IN, amount, time, counterparty);
+                store.addBalance(ordinal, amount);
+                break;
+            }
+            case WriteAheadLog.REFUND: {
+                // A fence carries no amount and leaves no history
+                if (amount > 0) {
+                    int ordinal = store.find(accountId);
+                    history.append(ordinal, TransactionType.REFUND, amount, time, counterparty);
+                    store.addBalance(ordinal, amount);
+                }
+                break;
+            }
+            case WriteAheadLog.FORGET:
+                steps.forget(accountId, operationId, time);
+                return;
+            default:
+                throw new IllegalStateException("Unknown log record type " + type);
+        }
+        if (operationId == OperationIds.NONE) {
+            return;
+        }
+        if (type == WriteAheadLog.TRANSFER_OUT || type == WriteAheadLog.TRANSFER_IN || type == WriteAheadLog.REFUND) {
+            steps.record(accountId, operationId, type, counterparty, amount, time);
+        } else {
+            operations.restore(accountId, operationId, time, type, counterparty, amount);
+        }
+    }
+
+    private static void transfer(AccountStore store, HistoryStore history, int from, int to,
+            int fromId, int toId, long amount, long time) {
+        history.append(from, TransactionType.TRANSFER_OUT, -amount, time, toId);
+        history.append(to, TransactionType.TRANSFER_IN, amount, time, fromId);
+        store.addBalance(from, -amount);
+        store.addBalance(to, amount);
+    }
+
+    private Object lockFor(int accountId) {
+        return locks[stripe(accountId)];
+    }
+
+    static int stripe(int accountId) {
+        int h = accountId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private static boolean canCredit(AccountStore store, int ordinal, long amount) {
+        return store.balance(ordinal) <= Long.MAX_VALUE - amount;
+    }
+
+    private static boolean isValidAmount(long amount) {
+        return amount > 0;
+    }
+}
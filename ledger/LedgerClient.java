@@ -0,0 +1,441 @@
+package ledger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * {@link LedgerService} backed by a {@link LedgerServer}, so many terminals
+ * share one ledger.
+ *
+ * <p>One connection carries any number of concurrent callers. Requests are
+ * appended to a buffer that a writer thread sends whenever it is idle, so a
+ * burst of requests goes out in one write; a reader thread completes each
+ * caller's future when its response arrives. The asynchronous methods let a
+ * single thread keep many requests in flight; the blocking ones wait for
+ * theirs.
+ *
+ * <p>If the connection drops, every outstanding and later request completes
+ * with {@link LedgerResult#UNAVAILABLE} (or the method's equivalent empty
+ * answer) instead of failing.
+ */
+public final class LedgerClient implements LedgerService {
+    private static final int READ_BUFFER = 64 << 10;
+    private static final int WRITE_BUFFER = 64 << 10;
+
+    private static final Decoder<LedgerResult> RESULT = (result, payload) -> result;
+
+    private final SocketChannel channel;
+    private final ConcurrentHashMap<Integer, Call<?>> calls = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+
+    // Requests waiting for the writer; guarded by outLock
+    private final Object outLock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocateDirect(WRITE_BUFFER);
+    private ByteBuffer spare = ByteBuffer.allocateDirect(WRITE_BUFFER);
+    private boolean closed;
+
+    private LedgerClient(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    public static LedgerClient connect(InetSocketAddress address) throws IOException {
+        return open(SocketChannel.open(address));
+    }
+
+    /**
+     * Connects to a shard's coordinator port and authenticates with
+     * {@code secret}; only {@link #creditAsync}, {@link #cancelAsync} and
+     * {@link #forgetAsync} may be sent on the result.
+     */
+    static LedgerClient connectCoordinator(InetSocketAddress address, byte[] secret) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        try {
+            CoordinatorHandshake.connect(channel, secret);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return open(channel);
+    }
+
+    private static LedgerClient open(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        LedgerClient client = new LedgerClient(channel);
+        start(client::readLoop, "ledger-client-reader");
+        start(client::writeLoop, "ledger-client-writer");
+        return client;
+    }
+
+    public CompletableFuture<LedgerResult> registerAsync(int accountId, int pin, long initialDeposit) {
+        return send(Protocol.REGISTER, RESULT, out -> out.putInt(accountId).putInt(pin).putLong(initialDeposit));
+    }
+
+    @Override
+    public LedgerResult register(int accountId, int pin, long initialDeposit) {
+        return registerAsync(accountId, pin, initialDeposit).join();
+    }
+
+    /**
+     * Logs in over the connection. {@code terminalId} only labels the
+     * returned session; the server rate-limits by the connection's address.
+     */
+    public CompletableFuture<Session> loginAsync(int terminalId, int accountId, int pin) {
+        return send(Protocol.LOGIN, (result, payload) -> result.isOk()
+                ? Session.remote(terminalId, accountId, payload.getLong())
+                : Session.refused(terminalId, accountId, result),
+            out -> out.putInt(accountId).putInt(pin));
+    }
+
+    @Override
+    public Session login(int terminalId, int accountId, int pin) {
+        return loginAsync(terminalId, accountId, pin).join();
+    }
+
+    @Override
+    public void logout(Session session) {
+        if (!session.isExpired()) {
+            send(Protocol.LOGOUT, RESULT, out -> out.putLong(session.handle));
+        }
+        session.close();
+    }
+
+    public CompletableFuture<Boolean> existsAsync(int accountId) {
+        return send(Protocol.EXISTS, (result, payload) -> result.isOk() && payload.get() != 0,
+            out -> out.putInt(accountId));
+    }
+
+    @Override
+    public boolean exists(int accountId) {
+        return existsAsync(accountId).join();
+    }
+
+    public CompletableFuture<Long> balanceAsync(Session session) {
+        if (!session.touch()) {
+            return CompletableFuture.completedFuture(Ledger.NO_BALANCE);
+        }
+        return send(Protocol.BALANCE, (result, payload) -> result.isOk() ? payload.getLong() : Ledger.NO_BALANCE,
+            out -> out.putLong(session.handle));
+    }
+
+    @Override
+    public long balance(Session session) {
+        return balanceAsync(session).join();
+    }
+
+    public CompletableFuture<LedgerResult> depositAsync(Session session, long amount) {
+        return depositAsync(session, amount, OperationIds.NONE);
+    }
+
+    /** Deposits at most once per {@code operationId}; see {@link Ledger#deposit(Session, long, long)}. */
+    public CompletableFuture<LedgerResult> depositAsync(Session session, long amount, long operationId) {
+        if (!session.touch()) {
+            return CompletableFuture.completedFuture(LedgerResult.SESSION_EXPIRED);
+        }
+        return send(Protocol.DEPOSIT, RESULT, out -> out.putLong(session.handle).putLong(amount).putLong(operationId));
+    }
+
+    @Override
+    public LedgerResult deposit(Session session, long amount) {
+        return depositAsync(session, amount).join();
+    }
+
+    @Override
+    public LedgerResult deposit(Session session, long amount, long operationId) {
+        return depositAsync(session, amount, operationId).join();
+    }
+
+    public CompletableFuture<LedgerResult> withdrawAsync(Session session, long amount) {
+        return withdrawAsync(session, amount, OperationIds.NONE);
+    }
+
+    public CompletableFuture<LedgerResult> withdrawAsync(Session session, long amount, long operationId) {
+        if (!session.touch()) {
+            return CompletableFuture.completedFuture(LedgerResult.SESSION_EXPIRED);
+        }
+        return send(Protocol.WITHDRAW, RESULT, out -> out.putLong(session.handle).putLong(amount).putLong(operationId));
+    }
+
+    @Override
+    public LedgerResult withdraw(Session session, long amount) {
+        return withdrawAsync(session, amount).join();
+    }
+
+    @Override
+    public LedgerResult withdraw(Session session, long amount, long operationId) {
+        return withdrawAsync(session, amount, operationId).join();
+    }
+
+    public CompletableFuture<LedgerResult> transferAsync(Session session, int toId, long amount) {
+        return transferAsync(session, toId, amount, OperationIds.NONE);
+    }
+
+    public CompletableFuture<LedgerResult> transferAsync(Session session, int toId, long amount, long operationId) {
+        if (!session.touch()) {
+            return CompletableFuture.completedFuture(LedgerResult.SESSION_EXPIRED);
+        }
+        return send(Protocol.TRANSFER, RESULT,
+            out -> out.putLong(session.handle).putInt(toId).putLong(amount).putLong(operationId));
+    }
+
+    @Override
+    public LedgerResult transfer(Session session, int toId, long amount) {
+        return transferAsync(session, toId, amount).join();
+    }
+
+    @Override
+    public LedgerResult transfer(Session session, int toId, long amount, long operationId) {
+        return transferAsync(session, toId, amount, operationId).join();
+    }
+
+    @Override
+    public int historySize(Session session) {
+        if (!session.touch()) {
+            return 0;
+        }
+        return send(Protocol.HISTORY_SIZE, (result, payload) -> result.isOk() ? payload.getInt() : 0,
+            out -> out.putLong(session.handle)).join();
+    }
+
+    @Override
+    public int readHistory(Session session, int from, HistoryPage into) {
+        into.first = from;
+        into.size = 0;
+        if (!session.touch()) {
+            return 0;
+        }
+        int capacity = Math.min(into.capacity(), Protocol.MAX_HISTORY_ROWS);
+        return send(Protocol.READ_HISTORY, page(into),
+            out -> out.putLong(session.handle).putInt(from).putInt(capacity)).join();
+    }
+
+    @Override
+    public int countHistory(Session session, HistoryQuery query) {
+        if (!session.touch()) {
+            return 0;
+        }
+        return send(Protocol.COUNT_HISTORY, (result, payload) -> result.isOk() ? payload.getInt() : 0,
+            out -> Protocol.putQuery(out.putLong(session.handle), query)).join();
+    }
+
+    @Override
+    public long totalHistory(Session session, HistoryQuery query) {
+        if (!session.touch()) {
+            return 0;
+        }
+        return send(Protocol.TOTAL_HISTORY, (result, payload) -> result.isOk() ? payload.getLong() : 0L,
+            out -> Protocol.putQuery(out.putLong(session.handle), query)).join();
+    }
+
+    @Override
+    public int readHistory(Session session, HistoryQuery query, int from, HistoryPage into) {
+        into.first = from;
+        into.size = 0;
+        if (!session.touch()) {
+            return 0;
+        }
+        int capacity = Math.min(into.capacity(), Protocol.MAX_HISTORY_ROWS);
+        return send(Protocol.QUERY_HISTORY, page(into),
+            out -> Protocol.putQuery(out.putLong(session.handle), query).putInt(from).putInt(capacity)).join();
+    }
+
+    /** Steps of a transfer between shards; see {@link Ledger#debitTransfer(Session, long, int, long)}. */
+    CompletableFuture<LedgerResult> debitAsync(Session session, long transferId, int toId, long amount) {
+        if (!session.touch()) {
+            return CompletableFuture.completedFuture(LedgerResult.SESSION_EXPIRED);
+        }
+        return send(Protocol.DEBIT, RESULT,
+            out -> out.putLong(session.handle).putLong(transferId).putInt(toId).putLong(amount));
+    }
+
+    /** Coordinator steps, sent only on a client from {@link #connectCoordinator}. */
+    CompletableFuture<LedgerResult> creditAsync(long transferId, int toId, int fromId, long amount) {
+        return send(Protocol.CREDIT, RESULT, out -> out.putLong(transferId).putInt(toId).putInt(fromId).putLong(amount));
+    }
+
+    CompletableFuture<LedgerResult> cancelAsync(long transferId, int fromId) {
+        return send(Protocol.CANCEL, RESULT, out -> out.putLong(transferId).putInt(fromId));
+    }
+
+    CompletableFuture<LedgerResult> forgetAsync(long transferId, int accountId) {
+        return send(Protocol.FORGET, RESULT, out -> out.putLong(transferId).putInt(accountId));
+    }
+
+    /** Like {@link #existsAsync(int)}, but tells a missing account from an unreachable server. */
+    CompletableFuture<LedgerResult> recipientAsync(int accountId) {
+        return send(Protocol.EXISTS, (result, payload) -> !result.isOk() ? result
+                : payload.get() != 0 ? LedgerResult.OK : LedgerResult.RECIPIENT_NOT_FOUND,
+            out -> out.putInt(accountId));
+    }
+
+    /** Asks the server which shard it is; completes with null if it is not one or cannot be reached. */
+    CompletableFuture<ShardInfo> shardAsync() {
+        return send(Protocol.SHARD, (result, payload) -> result.isOk() ? Protocol.getShard(payload) : null, out -> { });
+    }
+
+    /** Returns false once the connection has dropped or been closed. */
+    public boolean isConnected() {
+        synchronized (outLock) {
+            return !closed;
+        }
+    }
+
+    /** Closes the connection; requests still outstanding complete as {@link LedgerResult#UNAVAILABLE}. */
+    @Override
+    public void close() throws IOException {
+        synchronized (outLock) {
+            closed = true;
+            outLock.notifyAll();
+        }
+        channel.close();
+    }
+
+    // Decodes a READ_HISTORY or QUERY_HISTORY response into the caller's page
+    private static Decoder<Integer> page(HistoryPage into) {
+        return (result, payload) -> {
+            int count = result.isOk() ? payload.getInt() : 0;
+            for (int i = 0; i < count; i++) {
+                into.times[i] = payload.getLong();
+                into.amounts[i] = payload.getLong();
+                into.counterparties[i] = payload.getInt();
+                into.types[i] = TransactionType.of(payload.get());
+            }
+            into.size = count;
+            return count;
+        };
+    }
+
+    private <T> CompletableFuture<T> send(byte code, Decoder<T> decoder, Consumer<ByteBuffer> payload) {
+        Call<T> call = new Call<>(decoder);
+        int id = ids.incrementAndGet();
+        calls.put(id, call);
+        synchronized (outLock) {
+            if (!closed) {
+                int bytes = Protocol.HEADER + Protocol.requestBytes(code);
+                if (pending.remaining() < bytes) {
+                    ByteBuffer grown = ByteBuffer.allocateDirect(pending.capacity() * 2);
+                    pending.flip();
+                    pending = grown.put(pending);
+                }
+                boolean idle = pending.position() == 0;
+                pending.putInt(bytes - 4).putInt(id).put(code);
+                payload.accept(pending);
+                if (idle) {
+                    outLock.notify();
+                }
+                return call.future;
+            }
+        }
+        calls.remove(id);
+        call.fail();
+        return call.future;
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                ByteBuffer batch;
+                synchronized (outLock) {
+                    while (pending.position() == 0 && !closed) {
+                        outLock.wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    batch = pending;
+                    pending = spare;
+                    spare = batch;
+                }
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                batch.clear();
+            }
+        } catch (IOException | InterruptedException e) {
+            disconnect();
+        }
+    }
+
+    private void readLoop() {
+        ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER);
+        try {
+            while (channel.read(in) >= 0) {
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < Protocol.HEADER - 4 || length > Protocol.MAX_FRAME - 4) {
+                        throw new IOException("Malformed response frame");
+                    }
+                    if (in.remaining() < 4 + length) {
+                        break;
+                    }
+                    int end = in.position() + 4 + length;
+                    in.position(in.position() + 4);
+                    Call<?> call = calls.remove(in.getInt());
+                    LedgerResult result = Protocol.result(in.get());
+                    if (call != null) {
+                        call.complete(result, in);
+                    }
+                    in.position(end);
+                }
+                in.compact();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Fall through and fail whatever is still outstanding
+        }
+        disconnect();
+    }
+
+    private void disconnect() {
+        synchronized (outLock) {
+            closed = true;
+            outLock.notifyAll();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already unusable
+        }
+        for (Integer id : calls.keySet()) {
+            Call<?> call = calls.remove(id);
+            if (call != null) {
+                call.fail();
+            }
+        }
+    }
+
+    private static void start(Runnable loop, String name) {
+        Thread thread = new Thread(loop, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Turns a response into the caller's answer; {@code payload} is null when the connection failed. */
+    private interface Decoder<T> {
+        T decode(LedgerResult result, ByteBuffer payload);
+    }
+
+    private static final class Call<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        private final Decoder<T> decoder;
+
+        Call(Decoder<T> decoder) {
+            this.decoder = decoder;
+        }
+
+        void complete(LedgerResult result, ByteBuffer payload) {
+            future.complete(decoder.decode(result, payload));
+        }
+
+        void fail() {
+            future.complete(decoder.decode(LedgerResult.UNAVAILABLE, null));
+        }
+    }
+}
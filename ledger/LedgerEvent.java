@@ -0,0 +1,52 @@
+package ledger;
+
+/**
+ * One change made to the ledger, as delivered to {@link LedgerEventHandler}s
+ * by an {@link EventStream}. Events are preallocated ring slots that are
+ * reused once every consumer has passed them, so a handler must copy what it
+ * needs before returning.
+ */
+public final class LedgerEvent {
+    /** Kind of change. */
+    public enum Type {
+        REGISTER,
+        DEPOSIT,
+        WITHDRAWAL,
+        TRANSFER,
+        /** Money leaving for an account on another shard. */
+        TRANSFER_OUT,
+        /** Money arriving from an account on another shard. */
+        TRANSFER_IN,
+        /** A {@link #TRANSFER_OUT} coming back because it was cancelled; the counterparty is its recipient. */
+        REFUND
+    }
+
+    long sequence;
+    long lsn;
+    Type type;
+    long timeMillis;
+    int accountId;
+    int counterparty;
+    long amount;
+    long balance;
+    long counterpartyBalance;
+
+    LedgerEvent() {
+    }
+
+    /** Position in the stream; consecutive for every event published while it was open. */
+    public long getSequence() { return sequence; }
+    /** Log sequence number of the change, or 0 for a memory-only ledger. */
+    public long getLsn() { return lsn; }
+    public Type getType() { return type; }
+    public long getTimeMillis() { return timeMillis; }
+    public int getAccountId() { return accountId; }
+    /** Other account of a transfer or of either half of one, otherwise 0. */
+    public int getCounterparty() { return counterparty; }
+    /** Amount in cents: the opening deposit, the amount deposited, withdrawn or transferred. */
+    public long getAmount() { return amount; }
+    /** Balance of the account after the change. */
+    public long getBalance() { return balance; }
+    /** Balance of a transfer's recipient after the change; 0 for every other type, halves included. */
+    public long getCounterpartyBalance() { return counterpartyBalance; }
+}
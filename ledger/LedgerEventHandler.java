@@ -0,0 +1,13 @@
+package ledger;
+
+import java.io.IOException;
+
+/** Consumer of an {@link EventStream}; runs on a thread of its own. */
+public interface LedgerEventHandler {
+    /**
+     * Handles one event. {@code endOfBatch} is true for the last event
+     * currently available, so handlers can buffer and write once per batch.
+     * Throwing unsubscribes the handler.
+     */
+    void onEvent(LedgerEvent event, boolean endOfBatch) throws IOException;
+}
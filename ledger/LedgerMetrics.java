@@ -0,0 +1,164 @@
+package ledger;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Always-on instrumentation of a {@link Ledger}: a counter for every
+ * combination of {@link Operation} and {@link LedgerResult}, so rejections
+ * such as insufficient funds or a wrong PIN are counted by reason, a
+ * {@link LatencyHistogram} per operation, and gauges for the number of
+ * accounts and history entries.
+ *
+ * <p>Recording costs a {@link System#nanoTime()} and a few uncontended adds;
+ * nothing is allocated once each counter has seen its first contention.
+ * Reads go through the getters, JMX (see {@link #registerMBean()}) or a
+ * {@link MetricsEndpoint}.
+ */
+public final class LedgerMetrics implements LedgerMetricsMXBean {
+    public static final String OBJECT_NAME = "ledger:type=Metrics";
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final LedgerResult[] RESULTS = LedgerResult.values();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final LongAdder[] counts = new LongAdder[OPERATIONS.length * RESULTS.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final LongSupplier accounts;
+    private final LongSupplier historyEntries;
+
+    LedgerMetrics(LongSupplier accounts, LongSupplier historyEntries) {
+        this.accounts = accounts;
+        this.historyEntries = historyEntries;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /** Counts {@code result} and times the call from {@code startNanos}; returns {@code result}. */
+    LedgerResult record(Operation operation, LedgerResult result, long startNanos) {
+        latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+        return count(operation, result);
+    }
+
+    /** Counts a call that was turned away before doing any work; returns {@code result}. */
+    LedgerResult count(Operation operation, LedgerResult result) {
+        counts[operation.ordinal() * RESULTS.length + result.ordinal()].increment();
+        return result;
+    }
+
+    /** Registers this object with the platform MBean server under {@link #OBJECT_NAME}. */
+    public void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    public long getCount(Operation operation, LedgerResult result) {
+        return counts[operation.ordinal() * RESULTS.length + result.ordinal()].sum();
+    }
+
+    public LatencyHistogram getLatency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    @Override
+    public long getAccounts() { return accounts.getAsLong(); }
+
+    @Override
+    public long getHistoryEntries() { return historyEntries.getAsLong(); }
+
+    /** Returns every non-zero counter, keyed {@code operation.result}. */
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        for (Operation operation : OPERATIONS) {
+            for (LedgerResult result : RESULTS) {
+                long count = getCount(operation, result);
+                if (count > 0) {
+                    counters.put(operation.getMetricName() + "." + metricName(result), count);
+                }
+            }
+        }
+        return counters;
+    }
+
+    /** Returns median and tail latencies in microseconds, keyed {@code operation.p50} and so on. */
+    @Override
+    public Map<String, Long> getLatencyMicros() {
+        Map<String, Long> percentiles = new LinkedHashMap<>();
+        for (Operation operation : OPERATIONS) {
+            LatencyHistogram histogram = getLatency(operation);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            for (double quantile : QUANTILES) {
+                percentiles.put(operation.getMetricName() + "." + percentileName(quantile),
+                    histogram.valueAtQuantile(quantile) / 1_000);
+            }
+            percentiles.put(operation.getMetricName() + ".max", histogram.getMaxNanos() / 1_000);
+        }
+        return percentiles;
+    }
+
+    /**
+     * Appends every metric in the Prometheus text exposition format: counters
+     * as {@code atm_operations_total}, latencies as the summary
+     * {@code atm_operation_latency_seconds} and the two gauges.
+     */
+    public void writePrometheus(StringBuilder out) {
+        out.append("# HELP atm_operations_total Ledger calls by operation and result.\n");
+        out.append("# TYPE atm_operations_total counter\n");
+        for (Operation operation : OPERATIONS) {
+            for (LedgerResult result : RESULTS) {
+                long count = getCount(operation, result);
+                if (count > 0) {
+                    out.append("atm_operations_total{operation=\"").append(operation.getMetricName())
+                        .append("\",result=\"").append(metricName(result)).append("\"} ")
+                        .append(count).append('\n');
+                }
+            }
+        }
+        out.append("# HELP atm_operation_latency_seconds Time spent in ledger calls, including the log sync.\n");
+        out.append("# TYPE atm_operation_latency_seconds summary\n");
+        for (Operation operation : OPERATIONS) {
+            LatencyHistogram histogram = getLatency(operation);
+            String labels = "operation=\"" + operation.getMetricName() + "\"";
+            for (double quantile : QUANTILES) {
+                out.append("atm_operation_latency_seconds{").append(labels)
+                    .append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.valueAtQuantile(quantile))).append('\n');
+            }
+            out.append("atm_operation_latency_seconds_sum{").append(labels).append("} ")
+                .append(seconds(histogram.getTotalNanos())).append('\n');
+            out.append("atm_operation_latency_seconds_count{").append(labels).append("} ")
+                .append(histogram.getCount()).append('\n');
+        }
+        out.append("# HELP atm_accounts Registered accounts.\n");
+        out.append("# TYPE atm_accounts gauge\n");
+        out.append("atm_accounts ").append(getAccounts()).append('\n');
+        out.append("# HELP atm_history_entries Transaction history entries across all accounts.\n");
+        out.append("# TYPE atm_history_entries gauge\n");
+        out.append("atm_history_entries ").append(getHistoryEntries()).append('\n');
+    }
+
+    private static String metricName(LedgerResult result) {
+        return result.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static String percentileName(double quantile) {
+        String digits = Double.toString(quantile * 100);
+        return "p" + (digits.endsWith(".0") ? digits.substring(0, digits.length() - 2) : digits);
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
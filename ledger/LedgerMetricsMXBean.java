@@ -0,0 +1,18 @@
+package ledger;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link LedgerMetrics}, registered as {@link LedgerMetrics#OBJECT_NAME}.
+ * Keys are {@code operation.result} for counters and
+ * {@code operation.p50} (and so on) for latencies in microseconds.
+ */
+public interface LedgerMetricsMXBean {
+    long getAccounts();
+
+    long getHistoryEntries();
+
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Long> getLatencyMicros();
+}
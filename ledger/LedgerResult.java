@@ -0,0 +1,32 @@
+package ledger;
+
+/**
+ * Outcome of a ledger operation. Rejections carry the message shown to the
+ * customer so every front end reports failures the same way.
+ */
+public enum LedgerResult {
+    OK("OK"),
+    INVALID_AMOUNT("Please enter a positive amount."),
+    INSUFFICIENT_FUNDS("Insufficient funds."),
+    ACCOUNT_NOT_FOUND("Account not found."),
+    RECIPIENT_NOT_FOUND("Recipient not found."),
+    SAME_ACCOUNT("Cannot transfer to yourself."),
+    ACCOUNT_EXISTS("User ID already exists. Please choose a different one."),
+    INVALID_CREDENTIALS("Invalid User ID or PIN."),
+    TOO_MANY_ATTEMPTS("Too many attempts. Please wait and try again."),
+    BUSY("The ATM is busy. Please try again."),
+    SESSION_EXPIRED("Your session has expired. Please log in again."),
+    UNAVAILABLE("The ATM is offline. Please try again later."),
+    DAILY_LIMIT_EXCEEDED("This would exceed your daily withdrawal limit."),
+    VELOCITY_LIMIT_EXCEEDED("Too many withdrawals in a short time. Please try again later."),
+    OPERATION_MISMATCH("This request does not match the one it repeats. Please start again.");
+
+    private final String message;
+
+    LedgerResult(String message) {
+        this.message = message;
+    }
+
+    public boolean isOk() { return this == OK; }
+    public String getMessage() { return message; }
+}
@@ -0,0 +1,568 @@
+package ledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves one {@link Ledger} to many terminals over TCP, speaking the
+ * {@link Protocol} binary format.
+ *
+ * <p>Each connection gets its own thread (a virtual thread where the runtime
+ * has them) that reads requests and applies them in order. Everything a read
+ * returns is handled before the responses are written, so a client that
+ * pipelines requests gets its answers back in as few writes as there were
+ * reads. Logins and registrations are verified on the ledger's verification
+ * pool without holding up the requests behind them; their answers are queued
+ * from a connection thread, so the pool never waits on a slow client. A
+ * connection whose client does not read its answers stops being read once
+ * {@value #PENDING_HIGH_WATER} bytes of them are queued.
+ *
+ * <p>Sessions live in a per-connection table and are addressed by a handle
+ * that combines the slot with a generation drawn from a server-wide count,
+ * so a stale handle never reaches a session that has since reused its slot,
+ * not even one on a client's later connection. Closing a connection closes
+ * its sessions.
+ *
+ * <p>A login or registration is charged to the terminal limit of the
+ * connection's remote address, not to a terminal id of the client's choosing,
+ * so a client cannot dodge the limit by naming a new terminal on every
+ * attempt, nor keep the hashing pool busy with registrations. Terminals that
+ * share an address share a limit; see {@link Ledger#setLoginLimits}.
+ *
+ * <p>A server started with {@link ShardOptions} is one shard of a
+ * {@link ShardedLedger} and tells routers who it is when they ask. It also
+ * listens on a coordinator port, where the steps of a transfer between shards
+ * that need no session are served to routers holding the shared secret, and
+ * nothing else is; see {@link Protocol}.
+ */
+public final class LedgerServer implements Closeable {
+    private static final int READ_BUFFER = 64 << 10;
+    private static final int WRITE_BUFFER = 64 << 10;
+    private static final int PENDING_HIGH_WATER = 4 * WRITE_BUFFER;
+
+    private final Ledger ledger;
+    // Null unless this server is a shard
+    private final ShardOptions shard;
+    private final ServerSocketChannel server;
+    // Null unless this server is a shard
+    private final ServerSocketChannel coordinators;
+    private final ExecutorService connections = newConnectionExecutor();
+    private final Set<Connection> open = ConcurrentHashMap.newKeySet();
+    // Shared by every connection, so a handle is never valid on two connections
+    private final AtomicInteger lastGeneration = new AtomicInteger();
+    private final Thread acceptor;
+    private final Thread coordinatorAcceptor;
+    private volatile boolean closed;
+
+    private LedgerServer(Ledger ledger, ShardOptions shard, ServerSocketChannel server,
+            ServerSocketChannel coordinators) {
+        this.ledger = ledger;
+        this.shard = shard;
+        this.server = server;
+        this.coordinators = coordinators;
+        this.acceptor = new Thread(() -> acceptLoop(server, false), "ledger-server");
+        this.coordinatorAcceptor = coordinators == null ? null
+            : new Thread(() -> acceptLoop(coordinators, true), "ledger-coordinator-server");
+    }
+
+    /** Binds {@code address} (port 0 picks a free port) and starts accepting terminals. */
+    public static LedgerServer start(Ledger ledger, InetSocketAddress address) throws IOException {
+        return start(ledger, address, null);
+    }
+
+    /**
+     * Like {@link #start(Ledger, InetSocketAddress)}, serving as the shard
+     * {@code shard} describes, or as a plain server if it is {@code null}.
+     */
+    public static LedgerServer start(Ledger ledger, InetSocketAddress address, ShardOptions shard)
+            throws IOException {
+        ServerSocketChannel channel = bind(address);
+        ServerSocketChannel coordinators = null;
+        if (shard != null) {
+            InetSocketAddress coordinatorAddress = shard.getCoordinatorAddress();
+            try {
+                coordinators = bind(coordinatorAddress != null ? coordinatorAddress
+                    : new InetSocketAddress(((InetSocketAddress) channel.getLocalAddress()).getAddress(), 0));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        LedgerServer server = new LedgerServer(ledger, shard, channel, coordinators);
+        server.acceptor.start();
+        if (coordinators != null) {
+            server.coordinatorAcceptor.start();
+        }
+        return server;
+    }
+
+    private static ServerSocketChannel bind(InetSocketAddress address) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(address, 1024);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /** Returns the coordinator port, or -1 unless this server is a shard. */
+    public int getCoordinatorPort() {
+        return coordinators == null ? -1 : coordinators.socket().getLocalPort();
+    }
+
+    /** Stops accepting, drops every connection and waits for the acceptor; the ledger stays open. */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        if (coordinators != null) {
+            coordinators.close();
+        }
+        for (Connection connection : open) {
+            connection.close();
+        }
+        connections.shutdownNow();
+        try {
+            acceptor.join();
+            if (coordinatorAcceptor != null) {
+                coordinatorAcceptor.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel listener, boolean coordinator) {
+        while (!closed) {
+            try {
+                SocketChannel channel = listener.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(channel, terminalOf(channel), coordinator);
+                open.add(connection);
+                connections.execute(connection);
+            } catch (ClosedChannelException | RejectedExecutionException e) {
+                return;
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // The address is the one part of a login the client cannot pick per attempt
+    private static int terminalOf(SocketChannel channel) throws IOException {
+        InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        return Arrays.hashCode(address.getAddress());
+    }
+
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "ledger-connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private final class Connection implements Runnable {
+        private final SocketChannel channel;
+        private final int terminalId;
+        // Serves CREDIT, CANCEL and FORGET, once authenticated, and nothing else
+        private final boolean coordinator;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER);
+        private HistoryPage page = new HistoryPage(256);
+
+        // Responses waiting to be written; whoever finds no flush running writes them
+        private final Object outLock = new Object();
+        private ByteBuffer pending = ByteBuffer.allocateDirect(WRITE_BUFFER);
+        private ByteBuffer spare = ByteBuffer.allocateDirect(WRITE_BUFFER);
+        private boolean flushing;
+
+        // Session table; a handle is generation << 32 | slot
+        private Session[] sessions = new Session[8];
+        private int[] generations = new int[8];
+        private int[] free = new int[8];
+        private int freeCount;
+        private int used;
+
+        Connection(SocketChannel channel, int terminalId, boolean coordinator) {
+            this.channel = channel;
+            this.terminalId = terminalId;
+            this.coordinator = coordinator;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (coordinator) {
+                    CoordinatorHandshake.accept(channel, shard.secret());
+                }
+                while (channel.read(in) >= 0) {
+                    in.flip();
+                    while (in.remaining() >= 4) {
+                        int length = in.getInt(in.position());
+                        if (length < Protocol.HEADER - 4 || length > READ_BUFFER - 4) {
+                            throw new IOException("Malformed request frame");
+                        }
+                        if (in.remaining() < 4 + length) {
+                            break;
+                        }
+                        int end = in.position() + 4 + length;
+                        in.position(in.position() + 4);
+                        int id = in.getInt();
+                        byte code = in.get();
+                        if (Protocol.requestBytes(code) != length - (Protocol.HEADER - 4)) {
+                            throw new IOException("Malformed request " + code);
+                        }
+                        if (Protocol.isCoordinatorRequest(code) != coordinator) {
+                            throw new IOException("Request " + code + " is not served on this port");
+                        }
+                        handle(id, code);
+                        in.position(end);
+                    }
+                    in.compact();
+                    flush();
+                    awaitDrained();
+                }
+            } catch (IOException e) {
+                // The peer went away, broke the protocol or failed the handshake; drop it
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                close();
+            }
+        }
+
+        private void handle(int id, byte code) {
+            switch (code) {
+                case Protocol.REGISTER: {
+                    int accountId = in.getInt();
+                    int pin = in.getInt();
+                    long deposit = in.getLong();
+                    ledger.registerAsync(terminalId, accountId, pin, deposit).whenCompleteAsync((result, failure) -> {
+                        synchronized (outLock) {
+                            begin(id, failure == null ? result : LedgerResult.UNAVAILABLE, 0);
+                        }
+                        flushQuietly();
+                    }, connections);
+                    return;
+                }
+                case Protocol.LOGIN: {
+                    int accountId = in.getInt();
+                    int pin = in.getInt();
+                    ledger.loginAsync(terminalId, accountId, pin).whenCompleteAsync((session, failure) -> {
+                        LedgerResult result = failure == null ? session.getResult() : LedgerResult.UNAVAILABLE;
+                        long handle = result.isOk() ? open(session) : 0;
+                        synchronized (outLock) {
+                            begin(id, result, 8).putLong(handle);
+                        }
+                        flushQuietly();
+                    }, connections);
+                    return;
+                }
+                case Protocol.LOGOUT:
+                    logout(in.getLong());
+                    respond(id, LedgerResult.OK);
+                    return;
+                case Protocol.EXISTS: {
+                    boolean exists = ledger.exists(in.getInt());
+                    synchronized (outLock) {
+                        begin(id, LedgerResult.OK, 1).put((byte) (exists ? 1 : 0));
+                    }
+                    return;
+                }
+                case Protocol.BALANCE: {
+                    Session session = session(in.getLong());
+                    long balance = session == null ? Ledger.NO_BALANCE : ledger.balance(session);
+                    LedgerResult result = balance == Ledger.NO_BALANCE ? LedgerResult.SESSION_EXPIRED : LedgerResult.OK;
+                    synchronized (outLock) {
+                        begin(id, result, 8).putLong(balance);
+                    }
+                    return;
+                }
+                case Protocol.DEPOSIT: {
+                    Session session = session(in.getLong());
+                    long amount = in.getLong();
+                    long operationId = in.getLong();
+                    respond(id, session == null ? LedgerResult.SESSION_EXPIRED
+                        : ledger.deposit(session, amount, operationId));
+                    return;
+                }
+                case Protocol.WITHDRAW: {
+                    Session session = session(in.getLong());
+                    long amount = in.getLong();
+                    long operationId = in.getLong();
+                    respond(id, session == null ? LedgerResult.SESSION_EXPIRED
+                        : ledger.withdraw(session, amount, operationId));
+                    return;
+                }
+                case Protocol.TRANSFER: {
+                    Session session = session(in.getLong());
+                    int toId = in.getInt();
+                    long amount = in.getLong();
+                    long operationId = in.getLong();
+                    respond(id, session == null ? LedgerResult.SESSION_EXPIRED
+                        : ledger.transfer(session, toId, amount, operationId));
+                    return;
+                }
+                case Protocol.HISTORY_SIZE: {
+                    Session session = session(in.getLong());
+                    int size = session == null ? 0 : ledger.historySize(session);
+                    synchronized (outLock) {
+                        begin(id, session == null ? LedgerResult.SESSION_EXPIRED : LedgerResult.OK, 4).putInt(size);
+                    }
+                    return;
+                }
+                case Protocol.READ_HISTORY:
+                    readHistory(id, false);
+                    return;
+                case Protocol.COUNT_HISTORY:
+                case Protocol.TOTAL_HISTORY: {
+                    Session session = session(in.getLong());
+                    HistoryQuery query = Protocol.getQuery(in);
+                    LedgerResult result = session == null ? LedgerResult.SESSION_EXPIRED : LedgerResult.OK;
+                    if (code == Protocol.COUNT_HISTORY) {
+                        int count = session == null ? 0 : ledger.countHistory(session, query);
+                        synchronized (outLock) {
+                            begin(id, result, 4).putInt(count);
+                        }
+                    } else {
+                        long total = session == null ? 0 : ledger.totalHistory(session, query);
+                        synchronized (outLock) {
+                            begin(id, result, 8).putLong(total);
+                        }
+                    }
+                    return;
+                }
+                case Protocol.QUERY_HISTORY:
+                    readHistory(id, true);
+                    return;
+                case Protocol.DEBIT: {
+                    Session session = session(in.getLong());
+                    long transferId = in.getLong();
+                    int toId = in.getInt();
+                    long amount = in.getLong();
+                    respond(id, session == null ? LedgerResult.SESSION_EXPIRED
+                        : ledger.debitTransfer(session, transferId, toId, amount));
+                    return;
+                }
+                case Protocol.CREDIT: {
+                    long transferId = in.getLong();
+                    int toId = in.getInt();
+                    int fromId = in.getInt();
+                    long amount = in.getLong();
+                    respond(id, ledger.creditTransfer(transferId, toId, fromId, amount));
+                    return;
+                }
+                case Protocol.CANCEL: {
+                    long transferId = in.getLong();
+                    respond(id, ledger.cancelTransfer(transferId, in.getInt()));
+                    return;
+                }
+                case Protocol.FORGET: {
+                    long transferId = in.getLong();
+                    respond(id, ledger.forgetTransfer(transferId, in.getInt()));
+                    return;
+                }
+                case Protocol.SHARD:
+                    synchronized (outLock) {
+                        if (shard == null) {
+                            begin(id, LedgerResult.UNAVAILABLE, 0);
+                        } else {
+                            Protocol.putShard(begin(id, LedgerResult.OK, Protocol.shardBytes(shard)), shard,
+                                getCoordinatorPort());
+                        }
+                    }
+                    return;
+                default:
+                    throw new IllegalArgumentException("Unknown request " + code);
+            }
+        }
+
+        // READ_HISTORY and QUERY_HISTORY, whose query sits between the session and from
+        private void readHistory(int id, boolean filtered) {
+            Session session = session(in.getLong());
+            HistoryQuery query = filtered ? Protocol.getQuery(in) : null;
+            int from = in.getInt();
+            int capacity = Math.max(1, Math.min(in.getInt(), Protocol.MAX_HISTORY_ROWS));
+            if (page.capacity() != capacity) {
+                page = new HistoryPage(capacity);
+            }
+            int count = session == null ? 0
+                : query == null ? ledger.readHistory(session, from, page)
+                : ledger.readHistory(session, query, from, page);
+            synchronized (outLock) {
+                ByteBuffer out = begin(id, session == null ? LedgerResult.SESSION_EXPIRED : LedgerResult.OK,
+                    4 + count * Protocol.HISTORY_ROW);
+                out.putInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.putLong(page.times[i])
+                        .putLong(page.amounts[i])
+                        .putInt(page.counterparties[i])
+                        .put(page.types[i].code());
+                }
+            }
+        }
+
+        private void respond(int id, LedgerResult result) {
+            synchronized (outLock) {
+                begin(id, result, 0);
+            }
+        }
+
+        // Caller holds outLock
+        private ByteBuffer begin(int id, LedgerResult result, int payload) {
+            int bytes = Protocol.HEADER + payload;
+            if (pending.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(pending.capacity() * 2, pending.position() + bytes));
+                pending.flip();
+                pending = grown.put(pending);
+            }
+            return pending.putInt(bytes - 4).putInt(id).put((byte) result.ordinal());
+        }
+
+        private void flush() throws IOException {
+            synchronized (outLock) {
+                if (flushing) {
+                    return;
+                }
+                flushing = true;
+            }
+            try {
+                while (true) {
+                    ByteBuffer batch;
+                    synchronized (outLock) {
+                        if (pending.position() == 0) {
+                            flushing = false;
+                            return;
+                        }
+                        batch = pending;
+                        pending = spare;
+                        spare = batch;
+                        outLock.notifyAll();
+                    }
+                    batch.flip();
+                    while (batch.hasRemaining()) {
+                        channel.write(batch);
+                    }
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                synchronized (outLock) {
+                    flushing = false;
+                    outLock.notifyAll();
+                }
+                throw e;
+            }
+        }
+
+        // Holds the reader back while another thread is still writing a backlog past the high-water mark
+        private void awaitDrained() throws IOException {
+            synchronized (outLock) {
+                try {
+                    while (flushing && pending.position() >= PENDING_HIGH_WATER) {
+                        outLock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            flush();
+        }
+
+        private void flushQuietly() {
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private synchronized long open(Session session) {
+            int slot;
+            if (freeCount > 0) {
+                slot = free[--freeCount];
+            } else {
+                if (used == sessions.length) {
+                    sessions = Arrays.copyOf(sessions, used * 2);
+                    generations = Arrays.copyOf(generations, used * 2);
+                    free = Arrays.copyOf(free, used * 2);
+                }
+                slot = used++;
+            }
+            sessions[slot] = session;
+            generations[slot] = lastGeneration.incrementAndGet();
+            return (long) generations[slot] << 32 | slot;
+        }
+
+        /** Returns the live session behind {@code handle}, or null once it has ended. */
+        private synchronized Session session(long handle) {
+            int slot = (int) handle;
+            if (slot < 0 || slot >= used || generations[slot] != (int) (handle >>> 32) || sessions[slot] == null) {
+                return null;
+            }
+            Session session = sessions[slot];
+            if (session.isExpired()) {
+                release(slot);
+                return null;
+            }
+            return session;
+        }
+
+        private synchronized void logout(long handle) {
+            Session session = session(handle);
+            if (session != null) {
+                session.close();
+                release((int) handle);
+            }
+        }
+
+        private void release(int slot) {
+            sessions[slot] = null;
+            free[freeCount++] = slot;
+        }
+
+        void close() {
+            open.remove(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+            synchronized (this) {
+                for (int slot = 0; slot < used; slot++) {
+                    if (sessions[slot] != null) {
+                        sessions[slot].close();
+                        release(slot);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package ledger;
+
+import java.io.Closeable;
+
+/**
+ * The operations a terminal needs, served either in-process by a
+ * {@link Ledger} or over the network by a {@link LedgerClient}. Methods block
+ * until the outcome is known, so front ends call them off their UI thread.
+ */
+public interface LedgerService extends Closeable {
+    LedgerResult register(int accountId, int pin, long initialDeposit);
+
+    /** Verifies the PIN and opens a session; see {@link Ledger#login(int, int, int)}. */
+    Session login(int terminalId, int accountId, int pin);
+
+    /** Ends the session; returns without waiting for a remote service to acknowledge it. */
+    void logout(Session session);
+
+    boolean exists(int accountId);
+
+    /** Returns the balance, or {@link Ledger#NO_BALANCE} once the session has expired. */
+    long balance(Session session);
+
+    LedgerResult deposit(Session session, long amount);
+
+    LedgerResult withdraw(Session session, long amount);
+
+    LedgerResult transfer(Session session, int toId, long amount);
+
+    /**
+     * Deposits at most once per {@code operationId}, so a request retried
+     * after an unknown outcome cannot apply twice; see
+     * {@link Ledger#deposit(Session, long, long)}.
+     */
+    LedgerResult deposit(Session session, long amount, long operationId);
+
+    LedgerResult withdraw(Session session, long amount, long operationId);
+
+    LedgerResult transfer(Session session, int toId, long amount, long operationId);
+
+    int historySize(Session session);
+
+    int readHistory(Session session, int from, HistoryPage into);
+
+    /** Returns how many entries match {@code query}, or 0 once the session has expired. */
+    int countHistory(Session session, HistoryQuery query);
+
+    /** Returns the sum of the amounts of the entries matching {@code query}, or 0 once the session has expired. */
+    long totalHistory(Session session, HistoryQuery query);
+
+    /** Copies matches of {@code query} from the {@code from}-th on; see {@link Ledger#readHistory(int, HistoryQuery, int, HistoryPage)}. */
+    int readHistory(Session session, HistoryQuery query, int from, HistoryPage into);
+}
@@ -0,0 +1,66 @@
+package ledger;
+
+/**
+ * Durability settings for a persistent {@link Ledger}.
+ *
+ * <p>With {@code syncCommit} on, every mutation returns only once the log
+ * record is on disk; concurrent mutations share one {@code fsync} (group
+ * commit). {@code groupCommitMicros} adds a short wait before each flush so
+ * more records pile into the batch, trading latency for fewer syncs. With
+ * {@code syncCommit} off, mutations return as soon as they are buffered and
+ * the flusher syncs in the background.
+ *
+ * <p>A positive {@code snapshotIntervalSeconds} makes the ledger write a
+ * snapshot on that period (and on close) and drop the log segments it covers,
+ * so startup only replays the tail written since.
+ */
+public final class LogOptions {
+    private long groupCommitMicros;
+    private boolean syncCommit = true;
+    private int bufferBytes = 1 << 20;
+    private long segmentBytes = 64L << 20;
+    private long snapshotIntervalSeconds;
+
+    public LogOptions groupCommitMicros(long micros) {
+        if (micros < 0) {
+            throw new IllegalArgumentException("groupCommitMicros < 0");
+        }
+        this.groupCommitMicros = micros;
+        return this;
+    }
+
+    public LogOptions syncCommit(boolean sync) {
+        this.syncCommit = sync;
+        return this;
+    }
+
+    public LogOptions bufferBytes(int bytes) {
+        if (bytes < 4096) {
+            throw new IllegalArgumentException("bufferBytes < 4096");
+        }
+        this.bufferBytes = bytes;
+        return this;
+    }
+
+    public LogOptions segmentBytes(long bytes) {
+        if (bytes < 4096 || bytes > (1L << 30)) {
+            throw new IllegalArgumentException("segmentBytes must be between 4 KiB and 1 GiB");
+        }
+        this.segmentBytes = bytes;
+        return this;
+    }
+
+    public LogOptions snapshotIntervalSeconds(long seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("snapshotIntervalSeconds < 0");
+        }
+        this.snapshotIntervalSeconds = seconds;
+        return this;
+    }
+
+    public long getGroupCommitMicros() { return groupCommitMicros; }
+    public boolean isSyncCommit() { return syncCommit; }
+    public int getBufferBytes() { return bufferBytes; }
+    public long getSegmentBytes() { return segmentBytes; }
+    public long getSnapshotIntervalSeconds() { return snapshotIntervalSeconds; }
+}
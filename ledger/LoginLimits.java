@@ -0,0 +1,41 @@
+package ledger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How fast logins may be attempted. Each terminal and each account has a
+ * token bucket that holds {@code burst} attempts and earns one back every
+ * interval; registrations over the network draw on the terminal's bucket
+ * too. The defaults suit customers at their own terminals; a server whose
+ * terminals all reach it from one address (a branch behind NAT, a load
+ * generator) needs a larger terminal burst.
+ */
+public final class LoginLimits {
+    private int terminalBurst = 10;
+    private long terminalIntervalMillis = TimeUnit.SECONDS.toMillis(2);
+    private int accountBurst = 5;
+    private long accountIntervalMillis = TimeUnit.SECONDS.toMillis(12);
+
+    public LoginLimits terminal(int burst, long intervalMillis) {
+        if (burst < 1 || intervalMillis < 1) {
+            throw new IllegalArgumentException("Terminal limits must be positive");
+        }
+        this.terminalBurst = burst;
+        this.terminalIntervalMillis = intervalMillis;
+        return this;
+    }
+
+    public LoginLimits account(int burst, long intervalMillis) {
+        if (burst < 1 || intervalMillis < 1) {
+            throw new IllegalArgumentException("Account limits must be positive");
+        }
+        this.accountBurst = burst;
+        this.accountIntervalMillis = intervalMillis;
+        return this;
+    }
+
+    public int getTerminalBurst() { return terminalBurst; }
+    public long getTerminalIntervalMillis() { return terminalIntervalMillis; }
+    public int getAccountBurst() { return accountBurst; }
+    public long getAccountIntervalMillis() { return accountIntervalMillis; }
+}
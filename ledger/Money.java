@@ -0,0 +1,93 @@
+package ledger;
+
+/**
+ * Fixed-point money helpers. Amounts are {@code long} cents end to end so sums
+ * are exact; parsing and formatting work on caller-supplied buffers and do not
+ * allocate.
+ */
+public final class Money {
+    public static final int CENTS_PER_DOLLAR = 100;
+
+    private Money() {
+    }
+
+    public static long ofDollars(long dollars) {
+        return Math.multiplyExact(dollars, CENTS_PER_DOLLAR);
+    }
+
+    /**
+     * Parses a decimal dollar amount such as {@code "12"}, {@code "12.5"} or
+     * {@code "-0.75"} into cents.
+     *
+     * @throws NumberFormatException if the text is not a plain decimal with at
+     *         most two fraction digits, or does not fit in a {@code long}
+     */
+    public static long parse(CharSequence text) {
+        if (text == null) {
+            throw new NumberFormatException("null");
+        }
+        int start = 0;
+        int end = text.length();
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        int i = start;
+        boolean negative = false;
+        if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        long cents = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        try {
+            for (; i < end; i++) {
+                char c = text.charAt(i);
+                if (c == '.' && fractionDigits < 0) {
+                    fractionDigits = 0;
+                    continue;
+                }
+                if (c < '0' || c > '9' || fractionDigits == 2) {
+                    throw new NumberFormatException("Invalid amount: " + text);
+                }
+                cents = Math.addExact(Math.multiplyExact(cents, 10), c - '0');
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            }
+            if (digits == 0) {
+                throw new NumberFormatException("Invalid amount: " + text);
+            }
+            for (int f = Math.max(fractionDigits, 0); f < 2; f++) {
+                cents = Math.multiplyExact(cents, 10);
+            }
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + text);
+        }
+        return negative ? -cents : cents;
+    }
+
+    /** Appends the amount as {@code $1234.56} (or {@code $-1234.56}) to {@code out}. */
+    public static StringBuilder format(long cents, StringBuilder out) {
+        long dollars = cents / CENTS_PER_DOLLAR;
+        int fraction = (int) (cents % CENTS_PER_DOLLAR);
+        out.append('$');
+        if (cents < 0) {
+            out.append('-');
+            dollars = -dollars;
+            fraction = -fraction;
+        }
+        return out.append(dollars)
+            .append('.')
+            .append((char) ('0' + fraction / 10))
+            .append((char) ('0' + fraction % 10));
+    }
+
+    public static String toString(long cents) {
+        return format(cents, new StringBuilder(24)).toString();
+    }
+}
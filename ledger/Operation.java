@@ -0,0 +1,17 @@
+package ledger;
+
+import java.util.Locale;
+
+/** Kind of ledger call that {@link LedgerMetrics} counts and times. */
+public enum Operation {
+    REGISTER,
+    LOGIN,
+    DEPOSIT,
+    WITHDRAW,
+    TRANSFER;
+
+    private final String metricName = name().toLowerCase(Locale.ROOT);
+
+    /** Returns the lower-case name used in metric labels and keys. */
+    public String getMetricName() { return metricName; }
+}
@@ -0,0 +1,243 @@
+package ledger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Operations this ledger applied recently under a client-supplied id, so
+ * that a request retried after a lost reply is answered from here instead
+ * of moving the money again.
+ *
+ * <p>An id names one operation of one account: entries are keyed by both,
+ * and callers check and record under that account's stripe lock, so two
+ * tries of one operation can never both miss. The table is split into
+ * segments selected from the key, each guarded by its own monitor and
+ * holding a fixed ring of entries in the order they were recorded plus an
+ * open-addressing index into the ring; even a busy account's ids spread over
+ * all of them. Nothing is allocated after construction: an entry lives until
+ * it is {@link #TTL_MILLIS} old or its segment's ring comes round to its
+ * slot again, whichever is first, so a client must retry within that window.
+ */
+final class OperationIds {
+    /** Means the caller supplied no id; such operations are never remembered. */
+    static final long NONE = 0;
+
+    static final int CAPACITY = 1 << 18;
+    static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    // Longs of one entry: id, account above counterparty, amount, and time above kind
+    private static final int ENTRY = 4;
+    private static final int ID = 0;
+    private static final int PARTIES = 1;
+    private static final int AMOUNT = 2;
+    private static final int STAMP = 3;
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    // Index slots hold the low hash bits above the ring position + 1, which takes this many bits
+    private static final int POSITION_BITS = Integer.numberOfTrailingZeros(CAPACITY / SEGMENTS) + 1;
+    private static final int POSITION_MASK = (1 << POSITION_BITS) - 1;
+
+    /** Answers of {@link #compare}. */
+    static final int ABSENT = 0;
+    static final int SAME = 1;
+    static final int DIFFERENT = 2;
+
+    /** Column-wise copy of the live entries, for a {@link Snapshot}. */
+    static final class Copy {
+        int size;
+        long[] ids;
+        int[] accounts;
+        long[] times;
+        byte[] kinds;
+        int[] counterparties;
+        long[] amounts;
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    OperationIds() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(CAPACITY / SEGMENTS);
+        }
+    }
+
+    /**
+     * Returns {@link #ABSENT} if nothing was applied under {@code operationId}
+     * or it has been forgotten, {@link #SAME} if what was applied has this
+     * {@code kind} (a {@link WriteAheadLog} record type), counterparty and
+     * amount, and {@link #DIFFERENT} otherwise.
+     */
+    int compare(int accountId, long operationId, long now, byte kind, int counterparty, long amount) {
+        long h = hash(accountId, operationId);
+        Segment segment = segmentFor(h);
+        synchronized (segment) {
+            int position = segment.live(segment.indexOf(accountId, operationId, h), now);
+            if (position < 0) {
+                return ABSENT;
+            }
+            long[] entries = segment.entries;
+            return kind(entries, position) == kind && (int) entries[position + PARTIES] == counterparty
+                && entries[position + AMOUNT] == amount ? SAME : DIFFERENT;
+        }
+    }
+
+    /** Remembers that {@code kind} was applied under {@code operationId} at {@code time}. */
+    void record(int accountId, long operationId, long time, byte kind, int counterparty, long amount) {
+        long h = hash(accountId, operationId);
+        Segment segment = segmentFor(h);
+        synchronized (segment) {
+            segment.put(accountId, operationId, h, time, kind, counterparty, amount);
+        }
+    }
+
+    /** Like {@link #record}, for entries read back at startup; drops those already too old to matter. */
+    void restore(int accountId, long operationId, long time, byte kind, int counterparty, long amount) {
+        if (time > System.currentTimeMillis() - TTL_MILLIS) {
+            record(accountId, operationId, time, kind, counterparty, amount);
+        }
+    }
+
+    /** Copies every entry not yet expired at {@code now}; callers stop recording first. */
+    Copy copy(long now) {
+        Copy copy = new Copy();
+        copy.ids = new long[CAPACITY];
+        copy.accounts = new int[CAPACITY];
+        copy.times = new long[CAPACITY];
+        copy.kinds = new byte[CAPACITY];
+        copy.counterparties = new int[CAPACITY];
+        copy.amounts = new long[CAPACITY];
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                long[] entries = segment.entries;
+                for (int position = 0; position < entries.length; position += ENTRY) {
+                    if (kind(entries, position) != 0 && now - time(entries, position) < TTL_MILLIS) {
+                        int i = copy.size++;
+                        copy.ids[i] = entries[position + ID];
+                        copy.accounts[i] = (int) (entries[position + PARTIES] >>> 32);
+                        copy.times[i] = time(entries, position);
+                        copy.kinds[i] = kind(entries, position);
+                        copy.counterparties[i] = (int) entries[position + PARTIES];
+                        copy.amounts[i] = entries[position + AMOUNT];
+                    }
+                }
+            }
+        }
+        return copy;
+    }
+
+    private Segment segmentFor(long h) {
+        return segments[(int) (h >>> (64 - SEGMENT_BITS))];
+    }
+
+    // MurmurHash3's 64-bit finalizer over both halves of the key; the top bits pick the segment, the low ones the slot
+    private static long hash(int accountId, long operationId) {
+        long h = operationId ^ (accountId * 0x9E3779B97F4A7C15L);
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static long time(long[] entries, int position) {
+        return entries[position + STAMP] >> 8;
+    }
+
+    private static byte kind(long[] entries, int position) {
+        return (byte) entries[position + STAMP];
+    }
+
+    /** One ring of entries, oldest overwritten first, and a linear-probing index over it. */
+    private static final class Segment {
+        // ENTRY longs per ring position, so an entry's fields share a cache line or two; a stamp of 0
+        // marks a position never used
+        final long[] entries;
+        // Low hash bits above ring position + 1, or 0 if the slot is free; kept at most half full.
+        // Probing and deletion compare and rehash from here without touching the ring.
+        final int[] index;
+        // Offset of the ring position written next
+        int next;
+
+        Segment(int capacity) {
+            entries = new long[capacity * ENTRY];
+            index = new int[capacity * 2];
+        }
+
+        // Returns the index slot holding the key, or -1
+        int indexOf(int accountId, long operationId, long h) {
+            int mask = index.length - 1;
+            for (int slot = home((int) h, mask); ; slot = (slot + 1) & mask) {
+                int entry = index[slot];
+                if (entry == 0) {
+                    return -1;
+                }
+                if (entry >>> POSITION_BITS == (int) h >>> POSITION_BITS) {
+                    int position = ((entry & POSITION_MASK) - 1) * ENTRY;
+                    if (entries[position + ID] == operationId
+                            && (int) (entries[position + PARTIES] >>> 32) == accountId) {
+                        return slot;
+                    }
+                }
+            }
+        }
+
+        // Returns the offset of the entry behind an index slot, or -1 if there is none or it has expired
+        int live(int slot, long now) {
+            if (slot < 0) {
+                return -1;
+            }
+            int position = ((index[slot] & POSITION_MASK) - 1) * ENTRY;
+            return now - time(entries, position) < TTL_MILLIS ? position : -1;
+        }
+
+        void put(int accountId, long operationId, long h, long time, byte kind, int counterparty, long amount) {
+            int slot = indexOf(accountId, operationId, h);
+            int position;
+            if (slot >= 0) {
+                position = ((index[slot] & POSITION_MASK) - 1) * ENTRY;
+            } else {
+                position = next;
+                next = (next + ENTRY) & (entries.length - 1);
+                if (entries[position + STAMP] != 0) {
+                    forget(position);
+                }
+                int mask = index.length - 1;
+                slot = home((int) h, mask);
+                while (index[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                index[slot] = (int) h & ~POSITION_MASK | (position / ENTRY + 1);
+                entries[position + ID] = operationId;
+            }
+            entries[position + PARTIES] = (long) accountId << 32 | (counterparty & 0xFFFFFFFFL);
+            entries[position + AMOUNT] = amount;
+            entries[position + STAMP] = time << 8 | (kind & 0xFF);
+        }
+
+        // Drops the index slot of the entry about to be overwritten, found by its ring position
+        private void forget(int position) {
+            long h = hash((int) (entries[position + PARTIES] >>> 32), entries[position + ID]);
+            int mask = index.length - 1;
+            int slot = home((int) h, mask);
+            while ((index[slot] & POSITION_MASK) != position / ENTRY + 1) {
+                slot = (slot + 1) & mask;
+            }
+            remove(slot);
+        }
+
+        // Index slot where probing for a hash, or the index entry made from it, starts
+        private static int home(int h, int mask) {
+            return (h >>> POSITION_BITS) & mask;
+        }
+
+        // Backward-shift deletion: pulls later entries of the probe run into the hole so lookups never stop early
+        private void remove(int hole) {
+            int mask = index.length - 1;
+            for (int slot = (hole + 1) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+                int home = home(index[slot], mask);
+                if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                    index[hole] = index[slot];
+                    hole = slot;
+                }
+            }
+            index[hole] = 0;
+        }
+    }
+}
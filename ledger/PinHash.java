@@ -0,0 +1,90 @@
+package ledger;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 hash of a PIN, as stored by the ledger.
+ *
+ * <p>The encoded form is {@value #BYTES} bytes: the iteration count, a
+ * random salt and the derived key. Carrying the iteration count lets the
+ * cost be raised later without touching records hashed at the old cost.
+ * Deriving a hash is deliberately slow, so the ledger does it on its
+ * verification pool; callers that register many accounts at once (tests,
+ * benchmarks, imports) can hash once and pass the result to
+ * {@link Ledger#register(int, PinHash, long)}.
+ */
+public final class PinHash {
+    public static final int DEFAULT_ITERATIONS = 120_000;
+    static final int SALT_OFFSET = 4;
+    static final int SALT_BYTES = 16;
+    private static final int KEY_OFFSET = SALT_OFFSET + SALT_BYTES;
+    private static final int KEY_BYTES = 32;
+    static final int BYTES = KEY_OFFSET + KEY_BYTES;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final byte[] encoded;
+
+    private PinHash(byte[] encoded) {
+        this.encoded = encoded;
+    }
+
+    public static PinHash create(int pin) {
+        return create(pin, DEFAULT_ITERATIONS);
+    }
+
+    public static PinHash create(int pin, int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations < 1");
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return new PinHash(ByteBuffer.allocate(BYTES)
+            .putInt(iterations)
+            .put(salt)
+            .put(derive(pin, salt, iterations))
+            .array());
+    }
+
+    /** Wraps an encoded hash read back from the store, log or a snapshot. */
+    static PinHash decode(byte[] encoded) {
+        if (encoded.length != BYTES) {
+            throw new IllegalArgumentException("Encoded PIN hash must be " + BYTES + " bytes");
+        }
+        return new PinHash(encoded);
+    }
+
+    /** Re-derives the hash for {@code pin} and compares it in constant time. */
+    boolean matches(int pin) {
+        byte[] salt = Arrays.copyOfRange(encoded, SALT_OFFSET, KEY_OFFSET);
+        byte[] key = derive(pin, salt, iterations());
+        return MessageDigest.isEqual(key, Arrays.copyOfRange(encoded, KEY_OFFSET, BYTES));
+    }
+
+    int iterations() {
+        return ByteBuffer.wrap(encoded).getInt(0);
+    }
+
+    /** Returns the encoded form; callers must not modify it. */
+    byte[] encoded() {
+        return encoded;
+    }
+
+    private static byte[] derive(int pin, byte[] salt, int iterations) {
+        char[] chars = Integer.toString(pin).toCharArray();
+        PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, KEY_BYTES * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(chars, '\0');
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package ledger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary wire format shared by {@link LedgerServer} and {@link LedgerClient}.
+ *
+ * <p>Every message is a frame of {@code [int length][int id][byte code]}
+ * followed by a fixed payload, where {@code length} counts the bytes after
+ * itself. A request's code is one of the operations below; the response
+ * repeats the request id and carries the {@link LedgerResult} ordinal as its
+ * code. Clients may pipeline any number of requests. Responses may come back
+ * out of order (a login finishes on the verification pool while later
+ * requests are answered), so clients match them by id; requests of one
+ * connection are still applied in the order they were sent.
+ *
+ * <pre>
+ * request                                       response payload
+ * REGISTER     account, pin, deposit(long)      -
+ * LOGIN        account, pin                     session(long)
+ * LOGOUT       session(long)                    -
+ * EXISTS       account                          exists(byte)
+ * BALANCE      session(long)                    balance(long)
+ * DEPOSIT      session(long), amount(long), operation(long)      -
+ * WITHDRAW     session(long), amount(long), operation(long)      -
+ * TRANSFER     session(long), to, amount(long), operation(long)  -
+ * HISTORY_SIZE session(long)                    size
+ * READ_HISTORY session(long), from, capacity    count, count x (time(long), amount(long), counterparty, type(byte))
+ * COUNT_HISTORY session(long), query            count
+ * TOTAL_HISTORY session(long), query            total(long)
+ * QUERY_HISTORY session(long), query, from, capacity   as READ_HISTORY
+ * DEBIT        session(long), transfer(long), to, amount(long)  -
+ * SHARD        -                                coordinator port, id(string), count, count x id(string)
+ *
+ * coordinator request                           response payload
+ * CREDIT       transfer(long), to, from, amount(long)           -
+ * CANCEL       transfer(long), from                             -
+ * FORGET       transfer(long), account                          -
+ * </pre>
+ *
+ * DEBIT, CREDIT and CANCEL are the steps of a transfer between shards (see
+ * {@link ShardedLedger}), and FORGET tells a shard the transfer is over.
+ * DEBIT acts on the sender's session like any withdrawal. The others need no
+ * session, so a shard serves them only on its coordinator port, after the
+ * peer has passed the {@link CoordinatorHandshake}; that port serves nothing
+ * else, and a connection sending a request on the wrong port is dropped.
+ *
+ * <p>An operation id of 0 means the client supplied none; see
+ * {@link Ledger#deposit(Session, long, long)}. LOGIN carries no terminal:
+ * the server takes it from the connection. SHARD asks a server for its
+ * shard id, the ids of its whole ring and its coordinator port (see
+ * {@link ShardOptions}); one that is not a shard answers
+ * {@link LedgerResult#UNAVAILABLE}.
+ *
+ * A query is {@code since(long), until(long), type mask(byte),
+ * has counterparty(byte), counterparty}. A string is its UTF-8 length as an
+ * unsigned byte, then the bytes. All numbers are big-endian; unmarked fields
+ * are {@code int}s.
+ */
+final class Protocol {
+    static final byte REGISTER = 1;
+    static final byte LOGIN = 2;
+    static final byte LOGOUT = 3;
+    static final byte EXISTS = 4;
+    static final byte BALANCE = 5;
+    static final byte DEPOSIT = 6;
+    static final byte WITHDRAW = 7;
+    static final byte TRANSFER = 8;
+    static final byte HISTORY_SIZE = 9;
+    static final byte READ_HISTORY = 10;
+    static final byte COUNT_HISTORY = 11;
+    static final byte TOTAL_HISTORY = 12;
+    static final byte QUERY_HISTORY = 13;
+    static final byte DEBIT = 14;
+    static final byte CREDIT = 15;
+    static final byte CANCEL = 16;
+    static final byte SHARD = 17;
+    static final byte FORGET = 18;
+
+    /** Length, id and code. */
+    static final int HEADER = 4 + 4 + 1;
+    static final int HISTORY_ROW = 8 + 8 + 4 + 1;
+    static final int QUERY = 8 + 8 + 1 + 1 + 4;
+    static final int MAX_HISTORY_ROWS = 1024;
+    static final int MAX_FRAME = 4 + MAX_HISTORY_ROWS * HISTORY_ROW + HEADER;
+
+    private static final LedgerResult[] RESULTS = LedgerResult.values();
+
+    private Protocol() {
+    }
+
+    /** Returns the payload size of a request, or -1 for an unknown code. */
+    static int requestBytes(byte code) {
+        switch (code) {
+            case REGISTER:
+                return 4 + 4 + 8;
+            case LOGIN:
+                return 4 + 4;
+            case LOGOUT:
+            case BALANCE:
+            case HISTORY_SIZE:
+                return 8;
+            case EXISTS:
+                return 4;
+            case DEPOSIT:
+            case WITHDRAW:
+                return 8 + 8 + 8;
+            case TRANSFER:
+                return 8 + 4 + 8 + 8;
+            case READ_HISTORY:
+                return 8 + 4 + 4;
+            case COUNT_HISTORY:
+            case TOTAL_HISTORY:
+                return 8 + QUERY;
+            case QUERY_HISTORY:
+                return 8 + QUERY + 4 + 4;
+            case DEBIT:
+                return 8 + 8 + 4 + 8;
+            case CREDIT:
+                return 8 + 4 + 4 + 8;
+            case CANCEL:
+            case FORGET:
+                return 8 + 4;
+            case SHARD:
+                return 0;
+            default:
+                return -1;
+        }
+    }
+
+    /** True for the requests served only on a shard's coordinator port. */
+    static boolean isCoordinatorRequest(byte code) {
+        return code == CREDIT || code == CANCEL || code == FORGET;
+    }
+
+    static LedgerResult result(byte code) {
+        return code >= 0 && code < RESULTS.length ? RESULTS[code] : LedgerResult.UNAVAILABLE;
+    }
+
+    static ByteBuffer putQuery(ByteBuffer out, HistoryQuery query) {
+        return out.putLong(query.getSinceMillis())
+            .putLong(query.getUntilMillis())
+            .put((byte) query.typeMask())
+            .put((byte) (query.hasCounterparty() ? 1 : 0))
+            .putInt(query.getCounterparty());
+    }
+
+    static int shardBytes(ShardOptions shard) {
+        int bytes = 4 + stringBytes(shard.getId()) + 4;
+        for (String id : shard.getRing()) {
+            bytes += stringBytes(id);
+        }
+        return bytes;
+    }
+
+    static ByteBuffer putShard(ByteBuffer out, ShardOptions shard, int coordinatorPort) {
+        putString(out.putInt(coordinatorPort), shard.getId()).putInt(shard.getRing().size());
+        for (String id : shard.getRing()) {
+            putString(out, id);
+        }
+        return out;
+    }
+
+    static ShardInfo getShard(ByteBuffer in) {
+        int coordinatorPort = in.getInt();
+        String id = getString(in);
+        int count = in.getInt();
+        List<String> ring = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ring.add(getString(in));
+        }
+        return new ShardInfo(id, ring, coordinatorPort);
+    }
+
+    private static int stringBytes(String value) {
+        return 1 + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static ByteBuffer putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return out.put((byte) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.get() & 0xFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static HistoryQuery getQuery(ByteBuffer in) {
+        HistoryQuery query = new HistoryQuery().since(in.getLong()).until(in.getLong());
+        int mask = in.get();
+        boolean hasCounterparty = in.get() != 0;
+        int counterparty = in.getInt();
+        // An empty mask would match nothing; a well-behaved client never sends one
+        if ((mask & HistoryQuery.ALL_TYPES) != 0) {
+            query.typeMask(mask);
+        }
+        return hasCounterparty ? query.counterparty(counterparty) : query;
+    }
+}
@@ -0,0 +1,223 @@
+package ledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A {@link ShardedLedger}'s record of the transfers between shards it has
+ * started and not finished, kept in a {@link WriteAheadLog} of its own. Each
+ * step is on disk before the router acts on it: the start before the debit is
+ * sent, the debit's success before the credit is, and the decision to cancel
+ * before the cancellation is. A router that stops midway finds the open
+ * transfers here on its next start and finishes them: a debit known to have
+ * succeeded is credited, anything earlier is cancelled. Shards apply each step
+ * at most once, so repeating one that had already landed is harmless.
+ *
+ * <p>Every record carries the whole transfer, so any one of them is enough to
+ * resume it. Finishing is logged without waiting for the disk; if that record
+ * is lost the last step is simply sent again. Only once it is on disk may the
+ * shards forget the transfer, which {@link #finished()} waits for. Segments
+ * older than every open transfer are deleted by {@link #compact()}.
+ */
+final class SagaLog implements Closeable {
+    /** Where a transfer stands: the type of the last record logged for it. */
+    static final byte BEGUN = WriteAheadLog.SAGA_BEGIN;
+    static final byte DEBITED = WriteAheadLog.SAGA_DEBITED;
+    static final byte CANCELLING = WriteAheadLog.SAGA_CANCEL;
+
+    private static final String LOCK_FILE = "saga.lock";
+
+    private final WriteAheadLog log;
+    private final FileChannel dirLock;
+    // Open transfers by sender and transfer id; shards key their steps the same way
+    private final ConcurrentHashMap<Key, Saga> open;
+    // Finished transfers that reached a shard, until finished() hands them out
+    private final ConcurrentLinkedQueue<Saga> finished = new ConcurrentLinkedQueue<>();
+
+    private SagaLog(WriteAheadLog log, FileChannel dirLock, ConcurrentHashMap<Key, Saga> open) {
+        this.log = log;
+        this.dirLock = dirLock;
+        this.open = open;
+    }
+
+    /**
+     * Opens (or creates) the log in {@code dir} and replays the transfers left
+     * open. The directory is locked until {@link #close()}, so two routers
+     * never finish the same transfers.
+     */
+    static SagaLog open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        FileChannel dirLock = Ledger.lock(dir.resolve(LOCK_FILE));
+        try {
+            long firstLsn = WriteAheadLog.firstLsn(dir);
+            ConcurrentHashMap<Key, Saga> open = new ConcurrentHashMap<>();
+            WriteAheadLog log = WriteAheadLog.open(dir, new LogOptions(), firstLsn,
+                (type, time, fromId, toId, amount, transferId, credential) -> {
+                    Key key = new Key(fromId, transferId);
+                    if (type == WriteAheadLog.SAGA_DONE) {
+                        open.remove(key);
+                    } else {
+                        open.computeIfAbsent(key, k -> new Saga(fromId, toId, amount, transferId, firstLsn))
+                            .state = type;
+                    }
+                });
+            return new SagaLog(log, dirLock, open);
+        } catch (IOException | RuntimeException e) {
+            dirLock.close();
+            throw e;
+        }
+    }
+
+    /** Returns the transfers still open, as replayed or since begun. */
+    List<Saga> openSagas() {
+        return new ArrayList<>(open.values());
+    }
+
+    /**
+     * Logs the start of a transfer and waits for it to reach the disk. Returns
+     * null without logging if the same sender already has a transfer open
+     * under {@code transferId}; see {@link #find}.
+     */
+    Saga begin(int fromId, int toId, long amount, long transferId) {
+        Saga saga = new Saga(fromId, toId, amount, transferId, 0);
+        if (open.putIfAbsent(new Key(fromId, transferId), saga) != null) {
+            return null;
+        }
+        try {
+            saga.lsn = write(saga, BEGUN, true);
+        } catch (RuntimeException e) {
+            open.remove(new Key(fromId, transferId));
+            throw e;
+        }
+        return saga;
+    }
+
+    /** Returns the open transfer of {@code fromId} under {@code transferId}, or null. */
+    Saga find(int fromId, long transferId) {
+        return open.get(new Key(fromId, transferId));
+    }
+
+    /** Logs that the sender's shard took the debit; from here the transfer can only be credited. */
+    void debited(Saga saga) {
+        write(saga, DEBITED, true);
+    }
+
+    /** Logs that the debit is to be cancelled; from here the transfer can only be refunded. */
+    void cancelling(Saga saga) {
+        write(saga, CANCELLING, true);
+    }
+
+    /** Logs that the last step landed; the transfer is forgotten. */
+    void done(Saga saga) {
+        // A transfer whose debit was refused left no step on any shard
+        boolean reachedShard = saga.state != BEGUN;
+        write(saga, WriteAheadLog.SAGA_DONE, false);
+        open.remove(new Key(saga.fromId, saga.transferId));
+        if (reachedShard) {
+            finished.add(saga);
+        }
+    }
+
+    /**
+     * Returns the transfers finished since the last call that may have left
+     * steps on the shards, once their finishing is on disk. A caller that
+     * cannot pass one on hands it back through {@link #forgetLater}.
+     */
+    List<Saga> finished() {
+        List<Saga> sagas = new ArrayList<>();
+        for (Saga saga; (saga = finished.poll()) != null; ) {
+            sagas.add(saga);
+        }
+        if (!sagas.isEmpty()) {
+            // Every one of them was appended before this
+            log.sync(log.appendedLsn());
+        }
+        return sagas;
+    }
+
+    /** Returns a finished transfer to be handed out again by the next {@link #finished()}. */
+    void forgetLater(Saga saga) {
+        finished.add(saga);
+    }
+
+    /** Deletes the segments that only hold finished transfers. */
+    void compact() throws IOException {
+        long keep = log.appendedLsn();
+        for (Saga saga : open.values()) {
+            // A transfer still being begun has lsn 0 and keeps everything until the next round
+            keep = Math.min(keep, saga.lsn);
+        }
+        log.deleteSegmentsBefore(keep);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            log.close();
+        } finally {
+            dirLock.close();
+        }
+    }
+
+    // Returns the LSN the record starts at; the state changes only once the record is logged
+    private long write(Saga saga, byte type, boolean sync) {
+        long start;
+        long end;
+        synchronized (this) {
+            start = log.appendedLsn();
+            end = log.append(type, System.currentTimeMillis(), saga.fromId, saga.toId, saga.amount,
+                saga.transferId, null);
+        }
+        if (sync) {
+            log.sync(end);
+        }
+        saga.state = type;
+        return start;
+    }
+
+    /** One transfer between shards, as the router knows it. */
+    static final class Saga {
+        final int fromId;
+        final int toId;
+        final long amount;
+        final long transferId;
+        volatile byte state;
+        // Where its first record starts (the log's first segment, if carried over); kept while it is open
+        volatile long lsn;
+
+        Saga(int fromId, int toId, long amount, long transferId, long lsn) {
+            this.fromId = fromId;
+            this.toId = toId;
+            this.amount = amount;
+            this.transferId = transferId;
+            this.lsn = lsn;
+        }
+    }
+
+    private static final class Key {
+        private final int fromId;
+        private final long transferId;
+
+        Key(int fromId, long transferId) {
+            this.fromId = fromId;
+            this.transferId = transferId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).fromId == fromId && ((Key) o).transferId == transferId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(transferId) * 31 + fromId;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package ledger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A logged-in customer at one terminal.
+ *
+ * <p>A session pins the account's ordinal, so operations made through it go
+ * straight to the account's slot without an id lookup. It also remembers the
+ * version stamp and balance it last read: while the stamp is unchanged,
+ * {@link Ledger#balance(Session)} returns the remembered balance after a
+ * single memory read, and a changed stamp is the cheap signal that someone
+ * else moved money in the meantime.
+ *
+ * <p>{@link Ledger#login} always returns a session; check {@link #getResult()}
+ * first, since a refused login yields one that is already closed and carries
+ * the reason.
+ *
+ * <p>A session expires after {@link #IDLE_TIMEOUT_SECONDS} without use, or
+ * when closed; operations on it then return
+ * {@link LedgerResult#SESSION_EXPIRED}. Sessions are meant to be used by one
+ * customer at a time and are not safe for concurrent operations.
+ *
+ * <p>A session belongs to the {@link LedgerService} that opened it. One opened
+ * by a {@link LedgerClient} pins no slot locally; it carries the handle of
+ * the server-side session instead.
+ */
+public final class Session {
+    public static final long IDLE_TIMEOUT_SECONDS = 120;
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(IDLE_TIMEOUT_SECONDS);
+
+    final int accountId;
+    final int ordinal;
+    // Server-side session of a client session, otherwise 0
+    final long handle;
+    private final int terminalId;
+    private final LedgerResult result;
+    volatile long lastUsedNanos = System.nanoTime();
+    private volatile boolean closed;
+
+    // Last consistent read; an odd stamp never matches a published version
+    long seenVersion = 1;
+    long seenBalance;
+
+    Session(int terminalId, int accountId, int ordinal) {
+        this(terminalId, accountId, ordinal, 0, LedgerResult.OK);
+    }
+
+    private Session(int terminalId, int accountId, int ordinal, long handle, LedgerResult result) {
+        this.terminalId = terminalId;
+        this.accountId = accountId;
+        this.ordinal = ordinal;
+        this.handle = handle;
+        this.result = result;
+        this.closed = !result.isOk();
+    }
+
+    static Session refused(int terminalId, int accountId, LedgerResult reason) {
+        return new Session(terminalId, accountId, -1, 0, reason);
+    }
+
+    static Session remote(int terminalId, int accountId, long handle) {
+        return new Session(terminalId, accountId, -1, handle, LedgerResult.OK);
+    }
+
+    /** Returns {@link LedgerResult#OK} for an open session, otherwise why the login was refused. */
+    public LedgerResult getResult() {
+        return result;
+    }
+
+    public int getAccountId() {
+        return accountId;
+    }
+
+    public int getTerminalId() {
+        return terminalId;
+    }
+
+    public boolean isExpired() {
+        return closed || System.nanoTime() - lastUsedNanos > IDLE_TIMEOUT_NANOS;
+    }
+
+    /** Ends the session; later operations through it are rejected. */
+    public void close() {
+        closed = true;
+    }
+
+    /** Returns false if the session has expired, otherwise marks it as just used. */
+    boolean touch() {
+        if (isExpired()) {
+            closed = true;
+            return false;
+        }
+        lastUsedNanos = System.nanoTime();
+        return true;
+    }
+}
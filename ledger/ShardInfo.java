@@ -0,0 +1,19 @@
+package ledger;
+
+import java.util.List;
+
+/**
+ * What a shard announces about itself to a router: its id, the ids of every
+ * shard it belongs with, and the port its coordinator steps are served on.
+ */
+final class ShardInfo {
+    final String id;
+    final List<String> ring;
+    final int coordinatorPort;
+
+    ShardInfo(String id, List<String> ring, int coordinatorPort) {
+        this.id = id;
+        this.ring = ring;
+        this.coordinatorPort = coordinatorPort;
+    }
+}
@@ -0,0 +1,91 @@
+package ledger;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Identity of a {@link LedgerServer} serving as one shard of a
+ * {@link ShardedLedger}: its own id and the ids of every shard in the
+ * deployment. Ids name shards independently of where they run, so a shard
+ * keeps its accounts when it moves to another host or port; the server
+ * announces both to every router, which refuses to start unless all shards
+ * agree.
+ *
+ * <p>The steps of a transfer between shards that act for the router rather
+ * than a customer's session (crediting the recipient, cancelling a debit)
+ * are served on a separate coordinator port, to peers that prove they hold
+ * the {@code secret} shared by the shards and their routers. Unless set,
+ * the coordinator port is a free one on the terminal port's address; routers
+ * learn it from the shard.
+ */
+public final class ShardOptions {
+    /** Longest id in UTF-8 bytes. */
+    static final int MAX_ID_BYTES = 255;
+    /** Most shards in one ring, so an announcement fits in one response frame. */
+    static final int MAX_SHARDS = 64;
+
+    private final String id;
+    private final List<String> ring;
+    private final byte[] secret;
+    private InetSocketAddress coordinatorAddress;
+
+    /**
+     * @param id this shard's id, which must appear in {@code ring}
+     * @param ring the ids of every shard, this one included, in any order
+     * @param secret key shared with the routers, at least 16 bytes
+     */
+    public ShardOptions(String id, List<String> ring, byte[] secret) {
+        if (secret.length < CoordinatorHandshake.MIN_SECRET_BYTES) {
+            throw new IllegalArgumentException("Shard secret shorter than "
+                + CoordinatorHandshake.MIN_SECRET_BYTES + " bytes");
+        }
+        if (ring.size() > MAX_SHARDS) {
+            throw new IllegalArgumentException("More than " + MAX_SHARDS + " shards");
+        }
+        if (!ring.contains(id)) {
+            throw new IllegalArgumentException("Shard " + id + " is not in its ring " + ring);
+        }
+        if (new HashSet<>(ring).size() != ring.size()) {
+            throw new IllegalArgumentException("Duplicate shard id in " + ring);
+        }
+        for (String shard : ring) {
+            checkId(shard);
+        }
+        this.id = id;
+        this.ring = List.copyOf(ring);
+        this.secret = secret.clone();
+    }
+
+    /** Binds the coordinator port to {@code address}; port 0 picks a free one. */
+    public ShardOptions coordinatorAddress(InetSocketAddress address) {
+        this.coordinatorAddress = address;
+        return this;
+    }
+
+    public String getId() { return id; }
+    public List<String> getRing() { return ring; }
+    public InetSocketAddress getCoordinatorAddress() { return coordinatorAddress; }
+
+    byte[] secret() {
+        return secret;
+    }
+
+    /** Splits a comma-separated list of shard ids, such as a command-line argument. */
+    public static List<String> parseRing(String ids) {
+        List<String> ring = new ArrayList<>();
+        for (String id : ids.split(",")) {
+            ring.add(id.trim());
+        }
+        return ring;
+    }
+
+    private static void checkId(String id) {
+        int bytes = id.getBytes(StandardCharsets.UTF_8).length;
+        if (bytes == 0 || bytes > MAX_ID_BYTES || id.indexOf(',') >= 0) {
+            throw new IllegalArgumentException("Bad shard id '" + id + "'");
+        }
+    }
+}
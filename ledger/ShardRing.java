@@ -0,0 +1,66 @@
+package ledger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent-hash ring assigning account ids to shards.
+ *
+ * <p>Each shard is placed on the ring at {@link #POINTS_PER_SHARD} points
+ * hashed from its id, and an account belongs to the shard owning the first
+ * point at or after the account's own hash. Many points per shard keep the
+ * shares even, and adding or removing a shard moves only the accounts next
+ * to its points, about one in {@code n}. Positions depend only on the ids,
+ * so every router given the same shards routes every account alike.
+ */
+final class ShardRing {
+    private static final int POINTS_PER_SHARD = 160;
+
+    // Ring positions in ascending order and the shard at each
+    private final long[] points;
+    private final int[] owners;
+
+    ShardRing(List<String> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No shards");
+        }
+        long[][] placed = new long[shards.size() * POINTS_PER_SHARD][];
+        for (int shard = 0; shard < shards.size(); shard++) {
+            for (int i = 0; i < POINTS_PER_SHARD; i++) {
+                placed[shard * POINTS_PER_SHARD + i] = new long[] {hash(shards.get(shard) + "#" + i), shard};
+            }
+        }
+        Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[placed.length];
+        owners = new int[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = (int) placed[i][1];
+        }
+    }
+
+    int shardOf(int accountId) {
+        int i = Arrays.binarySearch(points, mix(accountId));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    // FNV-1a over the UTF-8 bytes, then mixed so nearby names land far apart
+    private static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // MurmurHash3's 64-bit finalizer
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -0,0 +1,538 @@
+package ledger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link LedgerService} over several {@link LedgerServer}s, each holding the
+ * accounts a {@link ShardRing} assigns to it. Callers see one ledger: every
+ * operation on a session goes to its account's shard, so shards never talk
+ * to each other and single-account work scales with the number of shards.
+ *
+ * <p>A transfer between accounts on different shards runs as a saga of
+ * idempotent steps keyed by a transfer id: the caller's operation id if it
+ * gave one, so a retried transfer resumes the same saga, or else one unique
+ * to this router:
+ * <ol>
+ * <li>the recipient's shard confirms the recipient exists, unless this
+ *     router has seen it before;
+ * <li>the sender's shard debits the sender, with the checks and limits of a
+ *     withdrawal;
+ * <li>the recipient's shard credits the recipient.
+ * </ol>
+ * A credit that fails for good (the recipient cannot take the money) is
+ * compensated by cancelling the debit, which refunds the sender. A debit
+ * whose reply was lost is cancelled too, which refunds it if it was applied
+ * and fences it off if it was not, and the transfer answers
+ * {@link LedgerResult#UNAVAILABLE}. A credit that cannot reach its shard is
+ * retried in the background until it lands; the money has left the sender,
+ * so the transfer answers {@link LedgerResult#OK}. Shards remember every step
+ * they applied, by transfer id and the account it touched (see
+ * {@link TransferSteps}), so repeating one after a lost reply never moves
+ * money twice. A transfer cancelled this way stays cancelled: retrying it
+ * under the same operation id answers {@link LedgerResult#UNAVAILABLE} again.
+ * Once a finished transfer is on disk in the saga log the router tells both
+ * shards to forget it, which they do after the same retry window as any
+ * operation id ({@link OperationIds#TTL_MILLIS}), so their tables stay
+ * bounded.
+ *
+ * <p>The router logs each step to a {@link SagaLog} in its own directory
+ * before taking it, and on {@link #connect} finishes whatever the last
+ * router to use that directory left open. Finished transfers are passed on
+ * to the shards to forget once a minute and on {@link #close()}.
+ *
+ * <p>Accounts are placed by shard id (see {@link ShardOptions}), not by
+ * address. Credits and cancellations go over a second connection to each
+ * shard's coordinator port, authenticated with the secret the shards were
+ * given. A shard whose connection drops is reconnected on next use, at most
+ * once a second, and only taken back if it still announces the same id.
+ * Sessions opened on the old connection then answer as expired.
+ */
+public final class ShardedLedger implements LedgerService {
+    private static final int CREDIT_ATTEMPTS = 4;
+    private static final long RETRY_MILLIS = 25;
+    private static final long REDELIVERY_MILLIS = 1_000;
+    private static final long RECONNECT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int RECIPIENT_SLOTS = 1 << 14;
+    private static final long COMPACT_SECONDS = 60;
+
+    private final InetSocketAddress[] addresses;
+    private final String[] ids;
+    private final byte[] secret;
+    private final AtomicReferenceArray<LedgerClient> clients;
+    private final AtomicReferenceArray<LedgerClient> coordinators;
+    // Guarded by this
+    private final long[] reconnectedAt;
+    private final long[] coordinatorReconnectedAt;
+    private final ShardRing ring;
+    private final AtomicLong transferIds = new AtomicLong(new SecureRandom().nextLong());
+    // Recipients already seen to exist, direct-mapped; accounts are never removed, so an entry never goes stale
+    private final AtomicLongArray knownRecipients = new AtomicLongArray(RECIPIENT_SLOTS);
+    private final SagaLog sagas;
+    private final ScheduledExecutorService redelivery = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ledger-saga");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ShardedLedger(InetSocketAddress[] addresses, String[] ids, byte[] secret, LedgerClient[] clients,
+            LedgerClient[] coordinators, SagaLog sagas) {
+        this.addresses = addresses;
+        this.ids = ids;
+        this.secret = secret;
+        this.sagas = sagas;
+        this.clients = new AtomicReferenceArray<>(clients);
+        this.coordinators = new AtomicReferenceArray<>(coordinators);
+        this.reconnectedAt = new long[clients.length];
+        this.coordinatorReconnectedAt = new long[clients.length];
+        this.ring = new ShardRing(Arrays.asList(ids));
+    }
+
+    /**
+     * Connects to every shard, in any order, asks each for its id and ring,
+     * and opens its coordinator port with {@code secret}. Transfers between
+     * shards that the saga log in {@code sagaDir} still holds open are then
+     * finished in the background.
+     *
+     * @throws IOException if a shard cannot be reached or is not serving as
+     *         one, two shards share an id, any shard's ring differs from the
+     *         ids of the shards listed here, a shard does not accept
+     *         {@code secret}, or another router has {@code sagaDir} open
+     */
+    public static ShardedLedger connect(List<InetSocketAddress> shards, byte[] secret, Path sagaDir)
+            throws IOException {
+        InetSocketAddress[] addresses = shards.toArray(new InetSocketAddress[0]);
+        LedgerClient[] clients = new LedgerClient[addresses.length];
+        LedgerClient[] coordinators = new LedgerClient[addresses.length];
+        SagaLog sagas = SagaLog.open(sagaDir);
+        try {
+            for (int i = 0; i < addresses.length; i++) {
+                clients[i] = LedgerClient.connect(addresses[i]);
+            }
+            ShardInfo[] announced = identify(addresses, clients);
+            String[] ids = new String[addresses.length];
+            for (int i = 0; i < addresses.length; i++) {
+                ids[i] = announced[i].id;
+                coordinators[i] = LedgerClient.connectCoordinator(coordinatorAddress(addresses[i], announced[i]),
+                    secret);
+            }
+            ShardedLedger ledger = new ShardedLedger(addresses, ids, secret.clone(), clients, coordinators, sagas);
+            try {
+                ledger.resume();
+            } catch (RuntimeException e) {
+                ledger.redelivery.shutdownNow();
+                throw e;
+            }
+            return ledger;
+        } catch (IOException | RuntimeException e) {
+            for (LedgerClient client : clients) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+            for (LedgerClient client : coordinators) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+            sagas.close();
+            throw e;
+        }
+    }
+
+    // Every shard must name exactly the shards reached as its ring, or the two sides would place accounts apart
+    private static ShardInfo[] identify(InetSocketAddress[] addresses, LedgerClient[] clients) throws IOException {
+        String[] ids = new String[clients.length];
+        ShardInfo[] shards = new ShardInfo[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            shards[i] = clients[i].shardAsync().join();
+            if (shards[i] == null) {
+                throw new IOException(addresses[i] + " is not serving as a shard");
+            }
+            ids[i] = shards[i].id;
+        }
+        Set<String> reached = new HashSet<>(Arrays.asList(ids));
+        if (reached.size() != ids.length) {
+            throw new IOException("Two shards share an id: " + Arrays.toString(ids));
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (!new HashSet<>(shards[i].ring).equals(reached)) {
+                throw new IOException("Shard " + ids[i] + " at " + addresses[i] + " belongs with " + shards[i].ring
+                    + ", not " + reached);
+            }
+        }
+        return shards;
+    }
+
+    private static InetSocketAddress coordinatorAddress(InetSocketAddress shard, ShardInfo info) {
+        return new InetSocketAddress(shard.getHostString(), info.coordinatorPort);
+    }
+
+    public int shardCount() {
+        return addresses.length;
+    }
+
+    /**
+     * Returns the index, in the list given to
+     * {@link #connect(List, byte[], Path)}, of the shard holding
+     * {@code accountId}.
+     */
+    public int shardOf(int accountId) {
+        return ring.shardOf(accountId);
+    }
+
+    @Override
+    public LedgerResult register(int accountId, int pin, long initialDeposit) {
+        return client(shardOf(accountId)).register(accountId, pin, initialDeposit);
+    }
+
+    @Override
+    public Session login(int terminalId, int accountId, int pin) {
+        return client(shardOf(accountId)).login(terminalId, accountId, pin);
+    }
+
+    @Override
+    public void logout(Session session) {
+        client(shardOf(session.accountId)).logout(session);
+    }
+
+    @Override
+    public boolean exists(int accountId) {
+        return client(shardOf(accountId)).exists(accountId);
+    }
+
+    @Override
+    public long balance(Session session) {
+        return client(shardOf(session.accountId)).balance(session);
+    }
+
+    @Override
+    public LedgerResult deposit(Session session, long amount) {
+        return deposit(session, amount, OperationIds.NONE);
+    }
+
+    @Override
+    public LedgerResult deposit(Session session, long amount, long operationId) {
+        return client(shardOf(session.accountId)).deposit(session, amount, operationId);
+    }
+
+    @Override
+    public LedgerResult withdraw(Session session, long amount) {
+        return withdraw(session, amount, OperationIds.NONE);
+    }
+
+    @Override
+    public LedgerResult withdraw(Session session, long amount, long operationId) {
+        return client(shardOf(session.accountId)).withdraw(session, amount, operationId);
+    }
+
+    @Override
+    public LedgerResult transfer(Session session, int toId, long amount) {
+        return transfer(session, toId, amount, OperationIds.NONE);
+    }
+
+    @Override
+    public LedgerResult transfer(Session session, int toId, long amount, long operationId) {
+        int source = shardOf(session.accountId);
+        int target = shardOf(toId);
+        if (source == target) {
+            return client(source).transfer(session, toId, amount, operationId);
+        }
+        if (amount <= 0) {
+            return LedgerResult.INVALID_AMOUNT;
+        }
+        int slot = (toId * 0x9E3779B9 >>> 16) & (RECIPIENT_SLOTS - 1);
+        long known = 1L << 32 | (toId & 0xFFFFFFFFL);
+        if (knownRecipients.get(slot) != known) {
+            LedgerResult recipient = client(target).recipientAsync(toId).join();
+            if (!recipient.isOk()) {
+                return recipient;
+            }
+            knownRecipients.set(slot, known);
+        }
+        long transferId = operationId != OperationIds.NONE ? operationId : nextTransferId();
+        SagaLog.Saga saga = sagas.begin(session.accountId, toId, amount, transferId);
+        if (saga == null) {
+            // A retry of a transfer still in progress; only a debited one is sure to go through
+            SagaLog.Saga running = sagas.find(session.accountId, transferId);
+            return running != null && running.state == SagaLog.DEBITED ? LedgerResult.OK : LedgerResult.UNAVAILABLE;
+        }
+        LedgerResult debited = client(source).debitAsync(session, transferId, toId, amount).join();
+        if (debited == LedgerResult.UNAVAILABLE) {
+            // The sender's shard may have applied the debit before the connection dropped
+            cancel(saga);
+            return LedgerResult.UNAVAILABLE;
+        }
+        if (!debited.isOk()) {
+            sagas.done(saga);
+            return debited;
+        }
+        sagas.debited(saga);
+        for (int attempt = 0; attempt < CREDIT_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                sleep(RETRY_MILLIS << (attempt - 1));
+            }
+            LedgerResult credited = coordinator(target).creditAsync(transferId, toId, session.accountId, amount).join();
+            if (credited.isOk()) {
+                sagas.done(saga);
+                return LedgerResult.OK;
+            }
+            if (credited != LedgerResult.UNAVAILABLE) {
+                cancel(saga);
+                return credited;
+            }
+        }
+        redeliver(new Credit(saga));
+        return LedgerResult.OK;
+    }
+
+    @Override
+    public int historySize(Session session) {
+        return client(shardOf(session.accountId)).historySize(session);
+    }
+
+    @Override
+    public int readHistory(Session session, int from, HistoryPage into) {
+        return client(shardOf(session.accountId)).readHistory(session, from, into);
+    }
+
+    @Override
+    public int countHistory(Session session, HistoryQuery query) {
+        return client(shardOf(session.accountId)).countHistory(session, query);
+    }
+
+    @Override
+    public long totalHistory(Session session, HistoryQuery query) {
+        return client(shardOf(session.accountId)).totalHistory(session, query);
+    }
+
+    @Override
+    public int readHistory(Session session, HistoryQuery query, int from, HistoryPage into) {
+        return client(shardOf(session.accountId)).readHistory(session, query, from, into);
+    }
+
+    /**
+     * Closes every shard connection and the saga log. Credits and
+     * cancellations still waiting for their shard stay in the log and are
+     * delivered by the next router to connect with the same directory.
+     */
+    @Override
+    public void close() throws IOException {
+        redelivery.shutdownNow();
+        try {
+            forgetFinished();
+        } catch (IllegalStateException | UncheckedIOException e) {
+            // The shards keep the steps; they are only kept longer
+        }
+        IOException failure = null;
+        try {
+            sagas.close();
+        } catch (IOException e) {
+            failure = e;
+        }
+        for (int i = 0; i < clients.length(); i++) {
+            try {
+                clients.get(i).close();
+                coordinators.get(i).close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Cancels once now, then keeps trying in the background if the shard is unreachable
+    private void cancel(SagaLog.Saga saga) {
+        sagas.cancelling(saga);
+        if (coordinator(shardOf(saga.fromId)).cancelAsync(saga.transferId, saga.fromId).join()
+                == LedgerResult.UNAVAILABLE) {
+            redeliver(new Cancel(saga));
+        } else {
+            sagas.done(saga);
+        }
+    }
+
+    // Picks up where the last router stopped: a logged debit is credited, anything short of one is cancelled
+    private void resume() {
+        for (SagaLog.Saga saga : sagas.openSagas()) {
+            if (saga.state == SagaLog.DEBITED) {
+                redeliver(new Credit(saga));
+            } else {
+                if (saga.state == SagaLog.BEGUN) {
+                    sagas.cancelling(saga);
+                }
+                redeliver(new Cancel(saga));
+            }
+        }
+        redelivery.scheduleWithFixedDelay(() -> {
+            try {
+                forgetFinished();
+                sagas.compact();
+            } catch (IOException | IllegalStateException | UncheckedIOException e) {
+                // Segments and steps are only kept longer; the next round tries again
+            }
+        }, COMPACT_SECONDS, COMPACT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Tells both shards of every durably finished transfer to forget it; a shard without a step in it ignores that
+    private void forgetFinished() {
+        for (SagaLog.Saga saga : sagas.finished()) {
+            CompletableFuture<LedgerResult> sender = coordinator(shardOf(saga.fromId))
+                .forgetAsync(saga.transferId, saga.fromId);
+            CompletableFuture<LedgerResult> recipient = coordinator(shardOf(saga.toId))
+                .forgetAsync(saga.transferId, saga.toId);
+            if (sender.join() == LedgerResult.UNAVAILABLE || recipient.join() == LedgerResult.UNAVAILABLE) {
+                sagas.forgetLater(saga);
+            }
+        }
+    }
+
+    private void redeliver(Runnable step) {
+        try {
+            redelivery.schedule(step, REDELIVERY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closing; the step stays open in the saga log for the next router
+        }
+    }
+
+    private long nextTransferId() {
+        long id;
+        do {
+            id = transferIds.incrementAndGet();
+        } while (id == OperationIds.NONE);
+        return id;
+    }
+
+    private LedgerClient client(int shard) {
+        LedgerClient client = clients.get(shard);
+        return client.isConnected() ? client : reconnect(shard, client);
+    }
+
+    private LedgerClient coordinator(int shard) {
+        LedgerClient client = coordinators.get(shard);
+        return client.isConnected() ? client : reconnectCoordinator(shard, client);
+    }
+
+    private synchronized LedgerClient reconnect(int shard, LedgerClient stale) {
+        LedgerClient current = clients.get(shard);
+        long now = System.nanoTime();
+        if (current != stale || now - reconnectedAt[shard] < RECONNECT_NANOS) {
+            return current;
+        }
+        reconnectedAt[shard] = now;
+        try {
+            LedgerClient fresh = LedgerClient.connect(addresses[shard]);
+            if (announce(shard, fresh) == null) {
+                fresh.close();
+                return stale;
+            }
+            clients.set(shard, fresh);
+            return fresh;
+        } catch (IOException e) {
+            // Still down; the stale client answers UNAVAILABLE until the next attempt
+            return stale;
+        }
+    }
+
+    // The coordinator port may have moved with a restart, so it is asked for afresh
+    private synchronized LedgerClient reconnectCoordinator(int shard, LedgerClient stale) {
+        LedgerClient current = coordinators.get(shard);
+        long now = System.nanoTime();
+        if (current != stale || now - coordinatorReconnectedAt[shard] < RECONNECT_NANOS) {
+            return current;
+        }
+        coordinatorReconnectedAt[shard] = now;
+        ShardInfo info = announce(shard, client(shard));
+        if (info == null) {
+            return stale;
+        }
+        try {
+            LedgerClient fresh = LedgerClient.connectCoordinator(coordinatorAddress(addresses[shard], info), secret);
+            coordinators.set(shard, fresh);
+            return fresh;
+        } catch (IOException e) {
+            return stale;
+        }
+    }
+
+    // Returns what the server at the shard's address announces, or null unless it is still that shard
+    private ShardInfo announce(int shard, LedgerClient client) {
+        ShardInfo info = client.shardAsync().join();
+        // Another server may have taken the address; its accounts are not this shard's
+        return info != null && info.id.equals(ids[shard]) ? info : null;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Delivers a credit the recipient's shard could not take in time, cancelling the debit if it never can. */
+    private final class Credit implements Runnable {
+        private final SagaLog.Saga saga;
+
+        Credit(SagaLog.Saga saga) {
+            this.saga = saga;
+        }
+
+        @Override
+        public void run() {
+            try {
+                LedgerResult credited = coordinator(shardOf(saga.toId))
+                    .creditAsync(saga.transferId, saga.toId, saga.fromId, saga.amount).join();
+                if (credited.isOk()) {
+                    sagas.done(saga);
+                } else if (credited == LedgerResult.UNAVAILABLE) {
+                    redeliver(this);
+                } else {
+                    cancel(saga);
+                }
+            } catch (IllegalStateException | UncheckedIOException e) {
+                // The saga log is closed or failed; the transfer stays open there for the next router
+            }
+        }
+    }
+
+    /** Delivers a cancellation the sender's shard could not take in time. */
+    private final class Cancel implements Runnable {
+        private final SagaLog.Saga saga;
+
+        Cancel(SagaLog.Saga saga) {
+            this.saga = saga;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (coordinator(shardOf(saga.fromId)).cancelAsync(saga.transferId, saga.fromId).join()
+                        == LedgerResult.UNAVAILABLE) {
+                    redeliver(this);
+                } else {
+                    sagas.done(saga);
+                }
+            } catch (IllegalStateException | UncheckedIOException e) {
+                // The saga log is closed or failed; the transfer stays open there for the next router
+            }
+        }
+    }
+}
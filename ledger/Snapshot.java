@@ -0,0 +1,307 @@
+package ledger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary image of the whole ledger as of one log sequence number.
+ *
+ * <p>Layout: a 32-byte header (magic, version, LSN, account count, history
+ * chunk count, history entry count), a fixed 76-byte record per account in
+ * ordinal order (id, 52-byte encoded {@link PinHash}, balance, registration
+ * time, history length), then each account's history chunk ids in the same
+ * order, the count and 33-byte records of the {@link OperationIds} still
+ * remembered (id, account, time, kind, counterparty, amount), the count and
+ * 33-byte records of every {@link TransferSteps} step (id, account, kind,
+ * counterparty, amount, time forgotten), and a trailing CRC32C of everything
+ * before it.
+ * History entries themselves stay in the {@link HistoryStore} file, which is
+ * forced to disk before the snapshot is written. Files are written to a
+ * temporary name and renamed into place, so a reader only ever sees complete
+ * snapshots; they are read back through memory-mapped windows.
+ */
+final class Snapshot {
+    private static final int MAGIC = 0x41544D53;
+    private static final int VERSION = 7;
+    private static final int ACCOUNT_BYTES = 4 + PinHash.BYTES + 8 + 8 + 4;
+    private static final int OPERATION_BYTES = 8 + 4 + 8 + 1 + 4 + 8;
+    private static final int STEP_BYTES = 8 + 4 + 1 + 4 + 8 + 8;
+    private static final long WINDOW_BYTES = 256L << 20;
+
+    /** State captured while every account lock was held. */
+    static final class Image {
+        long lsn;
+        int accounts;
+        long[] balances;
+        int[] historyCounts;
+        int historyChunks;
+        long historyEntries;
+        OperationIds.Copy operations;
+        TransferSteps.Copy steps;
+    }
+
+    /** Copies the first {@code chunks} history chunk ids of an account under its lock. */
+    interface HistorySource {
+        void copyChunkIds(int ordinal, int chunks, int[] into);
+    }
+
+    private Snapshot() {
+    }
+
+    static void write(Path dir, Image image, AccountStore store, HistorySource history) throws IOException {
+        Path tmp = dir.resolve(String.format("snapshot-%020d.tmp", image.lsn));
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Output out = new Output(channel);
+            out.ensure(32).putInt(MAGIC).putInt(VERSION).putLong(image.lsn)
+                .putInt(image.accounts).putInt(image.historyChunks).putLong(image.historyEntries);
+            for (int ordinal = 0; ordinal < image.accounts; ordinal++) {
+                ByteBuffer record = out.ensure(ACCOUNT_BYTES).putInt(store.accountId(ordinal));
+                store.copyCredential(ordinal, record);
+                record.putLong(image.balances[ordinal]).putLong(store.registered(ordinal))
+                    .putInt(image.historyCounts[ordinal]);
+            }
+            int[] chunkIds = new int[64];
+            for (int ordinal = 0; ordinal < image.accounts; ordinal++) {
+                int chunks = chunks(image.historyCounts[ordinal]);
+                if (chunks == 0) {
+                    continue;
+                }
+                if (chunkIds.length < chunks) {
+                    chunkIds = new int[Math.max(chunks, chunkIds.length * 2)];
+                }
+                history.copyChunkIds(ordinal, chunks, chunkIds);
+                for (int i = 0; i < chunks; i++) {
+                    out.ensure(4).putInt(chunkIds[i]);
+                }
+            }
+            OperationIds.Copy operations = image.operations;
+            out.ensure(4).putInt(operations.size);
+            for (int i = 0; i < operations.size; i++) {
+                out.ensure(OPERATION_BYTES).putLong(operations.ids[i]).putInt(operations.accounts[i])
+                    .putLong(operations.times[i]).put(operations.kinds[i])
+                    .putInt(operations.counterparties[i]).putLong(operations.amounts[i]);
+            }
+            TransferSteps.Copy steps = image.steps;
+            out.ensure(4).putInt(steps.size);
+            for (int i = 0; i < steps.size; i++) {
+                out.ensure(STEP_BYTES).putLong(steps.ids[i]).putInt(steps.accounts[i]).put(steps.kinds[i])
+                    .putInt(steps.counterparties[i]).putLong(steps.amounts[i]).putLong(steps.forgotten[i]);
+            }
+            out.finish();
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(fileName(image.lsn)), StandardCopyOption.ATOMIC_MOVE);
+        WriteAheadLog.syncDirectory(dir);
+        for (Path old : snapshots(dir)) {
+            if (lsn(old) < image.lsn) {
+                Files.deleteIfExists(old);
+            }
+        }
+    }
+
+    /** Loads the newest snapshot in {@code dir} into empty stores and returns its LSN, or 0 if there is none. */
+    static long load(Path dir, AccountStore store, HistoryStore history, OperationIds operations, TransferSteps steps)
+            throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "snapshot-*.tmp")) {
+            for (Path leftover : stream) {
+                Files.delete(leftover);
+            }
+        }
+        List<Path> snapshots = snapshots(dir);
+        if (snapshots.isEmpty()) {
+            return 0;
+        }
+        Path latest = snapshots.get(snapshots.size() - 1);
+        try (FileChannel channel = FileChannel.open(latest, StandardOpenOption.READ)) {
+            Input in = new Input(channel);
+            in.verifyChecksum(latest);
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Bad snapshot header in " + latest);
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot format version " + version + " in " + latest);
+            }
+            long lsn = in.getLong();
+            int accounts = in.getInt();
+            int historyChunks = in.getInt();
+            in.getLong();
+            int[] counts = new int[accounts];
+            for (int ordinal = 0; ordinal < accounts; ordinal++) {
+                int accountId = in.getInt();
+                PinHash credential = PinHash.decode(in.getBytes(PinHash.BYTES));
+                long balance = in.getLong();
+                long registered = in.getLong();
+                counts[ordinal] = in.getInt();
+                store.insert(accountId, credential, balance, registered);
+            }
+            history.restoreChunkCount(historyChunks);
+            int[] chunkIds = new int[64];
+            for (int ordinal = 0; ordinal < accounts; ordinal++) {
+                int chunks = chunks(counts[ordinal]);
+                if (chunkIds.length < chunks) {
+                    chunkIds = new int[Math.max(chunks, chunkIds.length * 2)];
+                }
+                for (int i = 0; i < chunks; i++) {
+                    chunkIds[i] = in.getInt();
+                }
+                history.restore(ordinal, counts[ordinal], chunkIds, chunks);
+            }
+            int remembered = in.getInt();
+            for (int i = 0; i < remembered; i++) {
+                long operationId = in.getLong();
+                int accountId = in.getInt();
+                long time = in.getLong();
+                byte kind = in.getByte();
+                int counterparty = in.getInt();
+                operations.restore(accountId, operationId, time, kind, counterparty, in.getLong());
+            }
+            int stepCount = in.getInt();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < stepCount; i++) {
+                long transferId = in.getLong();
+                int accountId = in.getInt();
+                byte kind = in.getByte();
+                int counterparty = in.getInt();
+                steps.record(accountId, transferId, kind, counterparty, in.getLong(), now);
+                long forgotten = in.getLong();
+                if (forgotten != 0) {
+                    steps.forget(accountId, transferId, forgotten);
+                }
+            }
+            return lsn;
+        }
+    }
+
+    private static int chunks(int entries) {
+        return (entries + HistoryStore.CHUNK - 1) >>> HistoryStore.CHUNK_SHIFT;
+    }
+
+    private static String fileName(long lsn) {
+        return String.format("snapshot-%020d.snap", lsn);
+    }
+
+    private static long lsn(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(9, name.length() - 5));
+    }
+
+    private static List<Path> snapshots(Path dir) throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "snapshot-*.snap")) {
+            for (Path path : stream) {
+                snapshots.add(path);
+            }
+        }
+        snapshots.sort((a, b) -> Long.compare(lsn(a), lsn(b)));
+        return snapshots;
+    }
+
+    /** Buffered channel writer that checksums everything it writes. */
+    private static final class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private final CRC32C crc = new CRC32C();
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        ByteBuffer ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            return buffer;
+        }
+
+        void finish() throws IOException {
+            flush();
+            buffer.putInt((int) crc.getValue()).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        private void flush() throws IOException {
+            crc.update(buffer.array(), 0, buffer.position());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /** Sequential reader over memory-mapped windows of a snapshot file. */
+    private static final class Input {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        Input(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        void verifyChecksum(Path file) throws IOException {
+            if (size < 36) {
+                throw new IOException("Truncated snapshot " + file);
+            }
+            CRC32C crc = new CRC32C();
+            long body = size - 4;
+            for (long offset = 0; offset < body; offset += WINDOW_BYTES) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW_BYTES, body - offset)));
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(4);
+            channel.read(trailer, body);
+            if (trailer.getInt(0) != (int) crc.getValue()) {
+                throw new IOException("Checksum mismatch in snapshot " + file);
+            }
+        }
+
+        int getInt() throws IOException {
+            return ensure(4).getInt();
+        }
+
+        long getLong() throws IOException {
+            return ensure(8).getLong();
+        }
+
+        byte getByte() throws IOException {
+            return ensure(1).get();
+        }
+
+        byte[] getBytes(int count) throws IOException {
+            byte[] bytes = new byte[count];
+            ensure(count).get(bytes);
+            return bytes;
+        }
+
+        private MappedByteBuffer ensure(int bytes) throws IOException {
+            if (window == null || window.remaining() < bytes) {
+                long position = window == null ? 0 : windowStart + window.position();
+                if (size - position < bytes) {
+                    throw new IOException("Unexpected end of snapshot");
+                }
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_BYTES, size - position));
+            }
+            return window;
+        }
+    }
+}
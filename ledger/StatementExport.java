@@ -0,0 +1,450 @@
+package ledger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless month-end job: writes a statement of one calendar month for every
+ * account of a ledger.
+ *
+ * <p>Statements are CSV, one row per line under a
+ * {@code account,time,description,amount,balance} header. Each account's
+ * statement opens with its balance at the start of the month, lists the
+ * month's entries oldest first with the balance after each, and closes with
+ * its credit and debit totals and its balance at the end of the month. An
+ * account opened during the month starts from nothing and lists its opening
+ * deposit first; one opened after the month has no statement:
+ * <pre>
+ * 1001,2026-09-01 00:00:00,Opening balance,,1000.00
+ * 1001,2026-09-03 10:15:00,Deposit,250.00,1250.00
+ * 1001,2026-09-04 12:00:07,Transfer to 1002,-20.00,1230.00
+ * 1001,,Total credits,250.00,
+ * 1001,,Total debits,-20.00,
+ * 1001,2026-10-01 00:00:00,Closing balance,,1230.00
+ * </pre>
+ * Times are local to the zone the job is given.
+ *
+ * <p>Accounts are cut into parts of {@link #PART_ACCOUNTS} in registration
+ * order, and each part goes to a file of its own,
+ * {@code statements-<yyyy-MM>-<part>.csv}. Parts are written in parallel on
+ * a fork-join pool, each streamed through one buffer and one history page,
+ * so memory stays flat however many accounts there are. Every account's
+ * figures are read under its lock in one go and its entries a page at a
+ * time, so the job runs alongside live traffic.
+ *
+ * <p>A part is written under a temporary name and renamed once on disk,
+ * which makes its file the checkpoint: a job run again for the same month
+ * and directory skips every part already there. The number of accounts is
+ * fixed by the job's first run (in {@code statements-<yyyy-MM>.job}), so a
+ * rerun cuts the same parts; accounts registered since are left out.
+ */
+public final class StatementExport {
+    /** Accounts per file, and so the unit of parallel work and of restart. */
+    public static final int PART_ACCOUNTS = 4096;
+
+    private static final int BUFFER = 1 << 18;
+    private static final int PAGE = 1024;
+    // Longer than any row: two amounts of 21 characters, a 25-character transfer label and the rest
+    private static final int MAX_ROW = 128;
+    private static final long HOUR_MILLIS = 3_600_000;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter HOUR = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:");
+
+    private static final byte[] HEADER = ascii("account,time,description,amount,balance\n");
+    private static final byte[] CREDITS = ascii(",,Total credits,");
+    private static final byte[] DEBITS = ascii(",,Total debits,");
+    private static final byte[] OPENING_DEPOSIT = ascii(",Opening deposit,");
+    private static final byte[] TOTAL_END = ascii(",\n");
+    private static final byte[][] LABELS = labels();
+
+    private final Ledger ledger;
+    private final int workers;
+
+    public StatementExport(Ledger ledger, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers < 1");
+        }
+        this.ledger = ledger;
+        this.workers = workers;
+    }
+
+    /** Totals of one run of a job. */
+    public static final class Summary {
+        private final long statements;
+        private final long entries;
+        private final int parts;
+        private final int skippedParts;
+        private final long elapsedNanos;
+
+        Summary(long statements, long entries, int parts, int skippedParts, long elapsedNanos) {
+            this.statements = statements;
+            this.entries = entries;
+            this.parts = parts;
+            this.skippedParts = skippedParts;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /** Statements written by this run, not counting those of parts it skipped. */
+        public long getStatements() { return statements; }
+        public long getEntries() { return entries; }
+        public int getParts() { return parts; }
+        /** Parts an earlier run had already written. */
+        public int getSkippedParts() { return skippedParts; }
+        public long getElapsedNanos() { return elapsedNanos; }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            return String.format("%,d statements, %,d entries in %,d files (%,d already written) in %.2f s"
+                + " (%,.0f statements/s)", statements, entries, parts - skippedParts, skippedParts, seconds,
+                statements / Math.max(seconds, 1e-9));
+        }
+    }
+
+    /** One account's figures for the period, read by {@link Ledger#statement}. */
+    static final class Period {
+        int ordinal;
+        int accountId;
+        // History indexes of the period's entries, end exclusive
+        int first;
+        int end;
+        long opening;
+        long registeredMillis;
+        // Listed as the first entry of an account registered during the period, else 0
+        long initialDeposit;
+        long credits;
+        long debits;
+        long closing;
+    }
+
+    /**
+     * Writes the statements of {@code month}, in {@code zone}'s local time,
+     * into {@code dir}, skipping the parts an earlier run already wrote there.
+     */
+    public Summary export(YearMonth month, ZoneId zone, Path dir) throws IOException {
+        long started = System.nanoTime();
+        Files.createDirectories(dir);
+        Job job = new Job(month, zone, dir, accounts(dir.resolve("statements-" + month + ".job")));
+        int parts = (job.accounts + PART_ACCOUNTS - 1) / PART_ACCOUNTS;
+        int[] pending = new int[parts];
+        int count = 0;
+        for (int part = 0; part < parts; part++) {
+            if (!Files.exists(job.file(part))) {
+                pending[count++] = part;
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(workers, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("ledger-statements");
+            return thread;
+        }, null, false);
+        try {
+            pool.invoke(new Parts(job, Arrays.copyOf(pending, count), 0, count));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdownNow();
+        }
+        return new Summary(job.statements.sum(), job.entries.sum(), parts, parts - count,
+            System.nanoTime() - started);
+    }
+
+    /** Returns the number of accounts the job covers, recording the ledger's current count on its first run. */
+    private int accounts(Path file) throws IOException {
+        if (Files.exists(file)) {
+            String text = Files.readString(file, StandardCharsets.US_ASCII).trim();
+            try {
+                return Integer.parseInt(text);
+            } catch (NumberFormatException e) {
+                throw new IOException("Unreadable statement job " + file + ": " + text);
+            }
+        }
+        int accounts = ledger.accountCount();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(temp, accounts + "\n", StandardCharsets.US_ASCII);
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        return accounts;
+    }
+
+    /** One month's statements: where they go and what the parts have written so far. */
+    private final class Job {
+        final String name;
+        final Path dir;
+        final int accounts;
+        final long sinceMillis;
+        final long untilMillis;
+        final Clock clock;
+        final byte[] opening;
+        final byte[] closing;
+        final LongAdder statements = new LongAdder();
+        final LongAdder entries = new LongAdder();
+
+        Job(YearMonth month, ZoneId zone, Path dir, int accounts) {
+            this.name = "statements-" + month;
+            this.dir = dir;
+            this.accounts = accounts;
+            this.clock = new Clock(month, zone);
+            this.sinceMillis = clock.starts[0];
+            this.untilMillis = clock.starts[clock.starts.length - 1];
+            LocalDateTime since = month.atDay(1).atStartOfDay();
+            this.opening = ascii("," + TIME.format(since) + ",Opening balance,,");
+            this.closing = ascii("," + TIME.format(since.plusMonths(1)) + ",Closing balance,,");
+        }
+
+        Path file(int part) {
+            return dir.resolve(String.format("%s-%05d.csv", name, part));
+        }
+
+        void write(int part) throws IOException {
+            Path file = file(part);
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+            HistoryPage page = new HistoryPage(PAGE);
+            Period period = new Period();
+            long written = 0;
+            long listed = 0;
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                buffer.put(HEADER);
+                int end = Math.min(accounts, (part + 1) * PART_ACCOUNTS);
+                for (int ordinal = part * PART_ACCOUNTS; ordinal < end; ordinal++) {
+                    if (!ledger.statement(ordinal, sinceMillis, untilMillis, period)) {
+                        continue;
+                    }
+                    listed += write(period, page, buffer, out);
+                    written++;
+                }
+                drain(buffer, out);
+                out.force(false);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            statements.add(written);
+            entries.add(listed);
+        }
+
+        // Writes one account's statement and returns how many entries it lists
+        private int write(Period period, HistoryPage page, ByteBuffer buffer, FileChannel out) throws IOException {
+            int accountId = period.accountId;
+            row(buffer, out, accountId, opening);
+            putCents(buffer, period.opening);
+            buffer.put((byte) '\n');
+            long balance = period.opening;
+            if (period.registeredMillis >= sinceMillis) {
+                balance += period.initialDeposit;
+                row(buffer, out, accountId, null);
+                buffer.put((byte) ',');
+                clock.put(buffer, period.registeredMillis);
+                buffer.put(OPENING_DEPOSIT);
+                putCents(buffer, period.initialDeposit);
+                buffer.put((byte) ',');
+                putCents(buffer, balance);
+                buffer.put((byte) '\n');
+            }
+            for (int index = period.first; index < period.end; index += page.size()) {
+                // Entries before the period's end never change, so the lock may be let go between pages
+                ledger.readHistory(accountId, period.ordinal, index, page);
+                int count = Math.min(page.size(), period.end - index);
+                for (int i = 0; i < count; i++) {
+                    long amount = page.amount(i);
+                    balance += amount;
+                    row(buffer, out, accountId, null);
+                    buffer.put((byte) ',');
+                    clock.put(buffer, page.timeMillis(i));
+                    buffer.put((byte) ',');
+                    buffer.put(LABELS[page.type(i).ordinal()]);
+                    if (page.type(i).isTransfer()) {
+                        putSigned(buffer, page.counterparty(i));
+                    }
+                    buffer.put((byte) ',');
+                    putCents(buffer, amount);
+                    buffer.put((byte) ',');
+                    putCents(buffer, balance);
+                    buffer.put((byte) '\n');
+                }
+                if (count == 0) {
+                    break;
+                }
+            }
+            row(buffer, out, accountId, CREDITS);
+            putCents(buffer, period.credits);
+            buffer.put(TOTAL_END);
+            row(buffer, out, accountId, DEBITS);
+            putCents(buffer, period.debits);
+            buffer.put(TOTAL_END);
+            row(buffer, out, accountId, closing);
+            putCents(buffer, period.closing);
+            buffer.put((byte) '\n');
+            return period.end - period.first;
+        }
+    }
+
+    /** Writes a range of the pending parts, splitting it until each task holds one part. */
+    private static final class Parts extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Job job;
+        private final int[] parts;
+        private final int from;
+        private final int to;
+
+        Parts(Job job, int[] parts, int from, int to) {
+            this.job = job;
+            this.parts = parts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Parts(job, parts, from, mid), new Parts(job, parts, mid, to));
+            } else if (to > from) {
+                try {
+                    job.write(parts[from]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes instants of one month as local {@code yyyy-MM-dd HH:mm:ss}
+     * without allocating: the text of each local hour is made up front, and
+     * only minutes and seconds are worked out per entry.
+     */
+    private static final class Clock {
+        private final ZoneId zone;
+        // Instant each local hour of the month starts at, then the instant the month ends at
+        final long[] starts;
+        // Text of each hour up to its minutes, or null for an hour skipped or shifted by an offset change
+        private final byte[][] hours;
+
+        Clock(YearMonth month, ZoneId zone) {
+            this.zone = zone;
+            LocalDateTime first = month.atDay(1).atStartOfDay();
+            int count = month.lengthOfMonth() * 24;
+            starts = new long[count + 1];
+            hours = new byte[count][];
+            for (int i = 0; i <= count; i++) {
+                LocalDateTime local = first.plusHours(i);
+                ZonedDateTime zoned = local.atZone(zone);
+                starts[i] = zoned.toInstant().toEpochMilli();
+                if (i < count && zoned.toLocalDateTime().equals(local)) {
+                    hours[i] = ascii(HOUR.format(local));
+                }
+            }
+        }
+
+        void put(ByteBuffer buffer, long millis) {
+            int hour = (int) Math.max(0, Math.min(hours.length - 1, (millis - starts[0]) / HOUR_MILLIS));
+            while (hour > 0 && millis < starts[hour]) {
+                hour--;
+            }
+            while (hour + 1 < hours.length && millis >= starts[hour + 1]) {
+                hour++;
+            }
+            long seconds = Math.floorDiv(millis - starts[hour], 1000);
+            if (hours[hour] == null || seconds < 0 || seconds >= HOUR_MILLIS / 1000) {
+                // Outside the month, or an hour an offset change made longer or moved off the hour
+                buffer.put(ascii(TIME.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), zone))));
+                return;
+            }
+            buffer.put(hours[hour]);
+            putTwoDigits(buffer, (int) (seconds / 60));
+            buffer.put((byte) ':');
+            putTwoDigits(buffer, (int) (seconds % 60));
+        }
+    }
+
+    // Description prefix per transaction type; transfers are followed by the counterparty
+    private static byte[][] labels() {
+        TransactionType[] types = TransactionType.values();
+        byte[][] labels = new byte[types.length][];
+        for (TransactionType type : types) {
+            labels[type.ordinal()] = ascii(type.getLabel());
+        }
+        return labels;
+    }
+
+    // Starts a row of the account, draining first if a whole row might not fit
+    private static void row(ByteBuffer buffer, FileChannel out, int accountId, byte[] rest) throws IOException {
+        if (buffer.remaining() < MAX_ROW) {
+            drain(buffer, out);
+        }
+        putSigned(buffer, accountId);
+        if (rest != null) {
+            buffer.put(rest);
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Writes cents as dollars with two decimals, e.g. -20.00
+    private static void putCents(ByteBuffer buffer, long cents) {
+        long dollars = cents / Money.CENTS_PER_DOLLAR;
+        int fraction = (int) (cents % Money.CENTS_PER_DOLLAR);
+        if (cents < 0) {
+            buffer.put((byte) '-');
+            dollars = -dollars;
+            fraction = -fraction;
+        }
+        putLong(buffer, dollars);
+        buffer.put((byte) '.');
+        putTwoDigits(buffer, fraction);
+    }
+
+    private static void putSigned(ByteBuffer buffer, int value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+        }
+        putLong(buffer, Math.abs((long) value));
+    }
+
+    private static void putTwoDigits(ByteBuffer buffer, int value) {
+        buffer.put((byte) ('0' + value / 10));
+        buffer.put((byte) ('0' + value % 10));
+    }
+
+    private static void putLong(ByteBuffer buffer, long value) {
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int end = buffer.position() + digits;
+        for (int i = end - 1; i >= buffer.position(); i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,98 @@
+package ledger;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free token buckets.
+ *
+ * <p>Each bucket is one {@code long} holding its "theoretical arrival time"
+ * (the GCRA form of a token bucket): taking a token pushes it one emission
+ * interval into the future, and a request is refused once that time would run
+ * more than {@code burst} intervals ahead of now. A take is a single CAS, so a
+ * flood of attempts costs no locks and no allocation.
+ *
+ * <p>Arbitrary keys hash into a fixed number of slots; keys that collide
+ * share a bucket, which can only make the limit stricter. Dense keys such as
+ * account ordinals instead get a bucket each through {@link #tryAcquireExact},
+ * in pages allocated on first use, so exhausting one never touches another.
+ */
+final class TokenBucketLimiter {
+    private final AtomicLongArray buckets;
+    private final int mask;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final long origin = System.nanoTime();
+    private final Object growLock = new Object();
+    // Exact buckets, AccountStore.PAGE_SIZE to a page; replaced (never mutated) to grow
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+    /**
+     * @param slots number of hashed buckets, rounded up to a power of two
+     * @param burst tokens a full bucket holds
+     * @param intervalNanos time to earn back one token
+     */
+    TokenBucketLimiter(int slots, int burst, long intervalNanos) {
+        if (burst < 1 || intervalNanos < 1) {
+            throw new IllegalArgumentException("burst and interval must be positive");
+        }
+        int capacity = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.buckets = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        this.intervalNanos = intervalNanos;
+        this.toleranceNanos = (burst - 1) * intervalNanos;
+    }
+
+    /** Takes a token for {@code key}, or returns false if its (possibly shared) bucket is empty. */
+    boolean tryAcquire(int key) {
+        return take(buckets, mix(key) & mask);
+    }
+
+    /** Takes a token from the bucket of {@code index} alone, or returns false if it is empty. */
+    boolean tryAcquireExact(int index) {
+        if (index < 0) {
+            throw new IllegalArgumentException("index < 0");
+        }
+        return take(page(index >>> AccountStore.PAGE_SHIFT), index & AccountStore.PAGE_MASK);
+    }
+
+    private boolean take(AtomicLongArray table, int slot) {
+        // Relative to construction so an untouched bucket (zero) is never ahead of now
+        long now = System.nanoTime() - origin;
+        while (true) {
+            long arrival = table.get(slot);
+            long start = Math.max(arrival, now);
+            if (start - now > toleranceNanos) {
+                return false;
+            }
+            if (table.compareAndSet(slot, arrival, start + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    private AtomicLongArray page(int page) {
+        AtomicLongArray[] current = pages;
+        if (page < current.length && current[page] != null) {
+            return current[page];
+        }
+        synchronized (growLock) {
+            current = pages;
+            if (page >= current.length) {
+                current = Arrays.copyOf(current, Math.max(page + 1, current.length * 2));
+            } else if (current[page] == null) {
+                current = current.clone();
+            } else {
+                return current[page];
+            }
+            current[page] = new AtomicLongArray(AccountStore.PAGE_SIZE);
+            pages = current;
+            return current[page];
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,31 @@
+package ledger;
+
+import java.util.Date;
+
+/**
+ * A single entry in an account's transaction history; amounts are in cents.
+ * Instances are materialized from the history columns on request.
+ */
+public final class Transaction {
+    private final TransactionType kind;
+    private final long amount;
+    private final long timeMillis;
+    private final int counterparty;
+
+    public Transaction(TransactionType kind, long amount, long timeMillis, int counterparty) {
+        this.kind = kind;
+        this.amount = amount;
+        this.timeMillis = timeMillis;
+        this.counterparty = counterparty;
+    }
+
+    public String getType() {
+        return kind.isTransfer() ? kind.getLabel() + counterparty : kind.getLabel();
+    }
+
+    public TransactionType getKind() { return kind; }
+    public long getAmount() { return amount; }
+    public long getTimeMillis() { return timeMillis; }
+    public Date getDate() { return new Date(timeMillis); }
+    public int getCounterparty() { return counterparty; }
+}
@@ -0,0 +1,34 @@
+package ledger;
+
+/** Kind of history entry, stored as a one-byte code in the history columns. */
+public enum TransactionType {
+    DEPOSIT("Deposit"),
+    WITHDRAWAL("Withdrawal"),
+    TRANSFER_OUT("Transfer to "),
+    TRANSFER_IN("Transfer from "),
+    /** A transfer to another shard given back because the recipient's shard could not take it. */
+    REFUND("Refund of transfer to ");
+
+    private static final TransactionType[] BY_CODE = values();
+
+    private final String label;
+
+    TransactionType(String label) {
+        this.label = label;
+    }
+
+    byte code() {
+        return (byte) ordinal();
+    }
+
+    static TransactionType of(byte code) {
+        return BY_CODE[code];
+    }
+
+    public boolean isTransfer() {
+        return this == TRANSFER_OUT || this == TRANSFER_IN || this == REFUND;
+    }
+
+    /** Returns the label shown to customers; transfers are followed by the counterparty id. */
+    public String getLabel() { return label; }
+}
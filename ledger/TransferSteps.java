@@ -0,0 +1,243 @@
+package ledger;
+
+/**
+ * Steps of transfers between shards this ledger applied, keyed by account
+ * and transfer id, so that each is applied once however late the router
+ * repeats it (see {@link ShardedLedger}). A step is kept for as long as its
+ * transfer is open, since a router may resume one after any outage, and
+ * forgetting a debit would let its cancellation miss the refund or a late
+ * debit slip past a cancellation. Once the router has durably finished the
+ * transfer it says so and the step is {@link #forget forgotten}: it still
+ * answers repeats, a cancelled transfer's step still fences off its debit,
+ * until it is {@link OperationIds#TTL_MILLIS} old like any operation id, and
+ * then it is evicted. The table thus holds the open transfers and the last
+ * few minutes' finished ones. The steps are rebuilt from the log and written
+ * to snapshots in full.
+ *
+ * <p>Callers check and record under the account's stripe lock. The table is
+ * split into segments selected from the key, each an open-addressing table
+ * of parallel columns guarded by its own monitor. A segment that fills to
+ * half is rebuilt without its expired steps, at whatever power-of-two size
+ * leaves it a quarter full.
+ */
+final class TransferSteps {
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * A step applied under one id; {@code kind} is the {@link WriteAheadLog}
+     * record type and {@code forgotten} when the router finished the
+     * transfer, or 0 while it is open.
+     */
+    static final class Step {
+        final byte kind;
+        final int counterparty;
+        final long amount;
+        final long forgotten;
+
+        Step(byte kind, int counterparty, long amount, long forgotten) {
+            this.kind = kind;
+            this.counterparty = counterparty;
+            this.amount = amount;
+            this.forgotten = forgotten;
+        }
+
+        /** Returns whether a repeat with these details is the step recorded here. */
+        boolean matches(byte kind, int counterparty, long amount) {
+            return this.kind == kind && this.counterparty == counterparty && this.amount == amount;
+        }
+    }
+
+    /** Column-wise copy of every step, for a {@link Snapshot}. */
+    static final class Copy {
+        int size;
+        long[] ids;
+        int[] accounts;
+        byte[] kinds;
+        int[] counterparties;
+        long[] amounts;
+        long[] forgotten;
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    TransferSteps() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(INITIAL_CAPACITY);
+        }
+    }
+
+    /** Returns the step applied to the account under {@code transferId}, or null if there is none. */
+    Step find(int accountId, long transferId) {
+        long h = hash(accountId, transferId);
+        Segment segment = segmentFor(h);
+        synchronized (segment) {
+            int slot = segment.indexOf(accountId, transferId, h);
+            return segment.kinds[slot] == 0 ? null : new Step(segment.kinds[slot],
+                (int) segment.parties[slot], segment.amounts[slot], segment.forgotten[slot]);
+        }
+    }
+
+    /**
+     * Records {@code kind} as the account's step under {@code transferId} at
+     * {@code now}, replacing any earlier one; the transfer is open again.
+     */
+    void record(int accountId, long transferId, byte kind, int counterparty, long amount, long now) {
+        long h = hash(accountId, transferId);
+        Segment segment = segmentFor(h);
+        synchronized (segment) {
+            segment.put(accountId, transferId, h, kind, counterparty, amount, now);
+        }
+    }
+
+    /**
+     * Marks the account's step under {@code transferId} as finished at
+     * {@code now}, so it can be evicted once it is old enough. Returns false
+     * if there is no such step or it was already forgotten.
+     */
+    boolean forget(int accountId, long transferId, long now) {
+        long h = hash(accountId, transferId);
+        Segment segment = segmentFor(h);
+        synchronized (segment) {
+            int slot = segment.indexOf(accountId, transferId, h);
+            if (segment.kinds[slot] == 0 || segment.forgotten[slot] != 0) {
+                return false;
+            }
+            // Zero means open, so a clock at the epoch still forgets
+            segment.forgotten[slot] = Math.max(1, now);
+            return true;
+        }
+    }
+
+    /** Copies every step; callers stop recording first. */
+    Copy copy() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        Copy copy = new Copy();
+        copy.ids = new long[size];
+        copy.accounts = new int[size];
+        copy.kinds = new byte[size];
+        copy.counterparties = new int[size];
+        copy.amounts = new long[size];
+        copy.forgotten = new long[size];
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.kinds.length; slot++) {
+                    if (segment.kinds[slot] != 0) {
+                        int i = copy.size++;
+                        copy.ids[i] = segment.ids[slot];
+                        copy.accounts[i] = (int) (segment.parties[slot] >>> 32);
+                        copy.kinds[i] = segment.kinds[slot];
+                        copy.counterparties[i] = (int) segment.parties[slot];
+                        copy.amounts[i] = segment.amounts[slot];
+                        copy.forgotten[i] = segment.forgotten[slot];
+                    }
+                }
+            }
+        }
+        return copy;
+    }
+
+    private Segment segmentFor(long h) {
+        return segments[(int) (h >>> (64 - SEGMENT_BITS))];
+    }
+
+    // Same finalizer as OperationIds; the top bits pick the segment, the low ones the slot
+    private static long hash(int accountId, long transferId) {
+        long h = transferId ^ (accountId * 0x9E3779B97F4A7C15L);
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /** Linear-probing table; a kind of 0 marks a free slot. */
+    private static final class Segment {
+        long[] ids;
+        // Account above counterparty
+        long[] parties;
+        long[] amounts;
+        long[] forgotten;
+        byte[] kinds;
+        int size;
+
+        Segment(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            ids = new long[capacity];
+            parties = new long[capacity];
+            amounts = new long[capacity];
+            forgotten = new long[capacity];
+            kinds = new byte[capacity];
+        }
+
+        // Returns the slot holding the key, or the free slot where it belongs
+        int indexOf(int accountId, long transferId, long h) {
+            int mask = kinds.length - 1;
+            for (int slot = (int) h & mask; ; slot = (slot + 1) & mask) {
+                if (kinds[slot] == 0
+                        || ids[slot] == transferId && (int) (parties[slot] >>> 32) == accountId) {
+                    return slot;
+                }
+            }
+        }
+
+        void put(int accountId, long transferId, long h, byte kind, int counterparty, long amount, long now) {
+            int slot = indexOf(accountId, transferId, h);
+            if (kinds[slot] == 0) {
+                if ((size + 1) * 2 > kinds.length) {
+                    rebuild(now);
+                    slot = indexOf(accountId, transferId, h);
+                }
+                size++;
+                ids[slot] = transferId;
+            }
+            parties[slot] = (long) accountId << 32 | (counterparty & 0xFFFFFFFFL);
+            amounts[slot] = amount;
+            forgotten[slot] = 0;
+            kinds[slot] = kind;
+        }
+
+        // Rehashes the steps that are not expired into a table a quarter full, leaving room for one more
+        private void rebuild(long now) {
+            int kept = 0;
+            for (int slot = 0; slot < kinds.length; slot++) {
+                if (kinds[slot] != 0 && !expired(forgotten[slot], now)) {
+                    kept++;
+                }
+            }
+            int capacity = INITIAL_CAPACITY;
+            while ((kept + 1) * 4 > capacity) {
+                capacity *= 2;
+            }
+            long[] oldIds = ids;
+            long[] oldParties = parties;
+            long[] oldAmounts = amounts;
+            long[] oldForgotten = forgotten;
+            byte[] oldKinds = kinds;
+            allocate(capacity);
+            for (int old = 0; old < oldKinds.length; old++) {
+                if (oldKinds[old] != 0 && !expired(oldForgotten[old], now)) {
+                    int accountId = (int) (oldParties[old] >>> 32);
+                    int slot = indexOf(accountId, oldIds[old], hash(accountId, oldIds[old]));
+                    ids[slot] = oldIds[old];
+                    parties[slot] = oldParties[old];
+                    amounts[slot] = oldAmounts[old];
+                    forgotten[slot] = oldForgotten[old];
+                    kinds[slot] = oldKinds[old];
+                }
+            }
+            size = kept;
+        }
+
+        private static boolean expired(long forgotten, long now) {
+            return forgotten != 0 && now - forgotten >= OperationIds.TTL_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package ledger;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * Running debit totals per account for enforcing {@link WithdrawalLimits}.
+ *
+ * <p>Each account has a fixed row of longs: the current day with its amount
+ * and count, and a ring of {@link #BUCKETS} buckets covering the rolling
+ * window. A debit advances the row to now (clearing at most the whole ring),
+ * compares the totals with the limits and adds itself, so a check costs the
+ * same however busy the account has been. Rows are read and written only
+ * under the account's ledger stripe lock, which is what makes concurrent
+ * terminals safe; only page allocation is synchronized here.
+ *
+ * <p>A refunded debit stops counting: {@link #release} takes it off the
+ * day and off the newest buckets that still hold debits, never below zero.
+ * Refunds follow their debit within moments, so that is the debit's own.
+ *
+ * <p>Rows are not persisted. An account's row is seeded on its first debit
+ * from the history indexes (see {@link HistoryStore#aggregate}), netting the
+ * refunds out the same way, so limits survive a restart without replaying
+ * anything.
+ */
+final class VelocityTracker {
+    static final int BUCKETS = 6;
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+    private static final int DAY = 0;
+    private static final int DAY_AMOUNT = 1;
+    private static final int DAY_COUNT = 2;
+    private static final int BUCKET = 3;
+    private static final int AMOUNTS = 4;
+    private static final int COUNTS = AMOUNTS + BUCKETS;
+    private static final int STRIDE = COUNTS + BUCKETS;
+    // Zero marks a row not yet seeded; real day numbers start at one
+    private static final long UNSEEDED = 0;
+    private static final HistoryQuery DEBITS = new HistoryQuery()
+        .types(TransactionType.WITHDRAWAL, TransactionType.TRANSFER_OUT);
+    private static final HistoryQuery REFUNDS = new HistoryQuery().types(TransactionType.REFUND);
+
+    private final HistoryStore history;
+    private final long dailyAmount;
+    private final int dailyCount;
+    private final long windowAmount;
+    private final int windowCount;
+    private final ZoneId zone;
+    private final long bucketMillis;
+    private volatile long[][] pages = new long[0][];
+    // Bounds of the day containing the latest debit, recomputed at midnight
+    private volatile Day latestDay = new Day(Long.MIN_VALUE, Long.MIN_VALUE, UNSEEDED);
+
+    VelocityTracker(HistoryStore history, WithdrawalLimits limits) {
+        this.history = history;
+        this.dailyAmount = limits.getDailyAmount();
+        this.dailyCount = limits.getDailyCount();
+        this.windowAmount = limits.getWindowAmount();
+        this.windowCount = limits.getWindowCount();
+        this.zone = limits.getZone();
+        this.bucketMillis = Math.max(1, limits.getWindowMillis() / BUCKETS);
+    }
+
+    /**
+     * Checks a debit of {@code amount} at {@code now} against the limits and,
+     * if it passes, counts it. Returns {@link LedgerResult#OK} or the limit it
+     * would break. The caller holds the account's stripe lock and applies the
+     * debit only on OK.
+     */
+    LedgerResult admit(int ordinal, long amount, long now) {
+        long[] page = page(ordinal);
+        int row = (ordinal & PAGE_MASK) * STRIDE;
+        Day today = day(now);
+        long day = today.number;
+        long bucket = now / bucketMillis;
+        if (page[row + DAY] == UNSEEDED) {
+            seed(ordinal, page, row, today, bucket);
+        }
+        if (page[row + DAY] != day) {
+            page[row + DAY] = day;
+            page[row + DAY_AMOUNT] = 0;
+            page[row + DAY_COUNT] = 0;
+        }
+        advance(page, row, bucket);
+        if (page[row + DAY_COUNT] >= dailyCount || page[row + DAY_AMOUNT] > dailyAmount - amount) {
+            return LedgerResult.DAILY_LIMIT_EXCEEDED;
+        }
+        long recentAmount = 0;
+        long recentCount = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            recentAmount += page[row + AMOUNTS + i];
+            recentCount += page[row + COUNTS + i];
+        }
+        if (recentCount >= windowCount || recentAmount > windowAmount - amount) {
+            return LedgerResult.VELOCITY_LIMIT_EXCEEDED;
+        }
+        int slot = (int) (bucket % BUCKETS);
+        page[row + DAY_AMOUNT] += amount;
+        page[row + DAY_COUNT]++;
+        page[row + AMOUNTS + slot] += amount;
+        page[row + COUNTS + slot]++;
+        return LedgerResult.OK;
+    }
+
+    /**
+     * Stops counting a debit of {@code amount} that was refunded at
+     * {@code now}. The caller holds the account's stripe lock and has already
+     * recorded the refund, so a row seeded later nets it out by itself.
+     */
+    void release(int ordinal, long amount, long now) {
+        long[] page = page(ordinal);
+        int row = (ordinal & PAGE_MASK) * STRIDE;
+        if (page[row + DAY] == UNSEEDED) {
+            return;
+        }
+        Day today = day(now);
+        if (page[row + DAY] != today.number) {
+            // The day it was counted in is over
+            return;
+        }
+        page[row + DAY_AMOUNT] = Math.max(0, page[row + DAY_AMOUNT] - amount);
+        page[row + DAY_COUNT] = Math.max(0, page[row + DAY_COUNT] - 1);
+        long bucket = now / bucketMillis;
+        advance(page, row, bucket);
+        net(page, row, bucket, bucket - BUCKETS + 1, amount, 1);
+    }
+
+    // Takes amount and count off the buckets from newest back to oldest, leaving none below zero
+    private static void net(long[] page, int row, long newest, long oldest, long amount, long count) {
+        for (long b = newest; b >= oldest && (amount > 0 || count > 0); b--) {
+            int slot = (int) (b % BUCKETS);
+            long amountTaken = Math.min(amount, page[row + AMOUNTS + slot]);
+            long countTaken = Math.min(count, page[row + COUNTS + slot]);
+            page[row + AMOUNTS + slot] -= amountTaken;
+            page[row + COUNTS + slot] -= countTaken;
+            amount -= amountTaken;
+            count -= countTaken;
+        }
+    }
+
+    // Moves the ring forward to bucket, emptying the buckets that fell out of the window
+    private static void advance(long[] page, int row, long bucket) {
+        long newest = page[row + BUCKET];
+        if (bucket <= newest) {
+            return;
+        }
+        for (long b = Math.max(newest + 1, bucket - BUCKETS + 1); b <= bucket; b++) {
+            int slot = (int) (b % BUCKETS);
+            page[row + AMOUNTS + slot] = 0;
+            page[row + COUNTS + slot] = 0;
+        }
+        page[row + BUCKET] = bucket;
+    }
+
+    // Rebuilds the row from the account's debits and refunds today and in the window
+    private void seed(int ordinal, long[] page, int row, Day today, long bucket) {
+        int size = history.size(ordinal);
+        int dayStart = history.firstIndexAtOrAfter(ordinal, today.startMillis);
+        page[row + DAY] = today.number;
+        page[row + DAY_AMOUNT] = Math.max(0, -history.aggregate(ordinal, DEBITS, dayStart, size, true)
+            - history.aggregate(ordinal, REFUNDS, dayStart, size, true));
+        page[row + DAY_COUNT] = Math.max(0, history.aggregate(ordinal, DEBITS, dayStart, size, false)
+            - history.aggregate(ordinal, REFUNDS, dayStart, size, false));
+        page[row + BUCKET] = bucket;
+        for (long b = bucket - BUCKETS + 1; b <= bucket; b++) {
+            int from = history.firstIndexAtOrAfter(ordinal, b * bucketMillis);
+            int to = history.firstIndexAtOrAfter(ordinal, (b + 1) * bucketMillis);
+            int slot = (int) (b % BUCKETS);
+            page[row + AMOUNTS + slot] = -history.aggregate(ordinal, DEBITS, from, to, true);
+            page[row + COUNTS + slot] = history.aggregate(ordinal, DEBITS, from, to, false);
+            // Applied in time order, as release would have, so a refund only nets debits before it
+            long refunded = history.aggregate(ordinal, REFUNDS, from, to, true);
+            if (refunded != 0) {
+                net(page, row, b, bucket - BUCKETS + 1, refunded, history.aggregate(ordinal, REFUNDS, from, to, false));
+            }
+        }
+    }
+
+    private Day day(long now) {
+        Day current = latestDay;
+        if (now >= current.startMillis && now < current.endMillis) {
+            return current;
+        }
+        LocalDate date = Instant.ofEpochMilli(now).atZone(zone).toLocalDate();
+        current = new Day(date.atStartOfDay(zone).toInstant().toEpochMilli(),
+            date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli(),
+            date.toEpochDay() - LocalDate.MIN.toEpochDay() + 1);
+        latestDay = current;
+        return current;
+    }
+
+    private long[] page(int ordinal) {
+        int index = ordinal >>> PAGE_SHIFT;
+        long[][] current = pages;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        synchronized (this) {
+            current = pages;
+            if (index >= current.length) {
+                current = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+            }
+            if (current[index] == null) {
+                current[index] = new long[STRIDE << PAGE_SHIFT];
+            }
+            pages = current;
+            return current[index];
+        }
+    }
+
+    private static final class Day {
+        final long startMillis;
+        final long endMillis;
+        final long number;
+
+        Day(long startMillis, long endMillis, long number) {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.number = number;
+        }
+    }
+}
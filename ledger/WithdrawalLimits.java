@@ -0,0 +1,54 @@
+package ledger;
+
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fraud controls on money leaving an account, i.e. withdrawals and outgoing
+ * transfers: how much and how many per calendar day, and how much and how
+ * many within a rolling window (velocity). Amounts are in cents. Every limit
+ * is off until set.
+ *
+ * <p>The rolling window is tracked in six buckets, so it covers the last
+ * {@code window} to within a sixth of its length.
+ */
+public final class WithdrawalLimits {
+    private long dailyAmount = Long.MAX_VALUE;
+    private int dailyCount = Integer.MAX_VALUE;
+    private long windowMillis = TimeUnit.HOURS.toMillis(1);
+    private long windowAmount = Long.MAX_VALUE;
+    private int windowCount = Integer.MAX_VALUE;
+    private ZoneId zone = ZoneId.systemDefault();
+
+    public WithdrawalLimits daily(long amount, int count) {
+        if (amount < 1 || count < 1) {
+            throw new IllegalArgumentException("Daily limits must be positive");
+        }
+        this.dailyAmount = amount;
+        this.dailyCount = count;
+        return this;
+    }
+
+    public WithdrawalLimits window(long millis, long amount, int count) {
+        if (millis < VelocityTracker.BUCKETS || amount < 1 || count < 1) {
+            throw new IllegalArgumentException("Window limits must be positive");
+        }
+        this.windowMillis = millis;
+        this.windowAmount = amount;
+        this.windowCount = count;
+        return this;
+    }
+
+    /** Time zone whose midnight starts a new day; the system default unless set. */
+    public WithdrawalLimits zone(ZoneId zone) {
+        this.zone = zone;
+        return this;
+    }
+
+    public long getDailyAmount() { return dailyAmount; }
+    public int getDailyCount() { return dailyCount; }
+    public long getWindowMillis() { return windowMillis; }
+    public long getWindowAmount() { return windowAmount; }
+    public int getWindowCount() { return windowCount; }
+    public ZoneId getZone() { return zone; }
+}
@@ -0,0 +1,454 @@
+package ledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, segmented log of ledger mutations with group commit.
+ *
+ * <p>Appenders copy a record into an in-memory batch and get back
+ * its log sequence number (the logical byte offset just past the record). A
+ * single flusher thread swaps the batch out, writes it with one
+ * {@link FileChannel#write} and one {@link FileChannel#force}, then publishes
+ * the new durable LSN, so every record in the batch shares one sync.
+ *
+ * <p>Segments are named after the LSN of their first record and rolled once
+ * they exceed the configured size. Each record is framed by its length and a
+ * CRC32C; money records share one fixed payload and registrations append the
+ * account's encoded {@link PinHash}, never the PIN itself. Recovery replays
+ * segments in order and cuts a torn tail off the last one. Once a snapshot
+ * covers a prefix of the log, the segments in that prefix are deleted.
+ */
+final class WriteAheadLog implements Closeable {
+    static final byte REGISTER = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAW = 3;
+    static final byte TRANSFER = 4;
+    // Halves of a transfer between shards; each touches only its own account
+    static final byte TRANSFER_OUT = 5;
+    static final byte TRANSFER_IN = 6;
+    // Return of a cancelled TRANSFER_OUT to its sender; an amount of 0 only fences the transfer off
+    static final byte REFUND = 7;
+    // The router has finished a transfer between shards; the account's step in it may expire
+    static final byte FORGET = 12;
+    // Steps of a transfer between shards, written only to a router's own log (see SagaLog)
+    static final byte SAGA_BEGIN = 8;
+    static final byte SAGA_DEBITED = 9;
+    static final byte SAGA_CANCEL = 10;
+    static final byte SAGA_DONE = 11;
+
+    private static final int MAGIC = 0x41544D4C;
+    private static final int VERSION = 3;
+    private static final int SEGMENT_HEADER = 16;
+    private static final int RECORD_HEADER = 8;
+    private static final int PAYLOAD = 1 + 8 + 4 + 4 + 8 + 8;
+    private static final int MAX_RECORD_BYTES = RECORD_HEADER + PAYLOAD + PinHash.BYTES;
+
+    /**
+     * Receives replayed records in log order; {@code operationId} is 0 for a
+     * record made without one and {@code credential} is set only for
+     * registrations.
+     */
+    interface Visitor {
+        void record(byte type, long timeMillis, int accountId, int counterparty, long amount, long operationId,
+            PinHash credential);
+    }
+
+    private final Path dir;
+    private final LogOptions options;
+    private final Object appendLock = new Object();
+    private final Object durableLock = new Object();
+    private final CRC32C crc = new CRC32C();
+    private final Thread flusher;
+
+    // Guarded by appendLock
+    private ByteBuffer active;
+    private long appendedLsn;
+    private boolean closed;
+
+    // Owned by the flusher thread
+    private ByteBuffer flushing;
+    private FileChannel channel;
+    private long segmentStart;
+    private long segmentLength;
+
+    private volatile long durableLsn;
+    private volatile IOException failure;
+
+    private WriteAheadLog(Path dir, LogOptions options, Path tail, long endLsn) throws IOException {
+        this.dir = dir;
+        this.options = options;
+        this.active = ByteBuffer.allocate(options.getBufferBytes());
+        this.flushing = ByteBuffer.allocate(options.getBufferBytes());
+        this.appendedLsn = endLsn;
+        this.durableLsn = endLsn;
+        if (tail != null) {
+            channel = FileChannel.open(tail, StandardOpenOption.WRITE);
+            segmentStart = startLsn(tail);
+            segmentLength = endLsn - segmentStart;
+            channel.position(SEGMENT_HEADER + segmentLength);
+        } else {
+            openSegment(endLsn);
+        }
+        flusher = new Thread(this::flushLoop, "ledger-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Replays the records past {@code fromLsn} through {@code visitor} and opens
+     * the log for appending. Segments wholly below {@code fromLsn} (already
+     * covered by a snapshot) are skipped.
+     */
+    static WriteAheadLog open(Path dir, LogOptions options, long fromLsn, Visitor visitor) throws IOException {
+        Files.createDirectories(dir);
+        List<Path> segments = segments(dir);
+        long end = fromLsn;
+        Path tail = null;
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            boolean last = i == segments.size() - 1;
+            if (!last && startLsn(segments.get(i + 1)) <= fromLsn) {
+                continue;
+            }
+            if (tail == null ? startLsn(segment) > fromLsn : startLsn(segment) != end) {
+                throw new IOException("Gap in transaction log before " + segment);
+            }
+            end = replay(segment, last, fromLsn, visitor);
+            tail = segment;
+        }
+        if (end < fromLsn) {
+            throw new IOException("Transaction log ends at " + end + ", before snapshot LSN " + fromLsn);
+        }
+        if (tail != null && Files.size(tail) < SEGMENT_HEADER) {
+            Files.delete(tail);
+            tail = null;
+        }
+        return new WriteAheadLog(dir, options, tail, end);
+    }
+
+    /**
+     * Returns the LSN the oldest segment in {@code dir} starts at, or 0 if
+     * there is none; replaying a log from there that keeps no snapshot and
+     * has dropped its oldest segments.
+     */
+    static long firstLsn(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        List<Path> segments = segments(dir);
+        return segments.isEmpty() ? 0 : startLsn(segments.get(0));
+    }
+
+    /** Buffers one record and returns the LSN that must become durable for it to survive a crash. */
+    long append(byte type, long timeMillis, int accountId, int counterparty, long amount, long operationId,
+            PinHash credential) {
+        int payload = payloadBytes(type);
+        boolean interrupted = false;
+        try {
+            synchronized (appendLock) {
+                while (true) {
+                    checkHealthy();
+                    if (closed) {
+                        throw new IllegalStateException("Transaction log is closed");
+                    }
+                    if (active.remaining() >= RECORD_HEADER + payload) {
+                        break;
+                    }
+                    try {
+                        appendLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                int start = active.position();
+                active.position(start + RECORD_HEADER);
+                active.put(type)
+                    .putLong(timeMillis)
+                    .putInt(accountId)
+                    .putInt(counterparty)
+                    .putLong(amount)
+                    .putLong(operationId);
+                if (payload > PAYLOAD) {
+                    active.put(credential.encoded());
+                }
+                crc.reset();
+                crc.update(active.array(), start + RECORD_HEADER, payload);
+                active.putInt(start, payload);
+                active.putInt(start + 4, (int) crc.getValue());
+                appendedLsn += RECORD_HEADER + payload;
+                if (start == 0) {
+                    appendLock.notifyAll();
+                }
+                return appendedLsn;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Blocks until {@code lsn} is on disk when commits are synchronous; returns at once otherwise. */
+    void awaitDurable(long lsn) {
+        if (options.isSyncCommit()) {
+            sync(lsn);
+        } else {
+            checkHealthy();
+        }
+    }
+
+    /** Blocks until {@code lsn} is on disk regardless of the commit mode. */
+    void sync(long lsn) {
+        if (durableLsn >= lsn) {
+            checkHealthy();
+            return;
+        }
+        boolean interrupted = false;
+        synchronized (durableLock) {
+            while (durableLsn < lsn) {
+                checkHealthy();
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns the LSN just past the last buffered record. */
+    long appendedLsn() {
+        synchronized (appendLock) {
+            return appendedLsn;
+        }
+    }
+
+    long durableLsn() {
+        return durableLsn;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            appendLock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Deletes segments whose records all lie below {@code lsn}. The segment
+     * being appended to is always kept.
+     */
+    void deleteSegmentsBefore(long lsn) throws IOException {
+        List<Path> segments = segments(dir);
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (startLsn(segments.get(i + 1)) > lsn) {
+                break;
+            }
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    private void flushLoop() {
+        try {
+            while (true) {
+                synchronized (appendLock) {
+                    while (active.position() == 0 && !closed) {
+                        appendLock.wait();
+                    }
+                    if (active.position() == 0) {
+                        return;
+                    }
+                }
+                if (options.getGroupCommitMicros() > 0) {
+                    LockSupport.parkNanos(options.getGroupCommitMicros() * 1000);
+                }
+                long batchEnd;
+                synchronized (appendLock) {
+                    ByteBuffer full = active;
+                    active = flushing;
+                    flushing = full;
+                    batchEnd = appendedLsn;
+                    appendLock.notifyAll();
+                }
+                flushing.flip();
+                int bytes = flushing.remaining();
+                while (flushing.hasRemaining()) {
+                    channel.write(flushing);
+                }
+                channel.force(false);
+                flushing.clear();
+                segmentLength += bytes;
+
+                durableLsn = batchEnd;
+                synchronized (durableLock) {
+                    durableLock.notifyAll();
+                }
+                if (segmentLength >= options.getSegmentBytes()) {
+                    channel.close();
+                    openSegment(batchEnd);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new IOException("Transaction log flusher interrupted", e));
+        }
+    }
+
+    private void fail(IOException e) {
+        failure = e;
+        synchronized (appendLock) {
+            appendLock.notifyAll();
+        }
+        synchronized (durableLock) {
+            durableLock.notifyAll();
+        }
+    }
+
+    private void checkHealthy() {
+        IOException e = failure;
+        if (e != null) {
+            throw new UncheckedIOException("Transaction log failed", e);
+        }
+    }
+
+    private void openSegment(long startLsn) throws IOException {
+        Path path = dir.resolve(String.format("wal-%020d.log", startLsn));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+        header.putInt(MAGIC).putInt(VERSION).putLong(startLsn).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(false);
+        syncDirectory(dir);
+        segmentStart = startLsn;
+        segmentLength = 0;
+    }
+
+    private static long replay(Path segment, boolean last, long fromLsn, Visitor visitor) throws IOException {
+        long start = startLsn(segment);
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = file.size();
+            if (size < SEGMENT_HEADER) {
+                if (!last) {
+                    throw new IOException("Truncated log segment " + segment);
+                }
+                return start;
+            }
+            MappedByteBuffer buf = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buf.getInt(0) != MAGIC || buf.getLong(8) != start) {
+                throw new IOException("Bad log segment header in " + segment);
+            }
+            if (buf.getInt(4) != VERSION) {
+                throw new IOException("Unsupported log format version " + buf.getInt(4) + " in " + segment);
+            }
+            CRC32C check = new CRC32C();
+            ByteBuffer view = buf.duplicate();
+            int pos = SEGMENT_HEADER;
+            int limit = (int) size;
+            while (limit - pos >= RECORD_HEADER) {
+                int length = buf.getInt(pos);
+                if (length < PAYLOAD || length > MAX_RECORD_BYTES - RECORD_HEADER
+                        || limit - pos - RECORD_HEADER < length) {
+                    break;
+                }
+                int payload = pos + RECORD_HEADER;
+                check.reset();
+                view.limit(payload + length);
+                view.position(payload);
+                check.update(view);
+                if ((int) check.getValue() != buf.getInt(pos + 4)) {
+                    break;
+                }
+                byte type = buf.get(payload);
+                if (length != payloadBytes(type)) {
+                    throw new IOException("Malformed record at offset " + pos + " in " + segment);
+                }
+                pos = payload + length;
+                if (start + (pos - SEGMENT_HEADER) > fromLsn) {
+                    PinHash credential = null;
+                    if (length > PAYLOAD) {
+                        byte[] encoded = new byte[PinHash.BYTES];
+                        view.limit(pos);
+                        view.position(payload + PAYLOAD);
+                        view.get(encoded);
+                        credential = PinHash.decode(encoded);
+                    }
+                    visitor.record(type,
+                        buf.getLong(payload + 1),
+                        buf.getInt(payload + 9),
+                        buf.getInt(payload + 13),
+                        buf.getLong(payload + 17),
+                        buf.getLong(payload + 25),
+                        credential);
+                }
+            }
+            if (pos != limit) {
+                if (!last) {
+                    throw new IOException("Corrupt record at offset " + pos + " in " + segment);
+                }
+                file.truncate(pos);
+                file.force(false);
+            }
+            return start + (pos - SEGMENT_HEADER);
+        }
+    }
+
+    private static int payloadBytes(byte type) {
+        return type == REGISTER ? PAYLOAD + PinHash.BYTES : PAYLOAD;
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        segments.sort((a, b) -> Long.compare(startLsn(a), startLsn(b)));
+        return segments;
+    }
+
+    private static long startLsn(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(4, name.length() - 4));
+    }
+
+    static void syncDirectory(Path dir) {
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException e) {
+            // Not every platform can sync a directory; the segment itself is synced.
+        }
+    }
+}
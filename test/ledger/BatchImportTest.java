@@ -0,0 +1,127 @@
+package ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Checks that a parallel import matches a serial one and reports what it refused. */
+class BatchImportTest {
+    private static final int ACCOUNTS = 48;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void matchesASerialRunAccountByAccount() throws IOException {
+        SplittableRandom random = new SplittableRandom(14);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 40_000; i++) {
+            int account = 1000 + random.nextInt(ACCOUNTS);
+            String amount = random.nextInt(500) + "." + (10 + random.nextInt(90));
+            int kind = random.nextInt(10);
+            if (kind == 0) {
+                lines.add("DEPOSIT," + account + "," + amount);
+            } else if (kind == 1) {
+                lines.add("withdraw," + account + "," + amount);
+            } else {
+                // Mostly transfers, most of them between accounts of different workers
+                lines.add("TRANSFER," + account + "," + amount + "," + (1000 + random.nextInt(ACCOUNTS)));
+            }
+        }
+        Path input = dir.resolve("input.csv");
+        Files.write(input, lines, StandardCharsets.US_ASCII);
+
+        Ledger parallel = ledger(ACCOUNTS);
+        Ledger serial = ledger(ACCOUNTS);
+        BatchImport.Summary summary = new BatchImport(parallel, 4).process(input, dir.resolve("report.csv"));
+
+        List<String> refused = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String[] fields = lines.get(i).split(",");
+            long amount = Money.parse(fields[2]);
+            int account = Integer.parseInt(fields[1]);
+            LedgerResult result;
+            switch (fields[0]) {
+                case "DEPOSIT":
+                    result = serial.deposit(account, amount);
+                    break;
+                case "withdraw":
+                    result = serial.withdraw(account, amount);
+                    break;
+                default:
+                    result = serial.transfer(account, Integer.parseInt(fields[3]), amount);
+            }
+            if (result != LedgerResult.OK) {
+                refused.add((i + 1) + "," + result.name() + "," + result.getMessage());
+            }
+        }
+
+        assertEquals(lines.size(), summary.getOperations());
+        assertEquals(refused.size(), summary.getRejected());
+        List<String> report = Files.readAllLines(dir.resolve("report.csv"), StandardCharsets.US_ASCII);
+        assertEquals(refused, report.subList(1, report.size() - 1));
+        for (int account = 1000; account < 1000 + ACCOUNTS; account++) {
+            assertEquals(serial.balance(account), parallel.balance(account), "balance of " + account);
+            List<Transaction> expected = serial.history(account);
+            List<Transaction> actual = parallel.history(account);
+            assertEquals(expected.size(), actual.size(), "history of " + account);
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getKind(), actual.get(i).getKind());
+                assertEquals(expected.get(i).getAmount(), actual.get(i).getAmount());
+                assertEquals(expected.get(i).getCounterparty(), actual.get(i).getCounterparty());
+            }
+        }
+    }
+
+    @Test
+    void reportsMalformedAndRefusedLines() throws IOException {
+        Path input = dir.resolve("input.csv");
+        Files.write(input, List.of(
+            "# header",
+            "DEPOSIT,1000,10.00",
+            "REFUND,1000,1.00",
+            "DEPOSIT,1000",
+            "WITHDRAW,abc,1.00",
+            "",
+            "WITHDRAW,1000,1.2.3",
+            "TRANSFER,1000,1.00,xyz",
+            "TRANSFER,1000,1.00,1001,7",
+            "WITHDRAW,1000,100000.00",
+            "TRANSFER,1000,1.00,999"), StandardCharsets.US_ASCII);
+        BatchImport batch = new BatchImport(ledger(2), 2);
+
+        for (int run = 0; run < 2; run++) {
+            BatchImport.Summary summary = batch.process(input, dir.resolve("report.csv"));
+            assertEquals(9, summary.getOperations());
+            assertEquals(8, summary.getRejected());
+            assertEquals(List.of(
+                "# line,result,message",
+                "3,MALFORMED,Unknown operation.",
+                "4,MALFORMED,Wrong number of fields.",
+                "5,MALFORMED,Please enter a valid User ID.",
+                "7,MALFORMED,Please enter a valid amount.",
+                "8,MALFORMED,Please enter a valid recipient.",
+                "9,MALFORMED,Wrong number of fields.",
+                "10,INSUFFICIENT_FUNDS,Insufficient funds.",
+                "11,RECIPIENT_NOT_FOUND,Recipient not found.",
+                "# 9 operations, 1 applied, 8 rejected"),
+                Files.readAllLines(dir.resolve("report.csv"), StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static Ledger ledger(int accounts) {
+        Ledger ledger = new Ledger();
+        for (int account = 1000; account < 1000 + accounts; account++) {
+            assertEquals(LedgerResult.OK, ledger.register(account, 1234, 50_000));
+        }
+        return ledger;
+    }
+}
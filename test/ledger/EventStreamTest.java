@@ -0,0 +1,97 @@
+package ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/** Checks delivery of ledger changes through an event stream and dropping of failing handlers. */
+class EventStreamTest {
+    private static final int PIN = 1234;
+
+    @Test
+    void deliversEveryChangeInOrder() throws IOException {
+        List<String> seen = new ArrayList<>();
+        List<Long> sequences = new ArrayList<>();
+        try (Ledger ledger = new Ledger(); EventStream stream = new EventStream(8)) {
+            stream.subscribe("test", (event, endOfBatch) -> {
+                sequences.add(event.getSequence());
+                seen.add(event.getType() + " " + event.getAccountId() + " " + event.getCounterparty() + " "
+                    + event.getAmount() + " " + event.getBalance() + " " + event.getCounterpartyBalance());
+            });
+            ledger.setEventStream(stream);
+            PinHash pin = PinHash.create(PIN, 1_000);
+            ledger.register(1, pin, 1_000);
+            ledger.register(2, pin, 0);
+            ledger.deposit(1, 500);
+            ledger.withdraw(1, 200);
+            ledger.transfer(1, 2, 300);
+            // Refused changes publish nothing
+            ledger.withdraw(2, 1_000);
+            for (int i = 0; i < 20; i++) {
+                ledger.deposit(2, 1);
+            }
+            stream.close();
+        }
+        assertEquals(List.of(
+            "REGISTER 1 0 1000 1000 0",
+            "REGISTER 2 0 0 0 0",
+            "DEPOSIT 1 0 500 1500 0",
+            "WITHDRAWAL 1 0 200 1300 0",
+            "TRANSFER 1 2 300 1000 300"), seen.subList(0, 5));
+        assertEquals(25, seen.size());
+        assertEquals("DEPOSIT 2 0 1 320 0", seen.get(24));
+        for (int i = 0; i < sequences.size(); i++) {
+            assertEquals(i, sequences.get(i));
+        }
+    }
+
+    @Test
+    void dropsAFailingHandlerWithoutStallingTheLedger() throws Exception {
+        CountDownLatch closed = new CountDownLatch(1);
+        List<Long> healthy = new ArrayList<>();
+        try (Ledger ledger = new Ledger(); EventStream stream = new EventStream(4)) {
+            stream.subscribe("failing", new FailingHandler(closed));
+            stream.subscribe("healthy", (event, endOfBatch) -> healthy.add(event.getBalance()));
+            ledger.setEventStream(stream);
+            ledger.register(1, PinHash.create(PIN, 1_000), 0);
+
+            assertTrue(closed.await(10, TimeUnit.SECONDS));
+            // Many times the ring's size, which a stuck handler would never let through
+            assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                for (int i = 0; i < 1_000; i++) {
+                    ledger.deposit(1, 1);
+                }
+            });
+            stream.close();
+        }
+        assertEquals(1_001, healthy.size());
+        assertEquals(1_000, healthy.get(1_000));
+    }
+
+    private static final class FailingHandler implements LedgerEventHandler, Closeable {
+        private final CountDownLatch closed;
+
+        FailingHandler(CountDownLatch closed) {
+            this.closed = closed;
+        }
+
+        @Override
+        public void onEvent(LedgerEvent event, boolean endOfBatch) throws IOException {
+            throw new IOException("Sink unavailable");
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+/** Checks indexed history queries against a scan of every entry. */
+class HistoryStoreTest {
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    @Test
+    void counterpartyQueriesMatchAScan() {
+        HistoryStore history = HistoryStore.inMemory();
+        history.addAccount(0);
+        SplittableRandom random = new SplittableRandom(18);
+        append(history, random, 1_000);
+        check(history, random);
+        // Entries appended after the postings were built must be found too
+        append(history, random, 700);
+        check(history, random);
+    }
+
+    private static void append(HistoryStore history, SplittableRandom random, int count) {
+        for (int i = 0; i < count; i++) {
+            TransactionType type = TYPES[random.nextInt(TYPES.length)];
+            history.append(0, type, random.nextLong(1, 10_000), i, type.isTransfer() ? random.nextInt(6) : 0);
+        }
+    }
+
+    private static void check(HistoryStore history, SplittableRandom random) {
+        int size = history.size(0);
+        for (int round = 0; round < 200; round++) {
+            HistoryQuery query = new HistoryQuery().counterparty(random.nextInt(7));
+            if (random.nextBoolean()) {
+                query.types(TransactionType.TRANSFER_OUT);
+            }
+            int from = random.nextInt(size);
+            int to = from + random.nextInt(size - from + 1);
+
+            long count = 0;
+            long total = 0;
+            int first = to;
+            for (int i = from; i < to; i++) {
+                if (query.includes(history.type(0, i)) && history.counterparty(0, i) == query.getCounterparty()) {
+                    if (count == 3) {
+                        assertEquals(i, history.indexOfMatch(0, query, from, to, 3));
+                    }
+                    first = Math.min(first, i);
+                    count++;
+                    total += history.amount(0, i);
+                }
+            }
+            assertEquals(count, history.aggregate(0, query, from, to, false));
+            assertEquals(total, history.aggregate(0, query, from, to, true));
+            assertEquals(first, history.nextMatch(0, query, from, to));
+            if (count <= 3) {
+                assertEquals(to, history.indexOfMatch(0, query, from, to, 3));
+            }
+        }
+    }
+}
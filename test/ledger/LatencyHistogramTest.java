@@ -0,0 +1,57 @@
+package ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+    @Test
+    void bucketsTileTheRangeWithoutGaps() {
+        int last = LatencyHistogram.index(LatencyHistogram.MAX_NANOS);
+        assertEquals(LatencyHistogram.MAX_NANOS, LatencyHistogram.highestValue(last));
+        assertEquals(0, LatencyHistogram.index(0));
+        for (int i = 0; i < last; i++) {
+            long highest = LatencyHistogram.highestValue(i);
+            assertEquals(i, LatencyHistogram.index(highest), "top of bucket " + i);
+            assertEquals(i + 1, LatencyHistogram.index(highest + 1), "bottom of bucket " + (i + 1));
+        }
+    }
+
+    @Test
+    void bucketsAreWithinASixteenthOfTheirValues() {
+        SplittableRandom random = new SplittableRandom(17);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextLong(1L << random.nextInt(1, 41));
+            long highest = LatencyHistogram.highestValue(LatencyHistogram.index(value));
+            assertTrue(highest >= value && highest - value <= value / 16, value + " reported as " + highest);
+        }
+    }
+
+    @Test
+    void quantilesAreAccurate() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.valueAtQuantile(0.5));
+        for (long nanos = 1; nanos <= 100_000; nanos++) {
+            histogram.record(nanos * 1_000);
+        }
+        for (double quantile : new double[] {0.01, 0.5, 0.9, 0.99, 0.999}) {
+            long exact = (long) Math.ceil(quantile * 100_000) * 1_000;
+            long reported = histogram.valueAtQuantile(quantile);
+            assertTrue(reported >= exact && reported - exact <= exact / 16, quantile + ": " + reported);
+        }
+        assertEquals(100_000_000, histogram.valueAtQuantile(1));
+        assertEquals(100_000_000, histogram.getMaxNanos());
+        assertEquals(100_000, histogram.getCount());
+    }
+
+    @Test
+    void clampsOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.valueAtQuantile(0.5));
+        assertEquals(LatencyHistogram.MAX_NANOS, histogram.valueAtQuantile(1));
+    }
+}
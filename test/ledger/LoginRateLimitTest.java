@@ -0,0 +1,91 @@
+package ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import org.junit.jupiter.api.Test;
+
+class LoginRateLimitTest {
+    private static final int PIN = 1234;
+
+    @Test
+    void lockoutHitsOnlyTheAttackedAccount() throws IOException {
+        try (Ledger ledger = new Ledger()) {
+            PinHash pin = PinHash.create(PIN, 1_000);
+            // Ids that shared one bucket when accounts were hashed into 65,536 slots
+            int victim = 7;
+            int neighbour = victim + 1;
+            while ((slot(neighbour) & 0xFFFF) != (slot(victim) & 0xFFFF)) {
+                neighbour++;
+            }
+            ledger.register(victim, pin, 0);
+            ledger.register(neighbour, pin, 0);
+
+            LedgerResult result = LedgerResult.OK;
+            for (int terminal = 0; result != LedgerResult.TOO_MANY_ATTEMPTS && terminal < 100; terminal++) {
+                result = ledger.authenticate(terminal, victim, PIN + 1);
+            }
+            assertEquals(LedgerResult.TOO_MANY_ATTEMPTS, result);
+            assertEquals(LedgerResult.TOO_MANY_ATTEMPTS, ledger.authenticate(1_000, victim, PIN));
+            assertEquals(LedgerResult.OK, ledger.authenticate(1_001, neighbour, PIN));
+        }
+    }
+
+    @Test
+    void unknownIdsAreLimitedToo() throws IOException {
+        try (Ledger ledger = new Ledger()) {
+            LedgerResult result = LedgerResult.OK;
+            for (int terminal = 0; result != LedgerResult.TOO_MANY_ATTEMPTS && terminal < 100; terminal++) {
+                result = ledger.authenticate(terminal, 424_242, PIN);
+            }
+            assertEquals(LedgerResult.TOO_MANY_ATTEMPTS, result);
+        }
+    }
+
+    @Test
+    void serverChargesTheConnectionNotTheClaimedTerminal() throws IOException {
+        try (Ledger ledger = new Ledger();
+                LedgerServer server = LedgerServer.start(ledger, new InetSocketAddress("localhost", 0));
+                LedgerClient client = LedgerClient.connect(new InetSocketAddress("localhost", server.getPort()))) {
+            PinHash pin = PinHash.create(PIN, 1_000);
+            for (int id = 0; id < 100; id++) {
+                ledger.register(id, pin, 0);
+            }
+            // A fresh terminal and account on every attempt, so only the address can run out
+            LedgerResult result = LedgerResult.OK;
+            int attempts = 0;
+            while (result != LedgerResult.TOO_MANY_ATTEMPTS && attempts < 100) {
+                result = client.login(attempts, attempts, PIN + 1).getResult();
+                attempts++;
+            }
+            assertEquals(LedgerResult.TOO_MANY_ATTEMPTS, result);
+            assertEquals(11, attempts);
+        }
+    }
+
+    @Test
+    void serverChargesRegistrationsToTheConnection() throws IOException {
+        try (Ledger ledger = new Ledger();
+                LedgerServer server = LedgerServer.start(ledger, new InetSocketAddress("localhost", 0));
+                LedgerClient client = LedgerClient.connect(new InetSocketAddress("localhost", server.getPort()))) {
+            ledger.setLoginLimits(new LoginLimits().terminal(3, 60_000));
+            ledger.register(100, PinHash.create(PIN, 1_000), 0);
+            for (int id = 0; id < 3; id++) {
+                assertEquals(LedgerResult.OK, client.register(id, PIN, 0));
+            }
+            // Refused before the PIN is hashed, and logins from the same address are out of attempts too
+            assertEquals(LedgerResult.TOO_MANY_ATTEMPTS, client.register(3, PIN, 0));
+            assertFalse(ledger.exists(3));
+            assertEquals(LedgerResult.TOO_MANY_ATTEMPTS, client.login(0, 100, PIN).getResult());
+            // Registering in-process is not limited
+            assertEquals(LedgerResult.OK, ledger.register(3, PIN, 0));
+        }
+    }
+
+    private static int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,67 @@
+package ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/** Checks session reads against the version stamps and session expiry. */
+class SessionTest {
+    private static final int PIN = 1234;
+
+    @Test
+    void readsFollowTheVersionStamp() throws IOException {
+        try (Ledger ledger = new Ledger()) {
+            ledger.register(1, PinHash.create(PIN, 1_000), 10_000);
+            Session session = ledger.login(1, 1, PIN);
+            assertEquals(LedgerResult.OK, session.getResult());
+
+            assertEquals(10_000, ledger.balance(session));
+            long stamp = session.seenVersion;
+            assertEquals(0, stamp & 1);
+            assertEquals(10_000, ledger.balance(session));
+            assertEquals(stamp, session.seenVersion);
+
+            // A change made elsewhere moves the stamp on, so the next read sees it
+            assertEquals(LedgerResult.OK, ledger.deposit(1, 2_500));
+            assertEquals(12_500, ledger.balance(session));
+            assertNotEquals(stamp, session.seenVersion);
+            assertEquals(LedgerResult.OK, ledger.withdraw(session, 500));
+            assertEquals(12_000, ledger.balance(session));
+            assertEquals(12_000, ledger.balance(1));
+        }
+    }
+
+    @Test
+    void expiredAndClosedSessionsAreRefused() throws IOException {
+        try (Ledger ledger = new Ledger()) {
+            ledger.register(1, PinHash.create(PIN, 1_000), 10_000);
+            ledger.register(2, PinHash.create(PIN, 1_000), 0);
+
+            Session idle = ledger.login(1, 1, PIN);
+            assertFalse(idle.isExpired());
+            idle.lastUsedNanos -= TimeUnit.SECONDS.toNanos(Session.IDLE_TIMEOUT_SECONDS + 1);
+            assertTrue(idle.isExpired());
+            assertEquals(LedgerResult.SESSION_EXPIRED, ledger.withdraw(idle, 100));
+            assertEquals(LedgerResult.SESSION_EXPIRED, ledger.transfer(idle, 2, 100));
+            assertEquals(Ledger.NO_BALANCE, ledger.balance(idle));
+
+            Session closed = ledger.login(2, 1, PIN);
+            ledger.logout(closed);
+            assertEquals(LedgerResult.SESSION_EXPIRED, ledger.deposit(closed, 100));
+            assertEquals(0, ledger.historySize(closed));
+
+            Session refused = ledger.login(3, 1, PIN + 1);
+            assertEquals(LedgerResult.INVALID_CREDENTIALS, refused.getResult());
+            assertTrue(refused.isExpired());
+            assertEquals(LedgerResult.SESSION_EXPIRED, ledger.withdraw(refused, 100));
+
+            assertEquals(10_000, ledger.balance(1));
+            assertEquals(0, ledger.balance(2));
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ShardedLedgerTest {
+    private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final List<Ledger> ledgers = new ArrayList<>();
+    private final List<LedgerServer> servers = new ArrayList<>();
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void stop() throws IOException {
+        for (LedgerServer server : servers) {
+            server.close();
+        }
+        for (Ledger ledger : ledgers) {
+            ledger.close();
+        }
+    }
+
+    @Test
+    void placesAccountsByShardIdWhateverTheOrder() throws IOException {
+        List<String> ring = List.of("east", "west", "north");
+        InetSocketAddress east = serve("east", ring);
+        InetSocketAddress west = serve("west", ring);
+        InetSocketAddress north = serve("north", ring);
+        try (ShardedLedger one = ShardedLedger.connect(List.of(east, west, north), SECRET, dir.resolve("one"));
+                ShardedLedger other = ShardedLedger.connect(List.of(north, east, west), SECRET, dir.resolve("other"))) {
+            List<InetSocketAddress> first = List.of(east, west, north);
+            List<InetSocketAddress> second = List.of(north, east, west);
+            for (int account = 0; account < 1_000; account++) {
+                assertEquals(first.get(one.shardOf(account)), second.get(other.shardOf(account)));
+            }
+        }
+    }
+
+    @Test
+    void refusesShardsThatDisagreeOnTheRing() throws IOException {
+        InetSocketAddress east = serve("east", List.of("east", "west"));
+        InetSocketAddress west = serve("west", List.of("east", "west", "north"));
+        assertThrows(IOException.class, () -> ShardedLedger.connect(List.of(east, west), SECRET, dir));
+        // A shard left out of the list is missed too
+        assertThrows(IOException.class, () -> ShardedLedger.connect(List.of(east), SECRET, dir));
+    }
+
+    @Test
+    void refusesServersThatAreNotShards() throws IOException {
+        Ledger ledger = new Ledger();
+        ledgers.add(ledger);
+        LedgerServer plain = LedgerServer.start(ledger, new InetSocketAddress("localhost", 0));
+        servers.add(plain);
+        InetSocketAddress east = serve("east", List.of("east"));
+        assertThrows(IOException.class,
+            () -> ShardedLedger.connect(List.of(east, new InetSocketAddress("localhost", plain.getPort())), SECRET, dir));
+    }
+
+    @Test
+    void servesCreditsOnlyToAuthenticatedCoordinators() throws IOException {
+        InetSocketAddress east = serve("east", List.of("east"));
+        Ledger ledger = ledgers.get(ledgers.size() - 1);
+        LedgerServer server = servers.get(servers.size() - 1);
+        assertEquals(LedgerResult.OK, ledger.register(7, 1234, 100));
+
+        try (LedgerClient terminal = LedgerClient.connect(east)) {
+            assertEquals(LedgerResult.UNAVAILABLE, terminal.creditAsync(1, 7, 8, 50).join());
+            assertFalse(terminal.isConnected());
+        }
+        InetSocketAddress coordinator = new InetSocketAddress("localhost", server.getCoordinatorPort());
+        byte[] wrong = SECRET.clone();
+        wrong[0] ^= 1;
+        assertThrows(IOException.class, () -> LedgerClient.connectCoordinator(coordinator, wrong));
+        assertEquals(100, ledger.balance(7));
+
+        try (LedgerClient trusted = LedgerClient.connectCoordinator(coordinator, SECRET)) {
+            assertEquals(LedgerResult.OK, trusted.creditAsync(1, 7, 8, 50).join());
+        }
+        assertEquals(150, ledger.balance(7));
+    }
+
+    @Test
+    void finishesTransfersTheLastRouterLeftOpen() throws Exception {
+        List<String> ring = List.of("east", "west");
+        InetSocketAddress east = serve("east", ring);
+        InetSocketAddress west = serve("west", ring);
+        ShardRing placement = new ShardRing(ring);
+        int sender = 0;
+        int recipient = 1;
+        while (placement.shardOf(recipient) == placement.shardOf(sender)) {
+            recipient++;
+        }
+        Ledger source = ledgers.get(placement.shardOf(sender));
+        Ledger target = ledgers.get(placement.shardOf(recipient));
+        assertEquals(LedgerResult.OK, source.register(sender, 1234, 1_000));
+        assertEquals(LedgerResult.OK, target.register(recipient, 1234, 0));
+        Session session = source.login(1, sender, 1234);
+
+        // One router stops after the debit of one transfer and before it learns whether another was debited
+        try (SagaLog sagas = SagaLog.open(dir)) {
+            SagaLog.Saga credited = sagas.begin(sender, recipient, 300, 41);
+            assertEquals(LedgerResult.OK, source.debitTransfer(session, 41, recipient, 300));
+            sagas.debited(credited);
+            sagas.begin(sender, recipient, 200, 42);
+            assertEquals(LedgerResult.OK, source.debitTransfer(session, 42, recipient, 200));
+        }
+        assertEquals(500, source.balance(sender));
+
+        try (ShardedLedger router = ShardedLedger.connect(List.of(east, west), SECRET, dir)) {
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while ((source.balance(sender) != 700 || target.balance(recipient) != 300)
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(700, source.balance(sender));
+            assertEquals(300, target.balance(recipient));
+        }
+        try (SagaLog sagas = SagaLog.open(dir)) {
+            assertTrue(sagas.openSagas().isEmpty());
+        }
+    }
+
+    @Test
+    void refundsACreditTheRecipientCannotTakeAndReleasesTheLimits() throws IOException {
+        List<String> ring = List.of("east", "west");
+        InetSocketAddress east = serve("east", ring);
+        InetSocketAddress west = serve("west", ring);
+        ShardRing placement = new ShardRing(ring);
+        int sender = 0;
+        int recipient = 1;
+        while (placement.shardOf(recipient) == placement.shardOf(sender)) {
+            recipient++;
+        }
+        Ledger source = ledgers.get(placement.shardOf(sender));
+        Ledger target = ledgers.get(placement.shardOf(recipient));
+        WithdrawalLimits limits = new WithdrawalLimits().daily(500, 2);
+        source.setWithdrawalLimits(limits);
+        assertEquals(LedgerResult.OK, source.register(sender, 1234, 1_000));
+        // One more cent would overflow the recipient's balance
+        assertEquals(LedgerResult.OK, target.register(recipient, 1234, Long.MAX_VALUE - 100));
+
+        try (ShardedLedger router = ShardedLedger.connect(List.of(east, west), SECRET, dir)) {
+            Session session = router.login(1, sender, 1234);
+            assertEquals(LedgerResult.INVALID_AMOUNT, router.transfer(session, recipient, 300));
+        }
+        assertEquals(1_000, source.balance(sender));
+        assertEquals(Long.MAX_VALUE - 100, target.balance(recipient));
+        List<Transaction> history = source.history(sender);
+        Transaction refund = history.get(history.size() - 1);
+        assertEquals(TransactionType.REFUND, refund.getKind());
+        assertEquals(300, refund.getAmount());
+        assertEquals(recipient, refund.getCounterparty());
+        assertEquals("Refund of transfer to " + recipient, refund.getType());
+        assertEquals(TransactionType.TRANSFER_OUT, history.get(history.size() - 2).getKind());
+
+        // The refunded 300 no longer counts, neither where it was released nor when the limits are seeded again
+        assertEquals(LedgerResult.OK, source.withdraw(sender, 250));
+        source.setWithdrawalLimits(limits);
+        assertEquals(LedgerResult.OK, source.withdraw(sender, 250));
+        assertEquals(LedgerResult.DAILY_LIMIT_EXCEEDED, source.withdraw(sender, 1));
+    }
+
+    @Test
+    void tellsBothShardsToForgetAFinishedTransfer() throws IOException {
+        List<String> ring = List.of("east", "west");
+        InetSocketAddress east = serve("east", ring);
+        InetSocketAddress west = serve("west", ring);
+        ShardRing placement = new ShardRing(ring);
+        int sender = 0;
+        int recipient = 1;
+        while (placement.shardOf(recipient) == placement.shardOf(sender)) {
+            recipient++;
+        }
+        Ledger source = ledgers.get(placement.shardOf(sender));
+        Ledger target = ledgers.get(placement.shardOf(recipient));
+        assertEquals(LedgerResult.OK, source.register(sender, 1234, 1_000));
+        assertEquals(LedgerResult.OK, target.register(recipient, 1234, 0));
+
+        try (ShardedLedger router = ShardedLedger.connect(List.of(east, west), SECRET, dir)) {
+            Session session = router.login(1, sender, 1234);
+            assertEquals(LedgerResult.OK, router.transfer(session, recipient, 300, 77));
+            assertEquals(0, source.transferStep(sender, 77).forgotten);
+            assertEquals(0, target.transferStep(recipient, 77).forgotten);
+        }
+        assertTrue(source.transferStep(sender, 77).forgotten != 0);
+        assertTrue(target.transferStep(recipient, 77).forgotten != 0);
+        assertEquals(700, source.balance(sender));
+        assertEquals(300, target.balance(recipient));
+    }
+
+    private InetSocketAddress serve(String id, List<String> ring) throws IOException {
+        Ledger ledger = new Ledger();
+        ledgers.add(ledger);
+        LedgerServer server = LedgerServer.start(ledger, new InetSocketAddress("localhost", 0),
+            new ShardOptions(id, ring, SECRET));
+        servers.add(server);
+        return new InetSocketAddress("localhost", server.getPort());
+    }
+}
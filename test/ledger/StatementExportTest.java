@@ -0,0 +1,46 @@
+package ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Checks statements of accounts registered during and after the month. */
+class StatementExportTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void opensAtZeroInTheMonthOfRegistrationAndSkipsEarlierMonths() throws IOException {
+        Ledger ledger = new Ledger();
+        assertEquals(LedgerResult.OK, ledger.register(1001, 1234, 100_000));
+        assertEquals(LedgerResult.OK, ledger.deposit(1001, 25_000));
+        YearMonth month = YearMonth.now(ZoneOffset.UTC);
+        StatementExport export = new StatementExport(ledger, 1);
+
+        assertEquals(1, export.export(month, ZoneOffset.UTC, dir).getStatements());
+        List<String> rows = Files.readAllLines(dir.resolve("statements-" + month + "-00000.csv"),
+            StandardCharsets.US_ASCII);
+        assertEquals(7, rows.size());
+        assertEquals("1001," + month + "-01 00:00:00,Opening balance,,0.00", rows.get(1));
+        assertTrue(rows.get(2).matches("1001,[-0-9: ]+,Opening deposit,1000\\.00,1000\\.00"), rows.get(2));
+        assertTrue(rows.get(3).endsWith(",250.00,1250.00"), rows.get(3));
+        assertEquals("1001,,Total credits,1250.00,", rows.get(4));
+        assertEquals("1001,,Total debits,0.00,", rows.get(5));
+        assertTrue(rows.get(6).endsWith(",Closing balance,,1250.00"), rows.get(6));
+
+        // A month before the account existed has no statement for it
+        YearMonth before = month.minusMonths(1);
+        assertEquals(0, export.export(before, ZoneOffset.UTC, dir).getStatements());
+        assertEquals(List.of("account,time,description,amount,balance"),
+            Files.readAllLines(dir.resolve("statements-" + before + "-00000.csv"), StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,78 @@
+package ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+/** Checks that transfers racing in opposite directions neither deadlock nor lose money. */
+class TransferLockingTest {
+    private static final int ACCOUNTS = 6;
+    private static final long OPENING = 1_000_000;
+
+    @Test
+    void opposingTransfersFinishAndConserveTheTotal() throws Exception {
+        try (Ledger ledger = new Ledger()) {
+            PinHash pin = PinHash.create(1234, 1_000);
+            for (int id = 1; id <= ACCOUNTS; id++) {
+                assertEquals(LedgerResult.OK, ledger.register(id, pin, OPENING));
+            }
+            assertNotEquals(Ledger.stripe(1), Ledger.stripe(2));
+
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            try {
+                assertTimeoutPreemptively(Duration.ofMinutes(1), () -> {
+                    List<Future<?>> runs = new ArrayList<>();
+                    for (int t = 0; t < 8; t++) {
+                        long seed = t;
+                        runs.add(pool.submit(() -> {
+                            SplittableRandom random = new SplittableRandom(seed);
+                            for (int i = 0; i < 20_000; i++) {
+                                // Half the transfers go 1 -> 2 or 2 -> 1, the rest anywhere
+                                int from = random.nextBoolean() ? 1 + (i & 1) : 1 + random.nextInt(ACCOUNTS);
+                                int to = random.nextBoolean() ? 3 - from : 1 + random.nextInt(ACCOUNTS);
+                                ledger.transfer(from, to, 1 + random.nextInt(50_000));
+                            }
+                        }));
+                    }
+                    for (Future<?> run : runs) {
+                        run.get();
+                    }
+                });
+            } finally {
+                pool.shutdownNow();
+            }
+
+            long total = 0;
+            for (int id = 1; id <= ACCOUNTS; id++) {
+                total += ledger.balance(id);
+            }
+            assertEquals(ACCOUNTS * OPENING, total);
+        }
+    }
+
+    @Test
+    void refusedTransfersChangeNothing() throws IOException {
+        try (Ledger ledger = new Ledger()) {
+            PinHash pin = PinHash.create(1234, 1_000);
+            ledger.register(1, pin, 500);
+            ledger.register(2, pin, 500);
+            int history = ledger.historySize(1);
+            assertEquals(LedgerResult.INSUFFICIENT_FUNDS, ledger.transfer(1, 2, 501));
+            assertEquals(LedgerResult.RECIPIENT_NOT_FOUND, ledger.transfer(1, 3, 100));
+            assertEquals(LedgerResult.SAME_ACCOUNT, ledger.transfer(1, 1, 100));
+            assertEquals(500, ledger.balance(1));
+            assertEquals(500, ledger.balance(2));
+            assertEquals(history, ledger.historySize(1));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Checks that operation ids and transfer steps are applied once and only to the operation they name. */
+class TransferStepsTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void refusesARetryThatIsNotTheSameOperation() {
+        Ledger ledger = new Ledger();
+        ledger.register(1, 1234, 1_000);
+        ledger.register(2, 1234, 0);
+        Session session = ledger.login(1, 1, 1234);
+        assertEquals(LedgerResult.OK, ledger.withdraw(session, 100, 7));
+        assertEquals(LedgerResult.OK, ledger.withdraw(session, 100, 7));
+        assertEquals(LedgerResult.OPERATION_MISMATCH, ledger.withdraw(session, 900, 7));
+        assertEquals(LedgerResult.OPERATION_MISMATCH, ledger.deposit(session, 100, 7));
+        assertEquals(LedgerResult.OPERATION_MISMATCH, ledger.transfer(session, 2, 100, 7));
+        assertEquals(900, ledger.balance(1));
+
+        assertEquals(LedgerResult.OK, ledger.debitTransfer(session, 8, 2, 300));
+        assertEquals(LedgerResult.OPERATION_MISMATCH, ledger.debitTransfer(session, 8, 2, 301));
+        assertEquals(LedgerResult.OK, ledger.creditTransfer(8, 2, 1, 300));
+        assertEquals(LedgerResult.OPERATION_MISMATCH, ledger.creditTransfer(8, 2, 1, 3_000));
+        assertEquals(600, ledger.balance(1));
+        assertEquals(300, ledger.balance(2));
+    }
+
+    @Test
+    void keepsStepsAcrossASnapshotAndRestart() throws IOException {
+        try (Ledger ledger = Ledger.open(dir, new LogOptions())) {
+            ledger.register(1, 1234, 1_000);
+            Session session = ledger.login(1, 1, 1234);
+            assertEquals(LedgerResult.OK, ledger.debitTransfer(session, 5, 2, 400));
+            // Fences off transfer 6 before its debit arrives
+            assertEquals(LedgerResult.OK, ledger.cancelTransfer(6, 1));
+            ledger.snapshot();
+        }
+        try (Ledger ledger = Ledger.open(dir, new LogOptions())) {
+            Session session = ledger.login(1, 1, 1234);
+            assertEquals(LedgerResult.OK, ledger.debitTransfer(session, 5, 2, 400));
+            assertEquals(LedgerResult.UNAVAILABLE, ledger.debitTransfer(session, 6, 2, 100));
+            assertEquals(600, ledger.balance(1));
+            assertEquals(LedgerResult.OK, ledger.cancelTransfer(5, 1));
+            assertEquals(LedgerResult.OK, ledger.cancelTransfer(5, 1));
+            assertEquals(1_000, ledger.balance(1));
+        }
+    }
+
+    @Test
+    void evictsFinishedTransfersOnlyAfterTheRetryWindow() {
+        TransferSteps steps = new TransferSteps();
+        steps.record(1, 1, WriteAheadLog.TRANSFER_OUT, 2, 100, 0);
+        int perRound = 10_000;
+        long id = 2;
+        for (int round = 0; round < 20; round++) {
+            long now = round * OperationIds.TTL_MILLIS;
+            for (int i = 0; i < perRound; i++, id++) {
+                steps.record(1 + i % 100, id, WriteAheadLog.TRANSFER_IN, 2, 100, now);
+                assertTrue(steps.forget(1 + i % 100, id, now));
+            }
+        }
+        // Twenty rounds' worth without eviction; a round is evicted once the next one is a window later
+        assertTrue(steps.copy().size <= 3 * perRound, "kept " + steps.copy().size);
+        // An open transfer is never evicted, and a finished one still answers within the window
+        assertEquals(0, steps.find(1, 1).forgotten);
+        TransferSteps.Step latest = steps.find(1 + (perRound - 1) % 100, id - 1);
+        assertEquals(19 * OperationIds.TTL_MILLIS, latest.forgotten);
+        assertFalse(steps.forget(1 + (perRound - 1) % 100, id - 1, 20 * OperationIds.TTL_MILLIS));
+    }
+
+    @Test
+    void remembersForgottenTransfersAcrossARestart() throws IOException {
+        try (Ledger ledger = Ledger.open(dir, new LogOptions())) {
+            ledger.register(1, 1234, 1_000);
+            Session session = ledger.login(1, 1, 1234);
+            assertEquals(LedgerResult.OK, ledger.debitTransfer(session, 5, 2, 400));
+            assertEquals(LedgerResult.OK, ledger.debitTransfer(session, 6, 2, 100));
+            assertEquals(LedgerResult.OK, ledger.forgetTransfer(5, 1));
+            assertEquals(LedgerResult.OK, ledger.forgetTransfer(5, 1));
+            // Nothing to forget for an account that took no step
+            assertEquals(LedgerResult.OK, ledger.forgetTransfer(7, 1));
+            assertNull(ledger.transferStep(1, 7));
+            ledger.snapshot();
+            assertEquals(LedgerResult.OK, ledger.forgetTransfer(6, 1));
+        }
+        try (Ledger ledger = Ledger.open(dir, new LogOptions())) {
+            // One forgotten before the snapshot, one in the log after it
+            assertNotEquals(0, ledger.transferStep(1, 5).forgotten);
+            assertNotEquals(0, ledger.transferStep(1, 6).forgotten);
+            Session session = ledger.login(1, 1, 1234);
+            assertEquals(LedgerResult.OK, ledger.debitTransfer(session, 5, 2, 400));
+            assertEquals(500, ledger.balance(1));
+        }
+    }
+}
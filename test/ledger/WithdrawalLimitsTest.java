@@ -0,0 +1,69 @@
+package ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Checks daily and rolling withdrawal limits, including across a restart. */
+class WithdrawalLimitsTest {
+    private static final int PIN = 1234;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void refusesDebitsOverTheDailyLimitsAndRemembersThemAfterRestart() throws IOException {
+        try (Ledger ledger = Ledger.open(dir, new LogOptions())) {
+            ledger.setWithdrawalLimits(limits());
+            ledger.register(1, PinHash.create(PIN, 1_000), 100_000);
+            ledger.register(2, PinHash.create(PIN, 1_000), 0);
+
+            assertEquals(LedgerResult.OK, ledger.withdraw(1, 40_000));
+            // Outgoing transfers count towards the same limits; deposits do not
+            assertEquals(LedgerResult.OK, ledger.transfer(1, 2, 40_000));
+            assertEquals(LedgerResult.OK, ledger.deposit(1, 50_000));
+            assertEquals(LedgerResult.DAILY_LIMIT_EXCEEDED, ledger.withdraw(1, 30_000));
+            assertEquals(LedgerResult.OK, ledger.withdraw(1, 20_000));
+            assertEquals(50_000, ledger.balance(1));
+            assertEquals(LedgerResult.DAILY_LIMIT_EXCEEDED, ledger.withdraw(1, 1));
+            // The recipient's own allowance is untouched
+            assertEquals(LedgerResult.OK, ledger.withdraw(2, 10_000));
+        }
+
+        try (Ledger ledger = Ledger.open(dir, new LogOptions())) {
+            ledger.setWithdrawalLimits(limits());
+            assertEquals(LedgerResult.DAILY_LIMIT_EXCEEDED, ledger.withdraw(1, 1));
+            assertEquals(LedgerResult.OK, ledger.withdraw(2, 10_000));
+            assertEquals(LedgerResult.OK, ledger.withdraw(2, 10_000));
+            assertEquals(LedgerResult.DAILY_LIMIT_EXCEEDED, ledger.withdraw(2, 1));
+        }
+    }
+
+    @Test
+    void refusesDebitsOverTheRollingWindow() throws IOException {
+        try (Ledger ledger = Ledger.open(dir, new LogOptions())) {
+            ledger.setWithdrawalLimits(new WithdrawalLimits()
+                .window(TimeUnit.HOURS.toMillis(1), 30_000, 2)
+                .zone(ZoneOffset.UTC));
+            ledger.register(1, PinHash.create(PIN, 1_000), 100_000);
+            ledger.register(2, PinHash.create(PIN, 1_000), 0);
+
+            assertEquals(LedgerResult.OK, ledger.withdraw(1, 20_000));
+            assertEquals(LedgerResult.VELOCITY_LIMIT_EXCEEDED, ledger.transfer(1, 2, 10_001));
+            assertEquals(LedgerResult.OK, ledger.transfer(1, 2, 10_000));
+            assertEquals(LedgerResult.VELOCITY_LIMIT_EXCEEDED, ledger.withdraw(1, 1));
+            assertEquals(70_000, ledger.balance(1));
+            assertEquals(10_000, ledger.balance(2));
+        }
+    }
+
+    // 1,000.00 or three debits a day
+    private static WithdrawalLimits limits() {
+        return new WithdrawalLimits().daily(100_000, 3).zone(ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,170 @@
+package ledger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Reopens ledgers whose log was cut short or damaged and checks what
+ * recovery keeps. Snapshots are off, so every reopen replays the whole log.
+ */
+class WriteAheadLogRecoveryTest {
+    private static final int ACCOUNTS = 8;
+    // Header and payload of a deposit record
+    private static final int DEPOSIT_BYTES = 8 + 1 + 8 + 4 + 4 + 8 + 8;
+    // Offset of the amount within a record
+    private static final int AMOUNT_OFFSET = 8 + 1 + 8 + 4 + 4;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysEverySegment() throws IOException {
+        long[] expected = new long[ACCOUNTS];
+        try (Ledger ledger = open()) {
+            register(ledger, expected);
+            for (int i = 0; i < 1_000; i++) {
+                deposit(ledger, expected, i % ACCOUNTS, 100 + i);
+            }
+        }
+        assertTrue(segments().size() > 5, "log should span several segments");
+
+        try (Ledger ledger = open()) {
+            assertBalances(ledger, expected);
+            assertEquals(1_000 / ACCOUNTS, ledger.history(3).size());
+        }
+    }
+
+    @Test
+    void cutsTornTailAndAppendsAfterIt() throws IOException {
+        long[] expected = new long[ACCOUNTS];
+        try (Ledger ledger = open()) {
+            register(ledger, expected);
+            for (int i = 0; i < 50; i++) {
+                deposit(ledger, expected, i % ACCOUNTS, 1_000);
+            }
+            ledger.deposit(5, 777);
+        }
+        Path tail = lastSegment();
+        long intact = Files.size(tail) - DEPOSIT_BYTES;
+        try (FileChannel file = FileChannel.open(tail, StandardOpenOption.WRITE)) {
+            file.truncate(intact + DEPOSIT_BYTES / 2);
+        }
+
+        try (Ledger ledger = open()) {
+            assertBalances(ledger, expected);
+            assertEquals(intact, Files.size(tail));
+            deposit(ledger, expected, 5, 42);
+        }
+        try (Ledger ledger = open()) {
+            assertBalances(ledger, expected);
+        }
+    }
+
+    @Test
+    void dropsTailRecordWithBadChecksum() throws IOException {
+        long[] expected = new long[ACCOUNTS];
+        try (Ledger ledger = open()) {
+            register(ledger, expected);
+            for (int i = 0; i < 20; i++) {
+                deposit(ledger, expected, i % ACCOUNTS, 500);
+            }
+            ledger.deposit(2, 1_000_000);
+        }
+        Path tail = lastSegment();
+        long record = Files.size(tail) - DEPOSIT_BYTES;
+        flipByte(tail, record + AMOUNT_OFFSET);
+
+        try (Ledger ledger = open()) {
+            assertBalances(ledger, expected);
+        }
+        assertEquals(record, Files.size(tail));
+    }
+
+    @Test
+    void refusesDamageBeforeTheLastSegment() throws IOException {
+        long[] expected = new long[ACCOUNTS];
+        try (Ledger ledger = open()) {
+            register(ledger, expected);
+            for (int i = 0; i < 500; i++) {
+                deposit(ledger, expected, i % ACCOUNTS, 100);
+            }
+        }
+        List<Path> segments = segments();
+        assertTrue(segments.size() > 1);
+        Path first = segments.get(0);
+        long size = Files.size(first);
+        flipByte(first, size - DEPOSIT_BYTES + AMOUNT_OFFSET);
+
+        assertThrows(IOException.class, this::open);
+        assertEquals(size, Files.size(first), "a damaged middle segment must not be cut");
+    }
+
+    @Test
+    void refusesSecondLedgerOnSameDirectory() throws IOException {
+        try (Ledger ledger = open()) {
+            assertThrows(IOException.class, this::open);
+        }
+        try (Ledger ledger = open()) {
+            assertEquals(0, ledger.accountCount());
+        }
+    }
+
+    private Ledger open() throws IOException {
+        return Ledger.open(dir, new LogOptions().segmentBytes(4096));
+    }
+
+    private static void register(Ledger ledger, long[] expected) {
+        PinHash pin = PinHash.create(1234, 1_000);
+        for (int id = 0; id < ACCOUNTS; id++) {
+            assertEquals(LedgerResult.OK, ledger.register(id, pin, 10_000));
+            expected[id] = 10_000;
+        }
+    }
+
+    private static void deposit(Ledger ledger, long[] expected, int accountId, long amount) {
+        assertEquals(LedgerResult.OK, ledger.deposit(accountId, amount));
+        expected[accountId] += amount;
+    }
+
+    private static void assertBalances(Ledger ledger, long[] expected) {
+        for (int id = 0; id < ACCOUNTS; id++) {
+            assertEquals(expected[id], ledger.balance(id), "balance of " + id);
+        }
+    }
+
+    private static void flipByte(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) (b.get(0) ^ 0x5A)).rewind();
+            channel.write(b, position);
+        }
+    }
+
+    private Path lastSegment() throws IOException {
+        List<Path> segments = segments();
+        return segments.get(segments.size() - 1);
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "wal-*.log")) {
+            stream.forEach(segments::add);
+        }
+        segments.sort(null);
+        return segments;
+    }
+}
@@ -0,0 +1,86 @@
+package ui;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Paints a rounded, diagonal two-colour gradient from a cache of pre-rendered
+ * images.
+ *
+ * <p>Each distinct size (in device pixels, so HiDPI scaling stays sharp) is
+ * antialiased once into a translucent image compatible with the target's
+ * graphics configuration and afterwards only blitted, which Java2D can keep
+ * in video memory. Resizing a component simply asks for a different key; the
+ * least recently used images are dropped once {@value #MAX_IMAGES} are held.
+ * Like all Swing painting, instances must only be used on the EDT.
+ */
+public final class GradientPainter {
+    private static final int MAX_IMAGES = 64;
+
+    private final Color from;
+    private final Color to;
+    private final int arc;
+    private final Map<Long, BufferedImage> images = new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+            return size() > MAX_IMAGES;
+        }
+    };
+
+    public GradientPainter(Color from, Color to, int arc) {
+        this.from = from;
+        this.to = to;
+        this.arc = arc;
+    }
+
+    /** Fills {@code width x height} at the origin of {@code g}. */
+    public void paint(Graphics g, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        AffineTransform transform = ((Graphics2D) g).getTransform();
+        int deviceWidth = (int) Math.ceil(width * transform.getScaleX());
+        int deviceHeight = (int) Math.ceil(height * transform.getScaleY());
+        long key = (long) deviceWidth << 32 | deviceHeight;
+        BufferedImage image = images.get(key);
+        if (image == null) {
+            image = render(((Graphics2D) g).getDeviceConfiguration(), width, height, deviceWidth, deviceHeight);
+            images.put(key, image);
+        }
+        g.drawImage(image, 0, 0, width, height, null);
+    }
+
+    /** Paints directly, without the cache; what every repaint used to cost. */
+    public void paintUncached(Graphics g, int width, int height) {
+        Graphics2D g2d = (Graphics2D) g.create();
+        fill(g2d, width, height);
+        g2d.dispose();
+    }
+
+    private BufferedImage render(GraphicsConfiguration config, int width, int height, int deviceWidth, int deviceHeight) {
+        BufferedImage image = config != null
+            ? config.createCompatibleImage(deviceWidth, deviceHeight, Transparency.TRANSLUCENT)
+            : new BufferedImage(deviceWidth, deviceHeight, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g2d = image.createGraphics();
+        g2d.scale((double) deviceWidth / width, (double) deviceHeight / height);
+        fill(g2d, width, height);
+        g2d.dispose();
+        return image;
+    }
+
+    private void fill(Graphics2D g2d, int width, int height) {
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setPaint(new GradientPaint(0, 0, from, width, height, to));
+        g2d.fill(new RoundRectangle2D.Double(0, 0, width, height, arc, arc));
+    }
+}